@@ -28,19 +28,25 @@ import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Request to download an MMS
  */
 class DownloadRequest extends MmsRequest {
+    // The uri of the validator of the PDU the PDU uri holds the start of, or null if a download
+    // isn't to be resumed
+    private final Uri mValidatorUri;
 
-    DownloadRequest(final String locationUrl, final Uri pduUri,
+    DownloadRequest(final String locationUrl, final Uri pduUri, final Uri validatorUri,
             final PendingIntent sentIntent) {
         super(locationUrl, pduUri, sentIntent);
+        mValidatorUri = validatorUri;
     }
 
     @Override
@@ -51,17 +57,34 @@ class DownloadRequest extends MmsRequest {
 
     @Override
     protected boolean transferResponse(Context context, Intent fillIn, byte[] response) {
-        return writePduToContentUri(context, mPduUri, response);
+        // The response is streamed to the PDU uri by doHttp
+        return true;
     }
 
     @Override
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettingsLoader.Apn apn,
             Bundle mmsConfig, String userAgent, String uaProfUrl) throws MmsHttpException {
         final MmsHttpClient httpClient = netMgr.getHttpClient();
-        return httpClient.execute(getHttpRequestUrl(apn), null/*pdu*/, MmsHttpClient.METHOD_GET,
-                !TextUtils.isEmpty(apn.getMmsProxy()), apn.getMmsProxy(), apn.getMmsProxyPort(),
-                mmsConfig, userAgent, uaProfUrl);
-
+        FileChannel response = null;
+        try {
+            response = openPduFile(context);
+            return httpClient.executeStreaming(getHttpRequestUrl(apn), null/*pdu*/,
+                    MmsHttpClient.METHOD_GET, !TextUtils.isEmpty(apn.getMmsProxy()),
+                    apn.getMmsProxy(), apn.getMmsProxyPort(), mmsConfig, userAgent, uaProfUrl,
+                    response, mValidatorUri != null ? new UriValidatorStore(context) : null,
+                    createProgressListener());
+        } catch (IOException e) {
+            Log.e(MmsService.TAG, "Writing PDU to downloader: IO exception", e);
+            throw new MmsHttpException(0/*statusCode*/, e);
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
     }
 
     @Override
@@ -70,49 +93,93 @@ class DownloadRequest extends MmsRequest {
     }
 
     /**
-     * Write pdu bytes to content provider uri
+     * Open the file of the PDU uri to write the downloaded PDU to. It is opened for reading and
+     * writing where the uri supports it, so that a download the file holds the start of can be
+     * resumed, and truncated otherwise.
      *
-     * @param contentUri content provider uri to which bytes should be written
-     * @param pdu Bytes to write
-     * @return true if all bytes successfully written else false
+     * @return the file channel of the PDU uri
      */
-    public boolean writePduToContentUri(final Context context, final Uri contentUri,
-            final byte[] pdu) {
-        if (contentUri == null || pdu == null) {
-            return false;
+    private FileChannel openPduFile(final Context context) throws IOException {
+        if (mPduUri == null) {
+            throw new FileNotFoundException("No PDU uri");
         }
-        final Callable<Boolean> copyDownloadedPduToOutput = new Callable<Boolean>() {
-            public Boolean call() {
-                ParcelFileDescriptor.AutoCloseOutputStream outStream = null;
-                try {
-                    final ContentResolver cr = context.getContentResolver();
-                    final ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "w");
-                    outStream = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd);
-                    outStream.write(pdu);
-                    return true;
-                } catch (IOException e) {
-                    Log.e(MmsService.TAG, "Writing PDU to downloader: IO exception", e);
-                    return false;
-                } finally {
-                    if (outStream != null) {
-                        try {
-                            outStream.close();
-                        } catch (IOException ex) {
-                            // Ignore
-                        }
+        final ContentResolver cr = context.getContentResolver();
+        ParcelFileDescriptor pduFd;
+        try {
+            pduFd = cr.openFileDescriptor(mPduUri, "rw");
+        } catch (FileNotFoundException e) {
+            pduFd = null;
+        } catch (IllegalArgumentException e) {
+            pduFd = null;
+        }
+        if (pduFd == null) {
+            pduFd = cr.openFileDescriptor(mPduUri, "w");
+        }
+        if (pduFd == null) {
+            throw new FileNotFoundException("Can't open " + mPduUri);
+        }
+        return new ParcelFileDescriptor.AutoCloseOutputStream(pduFd).getChannel();
+    }
+
+    /**
+     * Store of the validator of the downloaded PDU in the validator uri
+     */
+    private class UriValidatorStore implements MmsHttpClient.ValidatorStore {
+        private final ContentResolver mContentResolver;
+
+        UriValidatorStore(final Context context) {
+            mContentResolver = context.getContentResolver();
+        }
+
+        @Override
+        public String getValidator() {
+            InputStream in = null;
+            try {
+                in = mContentResolver.openInputStream(mValidatorUri);
+                if (in == null) {
+                    return null;
+                }
+                final ByteArrayOutputStream validator = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[256];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    validator.write(buffer, 0, count);
+                }
+                return validator.size() > 0 ? validator.toString("UTF-8") : null;
+            } catch (IOException e) {
+                // Not stored, so the download starts over
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ex) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void setValidator(final String validator) {
+            OutputStream out = null;
+            try {
+                out = mContentResolver.openOutputStream(mValidatorUri, "w");
+                if (out != null && validator != null) {
+                    out.write(validator.getBytes("UTF-8"));
+                }
+            } catch (IOException e) {
+                Log.w(MmsService.TAG, "Failed to store validator of download", e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ex) {
+                        // Ignore
                     }
                 }
             }
-        };
-        final Future<Boolean> pendingResult =
-                mPduTransferExecutor.submit(copyDownloadedPduToOutput);
-        try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
         }
-        return false;
     }
 
     public static final Parcelable.Creator<DownloadRequest> CREATOR
@@ -128,5 +195,12 @@ class DownloadRequest extends MmsRequest {
 
     private DownloadRequest(Parcel in) {
         super(in);
+        mValidatorUri = in.readParcelable(DownloadRequest.class.getClassLoader());
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        super.writeToParcel(parcel, flags);
+        parcel.writeParcelable(mValidatorUri, 0);
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v7.mms;
+
+/**
+ * Interface to observe the HTTP transfers with the MMSC, e.g. to keep metrics of them
+ */
+public interface HttpTransferListener {
+    // HTTP methods of the transfers
+    public static final String METHOD_GET = MmsHttpClient.METHOD_GET;
+    public static final String METHOD_POST = MmsHttpClient.METHOD_POST;
+
+    /**
+     * Called on the thread executing the request once a transfer has finished
+     *
+     * @param method the HTTP method of the request, GET or POST
+     * @param succeeded true if the whole response body was received
+     * @param elapsedNanos the time the transfer took, in nanoseconds
+     * @param bytesSent the number of bytes of the request body sent
+     * @param bytesReceived the number of bytes of the response body received, not counting
+     *                      those of a resumed download received before
+     */
+    void onTransferFinished(String method, boolean succeeded, long elapsedNanos, long bytesSent,
+            long bytesReceived);
+}
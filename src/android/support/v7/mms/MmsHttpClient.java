@@ -26,8 +26,8 @@ import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,6 +40,11 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -57,6 +62,13 @@ public class MmsHttpClient {
     private static final String HEADER_ACCEPT = "Accept";
     private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
     private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
 
     // The "Accept" header value
     private static final String HEADER_VALUE_ACCEPT =
@@ -66,6 +78,21 @@ public class MmsHttpClient {
             "application/vnd.wap.mms-message; charset=utf-8";
     private static final String HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET =
             "application/vnd.wap.mms-message";
+    // The "Accept-Encoding" header value of a resumed download
+    private static final String HEADER_VALUE_IDENTITY = "identity";
+
+    // The prefix of a weak entity tag, which can't validate a range
+    private static final String WEAK_ETAG_PREFIX = "W/";
+
+    // Not defined by HttpURLConnection
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // The first byte position of a "Content-Range" header value
+    private static final Pattern CONTENT_RANGE_P =
+            Pattern.compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
+
+    // The size of the buffer streamed request and response bodies are copied through
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
 
     /*
      * Macro names
@@ -80,6 +107,38 @@ public class MmsHttpClient {
     // The possible NAI system property name
     private static final String NAI_PROPERTY = "persist.radio.cdma.nai";
 
+    /**
+     * Listener of the progress of a request, called on the thread executing it
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesTransferred The number of bytes of the request or response body sent or
+         *                         received so far, including those of a resumed download
+         *                         received before
+         * @param totalBytes The size of the body, or -1 if not known
+         */
+        void onProgress(long bytesTransferred, long totalBytes);
+    }
+
+    /**
+     * Store of the validator of the response body a response file holds the start of, i.e. its
+     * entity tag or last modified date, kept next to the file so that a later request resumes
+     * the download only if the body is still the same
+     */
+    public interface ValidatorStore {
+        /**
+         * @return The validator of the response body the file holds the start of, or null if
+         *         there isn't one
+         */
+        String getValidator();
+
+        /**
+         * @param validator The validator of the response body being written to the file, or
+         *                  null if it has none
+         */
+        void setValidator(String validator);
+    }
+
     private final Context mContext;
     private final TelephonyManager mTelephonyManager;
 
@@ -112,10 +171,69 @@ public class MmsHttpClient {
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
             String proxyHost, int proxyPort, Bundle mmsConfig, String userAgent, String uaProfUrl)
             throws MmsHttpException {
+        return execute(urlString,
+                pdu != null ? Channels.newChannel(new ByteArrayInputStream(pdu)) : null,
+                pdu != null ? pdu.length : 0, method, isProxySet, proxyHost, proxyPort, mmsConfig,
+                userAgent, uaProfUrl, null/*response*/, null/*validators*/, null/*listener*/);
+    }
+
+    /**
+     * Execute an MMS HTTP request, streaming the PDU from a file and optionally the response
+     * body to a file, so that neither is held in memory
+     *
+     * If the response file already holds the start of the response body, from a download that
+     * failed part way, the download is resumed with a Range request made conditional on the
+     * validator of that body with If-Range. If the MMSC doesn't support ranges or the body has
+     * changed, the file is overwritten with the full response. A download whose validator isn't
+     * known starts over.
+     *
+     * @param urlString The request URL, for sending it is usually the MMSC, and for downloading
+     *                  it is the message URL
+     * @param pdu For POST (sending) only, the file of the PDU to send, read from its start
+     * @param method HTTP method, POST for sending and GET for downloading
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param userAgent The user agent header value
+     * @param uaProfUrl The UA Prof URL header value
+     * @param response The file to write the response body to, or null to return it
+     * @param validators The store of the validator of the body the response file holds, or null
+     *                   not to resume downloads
+     * @param listener The optional listener of the progress of the transfer
+     * @return The HTTP response body, or null if it was written to the response file
+     * @throws MmsHttpException For any failures
+     */
+    public byte[] executeStreaming(String urlString, FileChannel pdu, String method,
+            boolean isProxySet, String proxyHost, int proxyPort, Bundle mmsConfig,
+            String userAgent, String uaProfUrl, FileChannel response, ValidatorStore validators,
+            ProgressListener listener) throws MmsHttpException {
+        long pduLength = 0;
+        if (pdu != null) {
+            try {
+                pduLength = pdu.size();
+                pdu.position(0);
+            } catch (IOException e) {
+                Log.e(MmsService.TAG, "HTTP: failed to read PDU file", e);
+                throw new MmsHttpException(0/*statusCode*/, e);
+            }
+        }
+        return execute(urlString, pdu, pduLength, method, isProxySet, proxyHost, proxyPort,
+                mmsConfig, userAgent, uaProfUrl, response, validators, listener);
+    }
+
+    private byte[] execute(String urlString, ReadableByteChannel pdu, long pduLength,
+            String method, boolean isProxySet, String proxyHost, int proxyPort, Bundle mmsConfig,
+            String userAgent, String uaProfUrl, FileChannel response, ValidatorStore validators,
+            ProgressListener listener) throws MmsHttpException {
         Log.d(MmsService.TAG, "HTTP: " + method + " " + Utils.redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
-                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+                + ", PDU size=" + pduLength);
         checkMethod(method);
+        final long startNanos = System.nanoTime();
+        boolean succeeded = false;
+        long bytesSent = 0;
+        long bytesReceived = 0;
         HttpURLConnection connection = null;
         try {
             Proxy proxy = Proxy.NO_PROXY;
@@ -148,9 +266,11 @@ public class MmsHttpClient {
             }
             // Add extra headers specified by mms_config.xml's httpparams
             addExtraHeaders(connection, mmsConfig);
+            // The length of the response body the response file already holds
+            long resumeOffset = 0;
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
-                if (pdu == null || pdu.length < 1) {
+                if (pdu == null || pduLength < 1) {
                     Log.e(MmsService.TAG, "HTTP: empty pdu");
                     throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
                 }
@@ -168,14 +288,32 @@ public class MmsHttpClient {
                 if (Log.isLoggable(MmsService.TAG, Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties());
                 }
-                connection.setFixedLengthStreamingMode(pdu.length);
+                connection.setFixedLengthStreamingMode(pduLength);
                 // Sending request body
-                final OutputStream out =
-                        new BufferedOutputStream(connection.getOutputStream());
-                out.write(pdu);
-                out.flush();
+                final OutputStream out = connection.getOutputStream();
+                bytesSent = transfer(
+                        pdu, Channels.newChannel(out), 0/*transferred*/, pduLength, listener);
                 out.close();
             } else if (METHOD_GET.equals(method)) {
+                if (response != null) {
+                    resumeOffset = response.size();
+                }
+                final String validator = (resumeOffset > 0 && validators != null)
+                        ? validators.getValidator() : null;
+                if (resumeOffset > 0 && validator == null) {
+                    // The file may hold the start of another body, so start over
+                    Log.d(MmsService.TAG, "HTTP: no validator to resume download, starting over");
+                    response.truncate(0);
+                    resumeOffset = 0;
+                }
+                if (resumeOffset > 0) {
+                    Log.d(MmsService.TAG, "HTTP: resuming download at " + resumeOffset);
+                    connection.setRequestProperty(HEADER_RANGE, "bytes=" + resumeOffset + "-");
+                    // The MMSC sends the full body instead if it has changed since
+                    connection.setRequestProperty(HEADER_IF_RANGE, validator);
+                    // The range has to be of the body itself rather than of a compressed one
+                    connection.setRequestProperty(HEADER_ACCEPT_ENCODING, HEADER_VALUE_IDENTITY);
+                }
                 if (Log.isLoggable(MmsService.TAG, Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties());
                 }
@@ -189,19 +327,48 @@ public class MmsHttpClient {
                 logHttpHeaders(connection.getHeaderFields());
             }
             if (responseCode / 100 != 2) {
+                if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && resumeOffset > 0) {
+                    // The file doesn't hold the start of this message, so start over next time
+                    discardResponse(response, validators);
+                }
                 throw new MmsHttpException(responseCode, responseMessage);
             }
-            final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            long offset = 0;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                offset = getContentRangeStart(connection);
+                if (offset != resumeOffset) {
+                    if (response != null) {
+                        discardResponse(response, validators);
+                    }
+                    throw new MmsHttpException(responseCode, "Unexpected content range");
+                }
+            }
+            final long contentLength = getContentLength(connection);
+            final long totalLength = contentLength >= 0 ? offset + contentLength : -1;
+            final InputStream in = connection.getInputStream();
+            byte[] responseBody = null;
+            final long responseSize;
+            if (response != null) {
+                if (validators != null) {
+                    // Kept before the body is written, for resuming it if the transfer fails
+                    validators.setValidator(getValidator(connection));
+                }
+                // A full response replaces what the file holds
+                response.truncate(offset);
+                response.position(offset);
+                responseSize = transfer(
+                        Channels.newChannel(in), response, offset, totalLength, listener);
+            } else {
+                final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                responseSize = transfer(Channels.newChannel(in), Channels.newChannel(byteOut),
+                        0/*transferred*/, totalLength, listener);
+                responseBody = byteOut.toByteArray();
             }
             in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            Log.d(MmsService.TAG, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
+            Log.d(MmsService.TAG, "HTTP: response size=" + responseSize
+                    + (offset > 0 ? (", resumed at " + offset) : ""));
+            bytesReceived = responseSize - offset;
+            succeeded = true;
             return responseBody;
         } catch (MalformedURLException e) {
             final String redactedUrl = Utils.redactUrlForNonVerbose(urlString);
@@ -218,9 +385,97 @@ public class MmsHttpClient {
             if (connection != null) {
                 connection.disconnect();
             }
+            final HttpTransferListener transferListener = MmsService.getHttpTransferListener();
+            if (transferListener != null) {
+                transferListener.onTransferFinished(method, succeeded,
+                        System.nanoTime() - startNanos, bytesSent, bytesReceived);
+            }
+        }
+    }
+
+    /**
+     * Copy all the data of a channel to another through a direct buffer, reporting the progress
+     *
+     * @param transferred The number of bytes transferred before
+     * @param totalLength The number of bytes to transfer in all, or -1 if not known
+     * @return The number of bytes transferred in all
+     */
+    private static long transfer(ReadableByteChannel in, WritableByteChannel out,
+            long transferred, long totalLength, ProgressListener listener) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                transferred += out.write(buffer);
+            }
+            buffer.clear();
+            if (listener != null) {
+                listener.onProgress(transferred, totalLength);
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Empty the response file and forget its validator, so that the next download starts over
+     */
+    private static void discardResponse(FileChannel response, ValidatorStore validators)
+            throws IOException {
+        response.truncate(0);
+        if (validators != null) {
+            validators.setValidator(null);
         }
     }
 
+    /**
+     * @return The validator of the response body to make a range request for the rest of it
+     *         conditional on, i.e. its strong entity tag, or else its last modified date, or null
+     *         if it has neither
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        final String etag = connection.getHeaderField(HEADER_ETAG);
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith(WEAK_ETAG_PREFIX)) {
+            return etag.trim();
+        }
+        final String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+        return TextUtils.isEmpty(lastModified) ? null : lastModified.trim();
+    }
+
+    /**
+     * @return The value of the Content-Length response header, or -1 if there isn't a valid one
+     */
+    private static long getContentLength(HttpURLConnection connection) {
+        final String contentLength = connection.getHeaderField(HEADER_CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                Log.w(MmsService.TAG, "HTTP: invalid content length " + contentLength);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The first byte position of the Content-Range response header, e.g. 100 for
+     *         "bytes 100-999/1000", or -1 if there isn't a valid one
+     */
+    private static long getContentRangeStart(HttpURLConnection connection) {
+        final String contentRange = connection.getHeaderField(HEADER_CONTENT_RANGE);
+        if (contentRange != null) {
+            final Matcher matcher = CONTENT_RANGE_P.matcher(contentRange.trim());
+            if (matcher.matches()) {
+                try {
+                    return Long.parseLong(matcher.group(1));
+                } catch (NumberFormatException e) {
+                    // Fall through
+                }
+            }
+            Log.w(MmsService.TAG, "HTTP: invalid content range " + contentRange);
+        }
+        return -1;
+    }
+
     private static void logHttpHeaders(Map<String, List<String>> headers) {
         final StringBuilder sb = new StringBuilder();
         if (headers != null) {
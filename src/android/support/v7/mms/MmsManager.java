@@ -123,6 +123,17 @@ public class MmsManager {
         }
     }
 
+    /**
+     * Set the optional listener of the HTTP transfers with the MMSC
+     *
+     * Note: if system MMS API is used, this has no effect
+     *
+     * @param listener the HTTP transfer listener, or null for none
+     */
+    public static void setHttpTransferListener(final HttpTransferListener listener) {
+        MmsService.setHttpTransferListener(listener);
+    }
+
     /**
      * Send MMS via platform MMS API (if platform supports and not forced to
      * use legacy APIs) or legacy APIs
@@ -157,14 +168,32 @@ public class MmsManager {
      */
     public static void downloadMultimediaMessage(int subId, Context context, String locationUrl,
             Uri contentUri, PendingIntent downloadedIntent) {
+        downloadMultimediaMessage(subId, context, locationUrl, contentUri, null/*validatorUri*/,
+                downloadedIntent);
+    }
+
+    /**
+     * Download MMS via platform MMS API (if platform supports and not forced to
+     * use legacy APIs) or legacy APIs. The legacy APIs resume a download that the content URI
+     * holds the start of, if the validator URI holds the validator of the PDU it came from.
+     *
+     * @param subId the subscription ID of the SIM to use
+     * @param context the Context to use
+     * @param contentUri the content URI of the PDU to be sent
+     * @param locationUrl the optional location URL to use for sending
+     * @param validatorUri the optional content URI to keep the validator of the PDU in
+     * @param downloadedIntent the pending intent for returning results
+     */
+    public static void downloadMultimediaMessage(int subId, Context context, String locationUrl,
+            Uri contentUri, Uri validatorUri, PendingIntent downloadedIntent) {
         if (Utils.hasMmsApi() && !sForceLegacyMms) {
             subId = Utils.getEffectiveSubscriptionId(subId);
             final SmsManager smsManager = Utils.getSmsManager(subId);
             smsManager.downloadMultimediaMessage(context, locationUrl, contentUri,
                     getConfigOverrides(subId), downloadedIntent);
         } else {
-            MmsService.startRequest(context,
-                    new DownloadRequest(locationUrl, contentUri, downloadedIntent));
+            MmsService.startRequest(context, new DownloadRequest(locationUrl, contentUri,
+                    validatorUri, downloadedIntent));
         }
     }
 
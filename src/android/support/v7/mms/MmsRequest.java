@@ -73,7 +73,7 @@ abstract class MmsRequest implements Parcelable {
      * @param mmsConfig The carrier configuration values to use
      * @param userAgent The User-Agent header value
      * @param uaProfUrl The UA Prof URL header value
-     * @return The HTTP response data
+     * @return The HTTP response data, or null if the request wrote it to the PDU uri itself
      * @throws MmsHttpException If any network error happens
      */
     protected abstract byte[] doHttp(Context context, MmsNetworkManager netMgr,
@@ -91,6 +91,11 @@ abstract class MmsRequest implements Parcelable {
     // Maximum time to spend waiting to read data from a content provider before failing with error.
     protected static final int TASK_TIMEOUT_MS = 30 * 1000;
 
+    // How often the progress of a transfer is logged, in percent of its size, or in bytes if its
+    // size isn't known
+    private static final int PROGRESS_LOG_PERCENT = 10;
+    private static final long PROGRESS_LOG_BYTES = 100 * 1024;
+
     protected final String mLocationUrl;
     protected final Uri mPduUri;
     protected final PendingIntent mPendingIntent;
@@ -209,6 +214,27 @@ abstract class MmsRequest implements Parcelable {
         returnResult(context, result, response, httpStatusCode);
     }
 
+    /**
+     * Create the listener of the progress of an HTTP transfer of this request, which logs it
+     */
+    protected MmsHttpClient.ProgressListener createProgressListener() {
+        final String name = getClass().getSimpleName();
+        return new MmsHttpClient.ProgressListener() {
+            private long mLoggedBytes;
+
+            @Override
+            public void onProgress(final long bytesTransferred, final long totalBytes) {
+                final long step = totalBytes > 0
+                        ? totalBytes * PROGRESS_LOG_PERCENT / 100 : PROGRESS_LOG_BYTES;
+                if (bytesTransferred - mLoggedBytes >= step || bytesTransferred == totalBytes) {
+                    mLoggedBytes = bytesTransferred;
+                    Log.d(MmsService.TAG, name + ": transferred " + bytesTransferred
+                            + (totalBytes >= 0 ? (" of " + totalBytes) : "") + " bytes");
+                }
+            }
+        };
+    }
+
     /**
      * Check if the response indicates a failure when we send to wrong APN.
      * Sometimes even if you send to the wrong APN, a response in valid PDU format can still
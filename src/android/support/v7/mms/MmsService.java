@@ -73,6 +73,11 @@ public class MmsService extends Service {
      */
     private static volatile UserAgentInfoLoader sUserAgentInfoLoader = null;
 
+    /**
+     * Optional listener of HTTP transfers
+     */
+    private static volatile HttpTransferListener sHttpTransferListener = null;
+
     /**
      * Set the size of thread pool for request execution.
      * Default is DEFAULT_THREAD_POOL_SIZE
@@ -146,6 +151,24 @@ public class MmsService extends Service {
         return sUserAgentInfoLoader;
     }
 
+    /**
+     * Set HTTP transfer listener
+     *
+     * @param listener the HTTP transfer listener, or null for none
+     */
+    static void setHttpTransferListener(final HttpTransferListener listener) {
+        sHttpTransferListener = listener;
+    }
+
+    /**
+     * Get the current HTTP transfer listener
+     *
+     * @return the HTTP transfer listener currently set, or null if there is none
+     */
+    static HttpTransferListener getHttpTransferListener() {
+        return sHttpTransferListener;
+    }
+
     /**
      * Make sure loaders are not null. Set to default if that's the case
      *
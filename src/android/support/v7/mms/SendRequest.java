@@ -29,7 +29,9 @@ import android.telephony.SmsManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -43,6 +45,8 @@ class SendRequest extends MmsRequest {
     private static final int MAX_SEND_RESPONSE_SIZE = 1000 * 1024;
 
     private byte[] mPduData;
+    // The file of the PDU, streamed rather than read into mPduData when the PDU uri is a file
+    private ParcelFileDescriptor mPduFd;
 
     SendRequest(final String locationUrl, final Uri pduUri, final PendingIntent sentIntent) {
         super(locationUrl, pduUri, sentIntent);
@@ -50,12 +54,14 @@ class SendRequest extends MmsRequest {
 
     @Override
     protected boolean loadRequest(final Context context, final Bundle mmsConfig) {
-        mPduData = readPduFromContentUri(
-                context,
-                mPduUri,
-                mmsConfig.getInt(
-                        CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE,
-                        CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE_DEFAULT));
+        final int maxSize = mmsConfig.getInt(
+                CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE,
+                CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE_DEFAULT);
+        mPduFd = openPduFile(context, mPduUri, maxSize);
+        if (mPduFd != null) {
+            return true;
+        }
+        mPduData = readPduFromContentUri(context, mPduUri, maxSize);
         return (mPduData != null);
     }
 
@@ -78,16 +84,76 @@ class SendRequest extends MmsRequest {
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettingsLoader.Apn apn,
             Bundle mmsConfig, String userAgent, String uaProfUrl) throws MmsHttpException {
         final MmsHttpClient httpClient = netMgr.getHttpClient();
+        if (mPduFd != null) {
+            // The channel is closed along with the descriptor when the request is done
+            final FileChannel pdu = new FileInputStream(mPduFd.getFileDescriptor()).getChannel();
+            return httpClient.executeStreaming(getHttpRequestUrl(apn), pdu,
+                    MmsHttpClient.METHOD_POST, !TextUtils.isEmpty(apn.getMmsProxy()),
+                    apn.getMmsProxy(), apn.getMmsProxyPort(), mmsConfig, userAgent, uaProfUrl,
+                    null/*response*/, null/*validators*/, createProgressListener());
+        }
         return httpClient.execute(getHttpRequestUrl(apn), mPduData, MmsHttpClient.METHOD_POST,
                 !TextUtils.isEmpty(apn.getMmsProxy()), apn.getMmsProxy(), apn.getMmsProxyPort(),
                 mmsConfig, userAgent, uaProfUrl);
     }
 
+    @Override
+    void returnResult(final Context context, final int result, final byte[] response,
+            final int httpStatusCode) {
+        if (mPduFd != null) {
+            try {
+                mPduFd.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            mPduFd = null;
+        }
+        super.returnResult(context, result, response, httpStatusCode);
+    }
+
     @Override
     protected String getHttpRequestUrl(final ApnSettingsLoader.Apn apn) {
         return !TextUtils.isEmpty(mLocationUrl) ? mLocationUrl : apn.getMmsc();
     }
 
+    /**
+     * Open the file of the PDU uri to stream the PDU from
+     *
+     * @param contentUri content provider uri of the PDU
+     * @param maxSize maximum size of the PDU
+     * @return the descriptor of the PDU file, or null if the uri isn't of a regular file (so its
+     *         size isn't known) or the PDU is empty or too large
+     */
+    private static ParcelFileDescriptor openPduFile(final Context context, final Uri contentUri,
+            final int maxSize) {
+        if (contentUri == null) {
+            return null;
+        }
+        ParcelFileDescriptor pduFd = null;
+        try {
+            pduFd = context.getContentResolver().openFileDescriptor(contentUri, "r");
+            if (pduFd != null) {
+                final long size = pduFd.getStatSize();
+                if (size > 0 && size <= maxSize) {
+                    final ParcelFileDescriptor result = pduFd;
+                    pduFd = null;
+                    return result;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(MmsService.TAG, "Opening PDU file from sender: IO exception", e);
+        } finally {
+            if (pduFd != null) {
+                try {
+                    pduFd.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Read pdu from content provider uri
      *
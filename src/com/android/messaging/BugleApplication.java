@@ -32,6 +32,7 @@ import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.receiver.SmsReceiver;
 import com.android.messaging.sms.ApnDatabase;
 import com.android.messaging.sms.BugleApnSettingsLoader;
+import com.android.messaging.sms.BugleHttpTransferListener;
 import com.android.messaging.sms.BugleUserAgentInfoLoader;
 import com.android.messaging.sms.MmsConfig;
 import com.android.messaging.ui.ConversationDrawables;
@@ -140,6 +141,7 @@ public class BugleApplication extends Application implements UncaughtExceptionHa
         MmsManager.setApnSettingsLoader(new BugleApnSettingsLoader(context));
         MmsManager.setCarrierConfigValuesLoader(carrierConfigValuesLoader);
         MmsManager.setUserAgentInfoLoader(new BugleUserAgentInfoLoader(context));
+        MmsManager.setHttpTransferListener(new BugleHttpTransferListener());
         MmsManager.setUseWakeLock(true);
         // If Gservices is configured not to use mms api, force MmsManager to always use
         // legacy mms sending logic
@@ -33,11 +33,13 @@ import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsCo
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.DatabaseWrapper.RowBinder;
 import com.android.messaging.datamodel.ParticipantRefresh.ConversationParticipantsQuery;
 import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.MessagePartData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaResourceManager;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
@@ -53,6 +55,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import javax.annotation.Nullable;
@@ -314,6 +317,56 @@ public class BugleDatabaseOperations {
         return threadId;
     }
 
+    /**
+     * Add the numbers of the participants, most recent first, to the canonical phone number cache
+     * so that sync and participant refresh find them there rather than parsing them again
+     */
+    @DoesNotRunOnMainThread
+    public static void warmCanonicalPhoneNumberCache(final DatabaseWrapper dbWrapper) {
+        Assert.isNotMainThread();
+        final PhoneUtils phoneUtils = PhoneUtils.getDefault();
+        final Cursor cursor = dbWrapper.query(DatabaseHelper.PARTICIPANTS_TABLE,
+                new String[] { ParticipantColumns.SEND_DESTINATION,
+                        ParticipantColumns.NORMALIZED_DESTINATION },
+                ParticipantColumns.SUB_ID + "=? AND " + ParticipantColumns.SEND_DESTINATION
+                        + " LIKE '+%'",
+                new String[] { String.valueOf(ParticipantData.OTHER_THAN_SELF_SUB_ID) },
+                null, null, ParticipantColumns._ID + " DESC",
+                String.valueOf(PhoneUtils.CANONICAL_CACHE_WARM_UP_LIMIT));
+        try {
+            while (cursor.moveToNext()) {
+                final String normalizedDestination = cursor.getString(1);
+                phoneUtils.warmCanonicalCache(cursor.getString(0), normalizedDestination);
+                phoneUtils.warmCanonicalCache(normalizedDestination, normalizedDestination);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return whether the conversation has messages not yet read or not yet seen, as counted by
+     *         the triggers of the messages table
+     */
+    public static boolean hasUnreadOrUnseenMessages(final DatabaseWrapper dbWrapper,
+            final String conversationId) {
+        return dbWrapper.queryNumEntries(DatabaseHelper.CONVERSATIONS_TABLE,
+                ConversationColumns._ID + "=? AND (" + ConversationColumns.UNREAD_COUNT + ">0 OR "
+                        + ConversationColumns.UNSEEN_COUNT + ">0)",
+                new String[] { conversationId }) > 0;
+    }
+
+    /**
+     * @return whether the conversation has messages not yet seen, as counted by the triggers of
+     *         the messages table
+     */
+    public static boolean hasUnseenMessages(final DatabaseWrapper dbWrapper,
+            final String conversationId) {
+        return dbWrapper.queryNumEntries(DatabaseHelper.CONVERSATIONS_TABLE,
+                ConversationColumns._ID + "=? AND " + ConversationColumns.UNSEEN_COUNT + ">0",
+                new String[] { conversationId }) > 0;
+    }
+
     @DoesNotRunOnMainThread
     public static boolean isBlockedDestination(final DatabaseWrapper db, final String destination) {
         Assert.isNotMainThread();
@@ -472,19 +525,30 @@ public class BugleDatabaseOperations {
         dbWrapper.beginTransaction();
         boolean conversationDeleted = false;
         boolean conversationMessagesDeleted = false;
+        final HashSet<String> partContentUris;
+        final ArrayList<String> notificationIds;
         try {
             // Delete existing messages
             if (cutoffTimestamp == Long.MAX_VALUE) {
                 // Delete parts and messages
+                partContentUris = queryPartContentUrisInTransaction(dbWrapper,
+                        MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
+                notificationIds = queryMmsNotificationIdsInTransaction(dbWrapper,
+                        MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 conversationMessagesDeleted = true;
             } else {
                 // Delete all messages prior to the cutoff
-                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
-                        MessageColumns.CONVERSATION_ID + "=? AND "
-                                + MessageColumns.RECEIVED_TIMESTAMP + "<=?",
-                                new String[] { conversationId, Long.toString(cutoffTimestamp) });
+                final String selection = MessageColumns.CONVERSATION_ID + "=? AND "
+                        + MessageColumns.RECEIVED_TIMESTAMP + "<=?";
+                final String[] selectionArgs =
+                        new String[] { conversationId, Long.toString(cutoffTimestamp) };
+                partContentUris = queryPartContentUrisInTransaction(dbWrapper, selection,
+                        selectionArgs);
+                notificationIds = queryMmsNotificationIdsInTransaction(dbWrapper, selection,
+                        selectionArgs);
+                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE, selection, selectionArgs);
 
                 // Delete any draft message. The delete above may not always include the draft,
                 // because under certain scenarios (e.g. sending messages in progress), the draft
@@ -526,9 +590,62 @@ public class BugleDatabaseOperations {
         } finally {
             dbWrapper.endTransaction();
         }
+        MediaResourceManager.get().removeFromDiskCache(partContentUris);
+        deleteMmsDownloads(notificationIds);
         return conversationDeleted;
     }
 
+    /**
+     * Get the content uris of the parts of the messages matching a selection, so that their
+     * images can be removed from the media disk cache once the messages are deleted
+     */
+    private static HashSet<String> queryPartContentUrisInTransaction(
+            final DatabaseWrapper dbWrapper, final String messageSelection,
+            final String[] selectionArgs) {
+        final HashSet<String> partContentUris = new HashSet<String>();
+        final Cursor cursor = dbWrapper.rawQuery("SELECT " + PartColumns.CONTENT_URI
+                + " FROM " + DatabaseHelper.PARTS_TABLE + " WHERE " + PartColumns.CONTENT_URI
+                + " NOT NULL AND " + PartColumns.MESSAGE_ID + " IN (SELECT " + MessageColumns._ID
+                + " FROM " + DatabaseHelper.MESSAGES_TABLE + " WHERE " + messageSelection + ")",
+                selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                partContentUris.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return partContentUris;
+    }
+
+    /**
+     * Get the ids of the mms notifications among the messages matching a selection, so that
+     * what was downloaded of them can be deleted once the messages are deleted
+     */
+    private static ArrayList<String> queryMmsNotificationIdsInTransaction(
+            final DatabaseWrapper dbWrapper, final String messageSelection,
+            final String[] selectionArgs) {
+        final ArrayList<String> messageIds = new ArrayList<String>();
+        final Cursor cursor = dbWrapper.query(DatabaseHelper.MESSAGES_TABLE,
+                new String[] { MessageColumns._ID },
+                MessageColumns.PROTOCOL + "=" + MessageData.PROTOCOL_MMS_PUSH_NOTIFICATION
+                + " AND (" + messageSelection + ")", selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                messageIds.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return messageIds;
+    }
+
+    private static void deleteMmsDownloads(final List<String> messageIds) {
+        for (final String messageId : messageIds) {
+            MmsFileProvider.deleteDownload(messageId);
+        }
+    }
+
     private static final String MAX_RECEIVED_TIMESTAMP =
             "MAX(" + MessageColumns.RECEIVED_TIMESTAMP + ")";
     /**
@@ -1143,7 +1260,9 @@ public class BugleDatabaseOperations {
         Assert.isTrue(!TextUtils.isEmpty(messagePart.getMessageId()));
 
         // Insert a new part row
-        final SQLiteStatement insert = messagePart.getInsertStatement(dbWrapper, conversationId);
+        final SQLiteStatement insert =
+                dbWrapper.getStatementInTransaction(MessagePartData.getInsertSql());
+        messagePart.bindInsertStatement(insert, conversationId);
         final long rowNumber = insert.executeInsert();
 
         Assert.inRange(rowNumber, 0, Long.MAX_VALUE);
@@ -1161,20 +1280,55 @@ public class BugleDatabaseOperations {
     @DoesNotRunOnMainThread
     public static void insertNewMessageInTransaction(final DatabaseWrapper dbWrapper,
             final MessageData message) {
+        insertNewMessagesInTransaction(dbWrapper, Collections.singletonList(message));
+    }
+
+    private static final RowBinder<MessageData> MESSAGE_ROW_BINDER = new RowBinder<MessageData>() {
+        @Override
+        public void bindRow(final SQLiteStatement statement, final MessageData message) {
+            message.bindInsertStatement(statement);
+        }
+    };
+
+    /**
+     * Insert messages and their parts into the table, binding the rows directly to one compiled
+     * statement for the messages and one for the parts. If a row can't be inserted, the rows
+     * before it are inserted and the message and part ids are left unset.
+     */
+    @DoesNotRunOnMainThread
+    public static void insertNewMessagesInTransaction(final DatabaseWrapper dbWrapper,
+            final List<MessageData> messages) {
         Assert.isNotMainThread();
         Assert.isTrue(dbWrapper.getDatabase().inTransaction());
 
-        // Insert message row
-        final SQLiteStatement insert = message.getInsertStatement(dbWrapper);
-        final long rowNumber = insert.executeInsert();
+        // Insert message rows
+        final long[] messageRows = dbWrapper.insertRowsInTransaction(MessageData.getInsertSql(),
+                messages, MESSAGE_ROW_BINDER);
+        for (int i = 0; i < messageRows.length; i++) {
+            Assert.inRange(messageRows[i], 0, Long.MAX_VALUE);
+            final MessageData message = messages.get(i);
+            final String messageId = Long.toString(messageRows[i]);
+            message.updateMessageId(messageId);
 
-        Assert.inRange(rowNumber, 0, Long.MAX_VALUE);
-        final String messageId = Long.toString(rowNumber);
-        message.updateMessageId(messageId);
-        //  Insert new parts
-        for (final MessagePartData messagePart : message.getParts()) {
-            messagePart.updateMessageId(messageId);
-            insertNewMessagePartInTransaction(dbWrapper, messagePart, message.getConversationId());
+            //  Insert new parts
+            final ArrayList<MessagePartData> parts = new ArrayList<MessagePartData>();
+            for (final MessagePartData messagePart : message.getParts()) {
+                messagePart.updateMessageId(messageId);
+                parts.add(messagePart);
+            }
+            final String conversationId = message.getConversationId();
+            final long[] partRows = dbWrapper.insertRowsInTransaction(
+                    MessagePartData.getInsertSql(), parts, new RowBinder<MessagePartData>() {
+                        @Override
+                        public void bindRow(final SQLiteStatement statement,
+                                final MessagePartData messagePart) {
+                            messagePart.bindInsertStatement(statement, conversationId);
+                        }
+                    });
+            for (int j = 0; j < partRows.length; j++) {
+                Assert.inRange(partRows[j], 0, Long.MAX_VALUE);
+                parts.get(j).updatePartId(Long.toString(partRows[j]));
+            }
         }
     }
 
@@ -1203,6 +1357,8 @@ public class BugleDatabaseOperations {
             final ContentValues values = new ContentValues();
             message.populate(values);
             updateMessageRowIfExists(dbWrapper, message.getMessageId(), values);
+            // The message may be notified with its old content
+            NotificationMessageCache.onMessageUpdated(messageId);
         }
     }
 
@@ -1220,6 +1376,7 @@ public class BugleDatabaseOperations {
         values.clear();
         message.populate(values);
         updateMessageRowIfExists(dbWrapper, message.getMessageId(), values);
+        NotificationMessageCache.onMessageUpdated(message.getMessageId());
     }
 
     /**
@@ -1241,6 +1398,8 @@ public class BugleDatabaseOperations {
     @DoesNotRunOnMainThread
     public static int deleteMessage(final DatabaseWrapper dbWrapper, final String messageId) {
         Assert.isNotMainThread();
+        final HashSet<String> partContentUris = new HashSet<String>();
+        final ArrayList<String> notificationIds = new ArrayList<String>();
         dbWrapper.beginTransaction();
         try {
             // Read message to find out which conversation it is in
@@ -1249,9 +1408,17 @@ public class BugleDatabaseOperations {
             int count = 0;
             if (message != null) {
                 final String conversationId = message.getConversationId();
+                for (final MessagePartData part : message.getParts()) {
+                    if (part.getContentUri() != null) {
+                        partContentUris.add(part.getContentUri().toString());
+                    }
+                }
                 // Delete message
                 count = dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns._ID + "=?", new String[] { messageId });
+                if (message.getIsMmsNotification()) {
+                    notificationIds.add(messageId);
+                }
 
                 if (!deleteConversationIfEmptyInTransaction(dbWrapper, conversationId)) {
                     // TODO: Should we leave the conversation sort timestamp alone?
@@ -1263,7 +1430,79 @@ public class BugleDatabaseOperations {
             return count;
         } finally {
             dbWrapper.endTransaction();
+            MediaResourceManager.get().removeFromDiskCache(partContentUris);
+            deleteMmsDownloads(notificationIds);
+        }
+    }
+
+    // Per conversation, whether the grouped messages include its latest message, or it has none
+    private static final String DELETES_LATEST_MESSAGE_SQL = "MAX(IFNULL("
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + "=(SELECT "
+            + ConversationColumns.LATEST_MESSAGE_ID + " FROM " + DatabaseHelper.CONVERSATIONS_TABLE
+            + " WHERE " + DatabaseHelper.CONVERSATIONS_TABLE + "." + ConversationColumns._ID + "="
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "), 1))";
+
+    /**
+     * Delete the local copies of a batch of telephony messages and update the conversations they
+     * were in, deleting the ones left empty. Only the conversations whose latest message is deleted
+     * are updated, as the others keep their snippet. The batch should hold no more than
+     * {@link MmsUtils#MAX_IDS_PER_QUERY} uris.
+     *
+     * @param smsMessageUris uris of the telephony messages
+     * @return ids of the conversations that had messages deleted
+     */
+    @DoesNotRunOnMainThread
+    public static HashSet<String> deleteMessagesBySmsMessageUris(final DatabaseWrapper dbWrapper,
+            final String[] smsMessageUris) {
+        Assert.isNotMainThread();
+        final HashSet<String> conversationIds = new HashSet<String>();
+        if (smsMessageUris.length == 0) {
+            return conversationIds;
+        }
+        final String selection = MessageColumns.SMS_MESSAGE_URI + " IN "
+                + MmsUtils.getSqlInOperand(smsMessageUris.length);
+        HashSet<String> partContentUris = null;
+        ArrayList<String> notificationIds = null;
+        // Conversations whose latest message is deleted, the others keep their snippet
+        final HashSet<String> refreshConversationIds = new HashSet<String>();
+        dbWrapper.beginTransaction();
+        try {
+            final Cursor cursor = dbWrapper.query(DatabaseHelper.MESSAGES_TABLE,
+                    new String[] { MessageColumns.CONVERSATION_ID, DELETES_LATEST_MESSAGE_SQL },
+                    selection, smsMessageUris, MessageColumns.CONVERSATION_ID /*groupBy*/,
+                    null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    conversationIds.add(cursor.getString(0));
+                    if (cursor.getInt(1) != 0) {
+                        refreshConversationIds.add(cursor.getString(0));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (!conversationIds.isEmpty()) {
+                partContentUris = queryPartContentUrisInTransaction(dbWrapper, selection,
+                        smsMessageUris);
+                notificationIds = queryMmsNotificationIdsInTransaction(dbWrapper, selection,
+                        smsMessageUris);
+                dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE, selection, smsMessageUris);
+                for (final String conversationId : refreshConversationIds) {
+                    if (!deleteConversationIfEmptyInTransaction(dbWrapper, conversationId)) {
+                        maybeRefreshConversationMetadataInTransaction(dbWrapper, conversationId,
+                                false /*shouldAutoSwitchSelfId*/, true /*keepArchived*/);
+                    }
+                }
+            }
+            dbWrapper.setTransactionSuccessful();
+        } finally {
+            dbWrapper.endTransaction();
+        }
+        if (partContentUris != null) {
+            MediaResourceManager.get().removeFromDiskCache(partContentUris);
+            deleteMmsDownloads(notificationIds);
         }
+        return conversationIds;
     }
 
     /**
@@ -1410,9 +1649,7 @@ public class BugleDatabaseOperations {
             final DatabaseWrapper db, final String conversationId) {
         Assert.isNotMainThread();
         final SQLiteStatement query = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_QUERY_CONVERSATIONS_LATEST_MESSAGE,
                 QUERY_CONVERSATIONS_LATEST_MESSAGE_SQL);
-        query.clearBindings();
         query.bindString(1, conversationId);
         return query;
     }
@@ -1432,9 +1669,7 @@ public class BugleDatabaseOperations {
             final DatabaseWrapper db, final String conversationId) {
         Assert.isNotMainThread();
         final SQLiteStatement query = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_QUERY_MESSAGES_LATEST_MESSAGE,
                 QUERY_MESSAGES_LATEST_MESSAGE_SQL);
-        query.clearBindings();
         query.bindString(1, conversationId);
         return query;
     }
@@ -1758,9 +1993,10 @@ public class BugleDatabaseOperations {
         }
 
         // Insert the participant into the participants table
-        final ContentValues values = participant.toContentValues();
-        final long participantRow = dbWrapper.insert(DatabaseHelper.PARTICIPANTS_TABLE, null,
-                values);
+        final SQLiteStatement insert =
+                dbWrapper.getStatementInTransaction(ParticipantData.getInsertSql());
+        participant.bindInsertStatement(insert);
+        final long participantRow = insert.executeInsert();
         participantId = Long.toString(participantRow);
         Assert.notNull(canonicalRecipient);
 
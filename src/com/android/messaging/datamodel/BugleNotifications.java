@@ -118,6 +118,32 @@ public class BugleNotifications {
 
     private static final String WEARABLE_COMPANION_APP_PACKAGE = "com.google.android.wearable.app";
 
+    // Updates deferred by the calling thread, if it is deferring them
+    private static final ThreadLocal<DeferredUpdate> sDeferredUpdate =
+            new ThreadLocal<DeferredUpdate>();
+
+    /**
+     * The merge of deferred updates: the update isn't silent if any of them wasn't, and is only
+     * for a conversation if all of them were for that conversation.
+     */
+    private static class DeferredUpdate {
+        boolean mRequested;
+        boolean mSilent = true;
+        String mConversationId;
+        int mCoverage = UPDATE_NONE;
+
+        void add(final boolean silent, final String conversationId, final int coverage) {
+            if (!mRequested) {
+                mConversationId = conversationId;
+            } else if (!TextUtils.equals(mConversationId, conversationId)) {
+                mConversationId = null;
+            }
+            mRequested = true;
+            mSilent &= silent;
+            mCoverage |= coverage;
+        }
+    }
+
     private static final Set<NotificationState> sPendingNotifications =
             new HashSet<NotificationState>();
 
@@ -171,6 +197,11 @@ public class BugleNotifications {
                     + " conversationId = " + conversationId
                     + " coverage = " + coverage);
         }
+        final DeferredUpdate deferredUpdate = sDeferredUpdate.get();
+        if (deferredUpdate != null) {
+            deferredUpdate.add(silent, conversationId, coverage);
+            return;
+        }
     Assert.isNotMainThread();
         checkInitialized();
 
@@ -190,6 +221,28 @@ public class BugleNotifications {
         }
     }
 
+    /**
+     * Defer the updates requested by the calling thread until {@link #endDeferringUpdates}, e.g.
+     * while it executes a batch of actions that would each update the notifications.
+     */
+    public static void beginDeferringUpdates() {
+        Assert.isNull(sDeferredUpdate.get());
+        sDeferredUpdate.set(new DeferredUpdate());
+    }
+
+    /**
+     * Stop deferring the updates requested by the calling thread, doing one update that covers
+     * all of those deferred since {@link #beginDeferringUpdates}.
+     */
+    public static void endDeferringUpdates() {
+        final DeferredUpdate deferredUpdate = sDeferredUpdate.get();
+        sDeferredUpdate.remove();
+        if (deferredUpdate != null && deferredUpdate.mRequested) {
+            update(deferredUpdate.mSilent, deferredUpdate.mConversationId,
+                    deferredUpdate.mCoverage);
+        }
+    }
+
     /**
      * Play a sound to notify arrival of a class 0 message
      *
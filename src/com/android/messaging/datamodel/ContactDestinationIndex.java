@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
+import android.support.v4.util.LongSparseArray;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.messaging.sms.MmsSmsUtils;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The phone numbers and email addresses of the personal contacts, indexed by destination so that
+ * participants can be matched with their contacts without a PhoneLookup query each.
+ *
+ * Phone numbers are indexed by their caller id min match, the trailing digits that PhoneLookup
+ * matches on, and then compared with {@link PhoneNumberUtils#compare}. Email addresses are
+ * indexed in lower case.
+ *
+ * The index either holds all of the contacts, or only the contacts that changed since a given
+ * {@link Contacts#CONTACT_LAST_UPDATED_TIMESTAMP}, along with the ids of the contacts deleted
+ * since then.
+ */
+class ContactDestinationIndex {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    @VisibleForTesting
+    static final String[] DATA_PROJECTION = new String[] {
+        Data.CONTACT_ID,                        // 0
+        Data.DISPLAY_NAME_PRIMARY,              // 1
+        Data.PHOTO_THUMBNAIL_URI,               // 2
+        Data.LOOKUP_KEY,                        // 3
+        Data.MIMETYPE,                          // 4
+        Data.DATA1,                             // 5 (Phone.NUMBER or Email.ADDRESS)
+        Data.CONTACT_LAST_UPDATED_TIMESTAMP,    // 6
+    };
+    private static final int INDEX_CONTACT_ID = 0;
+    private static final int INDEX_DISPLAY_NAME = 1;
+    private static final int INDEX_PHOTO_URI = 2;
+    private static final int INDEX_LOOKUP_KEY = 3;
+    private static final int INDEX_MIMETYPE = 4;
+    private static final int INDEX_DESTINATION = 5;
+    private static final int INDEX_LAST_UPDATED_TIMESTAMP = 6;
+
+    @VisibleForTesting
+    static final String DATA_SELECTION = Data.MIMETYPE + " IN (?, ?)";
+
+    @VisibleForTesting
+    static final String[] FIRST_NAME_PROJECTION = new String[] {
+        Data.CONTACT_ID,                        // 0
+        StructuredName.GIVEN_NAME,              // 1
+    };
+
+    // Only the name used as the primary display name, like ContactUtil.lookupFirstName()
+    @VisibleForTesting
+    static final String FIRST_NAME_SELECTION = Data.MIMETYPE + "=? AND "
+            + Contacts.DISPLAY_NAME_PRIMARY + "=" + StructuredName.DISPLAY_NAME;
+
+    private static final String[] CHANGED_CONTACTS_PROJECTION = new String[] {
+        Contacts._ID,                           // 0
+        Contacts.CONTACT_LAST_UPDATED_TIMESTAMP // 1
+    };
+
+    private static final String[] DELETED_CONTACTS_PROJECTION = new String[] {
+        DeletedContacts.CONTACT_ID,             // 0
+        DeletedContacts.CONTACT_DELETED_TIMESTAMP // 1
+    };
+
+    /**
+     * A contact destination that a participant can be matched with
+     */
+    static class Entry {
+        final long contactId;
+        final String displayName;
+        final String photoUri;
+        final String lookupKey;
+        final String destination;
+        String firstName;
+
+        Entry(final Cursor cursor) {
+            contactId = cursor.getLong(INDEX_CONTACT_ID);
+            displayName = cursor.getString(INDEX_DISPLAY_NAME);
+            photoUri = cursor.getString(INDEX_PHOTO_URI);
+            lookupKey = cursor.getString(INDEX_LOOKUP_KEY);
+            destination = cursor.getString(INDEX_DESTINATION);
+        }
+    }
+
+    private final HashMap<String, ArrayList<Entry>> mEntries =
+            new HashMap<String, ArrayList<Entry>>();
+    // The contacts changed or deleted since the watermark, null if the index holds all contacts
+    private final HashSet<Long> mChangedContactIds;
+    private long mWatermark;
+    private int mEntryCount;
+
+    private ContactDestinationIndex(final boolean changesOnly, final long watermark) {
+        mChangedContactIds = changesOnly ? new HashSet<Long>() : null;
+        mWatermark = watermark;
+    }
+
+    /**
+     * Load the destinations of all contacts
+     * @return the index, or null if Contacts couldn't be queried
+     */
+    static ContactDestinationIndex loadAll(final Context context) {
+        final ContactDestinationIndex index = new ContactDestinationIndex(false, -1);
+        return index.load(context, null) ? index : null;
+    }
+
+    /**
+     * Load the destinations of the contacts changed since the watermark, and the ids of the
+     * contacts deleted since then
+     * @return the index, or null if Contacts couldn't be queried
+     */
+    static ContactDestinationIndex loadChangedSince(final Context context, final long watermark) {
+        final ContactDestinationIndex index = new ContactDestinationIndex(true, watermark);
+        return index.load(context, String.valueOf(watermark)) ? index : null;
+    }
+
+    /**
+     * @return true if the index only holds the contacts changed since a watermark
+     */
+    boolean hasChangesOnly() {
+        return mChangedContactIds != null;
+    }
+
+    /**
+     * @return true if the contact changed or was deleted since the watermark
+     */
+    boolean isChanged(final long contactId) {
+        return mChangedContactIds == null || mChangedContactIds.contains(contactId);
+    }
+
+    /**
+     * @return the last updated timestamp of the newest contact seen, to load the changes after
+     */
+    long getWatermark() {
+        return mWatermark;
+    }
+
+    int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Find the contact destination matching a participant's destination, preferring the contact
+     * that the participant is currently matched with, like a PhoneLookup query would.
+     * @return the matching entry, or null if no contact in the index matches
+     */
+    Entry find(final String normalizedDestination, final long currentContactId) {
+        final boolean isEmail = MmsSmsUtils.isEmailAddress(normalizedDestination);
+        final ArrayList<Entry> candidates = mEntries.get(getKey(normalizedDestination, isEmail));
+        if (candidates == null) {
+            return null;
+        }
+        Entry match = null;
+        for (final Entry candidate : candidates) {
+            if (isEmail || PhoneNumberUtils.compare(normalizedDestination,
+                    candidate.destination)) {
+                if (match == null || candidate.contactId == currentContactId) {
+                    match = candidate;
+                }
+                if (currentContactId < 0 || candidate.contactId == currentContactId) {
+                    break;
+                }
+            }
+        }
+        return match;
+    }
+
+    private boolean load(final Context context, final String watermarkArg) {
+        final ContentResolver resolver = context.getContentResolver();
+        final String changedSelection = Data.CONTACT_LAST_UPDATED_TIMESTAMP + ">?";
+        try {
+            if (watermarkArg != null) {
+                // Read the changed contacts first so that any contact changing while the index is
+                // loaded is still after the watermark next time
+                if (!loadChangedContactIds(resolver, watermarkArg)) {
+                    return false;
+                }
+            }
+
+            final LongSparseArray<ArrayList<Entry>> entriesByContact =
+                    new LongSparseArray<ArrayList<Entry>>();
+            Cursor cursor = resolver.query(Data.CONTENT_URI, DATA_PROJECTION,
+                    appendSelection(DATA_SELECTION, watermarkArg, changedSelection),
+                    appendSelectionArg(new String[] {
+                            Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE }, watermarkArg),
+                    Data.CONTACT_ID);
+            if (cursor == null) {
+                return false;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final String destination = cursor.getString(INDEX_DESTINATION);
+                    if (TextUtils.isEmpty(destination)) {
+                        continue;
+                    }
+                    final boolean isEmail = Email.CONTENT_ITEM_TYPE.equals(
+                            cursor.getString(INDEX_MIMETYPE));
+                    final String key = getKey(destination, isEmail);
+                    if (TextUtils.isEmpty(key)) {
+                        continue;
+                    }
+                    final Entry entry = new Entry(cursor);
+                    ArrayList<Entry> entries = mEntries.get(key);
+                    if (entries == null) {
+                        entries = new ArrayList<Entry>(1);
+                        mEntries.put(key, entries);
+                    }
+                    entries.add(entry);
+                    ArrayList<Entry> contactEntries = entriesByContact.get(entry.contactId);
+                    if (contactEntries == null) {
+                        contactEntries = new ArrayList<Entry>(1);
+                        entriesByContact.put(entry.contactId, contactEntries);
+                    }
+                    contactEntries.add(entry);
+                    mEntryCount++;
+                    if (watermarkArg == null) {
+                        mWatermark = Math.max(mWatermark,
+                                cursor.getLong(INDEX_LAST_UPDATED_TIMESTAMP));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            cursor = resolver.query(Data.CONTENT_URI, FIRST_NAME_PROJECTION,
+                    appendSelection(FIRST_NAME_SELECTION, watermarkArg, changedSelection),
+                    appendSelectionArg(new String[] { StructuredName.CONTENT_ITEM_TYPE },
+                            watermarkArg),
+                    null);
+            if (cursor == null) {
+                return false;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final ArrayList<Entry> contactEntries = entriesByContact.get(
+                            cursor.getLong(0));
+                    if (contactEntries != null) {
+                        for (final Entry entry : contactEntries) {
+                            entry.firstName = cursor.getString(1);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (final Exception exception) {
+            // It's possible for contact query to fail and we don't want that to crash our app.
+            LogUtil.e(TAG, "ContactDestinationIndex: failed to load contacts. exception="
+                    + exception);
+            return false;
+        }
+
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "ContactDestinationIndex: loaded " + mEntryCount + " destinations"
+                    + (hasChangesOnly() ? " of " + mChangedContactIds.size()
+                            + " changed contacts" : "") + ", watermark " + mWatermark);
+        }
+        return true;
+    }
+
+    private boolean loadChangedContactIds(final ContentResolver resolver,
+            final String watermarkArg) {
+        Cursor cursor = resolver.query(Contacts.CONTENT_URI, CHANGED_CONTACTS_PROJECTION,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", new String[] { watermarkArg },
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mChangedContactIds.add(cursor.getLong(0));
+                mWatermark = Math.max(mWatermark, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = resolver.query(DeletedContacts.CONTENT_URI, DELETED_CONTACTS_PROJECTION,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?", new String[] { watermarkArg },
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mChangedContactIds.add(cursor.getLong(0));
+                mWatermark = Math.max(mWatermark, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    private static String getKey(final String destination, final boolean isEmail) {
+        if (isEmail) {
+            return destination.toLowerCase(Locale.ROOT);
+        }
+        return PhoneNumberUtils.toCallerIDMinMatch(destination);
+    }
+
+    private static String appendSelection(final String selection, final String watermarkArg,
+            final String changedSelection) {
+        return watermarkArg == null ? selection : selection + " AND " + changedSelection;
+    }
+
+    private static String[] appendSelectionArg(final String[] selectionArgs,
+            final String watermarkArg) {
+        if (watermarkArg == null) {
+            return selectionArgs;
+        }
+        final String[] args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = watermarkArg;
+        return args;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.ConversationListItemData;
+import com.android.messaging.datamodel.data.ConversationListItemData.ConversationListViewColumns;
+
+/**
+ * Upkeep of the conversation list table, which holds a row per conversation with the data of its
+ * latest message and of the sender of that message, so that loading the conversation list (and
+ * the widgets) reads one table in sort order instead of joining conversations, messages and
+ * participants for every row.
+ *
+ * Triggers on the source tables keep the rows up to date: a conversation row is rewritten
+ * whenever the conversation changes (including when its latest message changes), and the columns
+ * copied from the latest message and its sender are updated in place when those change. So the
+ * message and participant write paths and sync need no extra work. The unread and unseen message
+ * counts of a conversation change with most message updates, so they are copied on their own.
+ */
+public class ConversationListTable {
+    private static final String TABLE = ConversationListItemData.getConversationListTable();
+
+    // Orders the conversations of the list and of the archive. The rest of each row is read by
+    // rowid from the table itself, which holds nothing but the list columns.
+    private static final String ARCHIVE_STATUS_SORT_TIMESTAMP_INDEX_SQL =
+            "CREATE INDEX index_" + TABLE + "_" + ConversationColumns.ARCHIVE_STATUS + "_"
+            + ConversationColumns.SORT_TIMESTAMP + " ON " + TABLE + "("
+            + ConversationColumns.ARCHIVE_STATUS + ", " + ConversationColumns.SORT_TIMESTAMP + ")";
+
+    // Finds the rows showing a participant as the sender of the latest message
+    private static final String SNIPPET_SENDER_INDEX_SQL =
+            "CREATE INDEX index_" + TABLE + "_" + ConversationListViewColumns.SNIPPET_SENDER_ID
+            + " ON " + TABLE + "(" + ConversationListViewColumns.SNIPPET_SENDER_ID + ")";
+
+    static final String[] CREATE_INDEX_SQLS = new String[] {
+        ARCHIVE_STATUS_SORT_TIMESTAMP_INDEX_SQL,
+        SNIPPET_SENDER_INDEX_SQL,
+    };
+
+    // Fill the table from the conversations (used when upgrading an existing database)
+    static final String REBUILD_SQL = "INSERT INTO " + TABLE + " "
+            + ConversationListItemData.getConversationListRowsSql();
+
+    // Rows are deleted before they are inserted again rather than replaced, as the conflict
+    // clause of the statement firing a trigger overrides the ones of the statements in it
+    private static String getWriteRowSql(final String conversationId) {
+        return "DELETE FROM " + TABLE + " WHERE " + ConversationListViewColumns._ID + "="
+                + conversationId + "; "
+                + "INSERT INTO " + TABLE + " "
+                + ConversationListItemData.getConversationListRowsSql() + " WHERE "
+                + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID + "="
+                + conversationId + "; ";
+    }
+
+    private static final String CREATE_CONVERSATION_INSERT_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_conversations_ai AFTER INSERT ON "
+            + DatabaseHelper.CONVERSATIONS_TABLE
+            + " FOR EACH ROW BEGIN " + getWriteRowSql("NEW." + ConversationColumns._ID) + "END";
+
+    private static final String COUNTS_UNCHANGED_SQL =
+            "OLD." + ConversationColumns.UNREAD_COUNT + " IS NEW."
+            + ConversationColumns.UNREAD_COUNT
+            + " AND OLD." + ConversationColumns.UNSEEN_COUNT + " IS NEW."
+            + ConversationColumns.UNSEEN_COUNT;
+
+    // The message counts are only ever updated on their own, by the triggers of the messages
+    // table, and are copied in place rather than rewriting the row
+    private static final String CREATE_CONVERSATION_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_conversations_au AFTER UPDATE ON "
+            + DatabaseHelper.CONVERSATIONS_TABLE + " FOR EACH ROW WHEN " + COUNTS_UNCHANGED_SQL
+            + " BEGIN " + getWriteRowSql("NEW." + ConversationColumns._ID) + "END";
+
+    private static final String CREATE_CONVERSATION_COUNTS_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_conversations_counts_au AFTER UPDATE OF "
+            + ConversationColumns.UNREAD_COUNT + ", " + ConversationColumns.UNSEEN_COUNT
+            + " ON " + DatabaseHelper.CONVERSATIONS_TABLE
+            + " FOR EACH ROW WHEN NOT (" + COUNTS_UNCHANGED_SQL + ") BEGIN UPDATE " + TABLE
+            + " SET " + ConversationListViewColumns.UNREAD_COUNT + "=NEW."
+            + ConversationColumns.UNREAD_COUNT + ", "
+            + ConversationListViewColumns.UNSEEN_COUNT + "=NEW." + ConversationColumns.UNSEEN_COUNT
+            + " WHERE " + ConversationListViewColumns._ID + "=NEW." + ConversationColumns._ID
+            + "; END";
+
+    private static final String CREATE_CONVERSATION_DELETE_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_conversations_ad AFTER DELETE ON "
+            + DatabaseHelper.CONVERSATIONS_TABLE
+            + " FOR EACH ROW BEGIN DELETE FROM " + TABLE + " WHERE "
+            + ConversationListViewColumns._ID + "=OLD." + ConversationColumns._ID + "; END";
+
+    // Only the latest message of a conversation is in the table
+    private static final String CREATE_MESSAGE_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_messages_au AFTER UPDATE OF "
+            + MessageColumns.READ + ", " + MessageColumns.STATUS + ", "
+            + MessageColumns.RAW_TELEPHONY_STATUS + ", " + MessageColumns.SENDER_PARTICIPANT_ID
+            + " ON " + DatabaseHelper.MESSAGES_TABLE
+            + " FOR EACH ROW BEGIN UPDATE " + TABLE + " SET "
+            + ConversationListViewColumns.READ + "=NEW." + MessageColumns.READ + ", "
+            + ConversationListViewColumns.MESSAGE_STATUS + "=NEW." + MessageColumns.STATUS + ", "
+            + ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS + "=NEW."
+            + MessageColumns.RAW_TELEPHONY_STATUS + ", "
+            + ConversationListViewColumns.SNIPPET_SENDER_ID + "=NEW."
+            + MessageColumns.SENDER_PARTICIPANT_ID + ", "
+            + ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME + "=(SELECT "
+            + ParticipantColumns.FIRST_NAME + " FROM " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " WHERE " + ParticipantColumns._ID + "=NEW." + MessageColumns.SENDER_PARTICIPANT_ID
+            + "), "
+            + ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION + "=(SELECT "
+            + ParticipantColumns.DISPLAY_DESTINATION + " FROM " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " WHERE " + ParticipantColumns._ID + "=NEW." + MessageColumns.SENDER_PARTICIPANT_ID
+            + ")"
+            + " WHERE " + ConversationListViewColumns._ID + "=NEW." + MessageColumns.CONVERSATION_ID
+            + " AND " + ConversationListViewColumns.MESSAGE_ID + "=NEW." + MessageColumns._ID
+            + "; END";
+
+    // Clears the latest message columns like the outer join of a missing message would, until
+    // the conversation is updated with its new latest message
+    private static final String CREATE_MESSAGE_DELETE_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_messages_ad AFTER DELETE ON "
+            + DatabaseHelper.MESSAGES_TABLE
+            + " FOR EACH ROW BEGIN UPDATE " + TABLE + " SET "
+            + ConversationListViewColumns.READ + "=NULL, "
+            + ConversationListViewColumns.MESSAGE_STATUS + "=NULL, "
+            + ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS + "=NULL, "
+            + ConversationListViewColumns.MESSAGE_ID + "=NULL, "
+            + ConversationListViewColumns.SNIPPET_SENDER_ID + "=NULL, "
+            + ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME + "=NULL, "
+            + ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION + "=NULL"
+            + " WHERE " + ConversationListViewColumns._ID + "=OLD." + MessageColumns.CONVERSATION_ID
+            + " AND " + ConversationListViewColumns.MESSAGE_ID + "=OLD." + MessageColumns._ID
+            + "; END";
+
+    private static final String CREATE_PARTICIPANT_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + TABLE + "_participants_au AFTER UPDATE OF "
+            + ParticipantColumns.FIRST_NAME + ", " + ParticipantColumns.DISPLAY_DESTINATION
+            + " ON " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " FOR EACH ROW BEGIN UPDATE " + TABLE + " SET "
+            + ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME + "=NEW."
+            + ParticipantColumns.FIRST_NAME + ", "
+            + ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION + "=NEW."
+            + ParticipantColumns.DISPLAY_DESTINATION
+            + " WHERE " + ConversationListViewColumns.SNIPPET_SENDER_ID + "=NEW."
+            + ParticipantColumns._ID + "; END";
+
+    // Drop the table (along with its indexes) and the triggers on the tables it is filled from,
+    // for it to be created again with different columns
+    static final String[] DROP_SQLS = new String[] {
+        "DROP TRIGGER IF EXISTS " + TABLE + "_conversations_ai",
+        "DROP TRIGGER IF EXISTS " + TABLE + "_conversations_au",
+        "DROP TRIGGER IF EXISTS " + TABLE + "_conversations_counts_au",
+        "DROP TRIGGER IF EXISTS " + TABLE + "_conversations_ad",
+        "DROP TRIGGER IF EXISTS " + TABLE + "_messages_au",
+        "DROP TRIGGER IF EXISTS " + TABLE + "_messages_ad",
+        "DROP TRIGGER IF EXISTS " + TABLE + "_participants_au",
+        "DROP TABLE IF EXISTS " + TABLE,
+    };
+
+    static final String[] CREATE_TRIGGER_SQLS = new String[] {
+        CREATE_CONVERSATION_INSERT_TRIGGER_SQL,
+        CREATE_CONVERSATION_UPDATE_TRIGGER_SQL,
+        CREATE_CONVERSATION_COUNTS_UPDATE_TRIGGER_SQL,
+        CREATE_CONVERSATION_DELETE_TRIGGER_SQL,
+        CREATE_MESSAGE_UPDATE_TRIGGER_SQL,
+        CREATE_MESSAGE_DELETE_TRIGGER_SQL,
+        CREATE_PARTICIPANT_UPDATE_TRIGGER_SQL,
+    };
+}
@@ -57,6 +57,7 @@ import com.android.messaging.util.ConnectivityUtil;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
+import com.android.messaging.util.SafeAsyncTask;
 
 public class DataModelImpl extends DataModel {
     private final Context mContext;
@@ -222,6 +223,12 @@ public class DataModelImpl extends DataModel {
         FixupMessageStatusOnStartupAction.fixupMessageStatus();
         ProcessPendingMessagesAction.processFirstPendingMessage();
         SyncManager.immediateSync();
+        SafeAsyncTask.executeOnThreadPool(new Runnable() {
+            @Override
+            public void run() {
+                BugleDatabaseOperations.warmCanonicalPhoneNumberCache(getDatabase());
+            }
+        });
 
         if (OsUtil.isAtLeastL_MR1()) {
             // Start listening for subscription change events for refreshing self participants.
@@ -152,6 +152,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         // A conversation is enterprise if one of the participant is a enterprise contact.
         public static final String IS_ENTERPRISE = "IS_ENTERPRISE";
+
+        // Number of messages not read, kept by triggers on the messages table
+        public static final String UNREAD_COUNT = "unread_count";
+
+        // Number of messages not seen, kept by triggers on the messages table
+        public static final String UNSEEN_COUNT = "unseen_count";
     }
 
     // Conversation table SQL
@@ -186,7 +192,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + ConversationColumns.NOTIFICATION_VIBRATION + " INT DEFAULT(-1), "
                     + ConversationColumns.INCLUDE_EMAIL_ADDRESS + " INT DEFAULT(0), "
                     + ConversationColumns.SMS_SERVICE_CENTER + " TEXT ,"
-                    + ConversationColumns.IS_ENTERPRISE + " INT DEFAULT(0)"
+                    + ConversationColumns.IS_ENTERPRISE + " INT DEFAULT(0), "
+                    + ConversationColumns.UNREAD_COUNT + " INT DEFAULT(0), "
+                    + ConversationColumns.UNSEEN_COUNT + " INT DEFAULT(0)"
                     + ");";
 
     private static final String CONVERSATIONS_TABLE_SMS_THREAD_ID_INDEX_SQL =
@@ -303,6 +311,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + MessageColumns.STATUS + ", "
                     + MessageColumns.RECEIVED_TIMESTAMP + ")";
 
+    // Keyset index for paging through a conversation : by conversation id, received timestamp
+    // (ties are broken by the implicit rowid, i.e. the message id).
+    static final String MESSAGES_TABLE_CONVERSATION_RECEIVED_INDEX_SQL =
+            "CREATE INDEX index_" + MESSAGES_TABLE + "_conversation_received ON " + MESSAGES_TABLE
+                    + "(" + MessageColumns.CONVERSATION_ID + ", "
+                    + MessageColumns.RECEIVED_TIMESTAMP + ")";
+
+    // Finds the local copies of telephony messages, e.g. when deleting them from both stores
+    static final String MESSAGES_TABLE_SMS_MESSAGE_URI_INDEX_SQL =
+            "CREATE INDEX index_" + MESSAGES_TABLE + "_" + MessageColumns.SMS_MESSAGE_URI + " ON "
+                    + MESSAGES_TABLE + "(" + MessageColumns.SMS_MESSAGE_URI + ")";
+
     private static final String MESSAGES_TABLE_STATUS_SEEN_INDEX_SQL =
             "CREATE INDEX index_" + MESSAGES_TABLE + "_status_seen ON " +  MESSAGES_TABLE + "("
                     + MessageColumns.STATUS + ", "
@@ -376,6 +396,55 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             + PartColumns.MESSAGE_ID + " = NEW." + MessageColumns._ID
             + "; END;";
 
+    // Each message that isn't read (or seen) counts once in the unread (or unseen) count of its
+    // conversation. "IS 0" rather than "= 0" so that the counts stay numbers with null flags.
+    private static final String UNREAD = MessageColumns.READ + " IS 0";
+    private static final String UNSEEN = MessageColumns.SEEN + " IS 0";
+
+    private static String getAddToCountsSql(final String message, final String sign) {
+        return "UPDATE " + CONVERSATIONS_TABLE + " SET "
+                + ConversationColumns.UNREAD_COUNT + "=" + ConversationColumns.UNREAD_COUNT
+                + sign + "(" + message + UNREAD + "), "
+                + ConversationColumns.UNSEEN_COUNT + "=" + ConversationColumns.UNSEEN_COUNT
+                + sign + "(" + message + UNSEEN + ")"
+                + " WHERE " + ConversationColumns._ID + "=" + message
+                + MessageColumns.CONVERSATION_ID
+                + " AND (" + message + UNREAD + " OR " + message + UNSEEN + "); ";
+    }
+
+    private static final String CREATE_MESSAGES_INSERT_COUNTS_TRIGGER_SQL =
+            "CREATE TRIGGER " + MESSAGES_TABLE + "_counts_ai AFTER INSERT ON " + MESSAGES_TABLE
+            + " FOR EACH ROW BEGIN " + getAddToCountsSql("NEW.", "+") + "END";
+
+    private static final String CREATE_MESSAGES_UPDATE_COUNTS_TRIGGER_SQL =
+            "CREATE TRIGGER " + MESSAGES_TABLE + "_counts_au AFTER UPDATE OF "
+            + MessageColumns.READ + ", " + MessageColumns.SEEN + ", "
+            + MessageColumns.CONVERSATION_ID + " ON " + MESSAGES_TABLE
+            + " FOR EACH ROW WHEN OLD." + MessageColumns.READ + " IS NOT NEW." + MessageColumns.READ
+            + " OR OLD." + MessageColumns.SEEN + " IS NOT NEW." + MessageColumns.SEEN
+            + " OR OLD." + MessageColumns.CONVERSATION_ID + " IS NOT NEW."
+            + MessageColumns.CONVERSATION_ID
+            + " BEGIN " + getAddToCountsSql("OLD.", "-") + getAddToCountsSql("NEW.", "+") + "END";
+
+    private static final String CREATE_MESSAGES_DELETE_COUNTS_TRIGGER_SQL =
+            "CREATE TRIGGER " + MESSAGES_TABLE + "_counts_ad AFTER DELETE ON " + MESSAGES_TABLE
+            + " FOR EACH ROW BEGIN " + getAddToCountsSql("OLD.", "-") + "END";
+
+    static final String[] CREATE_COUNTS_TRIGGER_SQLS = new String[] {
+        CREATE_MESSAGES_INSERT_COUNTS_TRIGGER_SQL,
+        CREATE_MESSAGES_UPDATE_COUNTS_TRIGGER_SQL,
+        CREATE_MESSAGES_DELETE_COUNTS_TRIGGER_SQL,
+    };
+
+    // Count the messages of every conversation (used when upgrading an existing database)
+    static final String RECOUNT_CONVERSATIONS_SQL = "UPDATE " + CONVERSATIONS_TABLE + " SET "
+            + ConversationColumns.UNREAD_COUNT + "=(SELECT COUNT(*) FROM " + MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=" + CONVERSATIONS_TABLE + "."
+            + ConversationColumns._ID + " AND " + UNREAD + "), "
+            + ConversationColumns.UNSEEN_COUNT + "=(SELECT COUNT(*) FROM " + MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=" + CONVERSATIONS_TABLE + "."
+            + ConversationColumns._ID + " AND " + UNSEEN + ")";
+
     // Primary sort index for parts table : by message_id
     private static final String PARTS_TABLE_MESSAGE_INDEX_SQL =
             "CREATE INDEX index_" + PARTS_TABLE + "_message_id ON " + PARTS_TABLE + "("
@@ -535,6 +604,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         CREATE_PARTS_TABLE_SQL,
         CREATE_PARTICIPANTS_TABLE_SQL,
         CREATE_CONVERSATION_PARTICIPANTS_TABLE_SQL,
+        MessageSearchIndex.getCreateTableSql(),
+        ConversationListItemData.getCreateConversationListTableSql(),
     };
 
     // List of all our indices
@@ -543,7 +614,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         CONVERSATIONS_TABLE_ARCHIVE_STATUS_INDEX_SQL,
         CONVERSATIONS_TABLE_SORT_TIMESTAMP_INDEX_SQL,
         MESSAGES_TABLE_SORT_INDEX_SQL,
+        MESSAGES_TABLE_CONVERSATION_RECEIVED_INDEX_SQL,
         MESSAGES_TABLE_STATUS_SEEN_INDEX_SQL,
+        MESSAGES_TABLE_SMS_MESSAGE_URI_INDEX_SQL,
         PARTS_TABLE_MESSAGE_INDEX_SQL,
         CONVERSATION_PARTICIPANTS_TABLE_CONVERSATION_ID_INDEX_SQL,
     };
@@ -556,7 +629,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // List of all our views
     private static final String[] CREATE_VIEW_SQLS = new String[] {
-        ConversationListItemData.getConversationListViewSql(),
         ConversationImagePartsView.getCreateSql(),
         DRAFT_PARTS_VIEW_SQL,
     };
@@ -801,6 +873,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.execSQL(sql);
         }
 
+        for (final String sql : CREATE_COUNTS_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+
+        for (final String sql : MessageSearchIndex.CREATE_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+
+        for (final String sql : ConversationListTable.CREATE_INDEX_SQLS) {
+            db.execSQL(sql);
+        }
+
+        for (final String sql : ConversationListTable.CREATE_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+
         // Enable foreign key constraints
         db.execSQL("PRAGMA foreign_keys=ON;");
 
@@ -19,6 +19,7 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 
 import com.android.messaging.Factory;
+import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 
@@ -48,6 +49,21 @@ public class DatabaseUpgradeHelper {
         if (currentVersion < 2) {
             currentVersion = upgradeToVersion2(db);
         }
+        if (currentVersion < 3) {
+            currentVersion = upgradeToVersion3(db);
+        }
+        if (currentVersion < 4) {
+            currentVersion = upgradeToVersion4(db);
+        }
+        if (currentVersion < 5) {
+            currentVersion = upgradeToVersion5(db);
+        }
+        if (currentVersion < 6) {
+            currentVersion = upgradeToVersion6(db);
+        }
+        if (currentVersion < 7) {
+            currentVersion = upgradeToVersion7(db);
+        }
         // Rebuild all the views
         final Context context = Factory.get().getApplicationContext();
         DatabaseHelper.dropAllViews(db);
@@ -63,6 +79,61 @@ public class DatabaseUpgradeHelper {
         return 2;
     }
 
+    private int upgradeToVersion3(final SQLiteDatabase db) {
+        db.execSQL(MessageSearchIndex.getCreateTableSql());
+        for (final String sql : MessageSearchIndex.CREATE_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+        // Index the messages we already have
+        db.execSQL(MessageSearchIndex.REBUILD_SQL);
+        LogUtil.i(TAG, "Ugraded database to version 3");
+        return 3;
+    }
+
+    private int upgradeToVersion4(final SQLiteDatabase db) {
+        db.execSQL(DatabaseHelper.MESSAGES_TABLE_CONVERSATION_RECEIVED_INDEX_SQL);
+        LogUtil.i(TAG, "Ugraded database to version 4");
+        return 4;
+    }
+
+    private int upgradeToVersion5(final SQLiteDatabase db) {
+        // The conversation list view is dropped along with the other views below. The table
+        // replacing it copies columns added in version 6, so it is created there.
+        LogUtil.i(TAG, "Ugraded database to version 5");
+        return 5;
+    }
+
+    private int upgradeToVersion6(final SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DatabaseHelper.CONVERSATIONS_TABLE + " ADD COLUMN " +
+                DatabaseHelper.ConversationColumns.UNREAD_COUNT + " INT DEFAULT(0)");
+        db.execSQL("ALTER TABLE " + DatabaseHelper.CONVERSATIONS_TABLE + " ADD COLUMN " +
+                DatabaseHelper.ConversationColumns.UNSEEN_COUNT + " INT DEFAULT(0)");
+        db.execSQL(DatabaseHelper.RECOUNT_CONVERSATIONS_SQL);
+        for (final String sql : DatabaseHelper.CREATE_COUNTS_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+        // Create the conversation list table again, with the counts
+        for (final String sql : ConversationListTable.DROP_SQLS) {
+            db.execSQL(sql);
+        }
+        db.execSQL(ConversationListItemData.getCreateConversationListTableSql());
+        db.execSQL(ConversationListTable.REBUILD_SQL);
+        for (final String sql : ConversationListTable.CREATE_INDEX_SQLS) {
+            db.execSQL(sql);
+        }
+        for (final String sql : ConversationListTable.CREATE_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+        LogUtil.i(TAG, "Ugraded database to version 6");
+        return 6;
+    }
+
+    private int upgradeToVersion7(final SQLiteDatabase db) {
+        db.execSQL(DatabaseHelper.MESSAGES_TABLE_SMS_MESSAGE_URI_INDEX_SQL);
+        LogUtil.i(TAG, "Ugraded database to version 7");
+        return 7;
+    }
+
     /**
      * Checks db version correctness at the end of each milestone release. If target database
      * version lies beyond the version range that the current release may handle, we snap the
@@ -24,7 +24,6 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
-import android.util.SparseArray;
 
 import com.android.messaging.Factory;
 import com.android.messaging.R;
@@ -32,9 +31,15 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.PerfMetrics;
 import com.android.messaging.util.UiUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Stack;
 import java.util.regex.Pattern;
 
@@ -52,15 +57,52 @@ public class DatabaseWrapper {
     private final String mExplainQueryPlanRegexp;
     private static final int sTimingThreshold = 50;        // in milliseconds
 
-    public static final int INDEX_INSERT_MESSAGE_PART = 0;
-    public static final int INDEX_INSERT_MESSAGE = 1;
-    public static final int INDEX_QUERY_CONVERSATIONS_LATEST_MESSAGE = 2;
-    public static final int INDEX_QUERY_MESSAGES_LATEST_MESSAGE = 3;
+    // Time taken by queries, by writes and by (outermost) transactions, in microseconds. Note
+    // that query cursors are filled lazily, so the rows are read after the query is timed.
+    private static final PerfMetrics.Histogram sQueryTime = PerfMetrics.histogram("db.query");
+    private static final PerfMetrics.Histogram sWriteTime = PerfMetrics.histogram("db.write");
+    private static final PerfMetrics.Histogram sTransactionTime =
+            PerfMetrics.histogram("db.transaction");
+    // Statements fetched from the cache of compiled statements, those that had to be compiled,
+    // and the statements cached
+    @VisibleForTesting
+    static final PerfMetrics.Counter sStatementExecutions =
+            PerfMetrics.counter("db.statements.executions");
+    @VisibleForTesting
+    static final PerfMetrics.Counter sStatementCompilations =
+            PerfMetrics.counter("db.statements.compilations");
+    private static final PerfMetrics.Gauge sCachedStatements =
+            PerfMetrics.gauge("db.statements.cached");
+
+    // Compiled statements by SQL, least recently used first
+    private final LinkedHashMap<String, SQLiteStatement> mCompiledStatements;
+    // Counters of each statement by SQL, including the statements evicted from the cache
+    private final HashMap<String, StatementCounters> mStatementCounters;
 
-    private final SparseArray<SQLiteStatement> mCompiledStatements;
+    /**
+     * Execution and compilation counters of one statement, named after the statement by
+     * {@link #getStatementMetricsName}
+     */
+    static class StatementCounters {
+        final PerfMetrics.Counter executions;
+        final PerfMetrics.Counter compilations;
+
+        StatementCounters(final String metricsName) {
+            executions = PerfMetrics.counter(metricsName + ".executions");
+            compilations = PerfMetrics.counter(metricsName + ".compilations");
+        }
+    }
+
+    /**
+     * Binds the values of a row to an insert statement, without going through ContentValues
+     */
+    public interface RowBinder<T> {
+        void bindRow(SQLiteStatement statement, T row);
+    }
 
     static class TransactionData {
         long time;
+        long startNanos;
         boolean transactionSuccessful;
     }
 
@@ -85,19 +127,124 @@ public class DatabaseWrapper {
                 BugleGservicesKeys.EXPLAIN_QUERY_PLAN_REGEXP, null);
         mDatabase = db;
         mContext = context;
-        mCompiledStatements = new SparseArray<SQLiteStatement>();
+        final int cacheSize = Factory.get().getBugleGservices().getInt(
+                BugleGservicesKeys.DATABASE_STATEMENT_CACHE_SIZE,
+                BugleGservicesKeys.DATABASE_STATEMENT_CACHE_SIZE_DEFAULT);
+        mCompiledStatements = new LinkedHashMap<String, SQLiteStatement>(
+                16, 0.75f, true /* accessOrder */) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > cacheSize) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        mStatementCounters = new HashMap<String, StatementCounters>();
     }
 
-    public SQLiteStatement getStatementInTransaction(final int index, final String statement) {
+    /**
+     * Get a compiled statement for the SQL, compiling it only if it isn't in the cache. Each call
+     * counts as one execution of the statement, so a statement is to be fetched again for every
+     * time it is executed.
+     *
+     * Note this is not thread safe so callers need to make sure they own the wrapper + statements
+     * while they call this and use the returned value.
+     */
+    public SQLiteStatement getStatementInTransaction(final String sql) {
         // Use transaction to serialize access to statements
         Assert.isTrue(mDatabase.inTransaction());
-        SQLiteStatement compiled = mCompiledStatements.get(index);
-        if (compiled == null) {
-            compiled = mDatabase.compileStatement(statement);
-            Assert.isTrue(compiled.toString().contains(statement.trim()));
-            mCompiledStatements.put(index, compiled);
+        synchronized (mCompiledStatements) {
+            final StatementCounters counters = getStatementCountersLocked(sql);
+            sStatementExecutions.increment();
+            counters.executions.increment();
+            SQLiteStatement compiled = mCompiledStatements.get(sql);
+            if (compiled == null) {
+                compiled = mDatabase.compileStatement(sql);
+                Assert.isTrue(compiled.toString().contains(sql.trim()));
+                mCompiledStatements.put(sql, compiled);
+                sStatementCompilations.increment();
+                counters.compilations.increment();
+                sCachedStatements.set(mCompiledStatements.size());
+            }
+            compiled.clearBindings();
+            return compiled;
+        }
+    }
+
+    /**
+     * Bind a string to a statement, or null if there is none, as bindString() doesn't take null
+     */
+    public static void bindStringOrNull(final SQLiteStatement statement, final int index,
+            final String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private StatementCounters getStatementCountersLocked(final String sql) {
+        StatementCounters counters = mStatementCounters.get(sql);
+        if (counters == null) {
+            final String metricsName = getStatementMetricsName(sql);
+            counters = new StatementCounters(metricsName);
+            mStatementCounters.put(sql, counters);
+            if (mLog) {
+                // The log maps the hash in the metrics name back to the SQL
+                LogUtil.v(LogUtil.BUGLE_DATABASE_PERF_TAG, metricsName + ": " + sql);
+            }
         }
-        return compiled;
+        return counters;
+    }
+
+    /**
+     * @return the name of the metrics of a statement, e.g. db.statement.insert.parts.1f3a2b4c:
+     *         the statement's verb and table, to read it by, and the hash of its SQL, to tell
+     *         apart the statements on the same table
+     */
+    @VisibleForTesting
+    static String getStatementMetricsName(final String sql) {
+        final String[] words = sql.trim().split("\\s+");
+        String table = "";
+        for (int i = 0; i < words.length - 1; i++) {
+            final String word = words[i].toUpperCase(Locale.US);
+            if (word.equals("INTO") || word.equals("FROM") || (i == 0 && word.equals("UPDATE"))) {
+                table = words[i + 1];
+                break;
+            }
+        }
+        return String.format(Locale.US, "db.statement.%s.%s.%08x",
+                words[0].toLowerCase(Locale.US).replaceAll("[^a-z]", ""),
+                table.replaceAll("[^A-Za-z0-9_]", ""), sql.hashCode());
+    }
+
+    /**
+     * Insert rows with one compiled statement, binding the values of each row directly
+     * @param sql the insert statement
+     * @return the row ids of the inserted rows, in the order of the rows
+     */
+    public <T> long[] insertRowsInTransaction(final String sql, final List<T> rows,
+            final RowBinder<T> binder) {
+        final long startNanos = PerfMetrics.now();
+        long t1 = 0;
+        if (mLog) {
+            t1 = System.currentTimeMillis();
+        }
+        maybePlayDebugNoise();
+        final long[] rowIds = new long[rows.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            final SQLiteStatement insert = getStatementInTransaction(sql);
+            binder.bindRow(insert, rows.get(i));
+            rowIds[i] = insert.executeInsert();
+        }
+        sWriteTime.recordSince(startNanos);
+        if (mLog) {
+            printTiming(t1, String.format(Locale.US, "insert %d rows with %s",
+                    rowIds.length, sql));
+        }
+        return rowIds;
     }
 
     private void maybePlayDebugNoise() {
@@ -126,6 +273,7 @@ public class DatabaseWrapper {
         // push the current time onto the transaction stack
         final TransactionData f = new TransactionData();
         f.time = t1;
+        f.startNanos = PerfMetrics.now();
         sTransactionDepth.get().push(f);
 
         mDatabase.beginTransaction();
@@ -157,6 +305,9 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to endTransaction", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        if (sTransactionDepth.get().isEmpty()) {
+            sTransactionTime.recordSince(f.startNanos);
+        }
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
                     ">>> endTransaction (total for this transaction: %d)",
@@ -177,6 +328,7 @@ public class DatabaseWrapper {
 
     public void insertWithOnConflict(final String searchTable, final String nullColumnHack,
             final ContentValues initialValues, final int conflictAlgorithm) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -188,6 +340,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to insertWithOnConflict", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
                     "insertWithOnConflict with ", searchTable));
@@ -252,12 +405,14 @@ public class DatabaseWrapper {
         }
 
         maybePlayDebugNoise();
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
         final Cursor cursor = mDatabase.query(searchTable, projection, selection, selectionArgs,
                 groupBy, having, orderBy, limit);
+        sQueryTime.recordSince(startNanos);
         if (mLog) {
             printTiming(
                     t1,
@@ -283,12 +438,14 @@ public class DatabaseWrapper {
                     groupBy, having, sortOrder, limit);
         }
         maybePlayDebugNoise();
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
         final Cursor cursor = qb.query(mDatabase, projection, selection, queryArgs, groupBy,
                 having, sortOrder, limit);
+        sQueryTime.recordSince(startNanos);
         if (mLog) {
             printTiming(
                     t1,
@@ -300,6 +457,7 @@ public class DatabaseWrapper {
 
     public long queryNumEntries(final String table, final String selection,
             final String[] selectionArgs) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -307,6 +465,7 @@ public class DatabaseWrapper {
         maybePlayDebugNoise();
         final long retval =
                 DatabaseUtils.queryNumEntries(mDatabase, table, selection, selectionArgs);
+        sQueryTime.recordSince(startNanos);
         if (mLog){
             printTiming(
                     t1,
@@ -320,12 +479,14 @@ public class DatabaseWrapper {
         if (mExplainQueryPlanRegexp != null) {
             explainQueryPlan(mDatabase, sql, args);
         }
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
         maybePlayDebugNoise();
         final Cursor cursor = mDatabase.rawQuery(sql, args);
+        sQueryTime.recordSince(startNanos);
         if (mLog) {
             printTiming(
                     t1,
@@ -336,6 +497,7 @@ public class DatabaseWrapper {
 
     public int update(final String table, final ContentValues values,
             final String selection, final String[] selectionArgs) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -348,6 +510,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to update", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "update %s with %s ==> %d",
                     table, selection, count));
@@ -356,6 +519,7 @@ public class DatabaseWrapper {
     }
 
     public int delete(final String table, final String whereClause, final String[] whereArgs) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -368,6 +532,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to delete", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1,
                     String.format(Locale.US, "delete from %s with %s ==> %d", table,
@@ -378,6 +543,7 @@ public class DatabaseWrapper {
 
     public long insert(final String table, final String nullColumnHack,
             final ContentValues values) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -390,6 +556,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to insert", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "insert to %s", table));
         }
@@ -398,6 +565,7 @@ public class DatabaseWrapper {
 
     public long replace(final String table, final String nullColumnHack,
             final ContentValues values) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -410,6 +578,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to replace", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "replace to %s", table));
         }
@@ -421,6 +590,7 @@ public class DatabaseWrapper {
     }
 
     public void execSQL(final String sql, final String[] bindArgs) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -433,12 +603,14 @@ public class DatabaseWrapper {
             UiUtils.showToastAtBottom(R.string.db_full);
         }
 
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "execSQL %s", sql));
         }
     }
 
     public void execSQL(final String sql) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -451,12 +623,14 @@ public class DatabaseWrapper {
             UiUtils.showToastAtBottom(R.string.db_full);
         }
 
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "execSQL %s", sql));
         }
     }
 
     public int execSQLUpdateDelete(final String sql) {
+        final long startNanos = PerfMetrics.now();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
@@ -470,6 +644,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to execSQLUpdateDelete", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        sWriteTime.recordSince(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "execSQLUpdateDelete %s", sql));
         }
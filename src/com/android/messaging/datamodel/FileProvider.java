@@ -38,7 +38,7 @@ public abstract class FileProvider extends ContentProvider {
 
     abstract File getFile(final String path, final String extension);
 
-    private static final String FILE_EXTENSION_PARAM_KEY = "ext";
+    protected static final String FILE_EXTENSION_PARAM_KEY = "ext";
 
     /**
      * Check if filename conforms to requirement for our provider
@@ -111,9 +111,15 @@ public abstract class FileProvider extends ContentProvider {
         final String fileId = uri.getPath();
         if (isValidFileId(fileId)) {
             final File file = getFile(fileId, getExtensionFromUri(uri));
-            final int mode =
-                    (TextUtils.equals(fileMode, "r") ? ParcelFileDescriptor.MODE_READ_ONLY :
-                        ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_TRUNCATE);
+            final int mode;
+            if (TextUtils.equals(fileMode, "r")) {
+                mode = ParcelFileDescriptor.MODE_READ_ONLY;
+            } else if (TextUtils.equals(fileMode, "rw")) {
+                // Keeps what the file holds, e.g. for a download to be resumed
+                mode = ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+            } else {
+                mode = ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_TRUNCATE;
+            }
             return ParcelFileDescriptor.open(file, mode);
         }
         return null;
@@ -83,7 +83,8 @@ import java.util.Map;
  *  2) ConversationLineInfo - A list of NotificationLineInfo in a single conversation.
  *  3) ConversationInfoList - A list of ConversationLineInfo and the total number of messages.
  *
- *  The createConversationInfoList function performs the query and creates the data structure.
+ *  The createConversationInfoList function creates the data structure from the messages kept by
+ *  NotificationMessageCache.
  */
 public abstract class MessageNotificationState extends NotificationState {
     // Logging
@@ -621,6 +622,20 @@ public abstract class MessageNotificationState extends NotificationState {
         }
     }
 
+    /**
+     * Like {@link #scanFirstNames} but only scans conversations once while they have messages
+     * to notify.
+     */
+    private static HashMap<String, Integer> getFirstNames(final String conversationId) {
+        HashMap<String, Integer> firstNames =
+                NotificationMessageCache.getFirstNames(conversationId);
+        if (firstNames == null) {
+            firstNames = scanFirstNames(conversationId);
+            NotificationMessageCache.putFirstNames(conversationId, firstNames);
+        }
+        return firstNames;
+    }
+
     private static HashMap<String, Integer> scanFirstNames(final String conversationId) {
         final Context context = Factory.get().getApplicationContext();
         final Uri uri =
@@ -822,151 +837,139 @@ public abstract class MessageNotificationState extends NotificationState {
         final Map<String, ConversationLineInfo> convLineInfos = new LinkedHashMap<>();
         int messageCount = 0;
 
-        Cursor convMessageCursor = null;
-        try {
-            final Context context = Factory.get().getApplicationContext();
-            final DatabaseWrapper db = DataModel.get().getDatabase();
+        final Context context = Factory.get().getApplicationContext();
+        final DatabaseWrapper db = DataModel.get().getDatabase();
 
-            convMessageCursor = db.rawQuery(
-                    ConversationMessageData.getNotificationQuerySql(),
-                    null);
+        final List<ConversationMessageData> convMessages =
+                NotificationMessageCache.getMessages(db);
 
-            if (convMessageCursor != null && convMessageCursor.moveToFirst()) {
-                if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                    LogUtil.v(TAG, "MessageNotificationState: Found unseen message notifications.");
+        if (!convMessages.isEmpty()) {
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "MessageNotificationState: Found unseen message notifications.");
+            }
+
+            HashMap<String, Integer> firstNames = null;
+            String conversationIdForFirstNames = null;
+            String groupConversationName = null;
+            final int maxMessages = getMaxMessagesInConversationNotification();
+
+            for (final ConversationMessageData convMessageData : convMessages) {
+                // First figure out if this is a valid message.
+                String authorFullName = convMessageData.getSenderFullName();
+                String authorFirstName = convMessageData.getSenderFirstName();
+                final String messageText = convMessageData.getText();
+
+                final String convId = convMessageData.getConversationId();
+                final String messageId = convMessageData.getMessageId();
+
+                CharSequence text = messageText;
+                final boolean isManualDownloadNeeded = convMessageData.getIsMmsNotification();
+                if (isManualDownloadNeeded) {
+                    // Don't try and convert the text from html if it's sms and not a sms push
+                    // notification.
+                    Assert.equals(MessageData.BUGLE_STATUS_INCOMING_YET_TO_MANUAL_DOWNLOAD,
+                            convMessageData.getStatus());
+                    text = context.getResources().getString(
+                            R.string.message_title_manual_download);
                 }
-                final ConversationMessageData convMessageData =
-                        new ConversationMessageData();
-
-                HashMap<String, Integer> firstNames = null;
-                String conversationIdForFirstNames = null;
-                String groupConversationName = null;
-                final int maxMessages = getMaxMessagesInConversationNotification();
-
-                do {
-                    convMessageData.bind(convMessageCursor);
-
-                    // First figure out if this is a valid message.
-                    String authorFullName = convMessageData.getSenderFullName();
-                    String authorFirstName = convMessageData.getSenderFirstName();
-                    final String messageText = convMessageData.getText();
-
-                    final String convId = convMessageData.getConversationId();
-                    final String messageId = convMessageData.getMessageId();
-
-                    CharSequence text = messageText;
-                    final boolean isManualDownloadNeeded = convMessageData.getIsMmsNotification();
-                    if (isManualDownloadNeeded) {
-                        // Don't try and convert the text from html if it's sms and not a sms push
-                        // notification.
-                        Assert.equals(MessageData.BUGLE_STATUS_INCOMING_YET_TO_MANUAL_DOWNLOAD,
-                                convMessageData.getStatus());
-                        text = context.getResources().getString(
-                                R.string.message_title_manual_download);
+                ConversationLineInfo currConvInfo = convLineInfos.get(convId);
+                if (currConvInfo == null) {
+                    final ConversationListItemData convData =
+                            ConversationListItemData.getExistingConversation(db, convId);
+                    if (!convData.getNotificationEnabled()) {
+                        // Skip conversations that have notifications disabled.
+                        continue;
                     }
-                    ConversationLineInfo currConvInfo = convLineInfos.get(convId);
-                    if (currConvInfo == null) {
-                        final ConversationListItemData convData =
-                                ConversationListItemData.getExistingConversation(db, convId);
-                        if (!convData.getNotificationEnabled()) {
-                            // Skip conversations that have notifications disabled.
-                            continue;
+                    final int subId = BugleDatabaseOperations.getSelfSubscriptionId(db,
+                            convData.getSelfId());
+                    groupConversationName = convData.getName();
+                    final Uri avatarUri = AvatarUriUtil.createAvatarUri(
+                            convMessageData.getSenderProfilePhotoUri(),
+                            convMessageData.getSenderFullName(),
+                            convMessageData.getSenderNormalizedDestination(),
+                            convMessageData.getSenderContactLookupKey());
+                    currConvInfo = new ConversationLineInfo(convId,
+                            convData.getIsGroup(),
+                            groupConversationName,
+                            convData.getIncludeEmailAddress(),
+                            convMessageData.getReceivedTimeStamp(),
+                            convData.getSelfId(),
+                            convData.getNotificationSoundUri(),
+                            convData.getNotificationEnabled(),
+                            convData.getNotifiationVibrate(),
+                            avatarUri,
+                            convMessageData.getSenderContactLookupUri(),
+                            subId,
+                            convData.getParticipantCount());
+                    convLineInfos.put(convId, currConvInfo);
+                }
+                // Prepare the message line
+                if (currConvInfo.mTotalMessageCount < maxMessages) {
+                    if (currConvInfo.mIsGroup) {
+                        if (authorFirstName == null) {
+                            // authorFullName might be null as well. In that case, we won't
+                            // show an author. That is better than showing all the group
+                            // names again on the 2nd line.
+                            authorFirstName = authorFullName;
                         }
-                        final int subId = BugleDatabaseOperations.getSelfSubscriptionId(db,
-                                convData.getSelfId());
-                        groupConversationName = convData.getName();
-                        final Uri avatarUri = AvatarUriUtil.createAvatarUri(
-                                convMessageData.getSenderProfilePhotoUri(),
-                                convMessageData.getSenderFullName(),
-                                convMessageData.getSenderNormalizedDestination(),
-                                convMessageData.getSenderContactLookupKey());
-                        currConvInfo = new ConversationLineInfo(convId,
-                                convData.getIsGroup(),
-                                groupConversationName,
-                                convData.getIncludeEmailAddress(),
-                                convMessageData.getReceivedTimeStamp(),
-                                convData.getSelfId(),
-                                convData.getNotificationSoundUri(),
-                                convData.getNotificationEnabled(),
-                                convData.getNotifiationVibrate(),
-                                avatarUri,
-                                convMessageData.getSenderContactLookupUri(),
-                                subId,
-                                convData.getParticipantCount());
-                        convLineInfos.put(convId, currConvInfo);
-                    }
-                    // Prepare the message line
-                    if (currConvInfo.mTotalMessageCount < maxMessages) {
-                        if (currConvInfo.mIsGroup) {
-                            if (authorFirstName == null) {
-                                // authorFullName might be null as well. In that case, we won't
-                                // show an author. That is better than showing all the group
-                                // names again on the 2nd line.
+                    } else {
+                        // don't recompute this if we don't need to
+                        if (!TextUtils.equals(conversationIdForFirstNames, convId)) {
+                            firstNames = getFirstNames(convId);
+                            conversationIdForFirstNames = convId;
+                        }
+                        if (firstNames != null) {
+                            final Integer count = firstNames.get(authorFirstName);
+                            if (count != null && count > 1) {
                                 authorFirstName = authorFullName;
                             }
-                        } else {
-                            // don't recompute this if we don't need to
-                            if (!TextUtils.equals(conversationIdForFirstNames, convId)) {
-                                firstNames = scanFirstNames(convId);
-                                conversationIdForFirstNames = convId;
-                            }
-                            if (firstNames != null) {
-                                final Integer count = firstNames.get(authorFirstName);
-                                if (count != null && count > 1) {
-                                    authorFirstName = authorFullName;
-                                }
-                            }
+                        }
 
-                            if (authorFullName == null) {
-                                authorFullName = groupConversationName;
-                            }
-                            if (authorFirstName == null) {
-                                authorFirstName = groupConversationName;
-                            }
+                        if (authorFullName == null) {
+                            authorFullName = groupConversationName;
                         }
-                        final String subjectText = MmsUtils.cleanseMmsSubject(
-                                context.getResources(),
-                                convMessageData.getMmsSubject());
-                        if (!TextUtils.isEmpty(subjectText)) {
-                            final String subjectLabel =
-                                    context.getString(R.string.subject_label);
-                            final SpannableStringBuilder spanBuilder =
-                                    new SpannableStringBuilder();
-
-                            spanBuilder.append(context.getString(R.string.notification_subject,
-                                    subjectLabel, subjectText));
-                            spanBuilder.setSpan(new TextAppearanceSpan(
-                                    context, R.style.NotificationSubjectText), 0,
-                                    subjectLabel.length(),
-                                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                            if (!TextUtils.isEmpty(text)) {
-                                // Now add the actual message text below the subject header.
-                                spanBuilder.append(System.getProperty("line.separator") + text);
-                            }
-                            text = spanBuilder;
+                        if (authorFirstName == null) {
+                            authorFirstName = groupConversationName;
                         }
-                        // If we've got attachments, find the best one. If one of the messages is
-                        // a photo, save the url so we'll display a big picture notification.
-                        // Otherwise, show the first one we find.
-                        Uri attachmentUri = null;
-                        String attachmentType = null;
-                        final MessagePartData messagePartData =
-                                getMostInterestingAttachment(convMessageData);
-                        if (messagePartData != null) {
-                            attachmentUri = messagePartData.getContentUri();
-                            attachmentType = messagePartData.getContentType();
+                    }
+                    final String subjectText = MmsUtils.cleanseMmsSubject(
+                            context.getResources(),
+                            convMessageData.getMmsSubject());
+                    if (!TextUtils.isEmpty(subjectText)) {
+                        final String subjectLabel =
+                                context.getString(R.string.subject_label);
+                        final SpannableStringBuilder spanBuilder =
+                                new SpannableStringBuilder();
+
+                        spanBuilder.append(context.getString(R.string.notification_subject,
+                                subjectLabel, subjectText));
+                        spanBuilder.setSpan(new TextAppearanceSpan(
+                                context, R.style.NotificationSubjectText), 0,
+                                subjectLabel.length(),
+                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        if (!TextUtils.isEmpty(text)) {
+                            // Now add the actual message text below the subject header.
+                            spanBuilder.append(System.getProperty("line.separator") + text);
                         }
-                        currConvInfo.mLineInfos.add(new MessageLineInfo(currConvInfo.mIsGroup,
-                                authorFullName, authorFirstName, text,
-                                attachmentUri, attachmentType, isManualDownloadNeeded, messageId));
+                        text = spanBuilder;
                     }
-                    messageCount++;
-                    currConvInfo.mTotalMessageCount++;
-                } while (convMessageCursor.moveToNext());
-            }
-        } finally {
-            if (convMessageCursor != null) {
-                convMessageCursor.close();
+                    // If we've got attachments, find the best one. If one of the messages is
+                    // a photo, save the url so we'll display a big picture notification.
+                    // Otherwise, show the first one we find.
+                    Uri attachmentUri = null;
+                    String attachmentType = null;
+                    final MessagePartData messagePartData =
+                            getMostInterestingAttachment(convMessageData);
+                    if (messagePartData != null) {
+                        attachmentUri = messagePartData.getContentUri();
+                        attachmentType = messagePartData.getContentType();
+                    }
+                    currConvInfo.mLineInfos.add(new MessageLineInfo(currConvInfo.mIsGroup,
+                            authorFullName, authorFirstName, text,
+                            attachmentUri, attachmentType, isManualDownloadNeeded, messageId));
+                }
+                messageCount++;
+                currConvInfo.mTotalMessageCount++;
             }
         }
         if (convLineInfos.isEmpty()) {
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.OsUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Full-text index over the text of message parts. The index is an FTS4 table that uses the parts
+ * table as its external content, so only the index itself is stored. Triggers on the parts table
+ * keep it up to date for every insert, text update and delete (including the cascaded deletes of
+ * messages and conversations), so the message write paths and sync need no extra work.
+ */
+public class MessageSearchIndex {
+    static final String FTS_TABLE = "parts_fts";
+
+    // Marks the matched terms in the snippet column
+    public static final String SNIPPET_MATCH_START = "\u0002";
+    public static final String SNIPPET_MATCH_END = "\u0003";
+    private static final String SNIPPET_ELLIPSIS = "\u2026";
+    private static final int SNIPPET_TOKENS = 12;
+
+    // unicode61 folds case beyond ASCII but is only available from the L version of SQLite
+    private static String getTokenizer() {
+        return OsUtil.isAtLeastL() ? "unicode61" : "simple";
+    }
+
+    static String getCreateTableSql() {
+        return "CREATE VIRTUAL TABLE " + FTS_TABLE + " USING fts4("
+                + "content=\"" + DatabaseHelper.PARTS_TABLE + "\", "
+                + PartColumns.TEXT + ", "
+                + "tokenize=" + getTokenizer() + ")";
+    }
+
+    // Rebuild the whole index from the parts table (used when upgrading an existing database)
+    static final String REBUILD_SQL =
+            "INSERT INTO " + FTS_TABLE + "(" + FTS_TABLE + ") VALUES('rebuild')";
+
+    // An external content index has to be told about the old text before the row changes
+    private static final String CREATE_BEFORE_DELETE_TRIGGER_SQL =
+            "CREATE TRIGGER " + FTS_TABLE + "_bd BEFORE DELETE ON " + DatabaseHelper.PARTS_TABLE
+            + " FOR EACH ROW WHEN OLD." + PartColumns.TEXT + " NOT NULL"
+            + " BEGIN DELETE FROM " + FTS_TABLE + " WHERE docid=OLD." + PartColumns._ID
+            + "; END";
+
+    private static final String CREATE_BEFORE_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + FTS_TABLE + "_bu BEFORE UPDATE OF " + PartColumns.TEXT + " ON "
+            + DatabaseHelper.PARTS_TABLE
+            + " FOR EACH ROW WHEN OLD." + PartColumns.TEXT + " NOT NULL"
+            + " BEGIN DELETE FROM " + FTS_TABLE + " WHERE docid=OLD." + PartColumns._ID
+            + "; END";
+
+    private static final String CREATE_AFTER_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + FTS_TABLE + "_au AFTER UPDATE OF " + PartColumns.TEXT + " ON "
+            + DatabaseHelper.PARTS_TABLE
+            + " FOR EACH ROW WHEN NEW." + PartColumns.TEXT + " NOT NULL"
+            + " BEGIN INSERT INTO " + FTS_TABLE + "(docid, " + PartColumns.TEXT + ")"
+            + " VALUES(NEW." + PartColumns._ID + ", NEW." + PartColumns.TEXT + "); END";
+
+    private static final String CREATE_AFTER_INSERT_TRIGGER_SQL =
+            "CREATE TRIGGER " + FTS_TABLE + "_ai AFTER INSERT ON " + DatabaseHelper.PARTS_TABLE
+            + " FOR EACH ROW WHEN NEW." + PartColumns.TEXT + " NOT NULL"
+            + " BEGIN INSERT INTO " + FTS_TABLE + "(docid, " + PartColumns.TEXT + ")"
+            + " VALUES(NEW." + PartColumns._ID + ", NEW." + PartColumns.TEXT + "); END";
+
+    static final String[] CREATE_TRIGGER_SQLS = new String[] {
+        CREATE_BEFORE_DELETE_TRIGGER_SQL,
+        CREATE_BEFORE_UPDATE_TRIGGER_SQL,
+        CREATE_AFTER_UPDATE_TRIGGER_SQL,
+        CREATE_AFTER_INSERT_TRIGGER_SQL,
+    };
+
+    public static class Columns implements BaseColumns {
+        public static final String MESSAGE_ID = PartColumns.MESSAGE_ID;
+        public static final String CONVERSATION_ID = PartColumns.CONVERSATION_ID;
+        public static final String CONVERSATION_NAME = ConversationColumns.NAME;
+        public static final String TIMESTAMP = PartColumns.TIMESTAMP;
+        public static final String SNIPPET = "snippet";
+    }
+
+    public interface SearchQuery {
+        public final String[] PROJECTION = {
+            Columns._ID,
+            Columns.MESSAGE_ID,
+            Columns.CONVERSATION_ID,
+            Columns.CONVERSATION_NAME,
+            Columns.TIMESTAMP,
+            Columns.SNIPPET,
+        };
+
+        public final int INDEX_PART_ID = 0;
+        public final int INDEX_MESSAGE_ID = 1;
+        public final int INDEX_CONVERSATION_ID = 2;
+        public final int INDEX_CONVERSATION_NAME = 3;
+        public final int INDEX_TIMESTAMP = 4;
+        public final int INDEX_SNIPPET = 5;
+    }
+
+    // Relevance is scored like BM25 without the inverse document frequency, which doesn't
+    // change the order when every word has to match: the number of matched terms saturates
+    // (K1) and is weighed down for long texts (B, against a typical message length). SQLite
+    // on the platform can't have a ranking function registered, so the number of matches is
+    // counted from offsets(), which holds four numbers for each matched term.
+    private static final String RANK_K1 = "1.2";
+    private static final String RANK_B = "0.75";
+    private static final String RANK_AVERAGE_TEXT_LENGTH = "60.0";
+
+    private static final String MATCH_COUNT = "((length(hits.match_offsets)"
+            + " - length(replace(hits.match_offsets, ' ', '')) + 1) / 4)";
+
+    private static final String RANK = MATCH_COUNT + " * (" + RANK_K1 + " + 1) / ("
+            + MATCH_COUNT + " + " + RANK_K1 + " * (1 - " + RANK_B + " + " + RANK_B
+            + " * length(" + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.TEXT + ") / "
+            + RANK_AVERAGE_TEXT_LENGTH + "))";
+
+    // Relevance of each result of the page, which is picked before the snippets are made
+    private static final String PAGE_RANK = "rank";
+
+    // Best matches first, newest first among equally good ones. The MATCH is resolved from the
+    // index and then joined by rowid, so the cost is proportional to the number of hits rather
+    // than the number of messages. Only offsets() is needed to rank the hits; the page of
+    // results is picked first, and then the index is matched again for the snippets of the
+    // page alone, so a common term doesn't cost a snippet per hit.
+    private static final String SEARCH_PAGE_SQL = "SELECT "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns._ID
+            + " as " + Columns._ID + ", "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
+            + " as " + Columns.MESSAGE_ID + ", "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.CONVERSATION_ID
+            + " as " + Columns.CONVERSATION_ID + ", "
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NAME
+            + " as " + Columns.CONVERSATION_NAME + ", "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.TIMESTAMP
+            + " as " + Columns.TIMESTAMP + ", "
+            + RANK + " as " + PAGE_RANK
+            + " FROM (SELECT docid, offsets(" + FTS_TABLE + ") as match_offsets"
+            + " FROM " + FTS_TABLE + " WHERE " + FTS_TABLE + " MATCH ?) as hits"
+            + " JOIN " + DatabaseHelper.PARTS_TABLE + " ON (" + DatabaseHelper.PARTS_TABLE + '.'
+            + PartColumns._ID + "=hits.docid)"
+            + " JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON (" + DatabaseHelper.MESSAGES_TABLE
+            + '.' + MessageColumns._ID + "=" + DatabaseHelper.PARTS_TABLE + '.'
+            + PartColumns.MESSAGE_ID + ")"
+            + " JOIN " + DatabaseHelper.CONVERSATIONS_TABLE + " ON ("
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID + "="
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.CONVERSATION_ID + ")"
+            // Drafts are not messages yet
+            + " WHERE " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.STATUS + " != "
+            + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " ORDER BY " + PAGE_RANK + " DESC, "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.TIMESTAMP + " DESC, "
+            + DatabaseHelper.PARTS_TABLE + '.' + PartColumns._ID + " DESC"
+            + " LIMIT ? OFFSET ?";
+
+    // The snippets have to come from a MATCH query, so the index is scanned first (CROSS JOIN
+    // keeps that order) and only its rows in the page are selected
+    private static final String SEARCH_QUERY_SQL = "SELECT "
+            + "page." + Columns._ID + " as " + Columns._ID + ", "
+            + "page." + Columns.MESSAGE_ID + " as " + Columns.MESSAGE_ID + ", "
+            + "page." + Columns.CONVERSATION_ID + " as " + Columns.CONVERSATION_ID + ", "
+            + "page." + Columns.CONVERSATION_NAME + " as " + Columns.CONVERSATION_NAME + ", "
+            + "page." + Columns.TIMESTAMP + " as " + Columns.TIMESTAMP + ", "
+            + "snippet(" + FTS_TABLE + ", '" + SNIPPET_MATCH_START + "', '" + SNIPPET_MATCH_END
+            + "', '" + SNIPPET_ELLIPSIS + "', -1, " + SNIPPET_TOKENS + ")"
+            + " as " + Columns.SNIPPET
+            + " FROM " + FTS_TABLE + " CROSS JOIN (" + SEARCH_PAGE_SQL + ") as page"
+            + " ON (page." + Columns._ID + "=" + FTS_TABLE + ".docid)"
+            + " WHERE " + FTS_TABLE + " MATCH ?"
+            + " ORDER BY page." + PAGE_RANK + " DESC, page." + Columns.TIMESTAMP + " DESC, page."
+            + Columns._ID + " DESC";
+
+    static String getSearchQuerySql() {
+        return SEARCH_QUERY_SQL;
+    }
+
+    /**
+     * @return the arguments of the search query for a page of results
+     */
+    static String[] getSearchQueryArgs(final String matchQuery, final int limit,
+            final int offset) {
+        // The page is matched first, then its snippets
+        return new String[] {
+                matchQuery, Integer.toString(limit), Integer.toString(offset), matchQuery };
+    }
+
+    /**
+     * Turn free text typed by the user into an FTS query. Every word has to match, and the last
+     * one is matched as a prefix so that results show up while the user is still typing.
+     * @return the FTS query or null if there is nothing to search for
+     */
+    @VisibleForTesting
+    static String buildMatchQuery(final String text) {
+        if (TextUtils.isEmpty(text)) {
+            return null;
+        }
+        final StringBuilder query = new StringBuilder();
+        for (final String word : text.split("\\s+")) {
+            // Quote every word so that FTS operators typed by the user are taken literally
+            final String literal = word.replace("\"", "");
+            if (literal.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(literal).append('"');
+        }
+        if (query.length() > 0) {
+            // Make the last word a prefix match
+            query.insert(query.length() - 1, '*');
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+}
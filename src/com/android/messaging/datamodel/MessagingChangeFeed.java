@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.android.messaging.Factory;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.PerfMetrics;
+import com.android.messaging.util.ThreadUtil;
+import com.android.messaging.widget.BugleWidgetProvider;
+import com.android.messaging.widget.WidgetConversationProvider;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The change notifications of the data exposed by {@link MessagingContentProvider}, coalesced
+ * before they are delivered.
+ *
+ * A change is held back until no other change has come for a debounce period, but no longer than
+ * a maximum delay, so that a burst of changes (e.g. a participant refresh touching every
+ * conversation) notifies each uri and widget once. A uri isn't notified at all if one of its
+ * ancestors is, as that already notifies its observers. Along with the uri notifications,
+ * listeners get a {@link Change} telling which conversations and messages changed, so that a view
+ * of a conversation can reload only the messages that were updated rather than all of them.
+ */
+public class MessagingChangeFeed {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    /**
+     * The changes delivered together
+     */
+    public static class Change {
+        private boolean mAllMessagesChanged;
+        // Conversations whose messages changed, with the ids of the messages that were updated,
+        // or null if messages may have been added or removed
+        private final HashMap<String, HashSet<String>> mConversations =
+                new HashMap<String, HashSet<String>>();
+        // Columns of the messages that were updated, or null if not known
+        private HashSet<String> mUpdatedColumns = new HashSet<String>();
+
+        /**
+         * @return whether the messages of the conversation may have changed
+         */
+        public boolean isMessagesChanged(final String conversationId) {
+            return mAllMessagesChanged || mConversations.containsKey(conversationId);
+        }
+
+        /**
+         * @return the ids of the messages of the conversation that were updated, or null if
+         *         messages may have been added or removed as well
+         */
+        public Set<String> getUpdatedMessageIds(final String conversationId) {
+            return mAllMessagesChanged ? null : mConversations.get(conversationId);
+        }
+
+        /**
+         * @return the columns of the updated messages that changed, or null if not known
+         */
+        public Set<String> getUpdatedColumns() {
+            return mUpdatedColumns;
+        }
+
+        private void addMessagesChanged(final String conversationId) {
+            if (conversationId == null) {
+                mAllMessagesChanged = true;
+            } else {
+                mConversations.put(conversationId, null);
+            }
+        }
+
+        private void addMessagesUpdated(final String conversationId,
+                final Collection<String> messageIds, final Collection<String> columns) {
+            if (!mConversations.containsKey(conversationId)) {
+                mConversations.put(conversationId, new HashSet<String>(messageIds));
+            } else {
+                final HashSet<String> updatedMessageIds = mConversations.get(conversationId);
+                if (updatedMessageIds != null) {
+                    updatedMessageIds.addAll(messageIds);
+                }
+            }
+            if (mUpdatedColumns != null) {
+                if (columns == null) {
+                    mUpdatedColumns = null;
+                } else {
+                    mUpdatedColumns.addAll(columns);
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return !mAllMessagesChanged && mConversations.isEmpty();
+        }
+    }
+
+    /**
+     * Listener for the changes, called on the main thread (or on the thread making the change
+     * when changes are not debounced) before the uris are notified.
+     */
+    public interface ChangeListener {
+        void onChanged(Change change);
+    }
+
+    private static final Object sLock = new Object();
+    private static final ArrayList<ChangeListener> sListeners = new ArrayList<ChangeListener>();
+
+    // Changes waiting to be delivered
+    private static final ArrayList<Uri> sPendingUris = new ArrayList<Uri>();
+    private static boolean sConversationListWidgetPending;
+    // Conversations whose widgets are to be notified, holding null to notify all of them
+    private static final HashSet<String> sPendingWidgetConversationIds = new HashSet<String>();
+    private static Change sPendingChange = new Change();
+    // When the oldest waiting change was made, or 0 if there is none
+    private static long sFirstPendingTime;
+
+    // Uris to notify, those dropped as another one covered them, and for each delivery the time
+    // since the oldest change it delivers and the uris it notifies
+    private static final PerfMetrics.Counter sUris = PerfMetrics.counter("changes.uris");
+    private static final PerfMetrics.Counter sCoveredUris =
+            PerfMetrics.counter("changes.uris.covered");
+    private static final PerfMetrics.Histogram sDeliveryDelay =
+            PerfMetrics.histogram("changes.delivery.delay");
+    private static final PerfMetrics.Histogram sDeliveryUris =
+            PerfMetrics.histogram("changes.delivery.uris");
+
+    private static final Runnable sDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    public static void addListener(final ChangeListener listener) {
+        synchronized (sLock) {
+            sListeners.add(listener);
+        }
+    }
+
+    public static void removeListener(final ChangeListener listener) {
+        synchronized (sLock) {
+            sListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Notify the observers of a uri
+     */
+    static void notifyUri(final Uri uri) {
+        synchronized (sLock) {
+            addPendingUri(uri);
+        }
+        schedule();
+    }
+
+    /**
+     * Update the conversation list widgets
+     */
+    static void notifyConversationListWidget() {
+        synchronized (sLock) {
+            sConversationListWidgetPending = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Update the widgets of a conversation
+     * @param conversationId the conversation, or null for all of them
+     */
+    static void notifyConversationWidget(final String conversationId) {
+        synchronized (sLock) {
+            sPendingWidgetConversationIds.add(conversationId);
+        }
+        schedule();
+    }
+
+    /**
+     * Tell the listeners that messages of a conversation may have been added, removed or updated
+     * @param conversationId the conversation, or null for all of them
+     */
+    static void publishMessagesChanged(final String conversationId) {
+        synchronized (sLock) {
+            sPendingChange.addMessagesChanged(conversationId);
+        }
+        schedule();
+    }
+
+    /**
+     * Tell the listeners that messages of a conversation have been updated in place
+     * @param columns the message columns that changed, or null if not known
+     */
+    static void publishMessagesUpdated(final String conversationId,
+            final Collection<String> messageIds, final Collection<String> columns) {
+        synchronized (sLock) {
+            sPendingChange.addMessagesUpdated(conversationId, messageIds, columns);
+        }
+        schedule();
+    }
+
+    private static void schedule() {
+        final BugleGservices gservices = BugleGservices.get();
+        final long debounceMs = gservices.getLong(
+                BugleGservicesKeys.CHANGE_NOTIFICATION_DEBOUNCE_MS,
+                BugleGservicesKeys.CHANGE_NOTIFICATION_DEBOUNCE_MS_DEFAULT);
+        if (debounceMs <= 0) {
+            deliver();
+            return;
+        }
+        final long maxDelayMs = gservices.getLong(
+                BugleGservicesKeys.CHANGE_NOTIFICATION_MAX_DELAY_MS,
+                BugleGservicesKeys.CHANGE_NOTIFICATION_MAX_DELAY_MS_DEFAULT);
+        final long now = SystemClock.elapsedRealtime();
+        final long delayMs;
+        synchronized (sLock) {
+            if (sFirstPendingTime == 0) {
+                sFirstPendingTime = now;
+            }
+            delayMs = getDeliveryDelay(now, sFirstPendingTime, debounceMs, maxDelayMs);
+        }
+        ThreadUtil.getMainThreadHandler().removeCallbacks(sDeliverRunnable);
+        ThreadUtil.getMainThreadHandler().postDelayed(sDeliverRunnable, delayMs);
+    }
+
+    /**
+     * @return how long to wait before delivering the pending changes: the debounce period, cut
+     *         short so that the oldest change waits no longer than the maximum delay
+     */
+    @VisibleForTesting
+    static long getDeliveryDelay(final long now, final long firstPendingTime,
+            final long debounceMs, final long maxDelayMs) {
+        return Math.max(0, Math.min(debounceMs, firstPendingTime + maxDelayMs - now));
+    }
+
+    private static void deliver() {
+        final ArrayList<Uri> uris;
+        final boolean conversationListWidget;
+        final ArrayList<String> widgetConversationIds;
+        final Change change;
+        final ArrayList<ChangeListener> listeners;
+        synchronized (sLock) {
+            uris = new ArrayList<Uri>(sPendingUris);
+            sPendingUris.clear();
+            conversationListWidget = sConversationListWidgetPending;
+            sConversationListWidgetPending = false;
+            widgetConversationIds = sPendingWidgetConversationIds.contains(null)
+                    ? null : new ArrayList<String>(sPendingWidgetConversationIds);
+            final boolean conversationWidgets = !sPendingWidgetConversationIds.isEmpty();
+            sPendingWidgetConversationIds.clear();
+            change = sPendingChange;
+            sPendingChange = new Change();
+            final long firstPendingTime = sFirstPendingTime;
+            sFirstPendingTime = 0;
+            if (uris.isEmpty() && !conversationListWidget && !conversationWidgets
+                    && change.isEmpty()) {
+                return;
+            }
+            listeners = new ArrayList<ChangeListener>(sListeners);
+            if (firstPendingTime != 0) {
+                sDeliveryDelay.record((SystemClock.elapsedRealtime() - firstPendingTime) * 1000L);
+            }
+            sDeliveryUris.record(uris.size());
+        }
+
+        if (!change.isEmpty()) {
+            for (final ChangeListener listener : listeners) {
+                listener.onChanged(change);
+            }
+        }
+        final Context context = Factory.get().getApplicationContext();
+        final ContentResolver cr = context.getContentResolver();
+        for (final Uri uri : uris) {
+            cr.notifyChange(uri, null);
+        }
+        if (conversationListWidget) {
+            BugleWidgetProvider.notifyConversationListChanged(context);
+        }
+        if (widgetConversationIds == null) {
+            WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+        } else {
+            for (final String conversationId : widgetConversationIds) {
+                WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
+            }
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "MessagingChangeFeed: Delivered " + uris.size() + " uri notifications");
+        }
+    }
+
+    /**
+     * Add a uri to notify unless an ancestor of it is already to be notified, and drop the
+     * descendants it covers
+     */
+    private static void addPendingUri(final Uri uri) {
+        sUris.increment();
+        final Iterator<Uri> iterator = sPendingUris.iterator();
+        while (iterator.hasNext()) {
+            final Uri pendingUri = iterator.next();
+            if (covers(pendingUri, uri)) {
+                sCoveredUris.increment();
+                return;
+            }
+            if (covers(uri, pendingUri)) {
+                sCoveredUris.increment();
+                iterator.remove();
+            }
+        }
+        sPendingUris.add(uri);
+    }
+
+    /**
+     * @return whether notifying the first uri also notifies the observers of the second one
+     */
+    @VisibleForTesting
+    static boolean covers(final Uri ancestor, final Uri uri) {
+        if (!TextUtils.equals(ancestor.getAuthority(), uri.getAuthority())) {
+            return false;
+        }
+        final List<String> ancestorSegments = ancestor.getPathSegments();
+        final List<String> segments = uri.getPathSegments();
+        return ancestorSegments.size() <= segments.size()
+                && ancestorSegments.equals(segments.subList(0, ancestorSegments.size()));
+    }
+}
@@ -16,18 +16,16 @@
 package com.android.messaging.datamodel;
 
 import android.content.ContentProvider;
-import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 
 import com.android.messaging.BugleApplication;
-import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
@@ -38,14 +36,14 @@ import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
+import com.android.messaging.util.PerfMetrics;
 import com.android.messaging.util.PhoneUtils;
-import com.android.messaging.widget.BugleWidgetProvider;
-import com.android.messaging.widget.WidgetConversationProvider;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.Collection;
 
 /**
  * A centralized provider for Uris exposed by Bugle.
@@ -72,6 +70,10 @@ public class MessagingContentProvider extends ContentProvider {
     public static final Uri CONVERSATION_MESSAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             MESSAGES_QUERY + "/conversation");
 
+    // Key of the oldest message of a conversation window, see buildConversationWindowUri
+    public static final String WINDOW_PARAM_TIMESTAMP = "window_timestamp";
+    public static final String WINDOW_PARAM_MESSAGE_ID = "window_message_id";
+
     // Conversation participants query
     private static final String PARTICIPANTS_QUERY = "participants";
 
@@ -95,6 +97,19 @@ public class MessagingContentProvider extends ContentProvider {
     public static final Uri DRAFT_IMAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             DRAFT_IMAGES_QUERY);
 
+    // Message search query
+    private static final String SEARCH_QUERY = "search";
+
+    public static final Uri SEARCH_URI = Uri.parse(CONTENT_AUTHORITY + SEARCH_QUERY);
+
+    // Query parameters of the message search uri
+    public static final String SEARCH_PARAM_QUERY = "q";
+    public static final String SEARCH_PARAM_LIMIT = "limit";
+    public static final String SEARCH_PARAM_OFFSET = "offset";
+
+    // Page size if the search uri does not specify a limit
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
     /**
      * Notifies that <i>all</i> data exposed by the provider needs to be refreshed.
      * <p>
@@ -103,16 +118,14 @@ public class MessagingContentProvider extends ContentProvider {
      * different tables at once.
      */
     public static void notifyEverythingChanged() {
-        final Uri uri = Uri.parse(CONTENT_AUTHORITY);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
+        MessagingChangeFeed.publishMessagesChanged(null /*conversationId*/);
+        MessagingChangeFeed.notifyUri(Uri.parse(CONTENT_AUTHORITY));
 
         // Notify any conversations widgets the conversation list has changed.
-        BugleWidgetProvider.notifyConversationListChanged(context);
+        MessagingChangeFeed.notifyConversationListWidget();
 
         // Notify all conversation widgets to update.
-        WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+        MessagingChangeFeed.notifyConversationWidget(null /*conversationId*/);
     }
 
     /**
@@ -125,19 +138,16 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyParticipantsChanged(final String conversationId) {
-        final Uri uri = buildConversationParticipantsUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        MessagingChangeFeed.notifyUri(buildConversationParticipantsUri(conversationId));
     }
 
     public static void notifyAllMessagesChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_MESSAGES_URI, null);
+        MessagingChangeFeed.publishMessagesChanged(null /*conversationId*/);
+        MessagingChangeFeed.notifyUri(CONVERSATION_MESSAGES_URI);
     }
 
     public static void notifyAllParticipantsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_PARTICIPANTS_URI, null);
+        MessagingChangeFeed.notifyUri(CONVERSATION_PARTICIPANTS_URI);
     }
 
     // Default value for unknown dimension of image
@@ -152,6 +162,7 @@ public class MessagingContentProvider extends ContentProvider {
     private static final int CONVERSATION_IMAGES_QUERY_CODE = 50;
     private static final int DRAFT_IMAGES_QUERY_CODE = 60;
     private static final int PARTICIPANTS_QUERY_CODE = 70;
+    private static final int SEARCH_QUERY_CODE = 80;
 
     // TODO: Move to a better structured URI namespace.
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -167,6 +178,7 @@ public class MessagingContentProvider extends ContentProvider {
                 CONVERSATION_IMAGES_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, DRAFT_IMAGES_QUERY + "/*",
                 DRAFT_IMAGES_QUERY_CODE);
+        sURIMatcher.addURI(AUTHORITY, SEARCH_QUERY, SEARCH_QUERY_CODE);
     }
 
     /**
@@ -178,15 +190,42 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
+    /**
+     * Build a messages uri for a window of a conversation: every message with a (received
+     * timestamp, message id) key at or after the given one. The rows of a window query do not
+     * include the message parts, see {@link ConversationMessageData.MessagePartsLookup}.
+     * Notifications for the conversation messages uri also apply to its windows.
+     */
+    public static Uri buildConversationWindowUri(final String conversationId,
+            final long windowTimestamp, final long windowMessageId) {
+        final Uri.Builder builder = buildConversationMessagesUri(conversationId).buildUpon();
+        builder.appendQueryParameter(WINDOW_PARAM_TIMESTAMP, Long.toString(windowTimestamp));
+        builder.appendQueryParameter(WINDOW_PARAM_MESSAGE_ID, Long.toString(windowMessageId));
+        return builder.build();
+    }
+
     public static void notifyMessagesChanged(final String conversationId) {
-        final Uri uri = buildConversationMessagesUri(conversationId);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
+        MessagingChangeFeed.publishMessagesChanged(conversationId);
+        MessagingChangeFeed.notifyUri(buildConversationMessagesUri(conversationId));
         notifyConversationListChanged();
 
         // Notify the widget the messages changed
-        WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
+        MessagingChangeFeed.notifyConversationWidget(conversationId);
+    }
+
+    /**
+     * Notifies that messages of a conversation were updated in place, i.e. without adding,
+     * removing or reordering messages or changing what the conversation list shows, so that
+     * views of the conversation can reload just those messages.
+     * @param columns the message columns that changed, or null if not known
+     */
+    public static void notifyMessagesUpdated(final String conversationId,
+            final Collection<String> messageIds, final Collection<String> columns) {
+        MessagingChangeFeed.publishMessagesUpdated(conversationId, messageIds, columns);
+        MessagingChangeFeed.notifyUri(buildConversationMessagesUri(conversationId));
+
+        // Notify the widget the messages changed
+        MessagingChangeFeed.notifyConversationWidget(conversationId);
     }
 
     /**
@@ -199,24 +238,19 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyConversationMetadataChanged(final String conversationId) {
-        final Uri uri = buildConversationMetadataUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        MessagingChangeFeed.notifyUri(buildConversationMetadataUri(conversationId));
         notifyConversationListChanged();
     }
 
     public static void notifyPartsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(PARTS_URI, null);
+        MessagingChangeFeed.notifyUri(PARTS_URI);
     }
 
     public static void notifyConversationListChanged() {
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(CONVERSATIONS_URI, null);
+        MessagingChangeFeed.notifyUri(CONVERSATIONS_URI);
 
         // Notify the widget the conversation list changed
-        BugleWidgetProvider.notifyConversationListChanged(context);
+        MessagingChangeFeed.notifyConversationListWidget();
     }
 
     /**
@@ -237,6 +271,20 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
+    /**
+     * Build a uri for a page of message search results, best matches first.
+     * @param query the text typed by the user
+     * @param limit maximum number of results to return
+     * @param offset number of results to skip (i.e. the results already shown)
+     */
+    public static Uri buildSearchUri(final String query, final int limit, final int offset) {
+        final Uri.Builder builder = SEARCH_URI.buildUpon();
+        builder.appendQueryParameter(SEARCH_PARAM_QUERY, query);
+        builder.appendQueryParameter(SEARCH_PARAM_LIMIT, Integer.toString(limit));
+        builder.appendQueryParameter(SEARCH_PARAM_OFFSET, Integer.toString(offset));
+        return builder.build();
+    }
+
     private DatabaseHelper mDatabaseHelper;
     private DatabaseWrapper mDatabaseWrapper;
 
@@ -277,12 +325,16 @@ public class MessagingContentProvider extends ContentProvider {
         String limit = null;
         switch (match) {
             case CONVERSATIONS_QUERY_CODE:
-                queryBuilder.setTables(ConversationListItemData.getConversationListView());
+                queryBuilder.setTables(ConversationListItemData.getConversationListTable());
                 // Hide empty conversations (ones with 0 sort_timestamp)
                 queryBuilder.appendWhere(ConversationColumns.SORT_TIMESTAMP + " > 0 ");
+                if (TextUtils.isEmpty(sortOrder)) {
+                    // The table has no order of its own
+                    sortOrder = ConversationColumns.SORT_TIMESTAMP + " DESC";
+                }
                 break;
             case CONVERSATION_QUERY_CODE:
-                queryBuilder.setTables(ConversationListItemData.getConversationListView());
+                queryBuilder.setTables(ConversationListItemData.getConversationListTable());
                 if (uri.getPathSegments().size() == 2) {
                     queryBuilder.appendWhere(ConversationColumns._ID + "=?");
                     // Get the conversation id from the uri
@@ -336,6 +388,15 @@ public class MessagingContentProvider extends ContentProvider {
                 } else {
                     throw new IllegalArgumentException("Malformed URI " + uri);
                 }
+            case SEARCH_QUERY_CODE:
+                // Like the conversation messages query, search is a raw query over the full-text
+                // index so it is invalid to specify selection/sorting for it.
+                if (selection == null && selectionArgs == null && sortOrder == null) {
+                    return querySearch(uri);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Cannot set selection or sort order with this query");
+                }
             case CONVERSATION_IMAGES_QUERY_CODE:
                 queryBuilder.setTables(ConversationImagePartsView.getViewName());
                 if (uri.getPathSegments().size() == 2) {
@@ -376,13 +437,57 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     private Cursor queryConversationMessages(final String conversationId, final Uri notifyUri) {
-        final String[] queryArgs = { conversationId };
-        final Cursor cursor = getDatabaseWrapper().rawQuery(
-                ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+        final String windowTimestamp = notifyUri.getQueryParameter(WINDOW_PARAM_TIMESTAMP);
+        final Cursor cursor;
+        if (windowTimestamp == null) {
+            final String[] queryArgs = { conversationId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+        } else {
+            final String windowMessageId = notifyUri.getQueryParameter(WINDOW_PARAM_MESSAGE_ID);
+            if (windowMessageId == null) {
+                throw new IllegalArgumentException("Malformed URI " + notifyUri);
+            }
+            final String[] queryArgs =
+                    { conversationId, windowTimestamp, windowTimestamp, windowMessageId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationWindowMessagesQuerySql(), queryArgs);
+        }
         cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
         return cursor;
     }
 
+    private Cursor querySearch(final Uri uri) {
+        final String matchQuery = MessageSearchIndex.buildMatchQuery(
+                uri.getQueryParameter(SEARCH_PARAM_QUERY));
+        final Cursor cursor;
+        if (matchQuery == null) {
+            cursor = new MatrixCursor(MessageSearchIndex.SearchQuery.PROJECTION);
+        } else {
+            final String[] queryArgs = MessageSearchIndex.getSearchQueryArgs(matchQuery,
+                    getIntQueryParameter(uri, SEARCH_PARAM_LIMIT, DEFAULT_SEARCH_LIMIT),
+                    getIntQueryParameter(uri, SEARCH_PARAM_OFFSET, 0));
+            cursor = getDatabaseWrapper().rawQuery(MessageSearchIndex.getSearchQuerySql(),
+                    queryArgs);
+        }
+        // Any message change may change the results
+        cursor.setNotificationUri(getContext().getContentResolver(), MESSAGES_URI);
+        return cursor;
+    }
+
+    private static int getIntQueryParameter(final Uri uri, final String name,
+            final int defaultValue) {
+        final String value = uri.getQueryParameter(name);
+        if (TextUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed query parameter " + name + "=" + value);
+        }
+    }
+
     @Override
     public String getType(final Uri uri) {
         final StringBuilder sb = new
@@ -462,6 +567,7 @@ public class MessagingContentProvider extends ContentProvider {
             }
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        PerfMetrics.dump(writer);
         // Now dump logs
         LogUtil.dump(writer);
     }
@@ -16,8 +16,10 @@
 
 package com.android.messaging.datamodel;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import com.android.messaging.Factory;
 import com.android.messaging.util.LogUtil;
@@ -34,6 +36,11 @@ public class MmsFileProvider extends FileProvider {
     @VisibleForTesting
     static final String AUTHORITY = "com.android.messaging.datamodel.MmsFileProvider";
     private static final String RAW_MMS_DIR = "rawmms";
+    private static final String DOWNLOAD_FILE_ID_PREFIX = "0";
+    private static final String MMS_FILE_EXTENSION = "dat";
+    // Extension of the file next to a download holding the validator of what it was downloaded
+    // from
+    private static final String VALIDATOR_FILE_EXTENSION = "validator";
 
     /**
      * Returns a uri that can be used to access a raw mms file.
@@ -49,9 +56,78 @@ public class MmsFileProvider extends FileProvider {
         return uri;
     }
 
+    /**
+     * Returns the uri of the file to download an mms message to. The file is the same for every
+     * attempt at downloading the message, so that a retry can resume a download that failed
+     * part way.
+     *
+     * @param messageId the id of the message being downloaded
+     * @return the URI for the raw mms file of the message
+     */
+    public static Uri buildDownloadMmsUri(final String messageId) {
+        if (TextUtils.isEmpty(messageId) || !isValidFileId(messageId)) {
+            return buildRawMmsUri();
+        }
+        final Uri uri = buildDownloadUri(messageId);
+        final File file = getFile(uri.getPath());
+        if (!file.exists() && !ensureFileExists(file)) {
+            LogUtil.e(TAG, "Failed to create temp file " + file.getAbsolutePath());
+        }
+        return uri;
+    }
+
+    /**
+     * Returns the uri of the file holding the validator of what the file of
+     * {@link #buildDownloadMmsUri} was downloaded from, which a retry resumes the download only
+     * if it still matches.
+     *
+     * @param messageId the id of the message being downloaded
+     * @return the URI for the validator file of the message, or null if downloads of the message
+     *         aren't resumed
+     */
+    public static Uri buildDownloadValidatorUri(final String messageId) {
+        if (TextUtils.isEmpty(messageId) || !isValidFileId(messageId)) {
+            return null;
+        }
+        final Uri uri = buildDownloadUri(messageId);
+        // An empty file holds no validator
+        final File file = getFileWithExtension(uri.getPath(), VALIDATOR_FILE_EXTENSION);
+        if (!file.exists() && !ensureFileExists(file)) {
+            LogUtil.e(TAG, "Failed to create temp file " + file.getAbsolutePath());
+        }
+        return uri.buildUpon()
+                .appendQueryParameter(FILE_EXTENSION_PARAM_KEY, VALIDATOR_FILE_EXTENSION).build();
+    }
+
+    /**
+     * Deletes the file an mms message is downloaded to and its validator, once the download has
+     * succeeded or failed for good, or the message has been deleted.
+     *
+     * @param messageId the id of the message
+     */
+    public static void deleteDownload(final String messageId) {
+        if (TextUtils.isEmpty(messageId) || !isValidFileId(messageId)) {
+            return;
+        }
+        final String path = buildDownloadUri(messageId).getPath();
+        final File file = getFile(path);
+        if (file.delete() && LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "Deleted download file " + file.getAbsolutePath());
+        }
+        getFileWithExtension(path, VALIDATOR_FILE_EXTENSION).delete();
+    }
+
+    private static Uri buildDownloadUri(final String messageId) {
+        // Random file ids never start with 0, so these don't clash with them
+        return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY).appendPath(DOWNLOAD_FILE_ID_PREFIX + messageId).build();
+    }
+
     @Override
     File getFile(final String path, final String extension) {
-        return getFile(path);
+        // Other extensions aren't served, so that a uri can't name an arbitrary file
+        return TextUtils.equals(extension, VALIDATOR_FILE_EXTENSION)
+                ? getFileWithExtension(path, VALIDATOR_FILE_EXTENSION) : getFile(path);
     }
 
     public static File getFile(final Uri uri) {
@@ -59,8 +135,12 @@ public class MmsFileProvider extends FileProvider {
     }
 
     private static File getFile(final String path) {
+        return getFileWithExtension(path, MMS_FILE_EXTENSION);
+    }
+
+    private static File getFileWithExtension(final String path, final String extension) {
         final Context context = Factory.get().getApplicationContext();
-        return new File(getDirectory(context), path + ".dat");
+        return new File(getDirectory(context), path + "." + extension);
     }
 
     private static File getDirectory(final Context context) {
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.PerfMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The messages that go into message notifications, i.e. the unseen incoming messages, kept in
+ * memory so that each notification update doesn't query and join all of them again.
+ *
+ * The cache is built with the full notification query when it is first used, then kept up to
+ * date by the actions that receive messages and mark them as seen or read. Before each use the
+ * number of messages to notify and the sum of their ids are read from the status/seen index and
+ * compared with the cache, so any other change to them (e.g. a sync or a deleted conversation) is
+ * detected and the cache is rebuilt. That check can't see a message replaced in place under the
+ * same id, like a downloaded MMS replacing its notification, so message updates drop the cache
+ * when it holds the updated message. When no conversation counts any unseen
+ * message, which is the common case, that index isn't read at all.
+ *
+ * Queries are never run while holding the cache's lock, as the actions applying changes may be
+ * in the middle of a transaction that the query would wait for.
+ */
+public class NotificationMessageCache {
+    private static final String TAG = LogUtil.BUGLE_NOTIFICATIONS_TAG;
+
+    private static final Object sLock = new Object();
+    // Messages to notify, newest first, or null if the cache has to be rebuilt
+    private static ArrayList<ConversationMessageData> sMessages;
+    private static long sMessageIdSum;
+    // First name counts of the participants of conversations with messages to notify
+    private static final HashMap<String, HashMap<String, Integer>> sFirstNames =
+            new HashMap<String, HashMap<String, Integer>>();
+
+    // Time taken by full rebuilds, changes applied instead, and the messages cached
+    private static final PerfMetrics.Histogram sRebuildTime =
+            PerfMetrics.histogram("notifications.cache.rebuild");
+    private static final PerfMetrics.Counter sChanges =
+            PerfMetrics.counter("notifications.cache.changes");
+    private static final PerfMetrics.Gauge sCachedMessages =
+            PerfMetrics.gauge("notifications.cache.messages");
+
+    /**
+     * @return the messages to notify, newest first
+     */
+    static List<ConversationMessageData> getMessages(final DatabaseWrapper db) {
+        final long[] summary = querySummary(db);
+        synchronized (sLock) {
+            if (sMessages != null && sMessages.size() == summary[0]
+                    && sMessageIdSum == summary[1]) {
+                return new ArrayList<ConversationMessageData>(sMessages);
+            }
+            if (sMessages != null && LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "NotificationMessageCache: " + sMessages.size()
+                        + " cached messages but " + summary[0] + " to notify, rebuilding");
+            }
+        }
+
+        final long startNanos = PerfMetrics.now();
+        final ArrayList<ConversationMessageData> messages = queryMessages(db,
+                ConversationMessageData.getNotificationQuerySql(), null);
+        sRebuildTime.recordSince(startNanos);
+        synchronized (sLock) {
+            sMessages = messages;
+            sMessageIdSum = sumMessageIds(messages);
+            sFirstNames.clear();
+            sCachedMessages.set(messages.size());
+            return new ArrayList<ConversationMessageData>(messages);
+        }
+    }
+
+    /**
+     * Add a message that has been received, if it is to be notified
+     */
+    public static void onMessageReceived(final DatabaseWrapper db, final String messageId) {
+        synchronized (sLock) {
+            if (sMessages == null) {
+                // Will be in the cache when it is built
+                return;
+            }
+        }
+        final ArrayList<ConversationMessageData> received = queryMessages(db,
+                ConversationMessageData.getNotificationMessageQuerySql(),
+                new String[] { messageId });
+        if (received.isEmpty()) {
+            return;
+        }
+        final ConversationMessageData message = received.get(0);
+        synchronized (sLock) {
+            if (sMessages == null) {
+                return;
+            }
+            int index = 0;
+            for (final ConversationMessageData cached : sMessages) {
+                if (TextUtils.equals(cached.getMessageId(), messageId)) {
+                    return;
+                }
+                if (cached.getReceivedTimeStamp() <= message.getReceivedTimeStamp()) {
+                    break;
+                }
+                index++;
+            }
+            sMessages.add(index, message);
+            sMessageIdSum += Long.parseLong(messageId);
+            sChanges.increment();
+            sCachedMessages.set(sMessages.size());
+        }
+    }
+
+    /**
+     * Remove the messages of a conversation that have been seen or read
+     * @param conversationId the conversation, or null for all of them
+     */
+    public static void onMessagesSeen(final String conversationId) {
+        synchronized (sLock) {
+            if (sMessages == null) {
+                return;
+            }
+            if (conversationId == null) {
+                sMessages.clear();
+                sMessageIdSum = 0;
+                sFirstNames.clear();
+            } else {
+                final Iterator<ConversationMessageData> iterator = sMessages.iterator();
+                while (iterator.hasNext()) {
+                    final ConversationMessageData message = iterator.next();
+                    if (TextUtils.equals(message.getConversationId(), conversationId)) {
+                        iterator.remove();
+                        sMessageIdSum -= Long.parseLong(message.getMessageId());
+                    }
+                }
+                sFirstNames.remove(conversationId);
+            }
+            sChanges.increment();
+            sCachedMessages.set(sMessages.size());
+        }
+    }
+
+    /**
+     * Drop the cache if it holds a message whose content has been replaced, so that it is rebuilt
+     * with the new content
+     */
+    public static void onMessageUpdated(final String messageId) {
+        synchronized (sLock) {
+            if (sMessages == null) {
+                return;
+            }
+            for (final ConversationMessageData cached : sMessages) {
+                if (TextUtils.equals(cached.getMessageId(), messageId)) {
+                    if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                        LogUtil.d(TAG, "NotificationMessageCache: message " + messageId
+                                + " updated, rebuilding");
+                    }
+                    invalidate();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first name counts of the participants of a conversation, if cached
+     */
+    static HashMap<String, Integer> getFirstNames(final String conversationId) {
+        synchronized (sLock) {
+            return sFirstNames.get(conversationId);
+        }
+    }
+
+    static void putFirstNames(final String conversationId,
+            final HashMap<String, Integer> firstNames) {
+        synchronized (sLock) {
+            sFirstNames.put(conversationId, firstNames);
+        }
+    }
+
+    /**
+     * Drop the cache, e.g. when a change to the messages it doesn't track might not be detected
+     */
+    static void invalidate() {
+        synchronized (sLock) {
+            sMessages = null;
+            sCachedMessages.set(0);
+            sFirstNames.clear();
+        }
+    }
+
+    private static long[] querySummary(final DatabaseWrapper db) {
+        // The messages to notify are unseen, so there are none unless a conversation counts some
+        if (db.queryNumEntries(DatabaseHelper.CONVERSATIONS_TABLE,
+                ConversationColumns.UNSEEN_COUNT + ">0", null) == 0) {
+            return new long[] { 0, 0 };
+        }
+        final Cursor cursor = db.rawQuery(
+                ConversationMessageData.getNotificationSummaryQuerySql(), null);
+        try {
+            if (cursor.moveToFirst()) {
+                return new long[] { cursor.getLong(0), cursor.getLong(1) };
+            }
+            return new long[] { 0, 0 };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ArrayList<ConversationMessageData> queryMessages(final DatabaseWrapper db,
+            final String sql, final String[] args) {
+        final ArrayList<ConversationMessageData> messages =
+                new ArrayList<ConversationMessageData>();
+        final Cursor cursor = db.rawQuery(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                final ConversationMessageData message = new ConversationMessageData();
+                message.bind(cursor);
+                messages.add(message);
+            }
+        } finally {
+            cursor.close();
+        }
+        return messages;
+    }
+
+    private static long sumMessageIds(final List<ConversationMessageData> messages) {
+        long sum = 0;
+        for (final ConversationMessageData message : messages) {
+            sum += Long.parseLong(message.getMessageId());
+        }
+        return sum;
+    }
+}
@@ -16,12 +16,13 @@
 
 package com.android.messaging.datamodel;
 
-import android.content.ContentValues;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Color;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DeletedContacts;
 import android.support.v4.util.ArrayMap;
 import android.telephony.SubscriptionInfo;
 import android.text.TextUtils;
@@ -34,6 +35,9 @@ import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.datamodel.data.ParticipantData.ParticipantsQuery;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
+import com.android.messaging.util.ContactTypeaheadIndex;
 import com.android.messaging.util.ContactUtil;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
@@ -59,6 +63,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *        change is detected.
  *     2. Partial refresh, this is triggered when a participant is added to a conversation. This
  *        normally happens during SMS sync.
+ *
+ * Full refreshes match participants with a {@link ContactDestinationIndex} of the contacts rather
+ * than looking each of them up. The first one indexes all contacts, later ones only the contacts
+ * changed since the previous one, and only participants that may be affected by those changes
+ * are looked up again.
  */
 @VisibleForTesting
 public class ParticipantRefresh {
@@ -127,6 +136,7 @@ public class ParticipantRefresh {
                 LogUtil.v(TAG, "Contacts changed");
             }
             mContactChanged = true;
+            ContactTypeaheadIndex.get().onContactsChanged();
         }
 
         public boolean getContactChanged() {
@@ -257,6 +267,8 @@ public class ParticipantRefresh {
         }
 
         final DatabaseWrapper db = DataModel.get().getDatabase();
+        final ContactDestinationIndex contactIndex = (refreshMode == REFRESH_MODE_FULL) ?
+                loadContactIndex(db) : null;
         Cursor cursor = null;
         boolean selfUpdated = false;
         try {
@@ -268,7 +280,11 @@ public class ParticipantRefresh {
                     try {
                         final ParticipantData participantData =
                                 ParticipantData.getFromCursor(cursor);
-                        if (refreshParticipant(db, participantData)) {
+                        final boolean updated = (contactIndex != null
+                                && !participantData.isSelf()) ?
+                                refreshFromContactIndex(db, contactIndex, participantData) :
+                                refreshParticipant(db, participantData);
+                        if (updated) {
                             if (participantData.isSelf()) {
                                 selfUpdated = true;
                             }
@@ -290,6 +306,12 @@ public class ParticipantRefresh {
             }
         }
 
+        if (contactIndex != null) {
+            BuglePrefs.getApplicationPrefs().putLong(
+                    BuglePrefsKeys.PARTICIPANT_REFRESH_CONTACTS_WATERMARK,
+                    contactIndex.getWatermark());
+        }
+
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "Number of participants refreshed:" + changedParticipants.size());
         }
@@ -297,6 +319,8 @@ public class ParticipantRefresh {
         // Refresh conversations for participants that are changed.
         if (changedParticipants.size() > 0) {
             BugleDatabaseOperations.refreshConversationsForParticipants(changedParticipants);
+            // Notified messages keep the names of their senders
+            NotificationMessageCache.invalidate();
         }
         if (selfUpdated) {
             // Boom
@@ -487,14 +511,63 @@ public class ParticipantRefresh {
         return changed;
     }
 
+    /**
+     * Load the index of the contacts for a full refresh: all of them for the first refresh, or if
+     * the contacts deleted since the previous one might not all be known anymore, otherwise the
+     * contacts changed since the previous refresh.
+     * @return the index, or null if it can't be loaded and participants are to be looked up
+     */
+    private static ContactDestinationIndex loadContactIndex(final DatabaseWrapper db) {
+        final long watermark = BuglePrefs.getApplicationPrefs().getLong(
+                BuglePrefsKeys.PARTICIPANT_REFRESH_CONTACTS_WATERMARK,
+                BuglePrefsKeys.PARTICIPANT_REFRESH_CONTACTS_WATERMARK_DEFAULT);
+        if (watermark < System.currentTimeMillis() - DeletedContacts.DAYS_KEPT_MILLISECONDS) {
+            return ContactDestinationIndex.loadAll(db.getContext());
+        }
+        return ContactDestinationIndex.loadChangedSince(db.getContext(), watermark);
+    }
+
+    /**
+     * Refresh one (non-self) participant from the index of the contacts, only looking it up if
+     * it may be matched with a contact that the index doesn't hold.
+     * @return true if the ParticipantData was changed
+     */
+    private static boolean refreshFromContactIndex(final DatabaseWrapper db,
+            final ContactDestinationIndex contactIndex, final ParticipantData participantData) {
+        final String normalizedDestination = participantData.getNormalizedDestination();
+        final long currentContactId = participantData.getContactId();
+        if (TextUtils.isEmpty(normalizedDestination)) {
+            return false;
+        }
+        if (ContactUtil.isEnterpriseContactId(currentContactId)) {
+            // The index only holds personal contacts
+            return refreshFromContacts(db, participantData);
+        }
+
+        final ContactDestinationIndex.Entry match =
+                contactIndex.find(normalizedDestination, currentContactId);
+        if (contactIndex.hasChangesOnly()) {
+            // The participant can only have changed if its contact changed or if it now matches
+            // a changed contact
+            if (currentContactId == ParticipantData.PARTICIPANT_CONTACT_ID_NOT_RESOLVED
+                    || contactIndex.isChanged(currentContactId)
+                    || (currentContactId < 0 && match != null)) {
+                return refreshFromContacts(db, participantData);
+            }
+            return false;
+        }
+
+        if (match == null) {
+            return setContactNotFound(participantData);
+        }
+        return setMatchingContact(participantData, match.contactId, match.displayName,
+                match.firstName, match.photoUri, match.lookupKey, match.destination);
+    }
+
     private static boolean refreshFromContacts(final DatabaseWrapper db,
             final ParticipantData participantData) {
         final String normalizedDestination = participantData.getNormalizedDestination();
         final long currentContactId = participantData.getContactId();
-        final String currentDisplayName = participantData.getFullName();
-        final String currentFirstName = participantData.getFirstName();
-        final String currentPhotoUri = participantData.getProfilePhotoUri();
-        final String currentContactDestination = participantData.getContactDestination();
 
         Cursor matchingContactCursor = null;
         long matchingContactId = -1;
@@ -503,7 +576,6 @@ public class ParticipantRefresh {
         String matchingPhotoUri = null;
         String matchingLookupKey = null;
         String matchingDestination = null;
-        boolean updated = false;
 
         if (TextUtils.isEmpty(normalizedDestination)) {
             // The normalized destination can be "" for the self id if we can't get it from the
@@ -517,15 +589,7 @@ public class ParticipantRefresh {
                     normalizedDestination).performSynchronousQuery();
             if (matchingContactCursor == null || matchingContactCursor.getCount() == 0) {
                 // If there is no match, mark the participant as contact not found.
-                if (currentContactId != ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND) {
-                    participantData.setContactId(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND);
-                    participantData.setFullName(null);
-                    participantData.setFirstName(null);
-                    participantData.setProfilePhotoUri(null);
-                    participantData.setLookupKey(null);
-                    updated = true;
-                }
-                return updated;
+                return setContactNotFound(participantData);
             }
 
             while (matchingContactCursor.moveToNext()) {
@@ -564,14 +628,44 @@ public class ParticipantRefresh {
             }
         }
 
+        return setMatchingContact(participantData, matchingContactId, matchingDisplayName,
+                matchingFirstName, matchingPhotoUri, matchingLookupKey, matchingDestination);
+    }
+
+    /**
+     * Mark the participant as contact not found.
+     * @return true if the ParticipantData was changed
+     */
+    private static boolean setContactNotFound(final ParticipantData participantData) {
+        if (participantData.getContactId() == ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND) {
+            return false;
+        }
+        participantData.setContactId(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND);
+        participantData.setFullName(null);
+        participantData.setFirstName(null);
+        participantData.setProfilePhotoUri(null);
+        participantData.setLookupKey(null);
+        return true;
+    }
+
+    /**
+     * Update the participant with its matching contact.
+     * @return true if the ParticipantData was changed
+     */
+    private static boolean setMatchingContact(final ParticipantData participantData,
+            final long matchingContactId, final String matchingDisplayName,
+            final String matchingFirstName, final String matchingPhotoUri,
+            final String matchingLookupKey, final String matchingDestination) {
         // Update participant only if something changed.
-        final boolean isContactIdChanged = (matchingContactId != currentContactId);
+        final boolean isContactIdChanged = (matchingContactId != participantData.getContactId());
         final boolean isDisplayNameChanged =
-                !TextUtils.equals(matchingDisplayName, currentDisplayName);
-        final boolean isFirstNameChanged = !TextUtils.equals(matchingFirstName, currentFirstName);
-        final boolean isPhotoUrlChanged = !TextUtils.equals(matchingPhotoUri, currentPhotoUri);
+                !TextUtils.equals(matchingDisplayName, participantData.getFullName());
+        final boolean isFirstNameChanged =
+                !TextUtils.equals(matchingFirstName, participantData.getFirstName());
+        final boolean isPhotoUrlChanged =
+                !TextUtils.equals(matchingPhotoUri, participantData.getProfilePhotoUri());
         final boolean isDestinationChanged = !TextUtils.equals(matchingDestination,
-                currentContactDestination);
+                participantData.getContactDestination());
 
         if (isContactIdChanged || isDisplayNameChanged || isFirstNameChanged || isPhotoUrlChanged
                 || isDestinationChanged) {
@@ -585,37 +679,63 @@ public class ParticipantRefresh {
                 // Update the send destination to the new one entered by user in Contacts.
                 participantData.setSendDestination(matchingDestination);
             }
-            updated = true;
+            return true;
         }
-
-        return updated;
+        return false;
     }
 
+    // Columns refreshed from the matching contact, then the participant id
+    private static final String UPDATE_PARTICIPANT_SQL = "UPDATE "
+            + DatabaseHelper.PARTICIPANTS_TABLE + " SET "
+            + ParticipantColumns.CONTACT_ID + "=?, "
+            + ParticipantColumns.LOOKUP_KEY + "=?, "
+            + ParticipantColumns.FULL_NAME + "=?, "
+            + ParticipantColumns.FIRST_NAME + "=?, "
+            + ParticipantColumns.PROFILE_PHOTO_URI + "=?, "
+            + ParticipantColumns.CONTACT_DESTINATION + "=?, "
+            + ParticipantColumns.SEND_DESTINATION + "=? WHERE "
+            + ParticipantColumns._ID + "=?";
+
+    // Self participants can refresh their normalized phone numbers as well
+    private static final String UPDATE_SELF_PARTICIPANT_SQL = "UPDATE "
+            + DatabaseHelper.PARTICIPANTS_TABLE + " SET "
+            + ParticipantColumns.CONTACT_ID + "=?, "
+            + ParticipantColumns.LOOKUP_KEY + "=?, "
+            + ParticipantColumns.FULL_NAME + "=?, "
+            + ParticipantColumns.FIRST_NAME + "=?, "
+            + ParticipantColumns.PROFILE_PHOTO_URI + "=?, "
+            + ParticipantColumns.CONTACT_DESTINATION + "=?, "
+            + ParticipantColumns.SEND_DESTINATION + "=?, "
+            + ParticipantColumns.NORMALIZED_DESTINATION + "=?, "
+            + ParticipantColumns.DISPLAY_DESTINATION + "=? WHERE "
+            + ParticipantColumns._ID + "=?";
+
     /**
      * Update participant with matching contact's contactId, displayName and photoUri.
      */
     private static void updateParticipant(final DatabaseWrapper db,
             final ParticipantData participantData) {
-        final ContentValues values = new ContentValues();
-        if (participantData.isSelf()) {
-            // Self participants can refresh their normalized phone numbers
-            values.put(ParticipantColumns.NORMALIZED_DESTINATION,
-                    participantData.getNormalizedDestination());
-            values.put(ParticipantColumns.DISPLAY_DESTINATION,
-                    participantData.getDisplayDestination());
-        }
-        values.put(ParticipantColumns.CONTACT_ID, participantData.getContactId());
-        values.put(ParticipantColumns.LOOKUP_KEY, participantData.getLookupKey());
-        values.put(ParticipantColumns.FULL_NAME, participantData.getFullName());
-        values.put(ParticipantColumns.FIRST_NAME, participantData.getFirstName());
-        values.put(ParticipantColumns.PROFILE_PHOTO_URI, participantData.getProfilePhotoUri());
-        values.put(ParticipantColumns.CONTACT_DESTINATION, participantData.getContactDestination());
-        values.put(ParticipantColumns.SEND_DESTINATION, participantData.getSendDestination());
-
         db.beginTransaction();
         try {
-            db.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
-                    new String[] { participantData.getId() });
+            final boolean isSelf = participantData.isSelf();
+            final SQLiteStatement update = db.getStatementInTransaction(
+                    isSelf ? UPDATE_SELF_PARTICIPANT_SQL : UPDATE_PARTICIPANT_SQL);
+            update.bindLong(1, participantData.getContactId());
+            DatabaseWrapper.bindStringOrNull(update, 2, participantData.getLookupKey());
+            DatabaseWrapper.bindStringOrNull(update, 3, participantData.getFullName());
+            DatabaseWrapper.bindStringOrNull(update, 4, participantData.getFirstName());
+            DatabaseWrapper.bindStringOrNull(update, 5, participantData.getProfilePhotoUri());
+            DatabaseWrapper.bindStringOrNull(update, 6, participantData.getContactDestination());
+            DatabaseWrapper.bindStringOrNull(update, 7, participantData.getSendDestination());
+            int index = 8;
+            if (isSelf) {
+                DatabaseWrapper.bindStringOrNull(update, index++,
+                        participantData.getNormalizedDestination());
+                DatabaseWrapper.bindStringOrNull(update, index++,
+                        participantData.getDisplayDestination());
+            }
+            update.bindString(index, participantData.getId());
+            update.executeUpdateDelete();
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
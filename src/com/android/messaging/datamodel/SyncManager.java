@@ -97,6 +97,13 @@ public class SyncManager {
      */
     private long mMaxRecentChangeTimestamp = -1L;
 
+    /**
+     * Upper bound timestamp of the batch whose scan is being prefetched, and timestamp of
+     * messages inserted in its window since the prefetch started - carried over to the batch
+     */
+    private long mPrefetchUpperBoundTimestamp = -1L;
+    private long mPrefetchMaxChangeTimestamp = -1L;
+
     private final ThreadInfoCache mThreadInfoCache = new ThreadInfoCache();
 
     /**
@@ -133,7 +140,22 @@ public class SyncManager {
     public synchronized void startSyncBatch(final long upperBoundTimestamp) {
         Assert.isTrue(mCurrentUpperBoundTimestamp < 0);
         mCurrentUpperBoundTimestamp = upperBoundTimestamp;
-        mMaxRecentChangeTimestamp = -1L;
+        // Messages inserted while the scan of this batch was prefetched make it dirty too
+        mMaxRecentChangeTimestamp = (upperBoundTimestamp == mPrefetchUpperBoundTimestamp)
+                ? mPrefetchMaxChangeTimestamp : -1L;
+        mPrefetchUpperBoundTimestamp = -1L;
+        mPrefetchMaxChangeTimestamp = -1L;
+    }
+
+    /**
+     * Called from background worker thread before the scan of the next sync batch is started
+     * ahead of its {@link #startSyncBatch}, so messages inserted in its window meanwhile are
+     * tracked
+     * @param upperBoundTimestamp upper bound timestamp for the next sync batch
+     */
+    public synchronized void startPrefetchTracking(final long upperBoundTimestamp) {
+        mPrefetchUpperBoundTimestamp = upperBoundTimestamp;
+        mPrefetchMaxChangeTimestamp = -1L;
     }
 
     /**
@@ -176,6 +198,10 @@ public class SyncManager {
             LogUtil.d(TAG, "SyncManager: New message @ " + timestamp + " after upper bound of "
                     + "current sync batch " + mCurrentUpperBoundTimestamp);
         }
+        if (mPrefetchUpperBoundTimestamp >= 0 && timestamp <= mPrefetchUpperBoundTimestamp) {
+            // Message insert in window of prefetched sync batch
+            mPrefetchMaxChangeTimestamp = Math.max(mPrefetchUpperBoundTimestamp, timestamp);
+        }
     }
 
     /**
@@ -59,6 +59,17 @@ public abstract class Action implements Parcelable {
         return null;
     }
 
+    /**
+     * Whether queued actions of this type can be executed together, in one database transaction
+     * and with one notification update once all of them have executed. Only suitable for actions
+     * whose {@link #executeAction} is short and only works on the local database; calls to the
+     * telephony provider would be made with the transaction of the batch held open. An action
+     * that fails is dropped from its batch, and the other actions may then be executed again.
+     */
+    protected boolean isBatchable() {
+        return false;
+    }
+
     /**
      * Queues up background work ie. {@link #doBackgroundWork} will be called on the
      * background worker thread.
@@ -92,6 +103,14 @@ public abstract class Action implements Parcelable {
         mBackgroundActions.clear();
     }
 
+    /**
+     * Drop the queued background actions, e.g. those requested by an execution of a batch that
+     * was rolled back, before the action is executed again
+     */
+    void clearBackgroundActions() {
+        mBackgroundActions.clear();
+    }
+
     /**
      * Do work in a long running background worker thread.
      * {@link #requestBackgroundWork} needs to be called for this method to
@@ -103,6 +122,15 @@ public abstract class Action implements Parcelable {
         return null;
     }
 
+    /**
+     * The lane of the background worker that {@link #doBackgroundWork} runs in, e.g.
+     * {@link BackgroundWorkerService#LANE_NETWORK}. Work in different lanes doesn't wait for
+     * each other.
+     */
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_MAINTENANCE;
+    }
+
     /**
      * Process the success response from the background worker. Runs on action service thread.
      * @param response the response returned by {@link #doBackgroundWork}
@@ -188,6 +216,14 @@ public abstract class Action implements Parcelable {
         }
     }
 
+    /**
+     * Mark the failure of local action execution, when it's dropped from the batch it was
+     * executed in - completes the action as failed
+     */
+    protected final void markExecuteFailed() {
+        ActionMonitor.setCompleteState(this, ActionMonitor.STATE_EXECUTING, null, false);
+    }
+
     /**
      * Update action state to indicate that the background worker is starting
      */
@@ -23,17 +23,33 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Parcel;
 import android.os.SystemClock;
 
 import com.android.messaging.Factory;
+import com.android.messaging.datamodel.BugleNotifications;
 import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.LoggingTimer;
+import com.android.messaging.util.PerfMetrics;
 import com.android.messaging.util.WakeLockHelper;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ActionService used to perform background processing for data model
+ *
+ * Batchable actions (see {@link Action#isBatchable}) are queued within the process rather than
+ * parcelled into their intents, so that when one of their intents is handled the actions of the
+ * same type that were started right after it can be executed along with it. Each such action
+ * still has an intent of its own, which holds the wake lock until the action has executed; the
+ * intents of actions that were executed as part of an earlier batch have nothing left to do.
  */
 public class ActionServiceImpl extends IntentService {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
@@ -48,6 +64,13 @@ public class ActionServiceImpl extends IntentService {
      * @param action - action to start
      */
     protected static void startAction(final Action action) {
+        if (action.isBatchable()) {
+            startBatchableAction(action);
+            return;
+        }
+        synchronized (sBatchLock) {
+            sStartedActionCount++;
+        }
         final Intent intent = makeIntent(OP_START_ACTION);
         final Bundle actionBundle = new Bundle();
         actionBundle.putParcelable(BUNDLE_ACTION, action);
@@ -56,6 +79,30 @@ public class ActionServiceImpl extends IntentService {
         startServiceWithIntent(intent);
     }
 
+    /**
+     * Queue a batchable action, executed from a copy just as if it had been parcelled into its
+     * intent
+     */
+    private static void startBatchableAction(final Action action) {
+        final Action copy = copyAction(action);
+        action.markStart();
+        synchronized (sBatchLock) {
+            sBatchQueue.add(new QueuedAction(copy, sStartedActionCount++));
+        }
+        startServiceWithIntent(makeIntent(OP_START_BATCHED_ACTIONS));
+    }
+
+    private static Action copyAction(final Action action) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(action, 0);
+            parcel.setDataPosition(0);
+            return (Action) parcel.readParcelable(action.getClass().getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     /**
      * Schedule an action to run after specified delay using alarm manager to send pendingintent
      * @param action - action to start
@@ -112,6 +159,8 @@ public class ActionServiceImpl extends IntentService {
     protected static final int OP_RECEIVE_BACKGROUND_RESPONSE = 201;
     @VisibleForTesting
     protected static final int OP_RECEIVE_BACKGROUND_FAILURE = 202;
+    @VisibleForTesting
+    protected static final int OP_START_BATCHED_ACTIONS = 203;
 
     // extras
     @VisibleForTesting
@@ -129,6 +178,25 @@ public class ActionServiceImpl extends IntentService {
 
     private BackgroundWorker mBackgroundWorker;
 
+    /**
+     * A batchable action waiting to be executed
+     */
+    private static class QueuedAction {
+        final Action action;
+        // Number of actions started before this one
+        final long sequence;
+
+        QueuedAction(final Action action, final long sequence) {
+            this.action = action;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Object sBatchLock = new Object();
+    // Batchable actions in the order they were started
+    private static final ArrayDeque<QueuedAction> sBatchQueue = new ArrayDeque<QueuedAction>();
+    private static long sStartedActionCount;
+
     /**
      * Allocate an intent with a specific opcode.
      */
@@ -258,6 +326,11 @@ public class ActionServiceImpl extends IntentService {
         sWakeLock.ensure(intent, opcode);
 
         try {
+            if (opcode == OP_START_BATCHED_ACTIONS) {
+                executeNextBatch();
+                return;
+            }
+
             Action action;
             final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
             actionBundle.setClassLoader(getClassLoader());
@@ -293,6 +366,8 @@ public class ActionServiceImpl extends IntentService {
     }
 
     private static final long EXECUTION_TIME_WARN_LIMIT_MS = 1000; // 1 second
+    private static final PerfMetrics.Histogram sBatchSize =
+            PerfMetrics.histogram("action.batch_size");
     /**
      * Local execution of action on ActionService thread
      */
@@ -309,6 +384,133 @@ public class ActionServiceImpl extends IntentService {
         action.markEndExecute(result);
     }
 
+    /**
+     * Execute the oldest queued batchable action along with the actions of the same type that
+     * were started right after it. They are executed in one database transaction with the
+     * notification updates they request merged into one, and only marked as executed once the
+     * transaction has been committed. If an action fails, the transaction is rolled back and the
+     * other actions are executed again one at a time, so that only the failing action is dropped.
+     */
+    private void executeNextBatch() {
+        final List<Action> batch = takeNextBatch();
+        if (batch.size() <= 1) {
+            for (final Action action : batch) {
+                executeAction(action);
+                action.sendBackgroundActions(mBackgroundWorker);
+            }
+            return;
+        }
+
+        sBatchSize.record(batch.size());
+        final LoggingTimer timer = createLoggingTimer(batch.get(0), "#executeActions");
+        timer.start();
+
+        final Object[] results = new Object[batch.size()];
+        final boolean[] failed = new boolean[batch.size()];
+        BugleNotifications.beginDeferringUpdates();
+        try {
+            for (final Action action : batch) {
+                action.markBeginExecute();
+            }
+            final int failedIndex = executeInTransaction(batch, results);
+            if (failedIndex >= 0) {
+                failed[failedIndex] = true;
+                for (int i = 0; i < batch.size(); i++) {
+                    // Background work requested by the rolled back executions is requested
+                    // again by the executions that replace them
+                    batch.get(i).clearBackgroundActions();
+                    if (i != failedIndex) {
+                        failed[i] = !executeOnItsOwn(batch.get(i), results, i);
+                    }
+                }
+            }
+        } finally {
+            BugleNotifications.endDeferringUpdates();
+        }
+
+        timer.stopAndLog();
+
+        for (int i = 0; i < batch.size(); i++) {
+            final Action action = batch.get(i);
+            if (failed[i]) {
+                action.markExecuteFailed();
+            } else {
+                action.markEndExecute(results[i]);
+                action.sendBackgroundActions(mBackgroundWorker);
+            }
+        }
+    }
+
+    /**
+     * Execute the actions in one database transaction, which is only committed if all of them
+     * succeed
+     * @return the index of the action that failed, or -1 if the transaction was committed
+     */
+    private static int executeInTransaction(final List<Action> batch, final Object[] results) {
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                final Action action = batch.get(i);
+                try {
+                    results[i] = action.executeAction();
+                } catch (final RuntimeException e) {
+                    LogUtil.e(TAG, "ActionServiceImpl: " + action.getClass().getSimpleName()
+                            + " failed, executing the rest of its batch one at a time", e);
+                    return i;
+                }
+            }
+            db.setTransactionSuccessful();
+            return -1;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Execute an action of a batch that was rolled back
+     * @return whether the action succeeded
+     */
+    private static boolean executeOnItsOwn(final Action action, final Object[] results,
+            final int index) {
+        try {
+            results[index] = action.executeAction();
+            return true;
+        } catch (final RuntimeException e) {
+            LogUtil.e(TAG, "ActionServiceImpl: " + action.getClass().getSimpleName()
+                    + " failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Take the oldest queued batchable action and the actions of the same type started right
+     * after it, so that actions still execute in the order they were started
+     * @return the actions, or nothing if they were all executed by earlier batches
+     */
+    private static List<Action> takeNextBatch() {
+        final int maxSize = Math.max(1, BugleGservices.get().getInt(
+                BugleGservicesKeys.ACTION_BATCH_MAX_SIZE,
+                BugleGservicesKeys.ACTION_BATCH_MAX_SIZE_DEFAULT));
+        final List<Action> batch = new ArrayList<Action>();
+        synchronized (sBatchLock) {
+            QueuedAction previous = null;
+            while (batch.size() < maxSize && !sBatchQueue.isEmpty()) {
+                final QueuedAction next = sBatchQueue.peek();
+                if (previous != null && (next.sequence != previous.sequence + 1 ||
+                        next.action.getClass() != previous.action.getClass())) {
+                    break;
+                }
+                batch.add(sBatchQueue.poll().action);
+                previous = next;
+            }
+        }
+        if (VERBOSE) {
+            LogUtil.v(TAG, "ActionServiceImpl: executing batch of " + batch.size() + " actions");
+        }
+        return batch;
+    }
+
     /**
      * Process response on ActionService thread
      */
@@ -333,9 +535,10 @@ public class ActionServiceImpl extends IntentService {
         timer.stopAndLog();
     }
 
+    // The timers are named by action and method, which also names their performance metrics
     private static LoggingTimer createLoggingTimer(
             final Action action, final String methodName) {
-        return new LoggingTimer(TAG, action.getClass().getSimpleName() + methodName,
+        return new LoggingTimer(TAG, "action." + action.getClass().getSimpleName() + methodName,
                 EXECUTION_TIME_WARN_LIMIT_MS);
     }
 }
@@ -16,39 +16,80 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DataModelException;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.LoggingTimer;
+import com.android.messaging.util.PerfMetrics;
 import com.android.messaging.util.WakeLockHelper;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Background worker service is an initial example of a background work queue handler
  * Used to actually "send" messages which may take some time and should not block ActionService
  * or UI
+ *
+ * Work is split into lanes (see {@link Action#getBackgroundWorkLane}) that each have their own
+ * threads, queue and wake lock, so that e.g. a slow MMS download doesn't hold up syncing or
+ * deleting messages. Within a lane, queued work is taken round-robin across action types so that
+ * a burst of one type doesn't hold up the others. The service stays started until the work of
+ * all lanes is done.
  */
-public class BackgroundWorkerService extends IntentService {
+public class BackgroundWorkerService extends Service {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
     private static final boolean VERBOSE = false;
 
+    // Lanes
+    /** Sending and downloading messages, and other work that talks to the carrier */
+    public static final int LANE_NETWORK = 0;
+    /** Syncing messages with the telephony database */
+    public static final int LANE_SYNC = 1;
+    /** Everything else, e.g. deleting messages from the telephony database */
+    public static final int LANE_MAINTENANCE = 2;
+    private static final int LANE_COUNT = 3;
+
     private static final String WAKELOCK_ID = "bugle_background_worker_wakelock";
-    @VisibleForTesting
-    static WakeLockHelper sWakeLock = new WakeLockHelper(WAKELOCK_ID);
+
+    private static final Lane[] sLanes = new Lane[] {
+        new Lane("network", BugleGservicesKeys.BACKGROUND_WORKER_NETWORK_PARALLELISM,
+                BugleGservicesKeys.BACKGROUND_WORKER_NETWORK_PARALLELISM_DEFAULT),
+        new Lane("sync", BugleGservicesKeys.BACKGROUND_WORKER_SYNC_PARALLELISM,
+                BugleGservicesKeys.BACKGROUND_WORKER_SYNC_PARALLELISM_DEFAULT),
+        new Lane("maintenance", BugleGservicesKeys.BACKGROUND_WORKER_MAINTENANCE_PARALLELISM,
+                BugleGservicesKeys.BACKGROUND_WORKER_MAINTENANCE_PARALLELISM_DEFAULT)
+    };
 
     private final ActionService mHost;
 
+    // Work started with the service and not yet done, and the id of the latest start, used to
+    // stop the service once it is idle
+    private final Object mLock = new Object();
+    private int mPendingWorkCount;
+    private int mLastStartId;
+
     public BackgroundWorkerService() {
-        super("BackgroundWorker");
         mHost = DataModel.get().getActionService();
     }
 
@@ -72,6 +113,10 @@ public class BackgroundWorkerService extends IntentService {
     protected static final String EXTRA_ACTION = "action";
     @VisibleForTesting
     protected static final String EXTRA_ATTEMPT = "retry_attempt";
+    @VisibleForTesting
+    protected static final String EXTRA_LANE = "lane";
+    @VisibleForTesting
+    protected static final String EXTRA_QUEUED_TIME = "queued_time";
 
     /**
      * Queue action intent to the BackgroundWorkerService after acquiring wake lock
@@ -81,66 +126,110 @@ public class BackgroundWorkerService extends IntentService {
         final Intent intent = new Intent();
         intent.putExtra(EXTRA_ACTION, action);
         intent.putExtra(EXTRA_ATTEMPT, retryCount);
+        intent.putExtra(EXTRA_LANE, action.getBackgroundWorkLane());
         startServiceWithIntent(OP_PROCESS_REQUEST, intent);
     }
 
     /**
-     * Queue intent to the BackgroundWorkerService after acquiring wake lock
+     * Queue intent to the BackgroundWorkerService after acquiring wake lock of its lane
      */
     private static void startServiceWithIntent(final int opcode, final Intent intent) {
         final Context context = Factory.get().getApplicationContext();
 
         intent.setClass(context, BackgroundWorkerService.class);
         intent.putExtra(EXTRA_OP_CODE, opcode);
-        sWakeLock.acquire(context, intent, opcode);
+        intent.putExtra(EXTRA_QUEUED_TIME, SystemClock.elapsedRealtime());
+        final Lane lane = getLane(intent);
+        lane.mWakeLock.acquire(context, intent, opcode);
         if (VERBOSE) {
-            LogUtil.v(TAG, "acquiring wakelock for opcode " + opcode);
+            LogUtil.v(TAG, "acquiring " + lane.mName + " wakelock for opcode " + opcode);
         }
 
         if (context.startService(intent) == null) {
             LogUtil.e(TAG,
                     "BackgroundWorkerService.startServiceWithAction: failed to start service for "
                     + opcode);
-            sWakeLock.release(intent, opcode);
+            lane.mWakeLock.release(intent, opcode);
         }
     }
 
+    @VisibleForTesting
+    static Lane getLane(final Intent intent) {
+        final int lane = intent.getIntExtra(EXTRA_LANE, LANE_MAINTENANCE);
+        Assert.inRange(lane, 0, LANE_COUNT - 1);
+        return sLanes[(lane >= 0 && lane < LANE_COUNT) ? lane : LANE_MAINTENANCE];
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
     @Override
-    protected void onHandleIntent(final Intent intent) {
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        final int opcode = (intent == null) ? 0 : intent.getIntExtra(EXTRA_OP_CODE, 0);
+        synchronized (mLock) {
+            // Both are updated together so that work finishing on a lane thread in between
+            // can't stop the service with this start's work still to run
+            mLastStartId = startId;
+            if (opcode == OP_PROCESS_REQUEST) {
+                mPendingWorkCount++;
+            }
+        }
         if (intent == null) {
             // Shouldn't happen but sometimes does following another crash.
-            LogUtil.w(TAG, "BackgroundWorkerService.onHandleIntent: Called with null intent");
-            return;
+            LogUtil.w(TAG, "BackgroundWorkerService.onStartCommand: Called with null intent");
+            stopIfIdle();
+            return START_NOT_STICKY;
         }
-        final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
-        sWakeLock.ensure(intent, opcode);
+        final Lane lane = getLane(intent);
+        lane.mWakeLock.ensure(intent, opcode);
 
-        try {
-            switch(opcode) {
-                case OP_PROCESS_REQUEST: {
-                    final Action action = intent.getParcelableExtra(EXTRA_ACTION);
-                    final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
-                    doBackgroundWork(action, attempt);
-                    break;
-                }
+        switch(opcode) {
+            case OP_PROCESS_REQUEST: {
+                final Action action = intent.getParcelableExtra(EXTRA_ACTION);
+                final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
+                lane.queue(new Work(this, action, attempt, intent, opcode));
+                break;
+            }
+
+            default:
+                lane.mWakeLock.release(intent, opcode);
+                stopIfIdle();
+                throw new RuntimeException("Unrecognized opcode in BackgroundWorkerService");
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Called on a lane thread once a piece of work is done
+     */
+    private void onWorkDone(final Lane lane, final Intent intent, final int opcode) {
+        lane.mWakeLock.release(intent, opcode);
+        synchronized (mLock) {
+            mPendingWorkCount--;
+        }
+        stopIfIdle();
+    }
 
-                default:
-                    throw new RuntimeException("Unrecognized opcode in BackgroundWorkerService");
+    private void stopIfIdle() {
+        synchronized (mLock) {
+            if (mPendingWorkCount == 0) {
+                // Does nothing if the service has been started again since mLastStartId
+                stopSelf(mLastStartId);
             }
-        } finally {
-            sWakeLock.release(intent, opcode);
         }
     }
 
     /**
-     * Local execution of background work for action on ActionService thread
+     * Local execution of background work for action on a lane thread
      */
     private void doBackgroundWork(final Action action, final int attempt) {
         action.markBackgroundWorkStarting();
         Bundle response = null;
         try {
             final LoggingTimer timer = new LoggingTimer(
-                    TAG, action.getClass().getSimpleName() + "#doBackgroundWork");
+                    TAG, "action." + action.getClass().getSimpleName() + "#doBackgroundWork");
             timer.start();
 
             response = action.doBackgroundWork();
@@ -165,4 +254,162 @@ public class BackgroundWorkerService extends IntentService {
             }
         }
     }
+
+    /**
+     * Background work for an action, as started with the service
+     */
+    @VisibleForTesting
+    static class Work implements Runnable {
+        private final BackgroundWorkerService mService;
+        private final Action mAction;
+        private final int mAttempt;
+        private final Intent mIntent;
+        private final int mOpcode;
+        private final long mQueuedTime;
+        private Lane mLane;
+
+        Work(final BackgroundWorkerService service, final Action action, final int attempt,
+                final Intent intent, final int opcode) {
+            mService = service;
+            mAction = action;
+            mAttempt = attempt;
+            mIntent = intent;
+            mOpcode = opcode;
+            mQueuedTime = intent.getLongExtra(EXTRA_QUEUED_TIME, SystemClock.elapsedRealtime());
+        }
+
+        Action getAction() {
+            return mAction;
+        }
+
+        @Override
+        public void run() {
+            final String type = mAction.getClass().getSimpleName();
+            mLane.getMetricsHistogram(type, "queue").record(
+                    (SystemClock.elapsedRealtime() - mQueuedTime) * 1000L);
+            final long startNanos = PerfMetrics.now();
+            try {
+                mService.doBackgroundWork(mAction, mAttempt);
+            } finally {
+                mLane.getMetricsHistogram(type, "run").recordSince(startNanos);
+                mService.onWorkDone(mLane, mIntent, mOpcode);
+            }
+        }
+    }
+
+    /**
+     * A lane of work with its own threads, queue and wake lock
+     */
+    @VisibleForTesting
+    static class Lane {
+        private final String mName;
+        private final String mParallelismKey;
+        private final int mParallelismDefault;
+        final WakeLockHelper mWakeLock;
+
+        private final Object mLock = new Object();
+        // Queued work of each action type, in the order the types are next to be served
+        private final LinkedHashMap<Class<?>, ArrayDeque<Work>> mQueues =
+                new LinkedHashMap<Class<?>, ArrayDeque<Work>>();
+        private int mQueuedCount;
+        // Work queued in the lane, as of the latest change and as seen by each work queued
+        private final PerfMetrics.Gauge mQueuedGauge;
+        private final PerfMetrics.Histogram mQueuedHistogram;
+        private ThreadPoolExecutor mExecutor;
+
+        Lane(final String name, final String parallelismKey, final int parallelismDefault) {
+            mName = name;
+            mParallelismKey = parallelismKey;
+            mParallelismDefault = parallelismDefault;
+            mWakeLock = new WakeLockHelper(WAKELOCK_ID + "_" + name);
+            mQueuedGauge = PerfMetrics.gauge("worker." + name + ".queue");
+            mQueuedHistogram = PerfMetrics.histogram("worker." + name + ".queue.on_add");
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        void queue(final Work work) {
+            final ThreadPoolExecutor executor;
+            synchronized (mLock) {
+                add(work);
+                executor = getExecutorLocked();
+            }
+            // Each piece of work queued runs whichever work is next when a thread is free
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    takeNext().run();
+                }
+            });
+        }
+
+        @VisibleForTesting
+        void add(final Work work) {
+            synchronized (mLock) {
+                work.mLane = this;
+                final Class<?> type = work.mAction.getClass();
+                ArrayDeque<Work> queue = mQueues.get(type);
+                if (queue == null) {
+                    queue = new ArrayDeque<Work>();
+                    mQueues.put(type, queue);
+                }
+                queue.add(work);
+                mQueuedCount++;
+                mQueuedGauge.set(mQueuedCount);
+                mQueuedHistogram.record(mQueuedCount);
+            }
+        }
+
+        /**
+         * Take the oldest work of the action type that was served the longest ago
+         */
+        @VisibleForTesting
+        Work takeNext() {
+            synchronized (mLock) {
+                final Iterator<Map.Entry<Class<?>, ArrayDeque<Work>>> iterator =
+                        mQueues.entrySet().iterator();
+                final Map.Entry<Class<?>, ArrayDeque<Work>> entry = iterator.next();
+                final ArrayDeque<Work> queue = entry.getValue();
+                final Work work = queue.poll();
+                // Move the type to the back of the line
+                iterator.remove();
+                if (!queue.isEmpty()) {
+                    mQueues.put(entry.getKey(), queue);
+                }
+                mQueuedCount--;
+                mQueuedGauge.set(mQueuedCount);
+                return work;
+            }
+        }
+
+        private ThreadPoolExecutor getExecutorLocked() {
+            if (mExecutor == null) {
+                final int parallelism = Math.max(1,
+                        BugleGservices.get().getInt(mParallelismKey, mParallelismDefault));
+                mExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(final Runnable runnable) {
+                                return new Thread(runnable, "BackgroundWorker-" + mName + "-"
+                                        + mThreadCount.incrementAndGet());
+                            }
+                        });
+                mExecutor.allowCoreThreadTimeOut(true);
+            }
+            return mExecutor;
+        }
+
+        /**
+         * @return the histogram of the times in microseconds that work of an action type spends
+         *         in the lane, e.g. "queue" for the time before it runs
+         */
+        PerfMetrics.Histogram getMetricsHistogram(final String type, final String stage) {
+            return PerfMetrics.histogram("worker." + mName + "." + type + "." + stage);
+        }
+    }
 }
@@ -226,6 +226,11 @@ public class DownloadMmsAction extends Action implements Parcelable {
         }
     }
 
+    @Override
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_NETWORK;
+    }
+
     @Override
     protected Bundle doBackgroundWork() {
         final Context context = Factory.get().getApplicationContext();
@@ -16,10 +16,13 @@
 
 package com.android.messaging.datamodel.action;
 
+import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.android.messaging.sms.SmsReleaseStorage;
+import com.android.messaging.sms.SmsReleaseStorage.DeleteProgressListener;
+import com.android.messaging.sms.SmsStorageStatusManager;
 import com.android.messaging.util.Assert;
 
 /**
@@ -50,24 +53,48 @@ public class HandleLowStorageAction extends Action implements Parcelable {
         actionParameters.putLong(KEY_CUTOFF_DURATION_MILLIS, durationInMillis);
     }
 
+    // Messages are deleted from telephony and locally in the sync lane, which runs one piece of
+    // work at a time, so that a sync doesn't run while the two are brought out of step
     @Override
-    protected Object executeAction() {
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_SYNC;
+    }
+
+    @Override
+    protected Bundle doBackgroundWork() {
         final int subOpCode = actionParameters.getInt(KEY_SUB_OP_CODE);
         final long durationInMillis = actionParameters.getLong(KEY_CUTOFF_DURATION_MILLIS);
-        switch (subOpCode) {
-            case SUB_OP_CODE_CLEAR_MEDIA_MESSAGES:
-                SmsReleaseStorage.deleteMessages(0, durationInMillis);
-                break;
-
-            case SUB_OP_CODE_CLEAR_OLD_MESSAGES:
-                SmsReleaseStorage.deleteMessages(1, durationInMillis);
-                break;
-
-            default:
-                Assert.fail("Unsupported action type!");
-                break;
+        // Show how far along we are, as there may be many thousands of messages to delete
+        final DeleteProgressListener listener = new DeleteProgressListener() {
+            @Override
+            public void onProgress(final int deleted, final int total) {
+                SmsStorageStatusManager.postDeleteProgressNotification(deleted, total);
+            }
+        };
+        try {
+            switch (subOpCode) {
+                case SUB_OP_CODE_CLEAR_MEDIA_MESSAGES:
+                    SmsReleaseStorage.deleteMessages(0, durationInMillis, listener);
+                    break;
+
+                case SUB_OP_CODE_CLEAR_OLD_MESSAGES:
+                    SmsReleaseStorage.deleteMessages(1, durationInMillis, listener);
+                    break;
+
+                default:
+                    Assert.fail("Unsupported action type!");
+                    break;
+            }
+        } finally {
+            SmsStorageStatusManager.cancelDeleteProgressNotification();
         }
-        return true;
+        return null;
+    }
+
+    @Override
+    protected Object executeAction() {
+        requestBackgroundWork();
+        return null;
     }
 
     private HandleLowStorageAction(final Parcel in) {
@@ -27,6 +27,7 @@ import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.datamodel.NotificationMessageCache;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.LogUtil;
 
@@ -63,26 +64,29 @@ public class MarkAsReadAction extends Action implements Parcelable {
             MmsUtils.updateSmsReadStatus(threadId, Long.MAX_VALUE);
         }
 
-        // Update local db
-        db.beginTransaction();
-        try {
-            final ContentValues values = new ContentValues();
-            values.put(MessageColumns.CONVERSATION_ID, conversationId);
-            values.put(MessageColumns.READ, 1);
-            values.put(MessageColumns.SEEN, 1);     // if they read it, they saw it
-
-            final int count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                    "(" + MessageColumns.READ + " !=1 OR " +
-                            MessageColumns.SEEN + " !=1 ) AND " +
-                            MessageColumns.CONVERSATION_ID + "=?",
-                    new String[] { conversationId });
-            if (count > 0) {
-                MessagingContentProvider.notifyMessagesChanged(conversationId);
+        // Update local db, unless the counts of the conversation say there is nothing to mark
+        if (BugleDatabaseOperations.hasUnreadOrUnseenMessages(db, conversationId)) {
+            db.beginTransaction();
+            try {
+                final ContentValues values = new ContentValues();
+                values.put(MessageColumns.CONVERSATION_ID, conversationId);
+                values.put(MessageColumns.READ, 1);
+                values.put(MessageColumns.SEEN, 1);     // if they read it, they saw it
+
+                final int count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
+                        "(" + MessageColumns.READ + " !=1 OR " +
+                                MessageColumns.SEEN + " !=1 ) AND " +
+                                MessageColumns.CONVERSATION_ID + "=?",
+                        new String[] { conversationId });
+                if (count > 0) {
+                    MessagingContentProvider.notifyMessagesChanged(conversationId);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
         }
+        NotificationMessageCache.onMessagesSeen(conversationId);
         // After marking messages as read, update the notifications. This will
         // clear the now stale notifications.
         BugleNotifications.update(false/*silent*/, BugleNotifications.UPDATE_ALL);
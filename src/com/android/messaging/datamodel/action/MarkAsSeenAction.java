@@ -21,12 +21,15 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import com.android.messaging.datamodel.BugleDatabaseOperations;
 import com.android.messaging.datamodel.BugleNotifications;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.datamodel.NotificationMessageCache;
 import com.android.messaging.util.LogUtil;
 
 /**
@@ -61,6 +64,11 @@ public class MarkAsSeenAction extends Action implements Parcelable {
         actionParameters.putString(KEY_CONVERSATION_ID, conversationId);
     }
 
+    @Override
+    protected boolean isBatchable() {
+        return true;
+    }
+
     @Override
     protected Object executeAction() {
         final String conversationId =
@@ -80,22 +88,31 @@ public class MarkAsSeenAction extends Action implements Parcelable {
             values.put(MessageColumns.SEEN, 1);
 
             if (hasSpecificConversation) {
-                final int count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                        MessageColumns.SEEN + " != 1 AND " +
-                                MessageColumns.CONVERSATION_ID + "=?",
-                        new String[] { conversationId });
-                if (count > 0) {
-                    MessagingContentProvider.notifyMessagesChanged(conversationId);
+                // The unseen count of the conversation tells whether there is anything to mark
+                if (BugleDatabaseOperations.hasUnseenMessages(db, conversationId)) {
+                    final int count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
+                            MessageColumns.SEEN + " != 1 AND " +
+                                    MessageColumns.CONVERSATION_ID + "=?",
+                            new String[] { conversationId });
+                    if (count > 0) {
+                        MessagingContentProvider.notifyMessagesChanged(conversationId);
+                    }
                 }
             } else {
+                // Only look at the messages of the conversations counting unseen messages
                 db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                        MessageColumns.SEEN + " != 1", null/*selectionArgs*/);
+                        MessageColumns.SEEN + " != 1 AND " + MessageColumns.CONVERSATION_ID
+                                + " IN (SELECT " + ConversationColumns._ID + " FROM "
+                                + DatabaseHelper.CONVERSATIONS_TABLE + " WHERE "
+                                + ConversationColumns.UNSEEN_COUNT + ">0)",
+                        null/*selectionArgs*/);
             }
 
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        NotificationMessageCache.onMessagesSeen(hasSpecificConversation ? conversationId : null);
         // After marking messages as seen, update the notifications. This will
         // clear the now stale notifications.
         BugleNotifications.update(false/*silent*/, BugleNotifications.UPDATE_ALL);
@@ -33,6 +33,7 @@ import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 public class ProcessDeliveryReportAction extends Action implements Parcelable {
@@ -89,7 +90,17 @@ public class ProcessDeliveryReportAction extends Action implements Parcelable {
                 // Row must exist as was just loaded above (on ActionService thread)
                 BugleDatabaseOperations.updateMessageRow(db, messageData.getMessageId(), values);
 
-                MessagingContentProvider.notifyMessagesChanged(messageData.getConversationId());
+                if (bugleStatus == MessageData.BUGLE_STATUS_OUTGOING_FAILED
+                        || messageData.getStatus() == MessageData.BUGLE_STATUS_OUTGOING_FAILED) {
+                    // The conversation list shows failed messages
+                    MessagingContentProvider.notifyMessagesChanged(
+                            messageData.getConversationId());
+                } else {
+                    MessagingContentProvider.notifyMessagesUpdated(
+                            messageData.getConversationId(),
+                            Collections.singletonList(messageData.getMessageId()),
+                            values.keySet());
+                }
             }
             db.setTransactionSuccessful();
         } finally {
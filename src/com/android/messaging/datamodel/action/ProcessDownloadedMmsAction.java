@@ -51,6 +51,7 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -205,6 +206,11 @@ public class ProcessDownloadedMmsAction extends Action {
         return null;
     }
 
+    @Override
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_NETWORK;
+    }
+
     @Override
     protected Bundle doBackgroundWork() throws DataModelException {
         final Context context = Factory.get().getApplicationContext();
@@ -243,15 +249,25 @@ public class ProcessDownloadedMmsAction extends Action {
             if (resultCode == Activity.RESULT_OK) {
                 final Uri contentUri = actionParameters.getParcelable(KEY_CONTENT_URI);
                 final File downloadedFile = MmsFileProvider.getFile(contentUri);
-                byte[] downloadedData = null;
-                try {
-                    downloadedData = Files.toByteArray(downloadedFile);
-                } catch (final FileNotFoundException e) {
+                final List<Uri> partFileUris = new ArrayList<Uri>();
+                RetrieveConf retrieveConf = null;
+                boolean downloadedFileRead = false;
+                if (MmsUtils.isDumpMmsEnabled()) {
+                    // The dump needs the raw bytes anyway
+                    final byte[] downloadedData = readDownloadedFile(downloadedFile);
+                    if (downloadedData != null) {
+                        downloadedFileRead = true;
+                        retrieveConf = MmsSender.parseRetrieveConf(downloadedData, subId);
+                        MmsUtils.dumpPdu(downloadedData, retrieveConf);
+                    }
+                } else if (downloadedFile.exists()) {
+                    // Parse straight from the file so that the PDU isn't held in memory
+                    downloadedFileRead = true;
+                    retrieveConf = MmsSender.parseRetrieveConf(downloadedFile, subId,
+                            partFileUris);
+                } else {
                     LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
                             + downloadedFile.getAbsolutePath());
-                } catch (final IOException e) {
-                    LogUtil.e(TAG, "ProcessDownloadedMmsAction: Error reading MMS download file: "
-                            + downloadedFile.getAbsolutePath(), e);
                 }
 
                 // Can delete the temp file now
@@ -263,42 +279,44 @@ public class ProcessDownloadedMmsAction extends Action {
                     }
                 }
 
-                if (downloadedData != null) {
-                    final RetrieveConf retrieveConf =
-                            MmsSender.parseRetrieveConf(downloadedData, subId);
-                    if (MmsUtils.isDumpMmsEnabled()) {
-                        MmsUtils.dumpPdu(downloadedData, retrieveConf);
-                    }
-                    if (retrieveConf != null) {
-                        // Insert the downloaded MMS into telephony
-                        final Uri notificationUri = actionParameters.getParcelable(
-                                KEY_NOTIFICATION_URI);
-                        final String subPhoneNumber = actionParameters.getString(
-                                KEY_SUB_PHONE_NUMBER);
-                        final boolean autoDownload = actionParameters.getBoolean(
-                                KEY_AUTO_DOWNLOAD);
-                        final long receivedTimestampInSeconds =
-                                actionParameters.getLong(KEY_RECEIVED_TIMESTAMP);
-
-                        // Inform sync we're adding a message to telephony
-                        final SyncManager syncManager = DataModel.get().getSyncManager();
-                        syncManager.onNewMessageInserted(receivedTimestampInSeconds * 1000L);
-
-                        final MmsUtils.StatusPlusUri result =
-                                MmsUtils.insertDownloadedMessageAndSendResponse(context,
-                                        notificationUri, subId, subPhoneNumber, transactionId,
-                                        contentLocation, autoDownload, receivedTimestampInSeconds,
-                                        retrieveConf);
-                        status = result.status;
-                        rawStatus = result.rawStatus;
-                        mmsUri = result.uri;
+                try {
+                    if (downloadedFileRead) {
+                        if (retrieveConf != null) {
+                            // Insert the downloaded MMS into telephony
+                            final Uri notificationUri = actionParameters.getParcelable(
+                                    KEY_NOTIFICATION_URI);
+                            final String subPhoneNumber = actionParameters.getString(
+                                    KEY_SUB_PHONE_NUMBER);
+                            final boolean autoDownload = actionParameters.getBoolean(
+                                    KEY_AUTO_DOWNLOAD);
+                            final long receivedTimestampInSeconds =
+                                    actionParameters.getLong(KEY_RECEIVED_TIMESTAMP);
+
+                            // Inform sync we're adding a message to telephony
+                            final SyncManager syncManager = DataModel.get().getSyncManager();
+                            syncManager.onNewMessageInserted(receivedTimestampInSeconds * 1000L);
+
+                            final MmsUtils.StatusPlusUri result =
+                                    MmsUtils.insertDownloadedMessageAndSendResponse(context,
+                                            notificationUri, subId, subPhoneNumber,
+                                            transactionId, contentLocation, autoDownload,
+                                            receivedTimestampInSeconds, retrieveConf);
+                            status = result.status;
+                            rawStatus = result.rawStatus;
+                            mmsUri = result.uri;
+                        } else {
+                            // Invalid response PDU
+                            status = MmsUtils.MMS_REQUEST_MANUAL_RETRY;
+                        }
                     } else {
-                        // Invalid response PDU
+                        // Failed to read download file
                         status = MmsUtils.MMS_REQUEST_MANUAL_RETRY;
                     }
-                } else {
-                    // Failed to read download file
-                    status = MmsUtils.MMS_REQUEST_MANUAL_RETRY;
+                } finally {
+                    // The parts have been copied to telephony by now
+                    for (final Uri partFileUri : partFileUris) {
+                        MmsFileProvider.getFile(partFileUri).delete();
+                    }
                 }
             } else {
                 LogUtil.w(TAG, "ProcessDownloadedMmsAction: Platform returned error resultCode: "
@@ -321,6 +339,19 @@ public class ProcessDownloadedMmsAction extends Action {
         return response;
     }
 
+    private static byte[] readDownloadedFile(final File downloadedFile) {
+        try {
+            return Files.toByteArray(downloadedFile);
+        } catch (final FileNotFoundException e) {
+            LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
+                    + downloadedFile.getAbsolutePath());
+        } catch (final IOException e) {
+            LogUtil.e(TAG, "ProcessDownloadedMmsAction: Error reading MMS download file: "
+                    + downloadedFile.getAbsolutePath(), e);
+        }
+        return null;
+    }
+
     @Override
     protected Object processBackgroundResponse(final Bundle response) {
         if (response == null) {
@@ -412,6 +443,11 @@ public class ProcessDownloadedMmsAction extends Action {
         LogUtil.i(TAG, "ProcessDownloadedMmsAction: Processed MMS download of message " + messageId
                 + "; status is " + MmsUtils.getRequestStatusDescription(status));
 
+        if (status != MmsUtils.MMS_REQUEST_AUTO_RETRY) {
+            // Only an automatic retry resumes what a failed download left in its file
+            MmsFileProvider.deleteDownload(messageId);
+        }
+
         DatabaseMessages.MmsMessage mms = null;
         if (status == MmsUtils.MMS_REQUEST_SUCCEEDED && mmsUri != null) {
             // Delete the initial M-Notification.ind from telephony
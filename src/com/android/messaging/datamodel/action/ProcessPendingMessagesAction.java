@@ -45,15 +45,18 @@ import com.android.messaging.util.ConnectivityUtil.ConnectivityListener;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 /**
  * Action used to lookup any messages in the pending send/download state and either fail them or
- * retry their action. This action only initiates one retry at a time - further retries should be
- * triggered by successful sending of a message, network status change or exponential backoff timer.
+ * retry their action. This action only initiates one download and a window of SMS sends (one per
+ * conversation) at a time - further retries should be triggered by successful sending of a
+ * message, network status change or exponential backoff timer.
  */
 public class ProcessPendingMessagesAction extends Action implements Parcelable {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
@@ -222,8 +225,8 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         final long now = System.currentTimeMillis();
 
         for (int subId : getActiveSubscriptionIds()) {
-            final String toSendMessageId = findNextMessageToSend(db, now, subId);
-            if (toSendMessageId != null) {
+            final List<String> toSendMessageIds = findNextMessagesToSend(db, now, subId);
+            if (!toSendMessageIds.isEmpty()) {
                 return true;
             } else {
                 final String toDownloadMessageId = findNextMessageToDownload(db, now, subId);
@@ -262,13 +265,14 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         final long now = System.currentTimeMillis();
         boolean succeeded = false;
 
-        // Will queue no more than one message per subscription to send plus one message to download
-        // This keeps outgoing messages "in order" but allow downloads to happen even if sending
+        // Will queue no more than a window of SMS (or one MMS) per subscription to send plus one
+        // message to download. Only one message per conversation is sent at a time, which keeps
+        // outgoing messages "in order" but allow downloads to happen even if sending
         //  gets blocked until messages time out.  Manual resend bumps messages to head of queue.
         for (int subId : getActiveSubscriptionIds()) {
-            final String toSendMessageId = findNextMessageToSend(db, now, subId);
+            final List<String> toSendMessageIds = findNextMessagesToSend(db, now, subId);
             final String toDownloadMessageId = findNextMessageToDownload(db, now, subId);
-            if (toSendMessageId != null) {
+            for (final String toSendMessageId : toSendMessageIds) {
                 LogUtil.i(TAG, "ProcessPendingMessagesAction: Queueing message " + toSendMessageId
                         + " for sending");
                 // This could queue nothing
@@ -293,7 +297,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                 }
 
             }
-            if (toSendMessageId == null && toDownloadMessageId == null) {
+            if (toSendMessageIds.isEmpty() && toDownloadMessageId == null) {
                 if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
                     LogUtil.d(TAG, "ProcessPendingMessagesAction: No messages to send or download");
                 }
@@ -333,9 +337,14 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         return result;
     }
 
-    private static String findNextMessageToSend(final DatabaseWrapper db, final long now,
+    /**
+     * Find the next messages to send on a subscription: as many SMS as fit in the send window,
+     * at most one per conversation, or an MMS when nothing else is sending
+     */
+    @VisibleForTesting
+    static List<String> findNextMessagesToSend(final DatabaseWrapper db, final long now,
             final int subId) {
-        String toSendMessageId = null;
+        final List<String> toSendMessageIds = new ArrayList<String>();
         db.beginTransaction();
         Cursor sending = null;
         Cursor cursor = null;
@@ -365,8 +374,20 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     null,
                     null,
                     DatabaseHelper.MessageColumns.RECEIVED_TIMESTAMP + " ASC");
-            final boolean messageCurrentlySending = sending.moveToNext();
             sendingCnt = sending.getCount();
+            // Conversations whose next message has to wait for an earlier one
+            final Set<String> busyConversationIds = new HashSet<String>();
+            boolean mmsCurrentlySending = false;
+            while (sending.moveToNext()) {
+                final MessageData sendingMessage = new MessageData();
+                sendingMessage.bind(sending);
+                busyConversationIds.add(sendingMessage.getConversationId());
+                mmsCurrentlySending |= (sendingMessage.getProtocol() != MessageData.PROTOCOL_SMS);
+            }
+            final int sendWindowSize = Math.max(1, BugleGservices.get().getInt(
+                    BugleGservicesKeys.SMS_SEND_WINDOW_SIZE,
+                    BugleGservicesKeys.SMS_SEND_WINDOW_SIZE_DEFAULT));
+            int availableSendSlots = mmsCurrentlySending ? 0 : sendWindowSize - sendingCnt;
             // Look for messages we could send
             final ContentValues values = new ContentValues();
             values.put(DatabaseHelper.MessageColumns.STATUS,
@@ -388,10 +409,17 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                 final MessageData message = new MessageData();
                 message.bind(cursor);
                 if (message.getInResendWindow(now)) {
-                    // If no messages currently sending
-                    if (!messageCurrentlySending) {
+                    final String conversationId = message.getConversationId();
+                    final boolean isSms = (message.getProtocol() == MessageData.PROTOCOL_SMS);
+                    if (!isSms && (sendingCnt > 0 || !toSendMessageIds.isEmpty())) {
+                        // An MMS waits for the messages already sending, and the messages after
+                        // it wait for the MMS
+                        availableSendSlots = 0;
+                    } else if (availableSendSlots > 0
+                            && !busyConversationIds.contains(conversationId)) {
                         // Resend this message
-                        toSendMessageId = message.getMessageId();
+                        toSendMessageIds.add(message.getMessageId());
+                        availableSendSlots = isSms ? availableSendSlots - 1 : 0;
                         // Before queuing the message for resending, check if the message's self is
                         // active. If not, switch back to the system's default subscription.
                         if (OsUtil.isAtLeastL_MR1()) {
@@ -414,7 +442,10 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                             }
                         }
                     }
-                    break;
+                    busyConversationIds.add(conversationId);
+                    if (availableSendSlots <= 0) {
+                        break;
+                    }
                 } else {
                     failedCnt++;
 
@@ -437,11 +468,12 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
             LogUtil.d(TAG, "ProcessPendingMessagesAction: "
                     + sendingCnt + " messages already sending, "
+                    + toSendMessageIds.size() + " messages to start sending, "
                     + pendingCnt + " messages to send, "
                     + failedCnt + " failed messages");
         }
 
-        return toSendMessageId;
+        return toSendMessageIds;
     }
 
     private static String findNextMessageToDownload(final DatabaseWrapper db, final long now,
@@ -96,6 +96,14 @@ public class ProcessSentMessageAction extends Action {
         action.start();
     }
 
+    // This is called when all parts of an SMS sent without waiting have been sent (or failed)
+    public static void processSmsSent(final String messageId, final Uri messageUri,
+            final int subId, final int status) {
+        processMessageSentFastFailed(messageId, messageUri, null /* updatedMessageUri */, subId,
+                true /* isSms */, status, MessageData.RAW_TELEPHONY_STATUS_UNDEFINED,
+                MessageData.UNKNOWN_RESULT_CODE);
+    }
+
     public static void processMessageSentFastFailed(final String messageId,
             final Uri messageUri, final Uri updatedMessageUri, final int subId, final boolean isSms,
             final int status, final int rawStatus, final int resultCode) {
@@ -157,6 +157,11 @@ public class ReceiveMmsMessageAction extends Action implements Parcelable {
         return message;
     }
 
+    @Override
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_NETWORK;
+    }
+
     @Override
     protected Bundle doBackgroundWork() throws DataModelException {
         final Context context = Factory.get().getApplicationContext();
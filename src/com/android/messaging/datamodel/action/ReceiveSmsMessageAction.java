@@ -30,6 +30,7 @@ import com.android.messaging.datamodel.BugleNotifications;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.datamodel.NotificationMessageCache;
 import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.ParticipantData;
@@ -154,6 +155,7 @@ public class ReceiveSmsMessageAction extends Action implements Parcelable {
             } finally {
                 db.endTransaction();
             }
+            NotificationMessageCache.onMessageReceived(db, message.getMessageId());
             LogUtil.i(TAG, "ReceiveSmsMessageAction: Received SMS message " + message.getMessageId()
                     + " in conversation " + message.getConversationId()
                     + ", uri = " + messageUri);
@@ -177,6 +177,11 @@ public class SendMessageAction extends Action implements Parcelable {
         return null;
     }
 
+    @Override
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_NETWORK;
+    }
+
     /**
      * Send message on background worker thread
      */
@@ -203,8 +208,24 @@ public class SendMessageAction extends Action implements Parcelable {
             final String smsServiceCenter = actionParameters.getString(KEY_SMS_SERVICE_CENTER);
             final boolean deliveryReportRequired = MmsUtils.isDeliveryReportRequired(subId);
 
-            status = MmsUtils.sendSmsMessage(recipient, messageText, messageUri, subId,
-                    smsServiceCenter, deliveryReportRequired);
+            // Don't hold up the background worker until the message is sent, so that other
+            // messages can be sent meanwhile
+            final Uri smsMessageUri = messageUri;
+            final boolean sending = MmsUtils.sendSmsMessageAsync(recipient, messageText,
+                    messageUri, subId, smsServiceCenter, deliveryReportRequired,
+                    new MmsUtils.SmsSentCallback() {
+                        @Override
+                        public void onSmsSent(final int sentStatus) {
+                            ProcessSentMessageAction.processSmsSent(messageId, smsMessageUri,
+                                    subId, sentStatus);
+                        }
+                    });
+            if (sending) {
+                LogUtil.d(TAG, "SendMessageAction: Sending SMS message " + messageId
+                        + " asynchronously; waiting for callback to finish processing");
+                return null;
+            }
+            status = MmsUtils.MMS_REQUEST_MANUAL_RETRY;
         } else {
             final Context context = Factory.get().getApplicationContext();
             final ArrayList<String> recipients =
@@ -146,6 +146,11 @@ class SyncCursorPair {
         }
     }
 
+    /**
+     * Step through local and remote messages in reverse time order collecting the changes
+     * @return timestamp of the oldest message seen. All messages at that millisecond have been
+     *         compared, so it can be used as the exclusive upper bound of the next batch
+     */
     long scan(final int maxMessagesToScan,
             final int maxMessagesToUpdate, final ArrayList<SmsMessage> smsToAdd,
             final LongSparseArray<MmsMessage> mmsToAdd,
@@ -163,9 +168,13 @@ class SyncCursorPair {
         DatabaseMessage remoteMessage = mRemoteCursorsIterator.next();
         DatabaseMessage localMessage = mLocalCursorIterator.next();
         // Iterate through messages on both sides in reverse time order
-        // Import messages in remote not in local, delete messages in local not in remote
-        while (localCount + remoteCount < maxMessagesToScan && smsToAdd.size()
-                + mmsToAdd.size() + messagesToDelete.size() < maxMessagesToUpdate) {
+        // Import messages in remote not in local, delete messages in local not in remote.
+        // Once a limit is reached keep going until the millisecond of the last message is
+        // finished so that the next batch can exclude it.
+        while ((localCount + remoteCount < maxMessagesToScan && smsToAdd.size()
+                + mmsToAdd.size() + messagesToDelete.size() < maxMessagesToUpdate)
+                || isAtTimestamp(remoteMessage, lastTimestampMillis)
+                || isAtTimestamp(localMessage, lastTimestampMillis)) {
             if (remoteMessage == null && localMessage == null) {
                 // No more message on both sides - scan complete
                 lastTimestampMillis = SYNC_COMPLETE;
@@ -273,6 +282,11 @@ class SyncCursorPair {
         return lastTimestampMillis;
     }
 
+    private static boolean isAtTimestamp(final DatabaseMessage message,
+            final long timestampMillis) {
+        return message != null && message.getTimestampInMillis() == timestampMillis;
+    }
+
     DatabaseMessage getLocalMessage() {
         return mLocalCursorIterator.next();
     }
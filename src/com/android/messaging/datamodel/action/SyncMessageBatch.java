@@ -63,6 +63,9 @@ class SyncMessageBatch {
     private final ArrayList<MmsMessage> mMmsToAdd;
     // Set of local messages to delete
     private final ArrayList<LocalDatabaseMessage> mMessagesToDelete;
+    // Messages made from the SMS and MMS messages to add, inserted together, and their threads
+    private final ArrayList<MessageData> mMessagesToInsert;
+    private final ArrayList<Long> mMessageThreadIds;
 
     SyncMessageBatch(final ArrayList<SmsMessage> smsToAdd,
             final ArrayList<MmsMessage> mmsToAdd,
@@ -73,6 +76,8 @@ class SyncMessageBatch {
         mMessagesToDelete = messagesToDelete;
         mCache = cache;
         mConversationsToUpdate = new HashSet<String>();
+        mMessagesToInsert = new ArrayList<MessageData>(smsToAdd.size() + mmsToAdd.size());
+        mMessageThreadIds = new ArrayList<Long>(smsToAdd.size() + mmsToAdd.size());
     }
 
     void updateLocalDatabase() {
@@ -88,6 +93,7 @@ class SyncMessageBatch {
             for (final MmsMessage mms : mMmsToAdd) {
                 storeMms(db, mms);
             }
+            insertMessages(db);
             // Keep track of conversations with messages deleted
             for (final LocalDatabaseMessage message : mMessagesToDelete) {
                 mConversationsToUpdate.add(message.getConversationId());
@@ -178,19 +184,9 @@ class SyncMessageBatch {
                 sms.mTimestampInMillis,
                 sms.mBody);
 
-        // Inserting sms content into messages table
-        try {
-            BugleDatabaseOperations.insertNewMessageInTransaction(db, message);
-        } catch (SQLiteConstraintException e) {
-            rethrowSQLiteConstraintExceptionWithDetails(e, db, sms.mUri, sms.mThreadId,
-                    conversationId, selfId, participantId);
-        }
-
-        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "SyncMessageBatch: Inserted new message " + message.getMessageId()
-                    + " for SMS " + message.getSmsMessageUri() + " received at "
-                    + message.getReceivedTimeStamp());
-        }
+        // Inserted into messages table with the rest of the batch
+        mMessagesToInsert.add(message);
+        mMessageThreadIds.add(sms.mThreadId);
 
         // Keep track of updated conversation for later updating the conversation snippet, etc.
         mConversationsToUpdate.add(conversationId);
@@ -268,22 +264,46 @@ class SyncMessageBatch {
         final MessageData message = MmsUtils.createMmsMessage(mms, conversationId, participantId,
                 selfId, bugleStatus);
 
-        // Inserting mms content into messages table
+        // Inserted into messages table with the rest of the batch
+        mMessagesToInsert.add(message);
+        mMessageThreadIds.add(mms.mThreadId);
+
+        // Keep track of updated conversation for later updating the conversation snippet, etc.
+        mConversationsToUpdate.add(conversationId);
+    }
+
+    /**
+     * Insert the messages of the SMS and MMS messages stored, with their parts
+     */
+    private void insertMessages(final DatabaseWrapper db) {
         try {
-            BugleDatabaseOperations.insertNewMessageInTransaction(db, message);
+            BugleDatabaseOperations.insertNewMessagesInTransaction(db, mMessagesToInsert);
         } catch (SQLiteConstraintException e) {
-            rethrowSQLiteConstraintExceptionWithDetails(e, db, mms.mUri, mms.mThreadId,
-                    conversationId, selfId, participantId);
+            // The messages before the one that failed are in the table
+            int failed = 0;
+            while (failed < mMessagesToInsert.size() - 1 && isMessageStored(db,
+                    mMessagesToInsert.get(failed).getSmsMessageUri().toString())) {
+                failed++;
+            }
+            final MessageData message = mMessagesToInsert.get(failed);
+            rethrowSQLiteConstraintExceptionWithDetails(e, db,
+                    message.getSmsMessageUri().toString(), mMessageThreadIds.get(failed),
+                    message.getConversationId(), message.getSelfId(),
+                    message.getParticipantId());
         }
 
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "SyncMessageBatch: Inserted new message " + message.getMessageId()
-                    + " for MMS " + message.getSmsMessageUri() + " received at "
-                    + message.getReceivedTimeStamp());
+            for (final MessageData message : mMessagesToInsert) {
+                LogUtil.v(TAG, "SyncMessageBatch: Inserted new message " + message.getMessageId()
+                        + " for " + message.getSmsMessageUri() + " received at "
+                        + message.getReceivedTimeStamp());
+            }
         }
+    }
 
-        // Keep track of updated conversation for later updating the conversation snippet, etc.
-        mConversationsToUpdate.add(conversationId);
+    private static boolean isMessageStored(final DatabaseWrapper db, final String messageUri) {
+        return db.queryNumEntries(DatabaseHelper.MESSAGES_TABLE,
+                MessageColumns.SMS_MESSAGE_URI + "=?", new String[] { messageUri }) > 0;
     }
 
     // TODO: Remove this after we no longer see this crash (b/18375758)
@@ -32,6 +32,7 @@ import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.datamodel.action.SyncMessagesPipeline.ScanResult;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.mmslib.SqliteWrapper;
 import com.android.messaging.sms.DatabaseMessages;
@@ -47,10 +48,12 @@ import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.ContentType;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
+import com.android.messaging.util.PerfMetrics;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 /**
  * Action used to sync messages from smsmms db to local database
@@ -60,6 +63,12 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
 
+    // Time taken to scan for a batch of changes and to write the batch, and the batch sizes
+    private static final PerfMetrics.Histogram sScanTime = PerfMetrics.histogram("sync.scan");
+    private static final PerfMetrics.Histogram sBatchTime = PerfMetrics.histogram("sync.batch");
+    private static final PerfMetrics.Histogram sBatchSize =
+            PerfMetrics.histogram("sync.batch_size");
+
     private static final String KEY_START_TIMESTAMP = "start_timestamp";
     private static final String KEY_MAX_UPDATE = "max_update";
     private static final String KEY_LOWER_BOUND = "lower_bound";
@@ -68,6 +77,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
     private static final String BUNDLE_KEY_SMS_MESSAGES = "sms_to_add";
     private static final String BUNDLE_KEY_MMS_MESSAGES = "mms_to_add";
     private static final String BUNDLE_KEY_MESSAGES_TO_DELETE = "messages_to_delete";
+    private static final String BUNDLE_KEY_SCAN_TIME = "scan_time";
+    private static final String BUNDLE_KEY_NEXT_MAX_UPDATE = "next_max_update";
 
     /**
      * Start a full sync (backed off a few seconds to avoid pulling sending/receiving messages).
@@ -190,26 +201,24 @@ public class SyncMessagesAction extends Action implements Parcelable {
         return null;
     }
 
+    @Override
+    protected int getBackgroundWorkLane() {
+        return BackgroundWorkerService.LANE_SYNC;
+    }
+
     @Override
     protected Bundle doBackgroundWork() {
         final BugleGservices bugleGservices = BugleGservices.get();
-        final DatabaseWrapper db = DataModel.get().getDatabase();
 
         final int maxMessagesToScan = bugleGservices.getInt(
                 BugleGservicesKeys.SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN,
                 BugleGservicesKeys.SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN_DEFAULT);
-
-        final int initialMaxMessagesToUpdate = actionParameters.getInt(KEY_MAX_UPDATE);
-        final int smsSyncSubsequentBatchSizeMin = bugleGservices.getInt(
-                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MIN,
-                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MIN_DEFAULT);
-        final int smsSyncSubsequentBatchSizeMax = bugleGservices.getInt(
-                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX,
-                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX_DEFAULT);
+        final boolean pipelineEnabled = bugleGservices.getBoolean(
+                BugleGservicesKeys.SMS_SYNC_PIPELINE_ENABLED,
+                BugleGservicesKeys.SMS_SYNC_PIPELINE_ENABLED_DEFAULT);
 
         // Cap sync size to GServices limits
-        final int maxMessagesToUpdate = Math.max(smsSyncSubsequentBatchSizeMin,
-                Math.min(initialMaxMessagesToUpdate, smsSyncSubsequentBatchSizeMax));
+        final int maxMessagesToUpdate = capBatchSize(actionParameters.getInt(KEY_MAX_UPDATE));
 
         final long lowerBoundTimeMillis = actionParameters.getLong(KEY_LOWER_BOUND);
         final long upperBoundTimeMillis = actionParameters.getLong(KEY_UPPER_BOUND);
@@ -221,48 +230,120 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
         // Clear last change time so that we can work out if this batch is dirty when it completes
         final SyncManager syncManager = DataModel.get().getSyncManager();
-
-        // Clear the singleton cache that maps threads to recipients and to conversations.
         final SyncManager.ThreadInfoCache cache = syncManager.getThreadInfoCache();
-        cache.clear();
-
-        // Sms messages to store
-        final ArrayList<SmsMessage> smsToAdd = new ArrayList<SmsMessage>();
-        // Mms messages to store
-        final LongSparseArray<MmsMessage> mmsToAdd = new LongSparseArray<MmsMessage>();
-        // List of local SMS/MMS to remove
-        final ArrayList<LocalDatabaseMessage> messagesToDelete =
-                new ArrayList<LocalDatabaseMessage>();
+        final SyncMessagesPipeline pipeline = SyncMessagesPipeline.get();
 
-        long lastTimestampMillis = SYNC_FAILED;
+        ScanResult scan = null;
         if (syncManager.isSyncing(upperBoundTimeMillis)) {
-            // Cursors
-            final SyncCursorPair cursors = new SyncCursorPair(lowerBoundTimeMillis,
-                    upperBoundTimeMillis);
+            // Pick up the scan started while the previous batch was written (if any)
+            scan = pipeline.take(lowerBoundTimeMillis, upperBoundTimeMillis,
+                    maxMessagesToUpdate);
+            if (scan != null) {
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "SyncMessagesAction: Using prefetched scan (took "
+                            + scan.scanTimeMillis + " ms)");
+                }
+            } else {
+                // Clear the singleton cache that maps threads to recipients and to
+                // conversations. Prefetched batches keep it since they are part of the same run.
+                cache.clear();
 
-            // Actually compare the messages using cursor pair
-            lastTimestampMillis = syncCursorPair(db, cursors, smsToAdd, mmsToAdd,
-                    messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache);
+                // Actually compare the messages using cursor pair
+                scan = scanBatch(lowerBoundTimeMillis, upperBoundTimeMillis, maxMessagesToScan,
+                        maxMessagesToUpdate, cache);
+            }
+        } else {
+            pipeline.cancel();
         }
         final Bundle response = new Bundle();
 
+        final long lastTimestampMillis = (scan == null ? SYNC_FAILED : scan.lastTimestampMillis);
         // If comparison succeeds bundle up the changes for processing in ActionService
         if (lastTimestampMillis > SYNC_FAILED) {
             final ArrayList<MmsMessage> mmsToAddList = new ArrayList<MmsMessage>();
-            for (int i = 0; i < mmsToAdd.size(); i++) {
-                final MmsMessage mms = mmsToAdd.valueAt(i);
+            for (int i = 0; i < scan.mmsToAdd.size(); i++) {
+                final MmsMessage mms = scan.mmsToAdd.valueAt(i);
                 mmsToAddList.add(mms);
             }
 
-            response.putParcelableArrayList(BUNDLE_KEY_SMS_MESSAGES, smsToAdd);
+            response.putParcelableArrayList(BUNDLE_KEY_SMS_MESSAGES, scan.smsToAdd);
             response.putParcelableArrayList(BUNDLE_KEY_MMS_MESSAGES, mmsToAddList);
-            response.putParcelableArrayList(BUNDLE_KEY_MESSAGES_TO_DELETE, messagesToDelete);
+            response.putParcelableArrayList(BUNDLE_KEY_MESSAGES_TO_DELETE,
+                    scan.messagesToDelete);
+            response.putLong(BUNDLE_KEY_SCAN_TIME, scan.scanTimeMillis);
+
+            if (pipelineEnabled && hasMoreMessages(lastTimestampMillis, lowerBoundTimeMillis)) {
+                // Start scanning the next batch while this one is written to the local database.
+                // Both stages now run side by side so size the batch for the slower of the two.
+                final int messagesUpdated = scan.getMessagesUpdated();
+                final int nextMaxMessagesToUpdate = nextBatchSize(messagesUpdated,
+                        scan.scanTimeMillis, pipeline.estimateWriteTimeMillis(messagesUpdated));
+                response.putInt(BUNDLE_KEY_NEXT_MAX_UPDATE, nextMaxMessagesToUpdate);
+
+                final int prefetchMaxMessagesToUpdate = capBatchSize(nextMaxMessagesToUpdate);
+                // Track inserts into the next window before scanning it, not from its batch start
+                syncManager.startPrefetchTracking(lastTimestampMillis);
+                pipeline.prefetch(lowerBoundTimeMillis, lastTimestampMillis,
+                        prefetchMaxMessagesToUpdate, new Callable<ScanResult>() {
+                            @Override
+                            public ScanResult call() {
+                                return scanBatch(lowerBoundTimeMillis, lastTimestampMillis,
+                                        maxMessagesToScan, prefetchMaxMessagesToUpdate, cache);
+                            }
+                        });
+            }
         }
         response.putLong(BUNDLE_KEY_LAST_TIMESTAMP, lastTimestampMillis);
 
         return response;
     }
 
+    /**
+     * Run the scan stage of a sync batch (safe to call from the pipeline thread)
+     */
+    private static ScanResult scanBatch(final long lowerBoundTimeMillis,
+            final long upperBoundTimeMillis, final int maxMessagesToScan,
+            final int maxMessagesToUpdate, final ThreadInfoCache cache) {
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        final ScanResult scan = new ScanResult();
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+        final long startNanos = PerfMetrics.now();
+
+        // Cursors
+        final SyncCursorPair cursors = new SyncCursorPair(lowerBoundTimeMillis,
+                upperBoundTimeMillis);
+        scan.lastTimestampMillis = syncCursorPair(db, cursors, scan.smsToAdd, scan.mmsToAdd,
+                scan.messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache);
+        scan.scanTimeMillis = SystemClock.elapsedRealtime() - startTimeMillis;
+        sScanTime.recordSince(startNanos);
+        return scan;
+    }
+
+    /**
+     * Cap a requested batch size to GServices limits
+     */
+    private static int capBatchSize(final int maxMessagesToUpdate) {
+        final BugleGservices bugleGservices = BugleGservices.get();
+        final int smsSyncSubsequentBatchSizeMin = bugleGservices.getInt(
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MIN,
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MIN_DEFAULT);
+        final int smsSyncSubsequentBatchSizeMax = bugleGservices.getInt(
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX,
+                BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX_DEFAULT);
+        return Math.max(smsSyncSubsequentBatchSizeMin,
+                Math.min(maxMessagesToUpdate, smsSyncSubsequentBatchSizeMax));
+    }
+
+    /**
+     * Check if messages older than a completed scan remain in the sync window
+     * @param lastTimestampMillis oldest timestamp seen by the scan (exclusive bound of next batch)
+     * @param lowerBoundTimeMillis lower bound of the sync window
+     */
+    private static boolean hasMoreMessages(final long lastTimestampMillis,
+            final long lowerBoundTimeMillis) {
+        return lastTimestampMillis > 0 && lastTimestampMillis > lowerBoundTimeMillis;
+    }
+
     /**
      * Compare messages based on timestamp and uri
      * @param db local database wrapper
@@ -275,7 +356,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
      * @param cache cache for conversation id / thread id / recipient set mapping
      * @return timestamp of the oldest message seen during the sync scan
      */
-    private long syncCursorPair(final DatabaseWrapper db, final SyncCursorPair cursors,
+    private static long syncCursorPair(final DatabaseWrapper db, final SyncCursorPair cursors,
             final ArrayList<SmsMessage> smsToAdd, final LongSparseArray<MmsMessage> mmsToAdd,
             final ArrayList<LocalDatabaseMessage> messagesToDelete, final int maxMessagesToScan,
             final int maxMessagesToUpdate, final ThreadInfoCache cache) {
@@ -364,11 +445,16 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
         // lastTimestampMillis used to indicate failure
         if (orphan) {
+            SyncMessagesPipeline.get().cancel();
             // This batch does not match current in progress timestamp.
             LogUtil.w(TAG, "SyncMessagesAction: Ignoring orphan sync batch for messages from "
                     + lowerBoundTimeMillis + " to " + upperBoundTimeMillis);
         } else {
             final boolean dirty = syncManager.isBatchDirty(lastTimestampMillis);
+            if (lastTimestampMillis == SYNC_FAILED || dirty) {
+                // Any scan prefetched after this batch may have seen a stale local database
+                SyncMessagesPipeline.get().cancel();
+            }
             if (lastTimestampMillis == SYNC_FAILED) {
                 LogUtil.e(TAG, "SyncMessagesAction: Sync failed - terminating");
 
@@ -407,11 +493,15 @@ public class SyncMessagesAction extends Action implements Parcelable {
                 long txnTimeMillis = 0;
                 if (messagesUpdated > 0) {
                     final long startTimeMillis = SystemClock.elapsedRealtime();
+                    final long startNanos = PerfMetrics.now();
                     final SyncMessageBatch batch = new SyncMessageBatch(smsToAdd, mmsToAdd,
                             messagesToDelete, syncManager.getThreadInfoCache());
                     batch.updateLocalDatabase();
                     final long endTimeMillis = SystemClock.elapsedRealtime();
                     txnTimeMillis = endTimeMillis - startTimeMillis;
+                    sBatchTime.recordSince(startNanos);
+                    sBatchSize.record(messagesUpdated);
+                    SyncMessagesPipeline.get().recordWrite(messagesUpdated, txnTimeMillis);
 
                     LogUtil.i(TAG, "SyncMessagesAction: Updated local database "
                             + "(took " + txnTimeMillis + " ms). Added "
@@ -434,16 +524,20 @@ public class SyncMessagesAction extends Action implements Parcelable {
                     }
                 }
                 // Determine if there are more messages that need to be scanned
-                if (lastTimestampMillis >= 0 && lastTimestampMillis >= lowerBoundTimeMillis) {
+                if (hasMoreMessages(lastTimestampMillis, lowerBoundTimeMillis)) {
                     if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
                         LogUtil.d(TAG, "SyncMessagesAction: More messages to sync; scheduling next "
                                 + "sync batch now.");
                     }
 
-                    // Include final millisecond of last sync in next sync
-                    final long newUpperBoundTimeMillis = lastTimestampMillis + 1;
-                    final int newMaxMessagesToUpdate = nextBatchSize(messagesUpdated,
-                            txnTimeMillis);
+                    // The scan finished the final millisecond of this batch so exclude it from
+                    // the next one. Keep the size of a prefetched next batch so it is picked up.
+                    final long newUpperBoundTimeMillis = lastTimestampMillis;
+                    final int newMaxMessagesToUpdate = response.containsKey(
+                            BUNDLE_KEY_NEXT_MAX_UPDATE)
+                            ? response.getInt(BUNDLE_KEY_NEXT_MAX_UPDATE)
+                            : nextBatchSize(messagesUpdated,
+                                    response.getLong(BUNDLE_KEY_SCAN_TIME), txnTimeMillis);
 
                     final SyncMessagesAction nextBatch =
                             new SyncMessagesAction(lowerBoundTimeMillis, newUpperBoundTimeMillis,
@@ -505,29 +599,34 @@ public class SyncMessagesAction extends Action implements Parcelable {
     /**
      * Decide the next batch size based on the stats we collected with past batch
      * @param messagesUpdated number of messages updated in this batch
-     * @param txnTimeMillis time the transaction took in ms
+     * @param scanTimeMillis time the scan stage took in ms
+     * @param txnTimeMillis time the transaction took (or is estimated to take) in ms
      * @return Target number of messages to sync for next batch
      */
-    private static int nextBatchSize(final int messagesUpdated, final long txnTimeMillis) {
+    private static int nextBatchSize(final int messagesUpdated, final long scanTimeMillis,
+            final long txnTimeMillis) {
         final BugleGservices bugleGservices = BugleGservices.get();
         final long smsSyncSubsequentBatchTimeLimitMillis = bugleGservices.getLong(
                 BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS,
                 BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS_DEFAULT);
 
-        if (txnTimeMillis <= 0) {
+        // The scan of one batch overlaps with the write of the previous one so the slower
+        // stage is what limits progress
+        final long stageTimeMillis = Math.max(scanTimeMillis, txnTimeMillis);
+        if (stageTimeMillis <= 0) {
             return 0;
         }
         // Number of messages we can sync within the batch time limit using
         // the average sync time calculated based on the stats we collected
         // in previous batch
-        return (int) ((double) (messagesUpdated) / (double) txnTimeMillis
+        return (int) ((double) (messagesUpdated) / (double) stageTimeMillis
                         * smsSyncSubsequentBatchTimeLimitMillis);
     }
 
     /**
      * Batch loading MMS parts for the messages in current batch
      */
-    private void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
+    private static void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
         final Context context = Factory.get().getApplicationContext();
         final int totalIds = mmses.size();
         for (int start = 0; start < totalIds; start += MmsUtils.MAX_IDS_PER_QUERY) {
@@ -575,7 +674,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
     /**
      * Batch loading MMS sender for the messages in current batch
      */
-    private void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
+    private static void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
             final ThreadInfoCache cache) {
         // Store all the MMS messages
         for (int i = 0; i < mmses.size(); i++) {
@@ -599,7 +698,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
     /**
      * Find out the sender of an MMS message
      */
-    private String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
+    private static String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
         final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
         Assert.notNull(recipients);
         Assert.isTrue(recipients.size() > 0);
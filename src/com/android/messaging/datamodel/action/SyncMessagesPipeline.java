@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.DatabaseMessages.SmsMessage;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Overlaps the telephony side of consecutive sync batches with the local database writes.
+ *
+ * Each sync batch has two stages: a scan stage (stepping through the {@link SyncCursorPair},
+ * bulk loading MMS parts and resolving MMS senders) that runs on the background worker, and a
+ * write stage ({@link SyncMessageBatch}) that runs on the action service thread. A scan always
+ * finishes the millisecond it stops on, so the window of the next batch never includes any of
+ * the messages that the write stage of the current batch adds or deletes. That lets the scan of
+ * the next batch be started as soon as the current scan is done, rather than after its write.
+ *
+ * The pipeline holds at most one prefetched scan. It is consumed by the next batch only if that
+ * batch has exactly the window and size it was started for, and is dropped whenever the sync
+ * chain is interrupted (failed, dirty or orphaned batches). Messages inserted locally in the
+ * window of the prefetched batch are tracked from before its scan starts (see
+ * {@link com.android.messaging.datamodel.SyncManager#startPrefetchTracking}), so a scan that
+ * missed them makes that batch dirty and it is redone.
+ */
+class SyncMessagesPipeline {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final SyncMessagesPipeline sInstance = new SyncMessagesPipeline();
+
+    static SyncMessagesPipeline get() {
+        return sInstance;
+    }
+
+    /**
+     * Output of the scan stage of a sync batch
+     */
+    static class ScanResult {
+        final ArrayList<SmsMessage> smsToAdd = new ArrayList<SmsMessage>();
+        final LongSparseArray<MmsMessage> mmsToAdd = new LongSparseArray<MmsMessage>();
+        final ArrayList<LocalDatabaseMessage> messagesToDelete =
+                new ArrayList<LocalDatabaseMessage>();
+        long lastTimestampMillis = SyncMessagesAction.SYNC_FAILED;
+        long scanTimeMillis;
+
+        int getMessagesUpdated() {
+            return smsToAdd.size() + mmsToAdd.size() + messagesToDelete.size();
+        }
+    }
+
+    // Single low priority thread so that prefetching never competes with more than one batch
+    private final ExecutorService mScanExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread scanThread = new Thread(runnable, "SyncMessagesPipeline");
+                    scanThread.setPriority(Thread.MIN_PRIORITY);
+                    return scanThread;
+                }
+            });
+
+    private Future<ScanResult> mPendingScan;
+    private long mPendingLowerBound;
+    private long mPendingUpperBound;
+    private int mPendingMaxMessagesToUpdate;
+
+    // Throughput of the most recent write stage, used for sizing prefetched batches
+    private int mLastWriteMessages;
+    private long mLastWriteTimeMillis;
+
+    private SyncMessagesPipeline() {
+    }
+
+    /**
+     * Start the scan stage of the next batch in the background, replacing any earlier prefetch
+     */
+    synchronized void prefetch(final long lowerBound, final long upperBound,
+            final int maxMessagesToUpdate, final Callable<ScanResult> scan) {
+        cancel();
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "SyncMessagesPipeline: Prefetching scan of messages from "
+                    + lowerBound + " to " + upperBound + " (message update limit = "
+                    + maxMessagesToUpdate + ")");
+        }
+        mPendingLowerBound = lowerBound;
+        mPendingUpperBound = upperBound;
+        mPendingMaxMessagesToUpdate = maxMessagesToUpdate;
+        mPendingScan = mScanExecutor.submit(scan);
+    }
+
+    /**
+     * Claim the prefetched scan for a batch, waiting for it to finish if still running
+     * @return the scan result or null if nothing usable was prefetched for this batch
+     */
+    ScanResult take(final long lowerBound, final long upperBound,
+            final int maxMessagesToUpdate) {
+        final Future<ScanResult> pendingScan;
+        synchronized (this) {
+            if (mPendingScan == null) {
+                return null;
+            }
+            if (mPendingLowerBound != lowerBound || mPendingUpperBound != upperBound
+                    || mPendingMaxMessagesToUpdate != maxMessagesToUpdate) {
+                LogUtil.w(TAG, "SyncMessagesPipeline: Dropping prefetched scan of messages from "
+                        + mPendingLowerBound + " to " + mPendingUpperBound
+                        + " which does not match batch from " + lowerBound + " to "
+                        + upperBound);
+                cancel();
+                return null;
+            }
+            pendingScan = mPendingScan;
+            mPendingScan = null;
+        }
+        try {
+            return pendingScan.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogUtil.w(TAG, "SyncMessagesPipeline: Interrupted waiting for prefetched scan", e);
+        } catch (final ExecutionException e) {
+            LogUtil.w(TAG, "SyncMessagesPipeline: Prefetched scan failed", e);
+        }
+        return null;
+    }
+
+    /**
+     * Drop any prefetched scan (e.g. the batch it follows has to be redone)
+     */
+    synchronized void cancel() {
+        if (mPendingScan != null) {
+            mPendingScan.cancel(false /* mayInterruptIfRunning */);
+            mPendingScan = null;
+        }
+    }
+
+    /**
+     * Record the throughput of a completed write stage
+     */
+    synchronized void recordWrite(final int messagesUpdated, final long txnTimeMillis) {
+        mLastWriteMessages = messagesUpdated;
+        mLastWriteTimeMillis = txnTimeMillis;
+    }
+
+    /**
+     * Estimated write time of a batch of the given size based on the last write stage
+     * @return estimated time in ms or 0 if no write has been measured yet
+     */
+    synchronized long estimateWriteTimeMillis(final int messagesUpdated) {
+        if (mLastWriteMessages <= 0) {
+            return 0;
+        }
+        return mLastWriteTimeMillis * messagesUpdated / mLastWriteMessages;
+    }
+}
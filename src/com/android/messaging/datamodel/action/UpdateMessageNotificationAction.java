@@ -33,6 +33,11 @@ public class UpdateMessageNotificationAction extends Action {
     private UpdateMessageNotificationAction() {
     }
 
+    @Override
+    protected boolean isBatchable() {
+        return true;
+    }
+
     @Override
     protected Object executeAction() {
         BugleNotifications.update(true /* silent */, BugleNotifications.UPDATE_MESSAGES);
@@ -49,6 +49,8 @@ import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.RunsOnMainThread;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.ContactUtil;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
@@ -57,10 +59,7 @@ import com.android.messaging.util.SafeAsyncTask;
 import com.android.messaging.widget.WidgetConversationProvider;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 public class ConversationData extends BindableData {
 
@@ -74,33 +73,10 @@ public class ConversationData extends BindableData {
      * for each message.
      */
     public List<Integer> getPositions(final String conversationId, final List<Long> ids) {
-        final ArrayList<Integer> result = new ArrayList<Integer>();
-
         if (ids.isEmpty()) {
-            return result;
-        }
-
-        final Cursor c = new ConversationData.ReversedCursor(
-                DataModel.get().getDatabase().rawQuery(
-                        ConversationMessageData.getConversationMessageIdsQuerySql(),
-                        new String [] { conversationId }));
-        if (c != null) {
-            try {
-                final Set<Long> idsSet = new HashSet<Long>(ids);
-                if (c.moveToLast()) {
-                    do {
-                        final long messageId = c.getLong(0);
-                        if (idsSet.contains(messageId)) {
-                            result.add(c.getPosition());
-                        }
-                    } while (c.moveToPrevious());
-                }
-            } finally {
-                c.close();
-            }
+            return new ArrayList<Integer>();
         }
-        Collections.sort(result);
-        return result;
+        return mPositionIndex.getPositions(DataModel.get().getDatabase(), conversationId, ids);
     }
 
     public interface ConversationDataListener {
@@ -112,7 +88,8 @@ public class ConversationData extends BindableData {
         public void onSubscriptionListDataLoaded(ConversationData data);
     }
 
-    private static class ReversedCursor extends CursorWrapper {
+    private static class ReversedCursor extends CursorWrapper
+            implements ConversationMessageData.MessagePartsLookup {
         final int mCount;
 
         public ReversedCursor(final Cursor cursor) {
@@ -174,6 +151,15 @@ public class ConversationData extends BindableData {
         public boolean moveToPrevious() {
             return super.moveToNext();
         }
+
+        @Override
+        public List<MessagePartData> getMessageParts(final String messageId) {
+            final Cursor cursor = getWrappedCursor();
+            return (cursor instanceof ConversationMessageData.MessagePartsLookup)
+                    ? ((ConversationMessageData.MessagePartsLookup) cursor)
+                            .getMessageParts(messageId)
+                    : null;
+        }
     }
 
     /**
@@ -254,10 +240,18 @@ public class ConversationData extends BindableData {
             final String bindingId = args.getString(BINDING_ID);
             // Check if data still bound to the requesting ui element
             if (isBound(bindingId)) {
-                final Uri uri =
-                        MessagingContentProvider.buildConversationMessagesUri(mConversationId);
-                loader = new BoundCursorLoader(bindingId, mContext, uri,
-                        ConversationMessageData.getProjection(), null, null, null);
+                final int pageSize = BugleGservices.get().getInt(
+                        BugleGservicesKeys.CONVERSATION_MESSAGES_PAGE_SIZE,
+                        BugleGservicesKeys.CONVERSATION_MESSAGES_PAGE_SIZE_DEFAULT);
+                if (pageSize > 0) {
+                    loader = new ConversationMessagesLoader(bindingId, mContext,
+                            mConversationId, pageSize, mPositionIndex);
+                } else {
+                    final Uri uri = MessagingContentProvider.buildConversationMessagesUri(
+                            mConversationId);
+                    loader = new BoundCursorLoader(bindingId, mContext, uri,
+                            ConversationMessageData.getProjection(), null, null, null);
+                }
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
             } else {
@@ -273,6 +267,10 @@ public class ConversationData extends BindableData {
 
             // Check if data still bound to the requesting ui element
             if (isBound(loader.getBindingId())) {
+                if (!(loader instanceof ConversationMessagesLoader)) {
+                    // Only the window loader keeps the position index up to date
+                    mPositionIndex.invalidate();
+                }
                 // Check if we have a new message, or if we had a message sync.
                 ConversationMessageData newMessage = null;
                 boolean isSync = false;
@@ -461,6 +459,7 @@ public class ConversationData extends BindableData {
     private final SelfParticipantsData mSelfParticipantsData;
     private ConversationListItemData mConversationMetadata;
     private final SubscriptionListData mSubscriptionListData;
+    private final MessagePositionIndex mPositionIndex;
     private LoaderManager mLoaderManager;
     private long mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
     private int mMessageCount = MESSAGE_COUNT_NaN;
@@ -479,6 +478,7 @@ public class ConversationData extends BindableData {
         mConversationMetadata = new ConversationListItemData();
         mSelfParticipantsData = new SelfParticipantsData();
         mSubscriptionListData = new SubscriptionListData(context);
+        mPositionIndex = new MessagePositionIndex();
 
         mListeners = new ConversationDataEventDispatcher();
         mListeners.add(listener);
@@ -521,6 +521,58 @@ public class ConversationData extends BindableData {
         return isBound() && DataModel.get().isFocusedConversation(mConversationId);
     }
 
+    private ConversationMessagesLoader getMessagesWindowLoader() {
+        if (mLoaderManager == null) {
+            return null;
+        }
+        final Loader<Cursor> loader = mLoaderManager.getLoader(CONVERSATION_MESSAGES_LOADER);
+        return (loader instanceof ConversationMessagesLoader)
+                ? (ConversationMessagesLoader) loader : null;
+    }
+
+    /**
+     * Whether the messages cursor holds only the newest part of the conversation
+     */
+    @RunsOnMainThread
+    public boolean hasOlderMessages() {
+        final ConversationMessagesLoader loader = getMessagesWindowLoader();
+        return loader != null && loader.hasOlderMessages();
+    }
+
+    /**
+     * Load another page of older messages into the messages cursor. The extended cursor is
+     * reported like a message sync, i.e. with the newest message unchanged.
+     */
+    @RunsOnMainThread
+    public void loadOlderMessages() {
+        final ConversationMessagesLoader loader = getMessagesWindowLoader();
+        if (loader != null) {
+            loader.loadOlderMessages();
+        }
+    }
+
+    /**
+     * Load older messages into the messages cursor until it holds the message at a position
+     * within the whole conversation. The extended cursor is reported like a message sync.
+     */
+    @RunsOnMainThread
+    public void loadMessagesFrom(final int position) {
+        final ConversationMessagesLoader loader = getMessagesWindowLoader();
+        if (loader != null) {
+            loader.loadMessagesFrom(position);
+        }
+    }
+
+    /**
+     * Number of messages before the first one in the messages cursor, which maps positions in
+     * the whole conversation (e.g. from the widget) to positions in the cursor
+     */
+    @RunsOnMainThread
+    public int getOlderMessageCount() {
+        final ConversationMessagesLoader loader = getMessagesWindowLoader();
+        return loader != null ? loader.getOlderMessageCount() : 0;
+    }
+
     private static final int CONVERSATION_META_DATA_LOADER = 1;
     private static final int CONVERSATION_MESSAGES_LOADER = 2;
     private static final int PARTICIPANT_LOADER = 3;
@@ -69,6 +69,8 @@ public class ConversationListItemData {
     private String mSnippetSenderFirstName;
     private String mSnippetSenderDisplayDestination;
     private boolean mIsEnterprise;
+    private int mUnreadCount;
+    private int mUnseenCount;
 
     public ConversationListItemData() {
     }
@@ -123,6 +125,8 @@ public class ConversationListItemData {
         mSnippetSenderDisplayDestination =
                 cursor.getString(INDEX_SNIPPET_SENDER_DISPLAY_DESTINATION);
         mIsEnterprise = cursor.getInt(INDEX_IS_ENTERPRISE) == 1;
+        mUnreadCount = cursor.getInt(INDEX_UNREAD_COUNT);
+        mUnseenCount = cursor.getInt(INDEX_UNSEEN_COUNT);
     }
 
     public String getConversationId() {
@@ -141,6 +145,20 @@ public class ConversationListItemData {
         return mIsRead;
     }
 
+    /**
+     * @return the number of messages of the conversation that haven't been read
+     */
+    public int getUnreadCount() {
+        return mUnreadCount;
+    }
+
+    /**
+     * @return the number of messages of the conversation that haven't been seen
+     */
+    public int getUnseenCount() {
+        return mUnseenCount;
+    }
+
     public String getFormattedTimestamp() {
         return Dates.getConversationTimeString(mTimestamp).toString();
     }
@@ -280,19 +298,27 @@ public class ConversationListItemData {
     }
 
     /**
-     * Get the name of the view for this data item
+     * Get the name of the table for this data item
      */
-    public static final String getConversationListView() {
-        return CONVERSATION_LIST_VIEW;
+    public static final String getConversationListTable() {
+        return CONVERSATION_LIST_TABLE;
+    }
+
+    public static final String getCreateConversationListTableSql() {
+        return CREATE_CONVERSATION_LIST_TABLE_SQL;
     }
 
-    public static final String getConversationListViewSql() {
-        return CONVERSATION_LIST_VIEW_SQL;
+    /**
+     * Get the query producing the rows of the table from the conversations they summarize, to be
+     * completed with a condition on the conversations
+     */
+    public static final String getConversationListRowsSql() {
+        return CONVERSATION_LIST_ROWS_SQL;
     }
 
-    private static final String CONVERSATION_LIST_VIEW = "conversation_list_view";
+    private static final String CONVERSATION_LIST_TABLE = "conversation_list";
 
-    private static final String CONVERSATION_LIST_VIEW_PROJECTION =
+    private static final String CONVERSATION_LIST_PROJECTION =
             DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID
             + " as " + ConversationListViewColumns._ID + ", "
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NAME
@@ -351,7 +377,11 @@ public class ConversationListItemData {
             + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.DISPLAY_DESTINATION
             + " as " + ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION + ", "
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.IS_ENTERPRISE
-            + " as " + ConversationListViewColumns.IS_ENTERPRISE;
+            + " as " + ConversationListViewColumns.IS_ENTERPRISE + ", "
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.UNREAD_COUNT
+            + " as " + ConversationListViewColumns.UNREAD_COUNT + ", "
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.UNSEEN_COUNT
+            + " as " + ConversationListViewColumns.UNSEEN_COUNT;
 
     private static final String JOIN_PARTICIPANTS =
             " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE + " ON ("
@@ -359,28 +389,66 @@ public class ConversationListItemData {
             + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + DatabaseHelper.ParticipantColumns._ID
             + ") ";
 
-    // View that makes latest message read flag available with rest of conversation data.
-    private static final String CONVERSATION_LIST_VIEW_SQL = "CREATE VIEW " +
-            CONVERSATION_LIST_VIEW + " AS SELECT "
-            + CONVERSATION_LIST_VIEW_PROJECTION + ", "
-            // Snippet not part of the base projection shared with search view
+    // Table holding the latest message read flag, status and sender with the rest of the
+    // conversation data, so that the conversation list is read without joining the messages and
+    // participants. Rows are written by the triggers of ConversationListTable. Columns have no
+    // type so that values are kept as they are in the tables they are copied from.
+    private static final String CREATE_CONVERSATION_LIST_TABLE_SQL = "CREATE TABLE "
+            + CONVERSATION_LIST_TABLE + "("
+            + ConversationListViewColumns._ID + " INTEGER PRIMARY KEY, "
+            + ConversationListViewColumns.NAME + ", "
+            + ConversationListViewColumns.CURRENT_SELF_ID + ", "
+            + ConversationListViewColumns.ARCHIVE_STATUS + ", "
+            + ConversationListViewColumns.READ + ", "
+            + ConversationListViewColumns.ICON + ", "
+            + ConversationListViewColumns.PARTICIPANT_CONTACT_ID + ", "
+            + ConversationListViewColumns.PARTICIPANT_LOOKUP_KEY + ", "
+            + ConversationListViewColumns.OTHER_PARTICIPANT_NORMALIZED_DESTINATION + ", "
+            + ConversationListViewColumns.SORT_TIMESTAMP + ", "
+            + ConversationListViewColumns.SHOW_DRAFT + ", "
+            + ConversationListViewColumns.DRAFT_SNIPPET_TEXT + ", "
+            + ConversationListViewColumns.DRAFT_PREVIEW_URI + ", "
+            + ConversationListViewColumns.DRAFT_SUBJECT_TEXT + ", "
+            + ConversationListViewColumns.DRAFT_PREVIEW_CONTENT_TYPE + ", "
+            + ConversationListViewColumns.PREVIEW_URI + ", "
+            + ConversationListViewColumns.PREVIEW_CONTENT_TYPE + ", "
+            + ConversationListViewColumns.PARTICIPANT_COUNT + ", "
+            + ConversationListViewColumns.NOTIFICATION_ENABLED + ", "
+            + ConversationListViewColumns.NOTIFICATION_SOUND_URI + ", "
+            + ConversationListViewColumns.NOTIFICATION_VIBRATION + ", "
+            + ConversationListViewColumns.INCLUDE_EMAIL_ADDRESS + ", "
+            + ConversationListViewColumns.MESSAGE_STATUS + ", "
+            + ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS + ", "
+            + ConversationListViewColumns.MESSAGE_ID + ", "
+            + ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME + ", "
+            + ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION + ", "
+            + ConversationListViewColumns.IS_ENTERPRISE + ", "
+            + ConversationListViewColumns.UNREAD_COUNT + ", "
+            + ConversationListViewColumns.UNSEEN_COUNT + ", "
+            + ConversationListViewColumns.SNIPPET_TEXT + ", "
+            + ConversationListViewColumns.SUBJECT_TEXT + ", "
+            + ConversationListViewColumns.SNIPPET_SENDER_ID + ")";
+
+    // Columns in the order of the table
+    private static final String CONVERSATION_LIST_ROWS_SQL = "SELECT "
+            + CONVERSATION_LIST_PROJECTION + ", "
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SNIPPET_TEXT
             + " as " + ConversationListViewColumns.SNIPPET_TEXT + ", "
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SUBJECT_TEXT
-            + " as " + ConversationListViewColumns.SUBJECT_TEXT + " "
+            + " as " + ConversationListViewColumns.SUBJECT_TEXT + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID
+            + " as " + ConversationListViewColumns.SNIPPET_SENDER_ID
             + " FROM " + DatabaseHelper.CONVERSATIONS_TABLE
             + " LEFT JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' +  ConversationColumns.LATEST_MESSAGE_ID
             + '=' + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ") "
-            + JOIN_PARTICIPANTS
-            + "ORDER BY " + DatabaseHelper.CONVERSATIONS_TABLE + '.'
-            + ConversationColumns.SORT_TIMESTAMP + " DESC";
+            + JOIN_PARTICIPANTS;
 
     public static class ConversationListViewColumns implements BaseColumns {
         public static final String _ID = ConversationColumns._ID;
         static final String NAME = ConversationColumns.NAME;
         static final String ARCHIVE_STATUS = ConversationColumns.ARCHIVE_STATUS;
-        static final String READ = MessageColumns.READ;
+        public static final String READ = MessageColumns.READ;
         static final String SORT_TIMESTAMP = ConversationColumns.SORT_TIMESTAMP;
         static final String PREVIEW_URI = ConversationColumns.PREVIEW_URI;
         static final String PREVIEW_CONTENT_TYPE = ConversationColumns.PREVIEW_CONTENT_TYPE;
@@ -404,13 +472,18 @@ public class ConversationListItemData {
         static final String NOTIFICATION_VIBRATION = ConversationColumns.NOTIFICATION_VIBRATION;
         static final String INCLUDE_EMAIL_ADDRESS =
                 ConversationColumns.INCLUDE_EMAIL_ADDRESS;
-        static final String MESSAGE_STATUS = MessageColumns.STATUS;
-        static final String MESSAGE_RAW_TELEPHONY_STATUS = MessageColumns.RAW_TELEPHONY_STATUS;
-        static final String MESSAGE_ID = "message_id";
-        static final String SNIPPET_SENDER_FIRST_NAME = "snippet_sender_first_name";
-        static final String SNIPPET_SENDER_DISPLAY_DESTINATION =
+        public static final String MESSAGE_STATUS = MessageColumns.STATUS;
+        public static final String MESSAGE_RAW_TELEPHONY_STATUS =
+                MessageColumns.RAW_TELEPHONY_STATUS;
+        public static final String MESSAGE_ID = "message_id";
+        public static final String SNIPPET_SENDER_FIRST_NAME = "snippet_sender_first_name";
+        public static final String SNIPPET_SENDER_DISPLAY_DESTINATION =
                 "snippet_sender_display_destination";
         static final String IS_ENTERPRISE = ConversationColumns.IS_ENTERPRISE;
+        public static final String UNREAD_COUNT = ConversationColumns.UNREAD_COUNT;
+        public static final String UNSEEN_COUNT = ConversationColumns.UNSEEN_COUNT;
+        // Not part of the projection, used to find the rows showing a participant
+        public static final String SNIPPET_SENDER_ID = "snippet_sender_id";
     }
 
     public static final String[] PROJECTION = {
@@ -444,6 +517,8 @@ public class ConversationListItemData {
         ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME,
         ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION,
         ConversationListViewColumns.IS_ENTERPRISE,
+        ConversationListViewColumns.UNREAD_COUNT,
+        ConversationListViewColumns.UNSEEN_COUNT,
     };
 
     private static final int INDEX_ID = 0;
@@ -476,6 +551,8 @@ public class ConversationListItemData {
     private static final int INDEX_SNIPPET_SENDER_FIRST_NAME = 27;
     private static final int INDEX_SNIPPET_SENDER_DISPLAY_DESTINATION = 28;
     private static final int INDEX_IS_ENTERPRISE = 29;
+    private static final int INDEX_UNREAD_COUNT = 30;
+    private static final int INDEX_UNSEEN_COUNT = 31;
 
     private static final String DIVIDER_TEXT = ", ";
 
@@ -503,8 +580,7 @@ public class ConversationListItemData {
         // Look for an existing conversation in the db with this conversation id
         Cursor cursor = null;
         try {
-            // TODO: Should we be able to read a row from just the conversation table?
-            cursor = dbWrapper.query(getConversationListView(),
+            cursor = dbWrapper.query(getConversationListTable(),
                     PROJECTION,
                     ConversationColumns._ID + "=?",
                     new String[] { conversationId },
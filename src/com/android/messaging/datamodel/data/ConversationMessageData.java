@@ -80,6 +80,18 @@ public class ConversationMessageData {
     private boolean mCanClusterWithPreviousMessage;
     private boolean mCanClusterWithNextMessage;
 
+    /**
+     * Implemented by conversation message cursors that only hold a window of the conversation.
+     * Their rows do not carry the group-concatenated part columns; instead the parts of all the
+     * messages in the window are looked up in one batch when the window is loaded.
+     */
+    public interface MessagePartsLookup {
+        /**
+         * @return the parts of the given message in the window
+         */
+        List<MessagePartData> getMessageParts(String messageId);
+    }
+
     public ConversationMessageData() {
     }
 
@@ -87,17 +99,25 @@ public class ConversationMessageData {
         mMessageId = cursor.getString(INDEX_MESSAGE_ID);
         mConversationId = cursor.getString(INDEX_CONVERSATION_ID);
         mParticipantId = cursor.getString(INDEX_PARTICIPANT_ID);
-        mPartsCount = cursor.getInt(INDEX_PARTS_COUNT);
-
-        mParts = makeParts(
-                cursor.getString(INDEX_PARTS_IDS),
-                cursor.getString(INDEX_PARTS_CONTENT_TYPES),
-                cursor.getString(INDEX_PARTS_CONTENT_URIS),
-                cursor.getString(INDEX_PARTS_WIDTHS),
-                cursor.getString(INDEX_PARTS_HEIGHTS),
-                cursor.getString(INDEX_PARTS_TEXTS),
-                mPartsCount,
-                mMessageId);
+        final List<MessagePartData> windowParts = (cursor instanceof MessagePartsLookup)
+                ? ((MessagePartsLookup) cursor).getMessageParts(mMessageId) : null;
+        if (windowParts != null) {
+            // The list is shared by every bind of this row, so take a copy
+            mParts = new LinkedList<MessagePartData>(windowParts);
+            mPartsCount = mParts.size();
+        } else {
+            mPartsCount = cursor.getInt(INDEX_PARTS_COUNT);
+
+            mParts = makeParts(
+                    cursor.getString(INDEX_PARTS_IDS),
+                    cursor.getString(INDEX_PARTS_CONTENT_TYPES),
+                    cursor.getString(INDEX_PARTS_CONTENT_URIS),
+                    cursor.getString(INDEX_PARTS_WIDTHS),
+                    cursor.getString(INDEX_PARTS_HEIGHTS),
+                    cursor.getString(INDEX_PARTS_TEXTS),
+                    mPartsCount,
+                    mMessageId);
+        }
 
         mSentTimestamp = cursor.getLong(INDEX_SENT_TIMESTAMP);
         mReceivedTimestamp = cursor.getLong(INDEX_RECEIVED_TIMESTAMP);
@@ -634,18 +654,96 @@ public class ConversationMessageData {
                 + CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Query for the messages of a conversation window, i.e. every message at or after the
+     * (received timestamp, message id) key of its oldest message. The part columns are left
+     * empty; the parts come from {@link #getConversationWindowPartsQuerySql}.
+     * Arguments: conversation id, window timestamp, window timestamp, window message id.
+     */
+    public static final String getConversationWindowMessagesQuerySql() {
+        return CONVERSATION_WINDOW_MESSAGES_QUERY_SQL;
+    }
+
+    /**
+     * Query for the given messages, with the same columns as the window query.
+     * Arguments: the ids of the messages.
+     */
+    static final String getConversationMessagesByIdQuerySql(final int messageCount) {
+        final StringBuilder sql = new StringBuilder(CONVERSATION_MESSAGES_BY_ID_QUERY_SQL);
+        sql.append('(');
+        for (int i = 0; i < messageCount; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /**
+     * Query for the parts of every message in a conversation window, ordered by message.
+     * Takes the same arguments as {@link #getConversationWindowMessagesQuerySql}.
+     */
+    static final String getConversationWindowPartsQuerySql() {
+        return CONVERSATION_WINDOW_PARTS_QUERY_SQL;
+    }
+
+    /**
+     * Query for the key of the message a given number of messages older than a key, which is the
+     * start of a window that is extended by that number of messages.
+     * Arguments: conversation id, key timestamp, key timestamp, key message id, count - 1.
+     */
+    static final String getConversationWindowStartQuerySql() {
+        return CONVERSATION_WINDOW_START_QUERY_SQL;
+    }
+
+    /**
+     * Query for the (received timestamp, message id) keys of all the messages of a conversation,
+     * oldest first.
+     * Arguments: conversation id.
+     */
+    static final String getConversationMessageKeysQuerySql() {
+        return CONVERSATION_MESSAGE_KEYS_QUERY_SQL;
+    }
+
+    /**
+     * Query for the number of messages older than a key.
+     * Arguments: conversation id, key timestamp, key timestamp, key message id.
+     */
+    static final String getConversationOlderMessageCountQuerySql() {
+        return CONVERSATION_OLDER_MESSAGE_COUNT_QUERY_SQL;
+    }
+
     public static final String getNotificationQuerySql() {
         return CONVERSATION_MESSAGES_QUERY_SQL
                 + " AND "
-                + "(" + DatabaseHelper.MessageColumns.STATUS + " in ("
-                + MessageData.BUGLE_STATUS_INCOMING_COMPLETE + ", "
-                + MessageData.BUGLE_STATUS_INCOMING_YET_TO_MANUAL_DOWNLOAD + ")"
+                + NOTIFICATION_WHERE_SQL
+                + ")"
+                + NOTIFICATION_QUERY_SQL_GROUP_BY;
+    }
+
+    /**
+     * Query for a single message of the notification query, if it is to be notified.
+     * Arguments: message id.
+     */
+    public static final String getNotificationMessageQuerySql() {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                + NOTIFICATION_WHERE_SQL
                 + " AND "
-                + DatabaseHelper.MessageColumns.SEEN + " = 0)"
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + "=?"
                 + ")"
                 + NOTIFICATION_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Query for the number of messages to be notified and the sum of their ids, which only reads
+     * the status/seen index of the messages table.
+     */
+    public static final String getNotificationSummaryQuerySql() {
+        return "SELECT COUNT(*), SUM(" + MessageColumns._ID + ") FROM "
+                + DatabaseHelper.MESSAGES_TABLE
+                + " WHERE "
+                + NOTIFICATION_WHERE_SQL;
+    }
+
     public static final String getWearableQuerySql() {
         return CONVERSATION_MESSAGES_QUERY_SQL
                 + " AND "
@@ -701,15 +799,16 @@ public class ConversationMessageData {
 
     private static final String EMPTY_STRING = "";
 
-    private static final String CONVERSATION_MESSAGES_QUERY_PROJECTION_SQL =
+    private static final String CONVERSATION_MESSAGES_ID_COLUMNS_SQL =
             DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
             + " as " + ConversationMessageViewColumns._ID + ", "
             + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.CONVERSATION_ID
             + " as " + ConversationMessageViewColumns.CONVERSATION_ID + ", "
             + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID
-            + " as " + ConversationMessageViewColumns.PARTICIPANT_ID + ", "
+            + " as " + ConversationMessageViewColumns.PARTICIPANT_ID + ", ";
 
-            + makeCaseWhenString(PartColumns._ID, false,
+    private static final String CONVERSATION_MESSAGES_PARTS_COLUMNS_SQL =
+            makeCaseWhenString(PartColumns._ID, false,
                     ConversationMessageViewColumns.PARTS_IDS) + ", "
             + makeCaseWhenString(PartColumns.CONTENT_TYPE, true,
                     ConversationMessageViewColumns.PARTS_CONTENT_TYPES) + ", "
@@ -723,9 +822,20 @@ public class ConversationMessageData {
                     ConversationMessageViewColumns.PARTS_TEXTS) + ", "
 
             + CONVERSATION_MESSAGE_VIEW_PARTS_COUNT
-            + " as " + ConversationMessageViewColumns.PARTS_COUNT + ", "
-
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENT_TIMESTAMP
+            + " as " + ConversationMessageViewColumns.PARTS_COUNT + ", ";
+
+    // Placeholders that keep the column indices of window queries in line with the full query
+    private static final String CONVERSATION_WINDOW_PARTS_COLUMNS_SQL =
+            "NULL as " + ConversationMessageViewColumns.PARTS_IDS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_CONTENT_TYPES + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_CONTENT_URIS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_WIDTHS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_HEIGHTS + ", "
+            + "NULL as " + ConversationMessageViewColumns.PARTS_TEXTS + ", "
+            + "0 as " + ConversationMessageViewColumns.PARTS_COUNT + ", ";
+
+    private static final String CONVERSATION_MESSAGES_MESSAGE_COLUMNS_SQL =
+            DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENT_TIMESTAMP
             + " as " + ConversationMessageViewColumns.SENT_TIMESTAMP + ", "
             + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
             + " as " + ConversationMessageViewColumns.RECEIVED_TIMESTAMP + ", "
@@ -766,6 +876,11 @@ public class ConversationMessageData {
             + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.LOOKUP_KEY
             + " as " + ConversationMessageViewColumns.SENDER_CONTACT_LOOKUP_KEY + " ";
 
+    private static final String CONVERSATION_MESSAGES_QUERY_PROJECTION_SQL =
+            CONVERSATION_MESSAGES_ID_COLUMNS_SQL
+            + CONVERSATION_MESSAGES_PARTS_COLUMNS_SQL
+            + CONVERSATION_MESSAGES_MESSAGE_COLUMNS_SQL;
+
     private static final String CONVERSATION_MESSAGES_QUERY_FROM_WHERE_SQL =
             " FROM " + DatabaseHelper.MESSAGES_TABLE
             + " LEFT JOIN " + DatabaseHelper.PARTS_TABLE
@@ -800,6 +915,111 @@ public class ConversationMessageData {
           + " ORDER BY "
           + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC";
 
+    // Restricts a query to the non-draft messages of a conversation that are at or after (for
+    // window queries) or before (for the start of the next window) a (received timestamp, message
+    // id) key. With the conversation/received timestamp index this walks only the rows it returns.
+    private static final String CONVERSATION_WINDOW_WHERE_SQL =
+            " WHERE " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.STATUS
+            + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " AND " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+            + " AND (" + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.RECEIVED_TIMESTAMP;
+
+    private static final String CONVERSATION_WINDOW_AT_OR_AFTER_SQL =
+            CONVERSATION_WINDOW_WHERE_SQL + ">? OR ("
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.RECEIVED_TIMESTAMP + "=? AND "
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + ">=?))";
+
+    private static final String CONVERSATION_WINDOW_BEFORE_SQL =
+            CONVERSATION_WINDOW_WHERE_SQL + "<? OR ("
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.RECEIVED_TIMESTAMP + "=? AND "
+            + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID + "<?))";
+
+    private static final String CONVERSATION_WINDOW_ORDER_BY_SQL =
+            " ORDER BY " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
+            + " DESC, " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + " DESC";
+
+    // Sorted DESC like the full query, ConversationData reverses the cursor.
+    private static final String CONVERSATION_WINDOW_MESSAGES_QUERY_SQL = "SELECT "
+            + CONVERSATION_MESSAGES_ID_COLUMNS_SQL
+            + CONVERSATION_WINDOW_PARTS_COLUMNS_SQL
+            + CONVERSATION_MESSAGES_MESSAGE_COLUMNS_SQL
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " ON (" + DatabaseHelper.MESSAGES_TABLE + '.' +  MessageColumns.SENDER_PARTICIPANT_ID
+            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")"
+            + CONVERSATION_WINDOW_AT_OR_AFTER_SQL
+            + CONVERSATION_WINDOW_ORDER_BY_SQL;
+
+    private static final String CONVERSATION_MESSAGES_BY_ID_QUERY_SQL = "SELECT "
+            + CONVERSATION_MESSAGES_ID_COLUMNS_SQL
+            + CONVERSATION_WINDOW_PARTS_COLUMNS_SQL
+            + CONVERSATION_MESSAGES_MESSAGE_COLUMNS_SQL
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " ON (" + DatabaseHelper.MESSAGES_TABLE + '.' +  MessageColumns.SENDER_PARTICIPANT_ID
+            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + ")"
+            + " WHERE " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + " IN ";
+
+    private static final String CONVERSATION_WINDOW_PARTS_QUERY_SQL = "SELECT "
+            + makePartsTableColumnString(PartColumns._ID) + ", "
+            + makePartsTableColumnString(PartColumns.MESSAGE_ID) + ", "
+            + makePartsTableColumnString(PartColumns.CONTENT_TYPE) + ", "
+            + makePartsTableColumnString(PartColumns.CONTENT_URI) + ", "
+            + makePartsTableColumnString(PartColumns.WIDTH) + ", "
+            + makePartsTableColumnString(PartColumns.HEIGHT) + ", "
+            + makePartsTableColumnString(PartColumns.TEXT)
+            + " FROM " + DatabaseHelper.PARTS_TABLE
+            + " WHERE " + makePartsTableColumnString(PartColumns.MESSAGE_ID) + " IN (SELECT "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + CONVERSATION_WINDOW_AT_OR_AFTER_SQL + ")"
+            + " ORDER BY " + makePartsTableColumnString(PartColumns.MESSAGE_ID) + ", "
+            + makePartsTableColumnString(PartColumns._ID);
+
+    static final int INDEX_WINDOW_PART_ID = 0;
+    static final int INDEX_WINDOW_PART_MESSAGE_ID = 1;
+    static final int INDEX_WINDOW_PART_CONTENT_TYPE = 2;
+    static final int INDEX_WINDOW_PART_CONTENT_URI = 3;
+    static final int INDEX_WINDOW_PART_WIDTH = 4;
+    static final int INDEX_WINDOW_PART_HEIGHT = 5;
+    static final int INDEX_WINDOW_PART_TEXT = 6;
+
+    private static final String CONVERSATION_WINDOW_START_QUERY_SQL = "SELECT "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + CONVERSATION_WINDOW_BEFORE_SQL
+            + CONVERSATION_WINDOW_ORDER_BY_SQL
+            + " LIMIT 1 OFFSET ?";
+
+    static final int INDEX_WINDOW_START_TIMESTAMP = 0;
+    static final int INDEX_WINDOW_START_MESSAGE_ID = 1;
+
+    private static final String CONVERSATION_MESSAGE_KEYS_QUERY_SQL = "SELECT "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + ", "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.STATUS
+            + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " AND " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+            + " ORDER BY " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
+            + ", " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID;
+
+    static final int INDEX_KEY_RECEIVED_TIMESTAMP = 0;
+    static final int INDEX_KEY_MESSAGE_ID = 1;
+
+    private static final String CONVERSATION_OLDER_MESSAGE_COUNT_QUERY_SQL = "SELECT count(*)"
+            + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + CONVERSATION_WINDOW_BEFORE_SQL;
+
+    // Incoming messages that haven't been seen
+    private static final String NOTIFICATION_WHERE_SQL =
+            "(" + DatabaseHelper.MessageColumns.STATUS + " in ("
+            + MessageData.BUGLE_STATUS_INCOMING_COMPLETE + ", "
+            + MessageData.BUGLE_STATUS_INCOMING_YET_TO_MANUAL_DOWNLOAD + ")"
+            + " AND "
+            + DatabaseHelper.MessageColumns.SEEN + " = 0)";
+
     private static final String NOTIFICATION_QUERY_SQL_GROUP_BY =
             " GROUP BY " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
           + " ORDER BY "
@@ -841,7 +1061,7 @@ public class ConversationMessageData {
 
     private static int sIndexIncrementer = 0;
 
-    private static final int INDEX_MESSAGE_ID                    = sIndexIncrementer++;
+    static final int INDEX_MESSAGE_ID                            = sIndexIncrementer++;
     private static final int INDEX_CONVERSATION_ID               = sIndexIncrementer++;
     private static final int INDEX_PARTICIPANT_ID                = sIndexIncrementer++;
 
@@ -855,7 +1075,7 @@ public class ConversationMessageData {
     private static final int INDEX_PARTS_COUNT                   = sIndexIncrementer++;
 
     private static final int INDEX_SENT_TIMESTAMP                = sIndexIncrementer++;
-    private static final int INDEX_RECEIVED_TIMESTAMP            = sIndexIncrementer++;
+    static final int INDEX_RECEIVED_TIMESTAMP                    = sIndexIncrementer++;
     private static final int INDEX_SEEN                          = sIndexIncrementer++;
     private static final int INDEX_READ                          = sIndexIncrementer++;
     private static final int INDEX_PROTOCOL                      = sIndexIncrementer++;
@@ -0,0 +1,702 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.SparseArray;
+
+import com.android.messaging.datamodel.BoundCursorLoader;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessagingChangeFeed;
+import com.android.messaging.datamodel.MessagingChangeFeed.Change;
+import com.android.messaging.datamodel.MessagingChangeFeed.ChangeListener;
+import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads the newest messages of a conversation a page at a time rather than the whole thread.
+ *
+ * The loaded window is every message with a (received timestamp, message id) key at or after
+ * the key of its oldest message. Anchoring the window on a key rather than on a count means that
+ * reloads triggered by new or changed messages keep everything the user has already scrolled
+ * through, and the cost of each query is proportional to the size of the window rather than the
+ * size of the conversation. The parts of the window's messages are fetched with one query for the
+ * whole window instead of being group-concatenated into every message row.
+ *
+ * When the only changes since the last load are messages updated in place, as published by
+ * {@link MessagingChangeFeed}, the reload queries just those messages and delivers a cursor that
+ * shares the rows of the previous one with the updated rows patched over them.
+ */
+class ConversationMessagesLoader extends BoundCursorLoader {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private final String mConversationId;
+    private final int mPageSize;
+    private final MessagePositionIndex mPositionIndex;
+
+    // Key of the oldest message in the window, or the key above every message until the first
+    // page has been loaded
+    private long mWindowTimestamp = Long.MAX_VALUE;
+    private long mWindowMessageId = Long.MAX_VALUE;
+    // Whether the window already reaches back to the start of the conversation
+    private boolean mWindowComplete;
+    // Pages to add to the window on the next load
+    private int mPendingPages = 1;
+    // Whether an extension has been requested but its cursor not yet delivered
+    private boolean mLoadingOlder;
+    private int mOlderMessageCount;
+
+    // Changes published since the last load started: whether messages may have been added or
+    // removed, and the ids of the messages updated in place
+    private boolean mMessagesChanged;
+    private final HashSet<String> mUpdatedMessageIds = new HashSet<String>();
+    // The last cursor delivered, whose rows a load patching updated messages reuses
+    private WindowCursor mDeliveredCursor;
+
+    private final ChangeListener mChangeListener = new ChangeListener() {
+        @Override
+        public void onChanged(final Change change) {
+            if (!change.isMessagesChanged(mConversationId)) {
+                return;
+            }
+            final Set<String> updatedMessageIds = change.getUpdatedMessageIds(mConversationId);
+            synchronized (ConversationMessagesLoader.this) {
+                if (updatedMessageIds == null) {
+                    mMessagesChanged = true;
+                } else {
+                    mUpdatedMessageIds.addAll(updatedMessageIds);
+                }
+            }
+        }
+    };
+
+    ConversationMessagesLoader(final String bindingId, final Context context,
+            final String conversationId, final int pageSize,
+            final MessagePositionIndex positionIndex) {
+        super(bindingId, context,
+                MessagingContentProvider.buildConversationMessagesUri(conversationId),
+                ConversationMessageData.getProjection(), null, null, null);
+        mConversationId = conversationId;
+        mPageSize = pageSize;
+        mPositionIndex = positionIndex;
+        MessagingChangeFeed.addListener(mChangeListener);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        // Only the loader thread moves the window, so the lock is only held to publish it
+        final int pendingPages;
+        final boolean messagesChanged;
+        final HashSet<String> updatedMessageIds;
+        final WindowCursor deliveredCursor;
+        synchronized (this) {
+            pendingPages = mWindowComplete ? 0 : mPendingPages;
+            mPendingPages = 0;
+            messagesChanged = mMessagesChanged;
+            mMessagesChanged = false;
+            updatedMessageIds = new HashSet<String>(mUpdatedMessageIds);
+            mUpdatedMessageIds.clear();
+            deliveredCursor = mDeliveredCursor;
+        }
+        // Reloads not explained by published updates (e.g. the first one) query the whole window
+        if (pendingPages == 0 && !messagesChanged && !updatedMessageIds.isEmpty()
+                && updatedMessageIds.size() <= mPageSize && deliveredCursor != null) {
+            final Cursor patchedCursor = deliveredCursor.patch(db, updatedMessageIds);
+            if (patchedCursor != null) {
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "ConversationMessagesLoader: Reloaded "
+                            + updatedMessageIds.size() + " updated messages of conversation "
+                            + mConversationId);
+                }
+                return patchedCursor;
+            }
+        }
+        if (pendingPages > 0) {
+            extendWindow(db, pendingPages * mPageSize);
+        }
+        final boolean windowComplete;
+        final long windowTimestamp;
+        final long windowMessageId;
+        final String[] windowArgs;
+        synchronized (this) {
+            windowComplete = mWindowComplete;
+            windowTimestamp = mWindowTimestamp;
+            windowMessageId = mWindowMessageId;
+            windowArgs = new String[] {
+                    mConversationId,
+                    Long.toString(mWindowTimestamp),
+                    Long.toString(mWindowTimestamp),
+                    Long.toString(mWindowMessageId) };
+            setUri(MessagingContentProvider.buildConversationWindowUri(mConversationId,
+                    mWindowTimestamp, mWindowMessageId));
+        }
+
+        final Cursor cursor = super.loadInBackground();
+        if (cursor == null) {
+            return null;
+        }
+        final HashMap<String, List<MessagePartData>> parts = loadWindowParts(db, windowArgs);
+        final int olderMessageCount = windowComplete ? 0 : countOlderMessages(db, windowArgs);
+        synchronized (this) {
+            mOlderMessageCount = olderMessageCount;
+        }
+        mPositionIndex.updateWindow(mConversationId, windowTimestamp, windowMessageId, cursor,
+                olderMessageCount);
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "ConversationMessagesLoader: Loaded " + cursor.getCount()
+                    + " messages of conversation " + mConversationId + ", "
+                    + olderMessageCount + " older messages not loaded");
+        }
+        return new WindowCursor(new WindowRows(cursor), parts, null);
+    }
+
+    @Override
+    public void deliverResult(final Cursor cursor) {
+        synchronized (this) {
+            mLoadingOlder = false;
+            mDeliveredCursor = (cursor instanceof WindowCursor) ? (WindowCursor) cursor : null;
+        }
+        super.deliverResult(cursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        MessagingChangeFeed.removeListener(mChangeListener);
+        synchronized (this) {
+            mDeliveredCursor = null;
+        }
+    }
+
+    /**
+     * Extend the window by a page of older messages. The window is reloaded, which keeps the
+     * loader's existing cursor until the extended one is delivered.
+     * @return false if there are no older messages or an extension is already pending
+     */
+    boolean loadOlderMessages() {
+        synchronized (this) {
+            if (mWindowComplete || mLoadingOlder) {
+                return false;
+            }
+            mLoadingOlder = true;
+            mPendingPages++;
+        }
+        onContentChanged();
+        return true;
+    }
+
+    /**
+     * Extend the window back far enough to hold the message at a position within the whole
+     * conversation, e.g. one the widget scrolls to
+     * @return false if the window already holds it or an extension is already pending
+     */
+    boolean loadMessagesFrom(final int position) {
+        synchronized (this) {
+            if (mWindowComplete || mLoadingOlder || position >= mOlderMessageCount) {
+                return false;
+            }
+            mLoadingOlder = true;
+            mPendingPages += (mOlderMessageCount - position + mPageSize - 1) / mPageSize;
+        }
+        onContentChanged();
+        return true;
+    }
+
+    /**
+     * @return whether there are messages older than the ones loaded so far
+     */
+    synchronized boolean hasOlderMessages() {
+        return !mWindowComplete;
+    }
+
+    /**
+     * @return the number of messages older than the ones loaded, i.e. the position within the
+     *         whole conversation of the first loaded message
+     */
+    synchronized int getOlderMessageCount() {
+        return mOlderMessageCount;
+    }
+
+    private void extendWindow(final DatabaseWrapper db, final int count) {
+        final long windowTimestamp;
+        final long windowMessageId;
+        synchronized (this) {
+            windowTimestamp = mWindowTimestamp;
+            windowMessageId = mWindowMessageId;
+        }
+        final String[] startArgs = new String[] {
+                mConversationId,
+                Long.toString(windowTimestamp),
+                Long.toString(windowTimestamp),
+                Long.toString(windowMessageId),
+                Integer.toString(count - 1) };
+        final Cursor cursor = db.rawQuery(
+                ConversationMessageData.getConversationWindowStartQuerySql(), startArgs);
+        try {
+            synchronized (this) {
+                if (cursor.moveToFirst()) {
+                    mWindowTimestamp = cursor.getLong(
+                            ConversationMessageData.INDEX_WINDOW_START_TIMESTAMP);
+                    mWindowMessageId = cursor.getLong(
+                            ConversationMessageData.INDEX_WINDOW_START_MESSAGE_ID);
+                } else {
+                    // Fewer than count messages left, take all of them
+                    mWindowTimestamp = Long.MIN_VALUE;
+                    mWindowMessageId = Long.MIN_VALUE;
+                    mWindowComplete = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static HashMap<String, List<MessagePartData>> loadWindowParts(
+            final DatabaseWrapper db, final String[] windowArgs) {
+        final HashMap<String, List<MessagePartData>> parts =
+                new HashMap<String, List<MessagePartData>>();
+        final Cursor cursor = db.rawQuery(
+                ConversationMessageData.getConversationWindowPartsQuerySql(), windowArgs);
+        try {
+            // Parts come grouped by message
+            String messageId = null;
+            List<MessagePartData> messageParts = null;
+            while (cursor.moveToNext()) {
+                final String partMessageId = cursor.getString(
+                        ConversationMessageData.INDEX_WINDOW_PART_MESSAGE_ID);
+                if (!partMessageId.equals(messageId)) {
+                    messageId = partMessageId;
+                    messageParts = new ArrayList<MessagePartData>();
+                    parts.put(messageId, messageParts);
+                }
+                messageParts.add(ConversationMessageData.makePartData(
+                        cursor.getString(ConversationMessageData.INDEX_WINDOW_PART_ID),
+                        cursor.getString(ConversationMessageData.INDEX_WINDOW_PART_CONTENT_TYPE),
+                        cursor.getString(ConversationMessageData.INDEX_WINDOW_PART_CONTENT_URI),
+                        cursor.getString(ConversationMessageData.INDEX_WINDOW_PART_WIDTH),
+                        cursor.getString(ConversationMessageData.INDEX_WINDOW_PART_HEIGHT),
+                        cursor.getString(ConversationMessageData.INDEX_WINDOW_PART_TEXT),
+                        messageId));
+            }
+        } finally {
+            cursor.close();
+        }
+        return parts;
+    }
+
+    private static int countOlderMessages(final DatabaseWrapper db, final String[] windowArgs) {
+        final Cursor cursor = db.rawQuery(
+                ConversationMessageData.getConversationOlderMessageCountQuerySql(), windowArgs);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The rows of a window, shared by the cursors patching updated messages over them and closed
+     * once all of those are closed. Reads of the rows hold their lock, as each of the cursors
+     * sharing them moves them to its own position first.
+     */
+    @VisibleForTesting
+    static class WindowRows {
+        private final Cursor mCursor;
+        // Window positions by message id
+        private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+        private int mRefCount = 1;
+
+        WindowRows(final Cursor cursor) {
+            mCursor = cursor;
+            while (cursor.moveToNext()) {
+                mPositions.put(cursor.getString(ConversationMessageData.INDEX_MESSAGE_ID),
+                        cursor.getPosition());
+            }
+            cursor.moveToPosition(-1);
+        }
+
+        synchronized boolean acquire() {
+            if (mRefCount == 0) {
+                return false;
+            }
+            mRefCount++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (--mRefCount == 0) {
+                mCursor.close();
+            }
+        }
+
+        /**
+         * @return the rows moved to a position, to read while holding the lock of the rows
+         */
+        private Cursor seek(final int position) {
+            mCursor.moveToPosition(position);
+            return mCursor;
+        }
+    }
+
+    /**
+     * Message cursor of a window together with the parts of its messages, and the rows of
+     * messages updated since the window was queried. The cursor keeps its own position, so that
+     * it can be read while the cursor it was patched from is still in use.
+     */
+    @VisibleForTesting
+    static class WindowCursor extends CursorWrapper
+            implements ConversationMessageData.MessagePartsLookup {
+        private final WindowRows mRows;
+        private final HashMap<String, List<MessagePartData>> mParts;
+        // Updated rows by window position, or null if there are none
+        private final SparseArray<Object[]> mPatchedRows;
+        private int mPosition = -1;
+        // Updated row at the cursor position, if any
+        private Object[] mPatchedRow;
+        private boolean mClosed;
+
+        WindowCursor(final WindowRows rows, final HashMap<String, List<MessagePartData>> parts,
+                final SparseArray<Object[]> patchedRows) {
+            super(rows.mCursor);
+            mRows = rows;
+            mParts = parts;
+            mPatchedRows = patchedRows;
+        }
+
+        @Override
+        public List<MessagePartData> getMessageParts(final String messageId) {
+            final List<MessagePartData> messageParts = mParts.get(messageId);
+            // A message without any parts is still in the window
+            return messageParts != null ? messageParts : new ArrayList<MessagePartData>();
+        }
+
+        /**
+         * Make a cursor of the same window with the given messages reloaded
+         * @return the cursor, or null if the messages can't be patched into the window, e.g.
+         *         because one of them has been deleted
+         */
+        WindowCursor patch(final DatabaseWrapper db, final Set<String> messageIds) {
+            if (!mRows.acquire()) {
+                return null;
+            }
+            boolean patched = false;
+            final Cursor cursor = db.rawQuery(
+                    ConversationMessageData.getConversationMessagesByIdQuerySql(
+                            messageIds.size()),
+                    messageIds.toArray(new String[messageIds.size()]));
+            try {
+                final SparseArray<Object[]> patchedRows = (mPatchedRows == null)
+                        ? new SparseArray<Object[]>() : mPatchedRows.clone();
+                int windowMessageCount = 0;
+                for (final String messageId : messageIds) {
+                    // Messages older than the window don't need patching
+                    if (mRows.mPositions.containsKey(messageId)) {
+                        windowMessageCount++;
+                    }
+                }
+                int patchedCount = 0;
+                while (cursor.moveToNext()) {
+                    final Integer position = mRows.mPositions.get(
+                            cursor.getString(ConversationMessageData.INDEX_MESSAGE_ID));
+                    if (position != null) {
+                        patchedRows.put(position, copyRow(cursor));
+                        patchedCount++;
+                    }
+                }
+                if (patchedCount < windowMessageCount) {
+                    return null;
+                }
+                patched = true;
+                return new WindowCursor(mRows, mParts, patchedRows);
+            } finally {
+                cursor.close();
+                if (!patched) {
+                    mRows.release();
+                }
+            }
+        }
+
+        private static Object[] copyRow(final Cursor cursor) {
+            final Object[] row = new Object[cursor.getColumnCount()];
+            for (int i = 0; i < row.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            return row;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mRows.release();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public int getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public boolean moveToPosition(final int position) {
+            final int count = getCount();
+            final boolean moved;
+            if (position >= count) {
+                mPosition = count;
+                moved = false;
+            } else if (position < 0) {
+                mPosition = -1;
+                moved = false;
+            } else {
+                mPosition = position;
+                moved = true;
+            }
+            mPatchedRow = (!moved || mPatchedRows == null) ? null : mPatchedRows.get(mPosition);
+            return moved;
+        }
+
+        @Override
+        public boolean move(final int offset) {
+            return moveToPosition(mPosition + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(getCount() - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(mPosition + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(mPosition - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return mPosition == 0 && getCount() != 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            final int count = getCount();
+            return mPosition == count - 1 && count != 0;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return getCount() == 0 || mPosition == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            final int count = getCount();
+            return count == 0 || mPosition == count;
+        }
+
+        @Override
+        public int getType(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getType(columnIndex);
+                }
+            }
+            final Object value = mPatchedRow[columnIndex];
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return Cursor.FIELD_TYPE_BLOB;
+            }
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).isNull(columnIndex);
+                }
+            }
+            return mPatchedRow[columnIndex] == null;
+        }
+
+        @Override
+        public String getString(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getString(columnIndex);
+                }
+            }
+            final Object value = mPatchedRow[columnIndex];
+            if (value instanceof byte[]) {
+                return new String((byte[]) value);
+            }
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public void copyStringToBuffer(final int columnIndex, final CharArrayBuffer buffer) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    mRows.seek(mPosition).copyStringToBuffer(columnIndex, buffer);
+                }
+                return;
+            }
+            final String value = getString(columnIndex);
+            if (value == null) {
+                buffer.sizeCopied = 0;
+                return;
+            }
+            final char[] data = buffer.data;
+            if (data == null || data.length < value.length()) {
+                buffer.data = value.toCharArray();
+            } else {
+                value.getChars(0, value.length(), data, 0);
+            }
+            buffer.sizeCopied = value.length();
+        }
+
+        @Override
+        public byte[] getBlob(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getBlob(columnIndex);
+                }
+            }
+            final Object value = mPatchedRow[columnIndex];
+            if (value instanceof String) {
+                return ((String) value).getBytes();
+            }
+            return (byte[]) value;
+        }
+
+        @Override
+        public long getLong(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getLong(columnIndex);
+                }
+            }
+            final Object value = mPatchedRow[columnIndex];
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof String) {
+                try {
+                    return Long.parseLong((String) value);
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public int getInt(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getInt(columnIndex);
+                }
+            }
+            return (int) getLong(columnIndex);
+        }
+
+        @Override
+        public short getShort(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getShort(columnIndex);
+                }
+            }
+            return (short) getLong(columnIndex);
+        }
+
+        @Override
+        public double getDouble(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getDouble(columnIndex);
+                }
+            }
+            final Object value = mPatchedRow[columnIndex];
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public float getFloat(final int columnIndex) {
+            if (mPatchedRow == null) {
+                synchronized (mRows) {
+                    return mRows.seek(mPosition).getFloat(columnIndex);
+                }
+            }
+            return (float) getDouble(columnIndex);
+        }
+    }
+}
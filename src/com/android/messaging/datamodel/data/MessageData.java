@@ -26,7 +26,6 @@ import android.text.TextUtils;
 
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
-import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.BugleGservices;
@@ -436,13 +435,16 @@ public class MessageData implements Parcelable {
     }
 
     /**
-     * Note this is not thread safe so callers need to make sure they own the wrapper + statements
-     * while they call this and use the returned value.
+     * @return the statement inserting a message row, see {@link #bindInsertStatement}
      */
-    public SQLiteStatement getInsertStatement(final DatabaseWrapper db) {
-        final SQLiteStatement insert = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_INSERT_MESSAGE, INSERT_MESSAGE_SQL);
-        insert.clearBindings();
+    public static String getInsertSql() {
+        return INSERT_MESSAGE_SQL;
+    }
+
+    /**
+     * Bind the values of the message row to a statement made from {@link #getInsertSql}
+     */
+    public void bindInsertStatement(final SQLiteStatement insert) {
         insert.bindString(INDEX_CONVERSATION_ID, mConversationId);
         insert.bindString(INDEX_PARTICIPANT_ID, mParticipantId);
         insert.bindString(INDEX_SELF_ID, mSelfId);
@@ -469,7 +471,6 @@ public class MessageData implements Parcelable {
         }
         insert.bindLong(INDEX_RAW_TELEPHONY_STATUS, mRawStatus);
         insert.bindLong(INDEX_RETRY_START_TIMESTAMP, mRetryStartTimestamp);
-        return insert;
     }
 
     public final String getMessageId() {
@@ -28,7 +28,6 @@ import android.text.TextUtils;
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
-import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MediaScratchFileProvider;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.action.UpdateMessagePartSizeAction;
@@ -273,14 +272,16 @@ public class MessagePartData implements Parcelable {
     }
 
     /**
-     * Note this is not thread safe so callers need to make sure they own the wrapper + statements
-     * while they call this and use the returned value.
+     * @return the statement inserting a part row, see {@link #bindInsertStatement}
      */
-    public SQLiteStatement getInsertStatement(final DatabaseWrapper db,
-                                              final String conversationId) {
-        final SQLiteStatement insert = db.getStatementInTransaction(
-                DatabaseWrapper.INDEX_INSERT_MESSAGE_PART, INSERT_MESSAGE_PART_SQL);
-        insert.clearBindings();
+    public static String getInsertSql() {
+        return INSERT_MESSAGE_PART_SQL;
+    }
+
+    /**
+     * Bind the values of the part row to a statement made from {@link #getInsertSql}
+     */
+    public void bindInsertStatement(final SQLiteStatement insert, final String conversationId) {
         insert.bindString(INDEX_MESSAGE_ID, mMessageId);
         if (mText != null) {
             insert.bindString(INDEX_TEXT, mText);
@@ -294,7 +295,6 @@ public class MessagePartData implements Parcelable {
         insert.bindLong(INDEX_WIDTH, mWidth);
         insert.bindLong(INDEX_HEIGHT, mHeight);
         insert.bindString(INDEX_CONVERSATION_ID, conversationId);
-        return insert;
     }
 
     public final String getPartId() {
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Positions of the messages of an open conversation, i.e. the (received timestamp, message id)
+ * keys of all its messages in the order they are shown, oldest first.
+ *
+ * The index is built with one query over the conversation's keys the first time a position is
+ * looked up, and then kept up to date from the windows of messages the conversation's loader
+ * loads after each change: the part of the index covered by a window is replaced with the window's
+ * keys, and the part before it is checked against the loader's count of older messages. Looking
+ * up k messages then takes O(k log n) instead of a query over the whole conversation.
+ */
+class MessagePositionIndex {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Conversation the index was built for, or null if it has to be built
+    private String mConversationId;
+    // Keys of the messages, sorted by received timestamp and then message id
+    private long[] mTimestamps = new long[INITIAL_CAPACITY];
+    private long[] mMessageIds = new long[INITIAL_CAPACITY];
+    private int mSize;
+    // Received timestamps by message id, to find the keys of the messages looked up
+    private final HashMap<Long, Long> mTimestampsById = new HashMap<Long, Long>();
+
+    /**
+     * @return the sorted positions of the given messages of the conversation, skipping those
+     *         that aren't in it
+     */
+    synchronized List<Integer> getPositions(final DatabaseWrapper db,
+            final String conversationId, final List<Long> messageIds) {
+        if (!TextUtils.equals(mConversationId, conversationId)) {
+            final Cursor cursor = db.rawQuery(
+                    ConversationMessageData.getConversationMessageKeysQuerySql(),
+                    new String[] { conversationId });
+            try {
+                build(conversationId, cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+        return getPositions(messageIds);
+    }
+
+    /**
+     * Build the index from a cursor of message id and received timestamp rows sorted by key
+     */
+    @VisibleForTesting
+    synchronized void build(final String conversationId, final Cursor cursor) {
+        clear();
+        while (cursor.moveToNext()) {
+            add(cursor.getLong(ConversationMessageData.INDEX_KEY_RECEIVED_TIMESTAMP),
+                    cursor.getLong(ConversationMessageData.INDEX_KEY_MESSAGE_ID));
+        }
+        mConversationId = conversationId;
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "MessagePositionIndex: Built index of " + mSize
+                    + " messages of conversation " + conversationId);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized List<Integer> getPositions(final List<Long> messageIds) {
+        final ArrayList<Integer> positions = new ArrayList<Integer>(messageIds.size());
+        for (final Long messageId : messageIds) {
+            final Long timestamp = mTimestampsById.get(messageId);
+            if (timestamp != null) {
+                final int position = search(timestamp, messageId);
+                if (position >= 0) {
+                    positions.add(position);
+                }
+            }
+        }
+        Collections.sort(positions);
+        return positions;
+    }
+
+    /**
+     * Update the index with a loaded window of the conversation's messages
+     * @param windowTimestamp received timestamp of the key the window starts at
+     * @param windowMessageId message id of the key the window starts at
+     * @param cursor the window's messages, newest first
+     * @param olderMessageCount the number of messages before the window
+     */
+    synchronized void updateWindow(final String conversationId, final long windowTimestamp,
+            final long windowMessageId, final Cursor cursor, final int olderMessageCount) {
+        if (!TextUtils.equals(mConversationId, conversationId)) {
+            return;
+        }
+        final int start = lowerBound(windowTimestamp, windowMessageId);
+        if (start != olderMessageCount) {
+            // Something changed before the window, which only a rebuild will pick up
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "MessagePositionIndex: " + start + " indexed messages before the "
+                        + "window but " + olderMessageCount + " in conversation "
+                        + conversationId + ", dropping index");
+            }
+            invalidate();
+            return;
+        }
+        for (int i = start; i < mSize; i++) {
+            mTimestampsById.remove(mMessageIds[i]);
+        }
+        mSize = start;
+        final int position = cursor.getPosition();
+        if (cursor.moveToLast()) {
+            do {
+                add(cursor.getLong(ConversationMessageData.INDEX_RECEIVED_TIMESTAMP),
+                        cursor.getLong(ConversationMessageData.INDEX_MESSAGE_ID));
+            } while (cursor.moveToPrevious());
+        }
+        cursor.moveToPosition(position);
+    }
+
+    /**
+     * Drop the index, e.g. when it can't be kept up to date, so the next lookup rebuilds it
+     */
+    synchronized void invalidate() {
+        clear();
+        mConversationId = null;
+    }
+
+    private void clear() {
+        mSize = 0;
+        mTimestampsById.clear();
+    }
+
+    private void add(final long timestamp, final long messageId) {
+        if (mSize == mTimestamps.length) {
+            final int capacity = mSize * 2;
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mMessageIds = Arrays.copyOf(mMessageIds, capacity);
+        }
+        if (mSize > 0 && compare(timestamp, messageId,
+                mTimestamps[mSize - 1], mMessageIds[mSize - 1]) <= 0) {
+            // Keys sharing a timestamp may come in any id order; insert in place
+            final int index = lowerBound(timestamp, messageId);
+            System.arraycopy(mTimestamps, index, mTimestamps, index + 1, mSize - index);
+            System.arraycopy(mMessageIds, index, mMessageIds, index + 1, mSize - index);
+            mTimestamps[index] = timestamp;
+            mMessageIds[index] = messageId;
+        } else {
+            mTimestamps[mSize] = timestamp;
+            mMessageIds[mSize] = messageId;
+        }
+        mSize++;
+        mTimestampsById.put(messageId, timestamp);
+    }
+
+    /**
+     * @return the position of the key, or -1 if it's not in the index
+     */
+    private int search(final long timestamp, final long messageId) {
+        final int index = lowerBound(timestamp, messageId);
+        return (index < mSize && mTimestamps[index] == timestamp
+                && mMessageIds[index] == messageId) ? index : -1;
+    }
+
+    /**
+     * @return the position of the first key at or after the given key
+     */
+    private int lowerBound(final long timestamp, final long messageId) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (compare(mTimestamps[middle], mMessageIds[middle], timestamp, messageId) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(final long timestamp1, final long messageId1,
+            final long timestamp2, final long messageId2) {
+        if (timestamp1 != timestamp2) {
+            return timestamp1 < timestamp2 ? -1 : 1;
+        }
+        return messageId1 < messageId2 ? -1 : (messageId1 == messageId2 ? 0 : 1);
+    }
+}
@@ -16,9 +16,9 @@
 
 package com.android.messaging.datamodel.data;
 
-import android.content.ContentValues;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Color;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -489,27 +489,47 @@ public class ParticipantData implements Parcelable {
         return (TextUtils.equals(mSendDestination, unknownSender));
     }
 
-    public ContentValues toContentValues() {
-        final ContentValues values = new ContentValues();
-        values.put(ParticipantColumns.SUB_ID, mSubId);
-        values.put(ParticipantColumns.SIM_SLOT_ID, mSlotId);
-        values.put(DatabaseHelper.ParticipantColumns.SEND_DESTINATION, mSendDestination);
+    // SQL statement to insert a participant row, see bindInsertStatement()
+    private static final String INSERT_PARTICIPANT_SQL =
+            "INSERT INTO " + DatabaseHelper.PARTICIPANTS_TABLE + " ("
+            + ParticipantColumns.SUB_ID + ", "
+            + ParticipantColumns.SIM_SLOT_ID + ", "
+            + ParticipantColumns.SEND_DESTINATION + ", "
+            + ParticipantColumns.DISPLAY_DESTINATION + ", "
+            + ParticipantColumns.NORMALIZED_DESTINATION + ", "
+            + ParticipantColumns.FULL_NAME + ", "
+            + ParticipantColumns.FIRST_NAME + ", "
+            + ParticipantColumns.PROFILE_PHOTO_URI + ", "
+            + ParticipantColumns.CONTACT_ID + ", "
+            + ParticipantColumns.LOOKUP_KEY + ", "
+            + ParticipantColumns.BLOCKED + ", "
+            + ParticipantColumns.SUBSCRIPTION_COLOR + ", "
+            + ParticipantColumns.SUBSCRIPTION_NAME
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public static String getInsertSql() {
+        return INSERT_PARTICIPANT_SQL;
+    }
 
+    /**
+     * Bind the values of the participant row to a statement made from {@link #getInsertSql}
+     */
+    public void bindInsertStatement(final SQLiteStatement insert) {
+        insert.bindLong(1, mSubId);
+        insert.bindLong(2, mSlotId);
+        DatabaseWrapper.bindStringOrNull(insert, 3, mSendDestination);
         if (!isUnknownSender()) {
-            values.put(DatabaseHelper.ParticipantColumns.DISPLAY_DESTINATION, mDisplayDestination);
-            values.put(DatabaseHelper.ParticipantColumns.NORMALIZED_DESTINATION,
-                    mNormalizedDestination);
-            values.put(ParticipantColumns.FULL_NAME, mFullName);
-            values.put(ParticipantColumns.FIRST_NAME, mFirstName);
+            DatabaseWrapper.bindStringOrNull(insert, 4, mDisplayDestination);
+            DatabaseWrapper.bindStringOrNull(insert, 5, mNormalizedDestination);
+            DatabaseWrapper.bindStringOrNull(insert, 6, mFullName);
+            DatabaseWrapper.bindStringOrNull(insert, 7, mFirstName);
         }
-
-        values.put(ParticipantColumns.PROFILE_PHOTO_URI, mProfilePhotoUri);
-        values.put(ParticipantColumns.CONTACT_ID, mContactId);
-        values.put(ParticipantColumns.LOOKUP_KEY, mLookupKey);
-        values.put(ParticipantColumns.BLOCKED, mBlocked);
-        values.put(ParticipantColumns.SUBSCRIPTION_COLOR, mSubscriptionColor);
-        values.put(ParticipantColumns.SUBSCRIPTION_NAME, mSubscriptionName);
-        return values;
+        DatabaseWrapper.bindStringOrNull(insert, 8, mProfilePhotoUri);
+        insert.bindLong(9, mContactId);
+        DatabaseWrapper.bindStringOrNull(insert, 10, mLookupKey);
+        insert.bindLong(11, mBlocked ? 1 : 0);
+        insert.bindLong(12, mSubscriptionColor);
+        DatabaseWrapper.bindStringOrNull(insert, 13, mSubscriptionName);
     }
 
     public ParticipantData(final Parcel in) {
@@ -28,6 +28,8 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         extends BindableOnceData
         implements MediaRequest<T>, MediaResourceLoadListener<T> {
     private MediaResourceLoadListener<T> mListener;
+    // Lets MediaResourceManager drop the request from its queue once it's no longer wanted
+    private volatile Runnable mUnboundCallback;
 
     public BindableMediaRequest(final MediaResourceLoadListener<T> listener) {
         mListener = listener;
@@ -56,8 +58,20 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         }
     }
 
+    /**
+     * Sets a callback to be run when the request is unbound
+     */
+    void setUnboundCallback(final Runnable unboundCallback) {
+        mUnboundCallback = unboundCallback;
+    }
+
     @Override
     protected void unregisterListeners() {
         mListener = null;
+        if (mUnboundCallback != null) {
+            final Runnable unboundCallback = mUnboundCallback;
+            mUnboundCallback = null;
+            unboundCallback.run();
+        }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+package com.android.messaging.datamodel.media;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+
+import com.android.messaging.util.ImageUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Loads the child image of a {@link CircleTileRequestDescriptor} and draws it with a circle mask
+ * into a bitmap of the tile's size, which is kept in the avatar cache.
+ */
+public class CircleTileRequest extends ImageRequest<CircleTileRequestDescriptor> {
+    public CircleTileRequest(final Context context, final CircleTileRequestDescriptor descriptor) {
+        super(context, descriptor);
+    }
+
+    @Override
+    protected ImageResource loadMediaInternal(List<MediaRequest<ImageResource>> chainedTask)
+            throws IOException {
+        final MediaRequest<ImageResource> childRequest =
+                mDescriptor.childDescriptor.buildSyncMediaRequest(mContext);
+        final ImageResource resource =
+                MediaResourceManager.get().requestMediaResourceSync(childRequest);
+        if (resource == null) {
+            throw new FileNotFoundException("Unable to load " + childRequest.getKey());
+        }
+        try {
+            final Bitmap resourceBitmap = resource.getBitmap();
+            final RectF resourceRect = new RectF(
+                    0, 0, resourceBitmap.getWidth(), resourceBitmap.getHeight());
+            final Bitmap tileBitmap = getBitmapPool().createOrReuseBitmap(
+                    mDescriptor.desiredWidth, mDescriptor.desiredHeight);
+            final RectF tileRect = new RectF(0, 0, tileBitmap.getWidth(), tileBitmap.getHeight());
+            ImageUtils.drawBitmapWithCircleOnCanvas(resourceBitmap, new Canvas(tileBitmap),
+                    resourceRect, tileRect, null /* bitmapPaint */, false /* fillBackground */,
+                    ImageUtils.DEFAULT_CIRCLE_BACKGROUND_COLOR /* circleBackgroundColor */,
+                    ImageUtils.DEFAULT_CIRCLE_STROKE_COLOR /* circleStrokeColor */);
+            return new DecodedImageResource(getKey(), tileBitmap,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } finally {
+            resource.release();
+        }
+    }
+
+    @Override
+    public int getCacheId() {
+        return BugleMediaCacheManager.AVATAR_IMAGE_CACHE;
+    }
+
+    @Override
+    protected InputStream getInputStreamForResource() throws FileNotFoundException {
+        throw new IllegalStateException("Circle tile request doesn't support input stream!");
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+package com.android.messaging.datamodel.media;
+
+import android.content.Context;
+
+/**
+ * Describes one tile of a composite image, i.e. a child image drawn with a circle mask at the
+ * size it takes up in the composite. Tiles are cached on their own, so the same participant's
+ * tile is reused by all the group avatars of that size it appears in.
+ */
+public class CircleTileRequestDescriptor extends ImageRequestDescriptor {
+    public final ImageRequestDescriptor childDescriptor;
+
+    public CircleTileRequestDescriptor(final ImageRequestDescriptor childDescriptor,
+            final int tileWidth, final int tileHeight) {
+        super(tileWidth, tileHeight);
+        this.childDescriptor = childDescriptor;
+    }
+
+    @Override
+    public String getKey() {
+        final String childKey = childDescriptor.getKey();
+        if (childKey == null) {
+            return null;
+        }
+        return new StringBuilder()
+                .append("tile").append(KEY_PART_DELIMITER)
+                .append(desiredWidth).append(KEY_PART_DELIMITER)
+                .append(desiredHeight).append(KEY_PART_DELIMITER)
+                .append(childKey).toString();
+    }
+
+    @Override
+    public MediaRequest<ImageResource> buildSyncMediaRequest(final Context context) {
+        return new CircleTileRequest(context, this);
+    }
+}
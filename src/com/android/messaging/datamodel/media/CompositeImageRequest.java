@@ -24,21 +24,48 @@ import android.graphics.RectF;
 import android.media.ExifInterface;
 
 import com.android.messaging.util.Assert;
-import com.android.messaging.util.ImageUtils;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Requests a composite image resource. The composite image resource is constructed by first
- * sequentially requesting a number of sub image resources specified by
- * {@link CompositeImageRequestDescriptor#getChildRequestDescriptors()}. After this, the
- * individual sub images are composed into the final image onto their respective target rects
- * returned by {@link CompositeImageRequestDescriptor#getChildRequestTargetRects()}.
+ * concurrently requesting a circle tile for each of the sub image resources specified by
+ * {@link CompositeImageRequestDescriptor#getChildRequestDescriptors()}. After this, the tiles
+ * are drawn into the final image onto their respective target rects returned by
+ * {@link CompositeImageRequestDescriptor#getChildRequestTargetRects()}. The tiles are cached on
+ * their own (see {@link CircleTileRequestDescriptor}), so composites sharing a participant only
+ * load and mask that participant's image once.
  */
 public class CompositeImageRequest<D extends CompositeImageRequestDescriptor>
         extends ImageRequest<D> {
+    // Loads the tiles of composite images besides the one loaded by the requesting thread. The
+    // tiles run on their own threads rather than on the media loading executor, which the
+    // composite request itself may be occupying.
+    private static final int TILE_LOADING_THREAD_COUNT = 3;
+    private static final ThreadPoolExecutor TILE_LOADING_EXECUTOR = new ThreadPoolExecutor(
+            TILE_LOADING_THREAD_COUNT, TILE_LOADING_THREAD_COUNT, 10L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(runnable, "CompositeImageTile");
+                }
+            });
+    static {
+        TILE_LOADING_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private final Bitmap mBitmap;
     private final Canvas mCanvas;
     private final Paint mPaint;
@@ -52,44 +79,65 @@ public class CompositeImageRequest<D extends CompositeImageRequestDescriptor>
     }
 
     @Override
-    protected ImageResource loadMediaInternal(List<MediaRequest<ImageResource>> chainedTask) {
+    protected ImageResource loadMediaInternal(List<MediaRequest<ImageResource>> chainedTask)
+            throws IOException {
         final List<? extends ImageRequestDescriptor> descriptors =
                 mDescriptor.getChildRequestDescriptors();
         final List<RectF> targetRects = mDescriptor.getChildRequestTargetRects();
         Assert.equals(descriptors.size(), targetRects.size());
         Assert.isTrue(descriptors.size() > 1);
 
-        for (int i = 0; i < descriptors.size(); i++) {
-            final MediaRequest<ImageResource> request =
-                    descriptors.get(i).buildSyncMediaRequest(mContext);
-            // Synchronously request the child image.
-            final ImageResource resource =
-                    MediaResourceManager.get().requestMediaResourceSync(request);
-            if (resource != null) {
-                try {
-                    final RectF avatarDestOnGroup = targetRects.get(i);
-
-                    // Draw the bitmap into a smaller size with a circle mask.
-                    final Bitmap resourceBitmap = resource.getBitmap();
-                    final RectF resourceRect = new RectF(
-                            0, 0, resourceBitmap.getWidth(), resourceBitmap.getHeight());
-                    final Bitmap smallCircleBitmap = getBitmapPool().createOrReuseBitmap(
-                            Math.round(avatarDestOnGroup.width()),
-                            Math.round(avatarDestOnGroup.height()));
-                    final RectF smallCircleRect = new RectF(
-                            0, 0, smallCircleBitmap.getWidth(), smallCircleBitmap.getHeight());
-                    final Canvas smallCircleCanvas = new Canvas(smallCircleBitmap);
-                    ImageUtils.drawBitmapWithCircleOnCanvas(resource.getBitmap(), smallCircleCanvas,
-                            resourceRect, smallCircleRect, null /* bitmapPaint */,
-                            false /* fillBackground */,
-                            ImageUtils.DEFAULT_CIRCLE_BACKGROUND_COLOR /* circleBackgroundColor */,
-                            ImageUtils.DEFAULT_CIRCLE_STROKE_COLOR /* circleStrokeColor */);
-                    final Matrix matrix = new Matrix();
-                    matrix.setRectToRect(smallCircleRect, avatarDestOnGroup,
-                            Matrix.ScaleToFit.FILL);
-                    mCanvas.drawBitmap(smallCircleBitmap, matrix, mPaint);
-                } finally {
-                    resource.release();
+        // Load the tiles concurrently, leaving the first one to this thread.
+        final List<Tile> tiles = new ArrayList<Tile>(descriptors.size());
+        try {
+            for (int i = 0; i < descriptors.size(); i++) {
+                final RectF avatarDestOnGroup = targetRects.get(i);
+                final CircleTileRequestDescriptor tileDescriptor =
+                        new CircleTileRequestDescriptor(descriptors.get(i),
+                                Math.max(1, Math.round(avatarDestOnGroup.width())),
+                                Math.max(1, Math.round(avatarDestOnGroup.height())));
+                final Tile tile = new Tile(new Callable<ImageResource>() {
+                    @Override
+                    public ImageResource call() {
+                        return MediaResourceManager.get().requestMediaResourceSync(
+                                tileDescriptor.buildSyncMediaRequest(mContext));
+                    }
+                });
+                tiles.add(tile);
+                if (i > 0) {
+                    TILE_LOADING_EXECUTOR.execute(tile);
+                }
+            }
+
+            for (int i = 0; i < tiles.size(); i++) {
+                final Tile tile = tiles.get(i);
+                // Loads the tile here unless the executor has already started it.
+                tile.run();
+                final ImageResource resource = tile.take();
+                if (resource != null) {
+                    try {
+                        // Blit the cached circle tile onto its place in the group.
+                        final Bitmap tileBitmap = resource.getBitmap();
+                        final RectF tileRect =
+                                new RectF(0, 0, tileBitmap.getWidth(), tileBitmap.getHeight());
+                        final Matrix matrix = new Matrix();
+                        matrix.setRectToRect(tileRect, targetRects.get(i),
+                                Matrix.ScaleToFit.FILL);
+                        mCanvas.drawBitmap(tileBitmap, matrix, mPaint);
+                    } finally {
+                        resource.release();
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted loading composite image tiles");
+        } finally {
+            // Tiles that weren't drawn, e.g. after an interruption, aren't loaded or are released
+            // once loaded rather than leaked
+            for (final Tile tile : tiles) {
+                if (tile.abandon()) {
+                    TILE_LOADING_EXECUTOR.remove(tile);
                 }
             }
         }
@@ -97,6 +145,84 @@ public class CompositeImageRequest<D extends CompositeImageRequestDescriptor>
         return new DecodedImageResource(getKey(), mBitmap, ExifInterface.ORIENTATION_NORMAL);
     }
 
+    /**
+     * Loads the resource of one tile, once, on whichever thread runs it first
+     */
+    @VisibleForTesting
+    static class Tile implements Runnable {
+        private final Callable<ImageResource> mLoader;
+        // Guarded by this
+        private boolean mStarted;
+        private boolean mDone;
+        private boolean mAbandoned;
+        private ImageResource mResource;
+
+        Tile(final Callable<ImageResource> loader) {
+            mLoader = loader;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mStarted || mAbandoned) {
+                    return;
+                }
+                mStarted = true;
+            }
+            ImageResource resource = null;
+            try {
+                resource = mLoader.call();
+            } catch (final Exception e) {
+                LogUtil.e(LogUtil.BUGLE_TAG, "Loading a composite image tile failed", e);
+            }
+            final boolean abandoned;
+            synchronized (this) {
+                abandoned = mAbandoned;
+                if (!abandoned) {
+                    mResource = resource;
+                }
+                mDone = true;
+                notifyAll();
+            }
+            if (abandoned && resource != null) {
+                resource.release();
+            }
+        }
+
+        /**
+         * Waits for the tile to be loaded and takes its resource, which the caller must release
+         * @return the resource, or null if loading it failed
+         */
+        synchronized ImageResource take() throws InterruptedException {
+            while (!mDone) {
+                wait();
+            }
+            final ImageResource resource = mResource;
+            mResource = null;
+            return resource;
+        }
+
+        /**
+         * Gives up on the tile: its resource is released if it has been loaded and not taken,
+         * or as soon as it's loaded
+         * @return whether the tile hasn't started loading, so it won't be loaded at all
+         */
+        boolean abandon() {
+            final ImageResource resource;
+            final boolean started;
+            synchronized (this) {
+                mAbandoned = true;
+                started = mStarted;
+                resource = mResource;
+                mResource = null;
+            }
+            if (resource != null) {
+                resource.release();
+            }
+            return !started;
+        }
+    }
+
     @Override
     public int getCacheId() {
         return BugleMediaCacheManager.AVATAR_IMAGE_CACHE;
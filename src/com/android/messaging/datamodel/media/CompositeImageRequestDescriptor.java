@@ -47,6 +47,16 @@ public abstract class CompositeImageRequestDescriptor extends ImageRequestDescri
         return mKey;
     }
 
+    @Override
+    public boolean isDiskCacheable() {
+        for (final ImageRequestDescriptor descriptor : mDescriptors) {
+            if (!descriptor.isDiskCacheable()) {
+                return false;
+            }
+        }
+        return !mDescriptors.isEmpty();
+    }
+
     public List<? extends ImageRequestDescriptor> getChildRequestDescriptors(){
         return mDescriptors;
     }
@@ -104,6 +104,14 @@ public abstract class ImageRequestDescriptor extends MediaRequestDescriptor<Imag
         return isStatic;
     }
 
+    /**
+     * Whether the loaded image may be kept in the on-disk image cache, i.e. whether the key
+     * identifies the image well enough for it to be reused across process restarts.
+     */
+    public boolean isDiskCacheable() {
+        return false;
+    }
+
     @Override
     public abstract MediaRequest<ImageResource> buildSyncMediaRequest(Context context);
 
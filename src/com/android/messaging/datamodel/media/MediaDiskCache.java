@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A size-bounded LRU cache of encoded images on disk. It is the second level behind the in-memory
+ * {@link MediaCache}s so that images survive process death and memory trims without having to
+ * be decoded again from their (often much larger) source.
+ *
+ * Each entry is a file named after a digest of the media request key, holding the image
+ * orientation followed by the encoded image bytes. Entries are written to a temporary file and
+ * renamed into place, and every completed write, removal and read is appended to a journal. On
+ * open the journal is replayed to rebuild the index in LRU order, and any file it does not list
+ * (e.g. left by a crash in the middle of a write) is deleted. The journal is compacted once it is
+ * mostly made of redundant records. Reads are only recorded to keep the LRU order across restarts,
+ * so they are buffered and written out with the next write or removal rather than on every hit.
+ *
+ * Entries remember the uri of the image they were made from, so the images of deleted messages
+ * can be removed (see {@link #removeSources}).
+ *
+ * The index is guarded by the cache's monitor. Files are opened for reading under it, so that a
+ * read always gets the file of the entry it looked up, and their contents are read and written
+ * outside it.
+ */
+class MediaDiskCache {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "bugle.media.disk.cache 2";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Journal records
+    private static final String CLEAN = "CLEAN";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    // Compact the journal when it has this many more records than there are entries
+    private static final int JOURNAL_REDUNDANT_RECORDS_LIMIT = 2000;
+
+    private static class Entry {
+        final String name;
+        final long length;
+        final long writtenMillis;
+        // Uri of the image the entry was made from, or null if not known
+        final String source;
+
+        Entry(final String name, final long length, final long writtenMillis,
+                final String source) {
+            this.name = name;
+            this.length = length;
+            this.writtenMillis = writtenMillis;
+            this.source = source;
+        }
+
+        String getCleanRecord() {
+            final StringBuilder record = new StringBuilder(CLEAN).append(' ').append(name)
+                    .append(' ').append(length).append(' ').append(writtenMillis);
+            if (source != null) {
+                try {
+                    record.append(' ').append(URLEncoder.encode(source, "UTF-8"));
+                } catch (final UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return record.toString();
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final long mMaxAgeMillis;
+
+    // Entries by file name in access order, least recently used first
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true /* accessOrder */);
+    private long mSizeBytes;
+    private Writer mJournalWriter;
+    private int mRedundantRecords;
+    private boolean mOpened;
+
+    MediaDiskCache(final File directory, final long maxSizeBytes, final long maxAgeMillis) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Look up an encoded image
+     * @return the image with no refs held or null if it is not cached (or no longer fresh)
+     */
+    @DoesNotRunOnMainThread
+    EncodedImageResource get(final String key) {
+        final String name = getEntryName(key);
+        final Entry entry;
+        final FileInputStream file;
+        synchronized (this) {
+            if (!ensureOpenLocked()) {
+                return null;
+            }
+            entry = mEntries.get(name);
+            if (entry == null) {
+                return null;
+            }
+            if (mMaxAgeMillis > 0 &&
+                    System.currentTimeMillis() - entry.writtenMillis > mMaxAgeMillis) {
+                // The source may have changed since, load it again
+                removeLocked(entry);
+                return null;
+            }
+            // A file replaced or evicted once it's open stays readable until it's closed
+            try {
+                file = new FileInputStream(new File(mDirectory, name));
+            } catch (final FileNotFoundException e) {
+                LogUtil.w(TAG, "MediaDiskCache: Missing " + name, e);
+                removeLocked(entry);
+                return null;
+            }
+            appendJournalLocked(READ + ' ' + name);
+        }
+
+        final DataInputStream input = new DataInputStream(file);
+        try {
+            if (file.getChannel().size() != entry.length) {
+                throw new IOException("Unexpected length " + file.getChannel().size());
+            }
+            final int orientation = input.readInt();
+            final byte[] imageBytes = new byte[(int) entry.length - 4];
+            input.readFully(imageBytes);
+            return new EncodedImageResource(key, imageBytes, orientation);
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: Error reading " + name, e);
+            synchronized (this) {
+                if (mEntries.get(name) == entry) {
+                    removeLocked(entry);
+                }
+            }
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Store an encoded image, replacing any earlier version
+     * @param source uri of the image it was made from, or null if not known
+     */
+    @DoesNotRunOnMainThread
+    void put(final String key, final String source, final byte[] imageBytes,
+            final int orientation) {
+        final long length = imageBytes.length + 4;
+        if (length > mMaxSizeBytes) {
+            return;
+        }
+        final String name = getEntryName(key);
+        synchronized (this) {
+            if (!ensureOpenLocked()) {
+                return;
+            }
+        }
+
+        // Writes are only made visible by the rename, so a crash can at worst leave a stray
+        // temporary file behind
+        final File tmpFile = new File(mDirectory, name + TMP_SUFFIX);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(tmpFile));
+            output.writeInt(orientation);
+            output.write(imageBytes);
+            output.close();
+            output = null;
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: Error writing " + name, e);
+            closeQuietly(output);
+            tmpFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmpFile.renameTo(new File(mDirectory, name))) {
+                LogUtil.w(TAG, "MediaDiskCache: Error renaming " + tmpFile);
+                tmpFile.delete();
+                return;
+            }
+            final Entry entry = new Entry(name, length, System.currentTimeMillis(), source);
+            final Entry oldEntry = mEntries.put(name, entry);
+            if (oldEntry != null) {
+                mSizeBytes -= oldEntry.length;
+                mRedundantRecords++;
+            }
+            mSizeBytes += length;
+            appendJournalLocked(entry.getCleanRecord());
+            trimToSizeLocked();
+            compactJournalIfNeededLocked();
+        }
+    }
+
+    /**
+     * @return whether an image is cached, without counting as a use of it
+     */
+    synchronized boolean contains(final String key) {
+        return ensureOpenLocked() && mEntries.containsKey(getEntryName(key));
+    }
+
+    synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * Delete the images made from any of the given uris, e.g. the parts of deleted messages
+     */
+    synchronized void removeSources(final Set<String> sources) {
+        if (!ensureOpenLocked()) {
+            return;
+        }
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (final Entry entry : mEntries.values()) {
+            if (entry.source != null && sources.contains(entry.source)) {
+                entries.add(entry);
+            }
+        }
+        for (final Entry entry : entries) {
+            removeLocked(entry);
+        }
+        compactJournalIfNeededLocked();
+    }
+
+    /**
+     * Delete every cached image
+     */
+    synchronized void clear() {
+        if (!ensureOpenLocked()) {
+            return;
+        }
+        while (!mEntries.isEmpty()) {
+            removeLocked(mEntries.values().iterator().next());
+        }
+        compactJournalIfNeededLocked();
+    }
+
+    /**
+     * Write out the buffered read records
+     */
+    @VisibleForTesting
+    synchronized void flushJournal() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.flush();
+            } catch (final IOException e) {
+                LogUtil.w(TAG, "MediaDiskCache: Error flushing journal", e);
+            }
+        }
+    }
+
+    private boolean ensureOpenLocked() {
+        if (mOpened) {
+            return mJournalWriter != null;
+        }
+        mOpened = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogUtil.w(TAG, "MediaDiskCache: Unable to create " + mDirectory);
+            return false;
+        }
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournalLocked(journal);
+            } catch (final IOException e) {
+                // Can't trust any of the entries, start afresh
+                LogUtil.w(TAG, "MediaDiskCache: Discarding corrupt journal", e);
+                mEntries.clear();
+                mSizeBytes = 0;
+            }
+        }
+        deleteUnlistedFilesLocked();
+        try {
+            rewriteJournalLocked();
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: Unable to write journal", e);
+            return false;
+        }
+        trimToSizeLocked();
+        return true;
+    }
+
+    private void readJournalLocked(final File journal) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(" ");
+                if (CLEAN.equals(parts[0]) && (parts.length == 4 || parts.length == 5)) {
+                    final Entry entry = new Entry(parts[1], Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3]),
+                            parts.length == 5 ? URLDecoder.decode(parts[4], "UTF-8") : null);
+                    final Entry oldEntry = mEntries.put(entry.name, entry);
+                    if (oldEntry != null) {
+                        mSizeBytes -= oldEntry.length;
+                    }
+                    mSizeBytes += entry.length;
+                } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                    final Entry oldEntry = mEntries.remove(parts[1]);
+                    if (oldEntry != null) {
+                        mSizeBytes -= oldEntry.length;
+                    }
+                } else if (READ.equals(parts[0]) && parts.length == 2) {
+                    // Moves the entry to the most recently used end
+                    mEntries.get(parts[1]);
+                } else {
+                    // A record cut short by a crash can only be the last one
+                    LogUtil.w(TAG, "MediaDiskCache: Ignoring journal record " + line);
+                }
+            }
+        } catch (final NumberFormatException e) {
+            throw new IOException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void deleteUnlistedFilesLocked() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(name)) {
+                file.delete();
+            }
+        }
+        // The journal may list files that have since been deleted (e.g. by the system clearing
+        // the cache directory)
+        final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next().getValue();
+            if (!new File(mDirectory, entry.name).isFile()) {
+                mSizeBytes -= entry.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void rewriteJournalLocked() throws IOException {
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+        final File tmpJournal = new File(mDirectory, JOURNAL_FILE_TMP);
+        final Writer writer = new BufferedWriter(new FileWriter(tmpJournal));
+        try {
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            for (final Entry entry : mEntries.values()) {
+                writer.write(entry.getCleanRecord());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmpJournal.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+            throw new IOException("Unable to rename " + tmpJournal);
+        }
+        mJournalWriter = new BufferedWriter(
+                new FileWriter(new File(mDirectory, JOURNAL_FILE), true /* append */));
+        mRedundantRecords = 0;
+    }
+
+    // Writes and removals are flushed right away as the process is usually killed rather than shut
+    // down. Losing buffered reads only makes the LRU order after a restart a little off.
+    private void appendJournalLocked(final String record) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(record);
+            mJournalWriter.write('\n');
+            if (!record.startsWith(READ)) {
+                mJournalWriter.flush();
+            }
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: Error appending to journal", e);
+        }
+        if (!record.startsWith(CLEAN)) {
+            mRedundantRecords++;
+        }
+    }
+
+    private void compactJournalIfNeededLocked() {
+        if (mRedundantRecords >= JOURNAL_REDUNDANT_RECORDS_LIMIT &&
+                mRedundantRecords >= mEntries.size()) {
+            try {
+                rewriteJournalLocked();
+            } catch (final IOException e) {
+                LogUtil.w(TAG, "MediaDiskCache: Unable to compact journal", e);
+            }
+        }
+    }
+
+    private void trimToSizeLocked() {
+        while (mSizeBytes > mMaxSizeBytes && !mEntries.isEmpty()) {
+            removeLocked(mEntries.values().iterator().next());
+        }
+    }
+
+    private void removeLocked(final Entry entry) {
+        mEntries.remove(entry.name);
+        mSizeBytes -= entry.length;
+        new File(mDirectory, entry.name).delete();
+        appendJournalLocked(REMOVE + ' ' + entry.name);
+    }
+
+    @VisibleForTesting
+    static String getEntryName(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
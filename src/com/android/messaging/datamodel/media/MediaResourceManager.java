@@ -15,24 +15,39 @@
  */
 package com.android.messaging.datamodel.media;
 
-import android.os.AsyncTask;
+import android.graphics.Bitmap;
 
 import com.android.messaging.Factory;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.RunsOnAnyThread;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.PerfMetrics;
+import com.android.messaging.util.ThreadUtil;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Loads and maintains a set of in-memory LRU caches for different types of media resources.
- * Right now we don't utilize any disk cache as all media urls are expected to be resolved to
- * local content.<p/>
+ * Images whose descriptors allow it are also kept, encoded, in a {@link MediaDiskCache} behind
+ * the in-memory caches, so that they don't have to be decoded again from their source after the
+ * process restarts or the memory caches are trimmed. The disk cache is written behind the load,
+ * on the background executor, and a disk cache hit is decoded like an encoded memory cache
+ * hit.<p/>
  *
  * <p>The MediaResourceManager takes media loading requests through one of two ways:</p>
  *
@@ -44,12 +59,15 @@ import java.util.concurrent.ThreadFactory;
  *  returns the loaded result, or null if failed.</li>
  * </ol>
  *
- * <p>For each media loading task, MediaResourceManager starts an AsyncTask that runs on a
- * dedicated thread, which calls MediaRequest.loadMediaBlocking() to perform the actual media
- * loading work. As the media resources are loaded, MediaResourceManager notifies the callers
- * (which must implement the MediaResourceLoadListener interface) via onMediaResourceLoaded()
- * callback. Meanwhile, MediaResourceManager also pushes the loaded resource onto its dedicated
- * cache.</p>
+ * <p>For each media loading task, MediaResourceManager queues a task for a dedicated thread pool,
+ * which calls MediaRequest.loadMediaBlocking() to perform the actual media loading work. Waiting
+ * tasks are ordered by the priority they were requested with, so that media on screen is loaded
+ * before media that is prefetched. A request for a resource that's already being loaded joins the
+ * task of the earlier request rather than loading it again, and a task whose requests have all
+ * been unbound is dropped without loading anything. As the media resources are loaded,
+ * MediaResourceManager notifies the callers (which must implement the MediaResourceLoadListener
+ * interface) via onMediaResourceLoaded() callback. Meanwhile, MediaResourceManager also pushes
+ * the loaded resource onto its dedicated cache.</p>
  *
  * <p>The media resource caches ({@link MediaCache}) are maintained as a set of LRU caches. They are
  * created on demand by the incoming MediaRequest's getCacheId() method. The implementations of
@@ -83,6 +101,33 @@ import java.util.concurrent.ThreadFactory;
 public class MediaResourceManager {
     private static final String TAG = LogUtil.BUGLE_TAG;
 
+    // Time taken to load media, by where it was found
+    private static final PerfMetrics.Histogram sMemoryCacheLoadTime =
+            PerfMetrics.histogram("media.load.memory_cache");
+    private static final PerfMetrics.Histogram sDiskCacheLoadTime =
+            PerfMetrics.histogram("media.load.disk_cache");
+    private static final PerfMetrics.Histogram sSourceLoadTime =
+            PerfMetrics.histogram("media.load.source");
+    // Requests waiting for a media loading thread, by priority, as of the latest change and as
+    // seen by each request queued
+    private static final PerfMetrics.Gauge[] sQueueDepths = new PerfMetrics.Gauge[] {
+        PerfMetrics.gauge("media.queue.visible"),
+        PerfMetrics.gauge("media.queue.default"),
+        PerfMetrics.gauge("media.queue.prefetch")
+    };
+    private static final PerfMetrics.Histogram[] sQueueDepthsOnAdd = new PerfMetrics.Histogram[] {
+        PerfMetrics.histogram("media.queue.visible.on_add"),
+        PerfMetrics.histogram("media.queue.default.on_add"),
+        PerfMetrics.histogram("media.queue.prefetch.on_add")
+    };
+    private static final PerfMetrics.Gauge sInFlightRequests =
+            PerfMetrics.gauge("media.requests.in_flight");
+    @VisibleForTesting
+    static final PerfMetrics.Counter sCoalescedRequests =
+            PerfMetrics.counter("media.requests.coalesced");
+    private static final PerfMetrics.Counter sDroppedRequests =
+            PerfMetrics.counter("media.requests.dropped");
+
     public static MediaResourceManager get() {
         return Factory.get().getMediaResourceManager();
     }
@@ -95,9 +140,21 @@ public class MediaResourceManager {
         void onMediaResourceLoadError(MediaRequest<T> request, Exception exception);
     }
 
+    /** Priority of requests for media that's on screen */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Priority of requests that don't specify one */
+    public static final int PRIORITY_DEFAULT = 1;
+    /** Priority of requests for media that may be needed soon */
+    public static final int PRIORITY_PREFETCH = 2;
+    private static final int PRIORITY_COUNT = 3;
+
     // We use a fixed thread pool for handling media loading tasks. Using a cached thread pool
     // allows for unlimited thread creation which can lead to OOMs so we limit the threads here.
-    private static final Executor MEDIA_LOADING_EXECUTOR = Executors.newFixedThreadPool(10);
+    // Waiting tasks are ordered by priority, and then by the order in which they were scheduled.
+    private static final int MEDIA_LOADING_THREAD_COUNT = 10;
+    private static final ThreadPoolExecutor MEDIA_LOADING_EXECUTOR = new ThreadPoolExecutor(
+            MEDIA_LOADING_THREAD_COUNT, MEDIA_LOADING_THREAD_COUNT, 0L, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<Runnable>());
 
     // A dedicated single thread executor for performing background task after loading the resource
     // on the media loading executor. This includes work such as encoding loaded media to be cached.
@@ -113,6 +170,24 @@ public class MediaResourceManager {
                 }
             });
 
+    // Directory within the app's cache directory that holds the on-disk image cache
+    private static final String DISK_CACHE_DIRECTORY = "media_cache";
+    // Quality of opaque images in the disk cache; images with alpha (e.g. avatars cropped to a
+    // circle) are stored as PNG
+    private static final int DISK_CACHE_JPEG_QUALITY = 90;
+
+    private MediaDiskCache mDiskCache;
+    private boolean mDiskCacheCreated;
+
+    // Guards the state of the async request scheduling below, including the requests of every
+    // MediaLoadingTask
+    private final Object mSchedulerLock = new Object();
+    // Tasks of load requests that are waiting or loading, by coalescing key
+    private final HashMap<String, MediaLoadingTask<?>> mInFlightTasks =
+            new HashMap<String, MediaLoadingTask<?>>();
+    private long mNextTaskSequence;
+    private final int[] mQueueDepths = new int[PRIORITY_COUNT];
+
     /**
      * Requests a media resource asynchronously. Upon completion of the media loading task,
      * the listener will be notified of success/failure iff it's still bound. A refcount on the
@@ -125,7 +200,20 @@ public class MediaResourceManager {
      */
     public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
             final MediaRequest<T> mediaRequest) {
-        scheduleAsyncMediaRequest(mediaRequest, MEDIA_LOADING_EXECUTOR);
+        requestMediaResourceAsync(mediaRequest, PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Requests a media resource asynchronously like
+     * {@link #requestMediaResourceAsync(MediaRequest)}, ahead of any waiting requests of lower
+     * priority.
+     * @param priority one of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_DEFAULT} and
+     * {@link #PRIORITY_PREFETCH}
+     */
+    public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
+            final MediaRequest<T> mediaRequest, final int priority) {
+        Assert.inRange(priority, PRIORITY_VISIBLE, PRIORITY_PREFETCH);
+        scheduleAsyncMediaRequest(mediaRequest, priority, MEDIA_LOADING_EXECUTOR);
     }
 
     /**
@@ -159,10 +247,16 @@ public class MediaResourceManager {
     private <T extends RefCountedMediaResource> MediaLoadingResult<T> processMediaRequestInternal(
             final MediaRequest<T> mediaRequest)
                     throws Exception {
+        final long startNanos = PerfMetrics.now();
         final List<MediaRequest<T>> chainedRequests = new ArrayList<>();
         T loadedResource = null;
-        // Try fetching from cache first.
-        final T cachedResource = loadMediaFromCache(mediaRequest);
+        // Try fetching from cache first, then from the disk cache.
+        T cachedResource = loadMediaFromCache(mediaRequest);
+        boolean fromDiskCache = false;
+        if (cachedResource == null) {
+            cachedResource = loadMediaFromDiskCache(mediaRequest);
+            fromDiskCache = (cachedResource != null);
+        }
         if (cachedResource != null) {
             if (cachedResource.isEncoded()) {
                 // The resource is encoded, issue a decoding request.
@@ -171,6 +265,10 @@ public class MediaResourceManager {
                 Assert.notNull(decodeRequest);
                 cachedResource.release();
                 loadedResource = loadMediaFromRequest(decodeRequest, chainedRequests);
+                if (fromDiskCache && !keepsEncodedImageInMemory(mediaRequest)) {
+                    // Cache the decoded image like a load from the source would have done.
+                    addResourceToMemoryCache(mediaRequest, loadedResource);
+                }
             } else {
                 // The resource is ready-to-use.
                 loadedResource = cachedResource;
@@ -179,6 +277,13 @@ public class MediaResourceManager {
             // Actually load the media after cache miss.
             loadedResource = loadMediaFromRequest(mediaRequest, chainedRequests);
         }
+        if (cachedResource == null) {
+            sSourceLoadTime.recordSince(startNanos);
+        } else if (fromDiskCache) {
+            sDiskCacheLoadTime.recordSince(startNanos);
+        } else {
+            sMemoryCacheLoadTime.recordSince(startNanos);
+        }
         return new MediaLoadingResult<>(loadedResource, cachedResource != null /* fromCache */,
                 chainedRequests);
     }
@@ -199,6 +304,150 @@ public class MediaResourceManager {
         return null;
     }
 
+    /**
+     * Looks up an image in the disk cache.
+     * @return the encoded image with a ref reserved for the caller, or null on a miss
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends RefCountedMediaResource> T loadMediaFromDiskCache(
+            final MediaRequest<T> mediaRequest) {
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA ||
+                !isDiskCacheable(mediaRequest)) {
+            return null;
+        }
+        final MediaDiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        final EncodedImageResource resource = diskCache.get(mediaRequest.getKey());
+        if (resource == null) {
+            return null;
+        }
+        resource.addRef();
+        if (keepsEncodedImageInMemory(mediaRequest)) {
+            addResourceToMemoryCache(mediaRequest, (T) resource);
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "disk cache hit. key=" +
+                    LogUtil.sanitizePII(mediaRequest.getKey()) /* key can contain phone# */);
+        }
+        return (T) resource;
+    }
+
+    private static boolean isDiskCacheable(final MediaRequest<?> mediaRequest) {
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        return descriptor instanceof ImageRequestDescriptor &&
+                ((ImageRequestDescriptor) descriptor).isDiskCacheable();
+    }
+
+    /**
+     * Whether the request's memory cache holds its images encoded (see
+     * {@link UriImageRequest#loadMediaInternal(List)}) rather than decoded.
+     */
+    private static boolean keepsEncodedImageInMemory(final MediaRequest<?> mediaRequest) {
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        return descriptor instanceof UriImageRequestDescriptor &&
+                ((UriImageRequestDescriptor) descriptor).allowCompression;
+    }
+
+    private synchronized MediaDiskCache getDiskCache() {
+        if (!mDiskCacheCreated) {
+            mDiskCacheCreated = true;
+            final BugleGservices gservices = BugleGservices.get();
+            final long maxSizeBytes = gservices.getLong(
+                    BugleGservicesKeys.MEDIA_DISK_CACHE_SIZE_BYTES,
+                    BugleGservicesKeys.MEDIA_DISK_CACHE_SIZE_BYTES_DEFAULT);
+            if (maxSizeBytes > 0) {
+                final File directory = new File(
+                        Factory.get().getApplicationContext().getCacheDir(),
+                        DISK_CACHE_DIRECTORY);
+                mDiskCache = new MediaDiskCache(directory, maxSizeBytes, gservices.getLong(
+                        BugleGservicesKeys.MEDIA_DISK_CACHE_MAX_AGE_MILLIS,
+                        BugleGservicesKeys.MEDIA_DISK_CACHE_MAX_AGE_MILLIS_DEFAULT));
+            }
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * Writes a freshly loaded image to the disk cache on the background executor. Images that
+     * are going to be encoded for the memory cache are written once encoded; other images are
+     * encoded for the disk cache here.
+     */
+    private <T extends RefCountedMediaResource> void scheduleDiskCacheWrite(
+            final MediaRequest<T> mediaRequest, final T resource) {
+        final int requestType = mediaRequest.getRequestType();
+        final boolean isEncoded = resource instanceof EncodedImageResource &&
+                requestType == MediaRequest.REQUEST_ENCODE_MEDIA;
+        final boolean isDecoded = resource instanceof DecodedImageResource &&
+                requestType == MediaRequest.REQUEST_LOAD_MEDIA && resource.isCacheable();
+        if ((!isEncoded && !isDecoded) || !isDiskCacheable(mediaRequest)) {
+            return;
+        }
+        final MediaDiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+        final String key = mediaRequest.getKey();
+        final MediaRequestDescriptor<T> descriptor = mediaRequest.getDescriptor();
+        final String source = (descriptor instanceof UriImageRequestDescriptor)
+                ? String.valueOf(((UriImageRequestDescriptor) descriptor).uri) : null;
+        final ImageResource imageResource = (ImageResource) resource;
+        // Keep the bitmap from being recycled until it's written.
+        imageResource.addRef();
+        MEDIA_BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final byte[] imageBytes = isEncoded ? imageResource.getBytes() :
+                            encodeForDiskCache(imageResource);
+                    diskCache.put(key, source, imageBytes, imageResource.getOrientation());
+                } catch (final Exception e) {
+                    LogUtil.w(TAG, "Error writing media to disk cache, key=" +
+                            LogUtil.sanitizePII(key), e);
+                } catch (final OutOfMemoryError e) {
+                    LogUtil.w(TAG, "Out of memory writing media to disk cache, key=" +
+                            LogUtil.sanitizePII(key));
+                } finally {
+                    imageResource.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the images loaded from any of the given uris (e.g. the parts of deleted messages)
+     * from the disk cache, on the background executor
+     */
+    @RunsOnAnyThread
+    public void removeFromDiskCache(final Set<String> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        MEDIA_BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MediaDiskCache diskCache = getDiskCache();
+                if (diskCache != null) {
+                    diskCache.removeSources(uris);
+                }
+            }
+        });
+    }
+
+    private static byte[] encodeForDiskCache(final ImageResource imageResource) {
+        imageResource.acquireLock();
+        try {
+            final Bitmap bitmap = imageResource.getBitmap();
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG :
+                    Bitmap.CompressFormat.JPEG, DISK_CACHE_JPEG_QUALITY, outputStream);
+            return outputStream.toByteArray();
+        } finally {
+            imageResource.releaseLock();
+        }
+    }
+
     private <T extends RefCountedMediaResource> T loadMediaFromRequest(
             final MediaRequest<T> mediaRequest, final List<MediaRequest<T>> chainedRequests)
                     throws Exception {
@@ -217,73 +466,81 @@ public class MediaResourceManager {
         if (resource.isCacheable()) {
             addResourceToMemoryCache(mediaRequest, resource);
         }
+        scheduleDiskCacheWrite(mediaRequest, resource);
         return resource;
     }
 
     /**
-     * Schedule an async media request on the given <code>executor</code>.
+     * Schedule an async media request on the given <code>executor</code>. Load requests on the
+     * media loading executor are coalesced with an identical request that's already waiting or
+     * loading, in which case the request is notified together with that request's listener
+     * instead of loading the media again.
      * @param mediaRequest the media request to be processed asynchronously. May be either an
      * {@link AsyncMediaRequestWrapper} for listening for event callbacks, or a regular media
      * request for fire-and-forget type of behavior.
      */
     private <T extends RefCountedMediaResource> void scheduleAsyncMediaRequest(
-            final MediaRequest<T> mediaRequest, final Executor executor) {
+            final MediaRequest<T> mediaRequest, final int priority, final Executor executor) {
         final BindableMediaRequest<T> bindableRequest =
                 (mediaRequest instanceof BindableMediaRequest<?>) ?
                         (BindableMediaRequest<T>) mediaRequest : null;
         if (bindableRequest != null && !bindableRequest.isBound()) {
             return; // Request is obsolete
         }
-        // We don't use SafeAsyncTask here since it enforces the shared thread pool executor
-        // whereas we want a dedicated thread pool executor.
-        AsyncTask<Void, Void, MediaLoadingResult<T>> mediaLoadingTask =
-                new AsyncTask<Void, Void, MediaLoadingResult<T>>() {
-            private Exception mException;
-
-            @Override
-            protected MediaLoadingResult<T> doInBackground(Void... params) {
-                // Double check the request is still valid by the time we start processing it
-                if (bindableRequest != null && !bindableRequest.isBound()) {
-                    return null; // Request is obsolete
-                }
-                try {
-                    return processMediaRequestInternal(mediaRequest);
-                } catch (Exception e) {
-                    mException = e;
-                    return null;
-                }
-            }
-
-            @Override
-            protected void onPostExecute(final MediaLoadingResult<T> result) {
-                if (result != null) {
-                    Assert.isNull(mException);
-                    Assert.isTrue(result.loadedResource.getRefCount() > 0);
-                    try {
-                        if (bindableRequest != null) {
-                            bindableRequest.onMediaResourceLoaded(
-                                    bindableRequest, result.loadedResource, result.fromCache);
-                        }
-                    } finally {
-                        result.loadedResource.release();
-                        result.scheduleChainedRequests();
-                    }
-                } else if (mException != null) {
-                    LogUtil.e(LogUtil.BUGLE_TAG, "Asynchronous media loading failed, key=" +
-                            mediaRequest.getKey(), mException);
-                    if (bindableRequest != null) {
-                        bindableRequest.onMediaResourceLoadError(bindableRequest, mException);
-                    }
-                } else {
-                    Assert.isTrue(bindableRequest == null || !bindableRequest.isBound());
+        final boolean isLoadingExecutor = (executor == MEDIA_LOADING_EXECUTOR);
+        final String coalescingKey = isLoadingExecutor ? getCoalescingKey(mediaRequest) : null;
+        final MediaLoadingTask<T> task;
+        synchronized (mSchedulerLock) {
+            if (coalescingKey != null) {
+                @SuppressWarnings("unchecked")
+                final MediaLoadingTask<T> inFlightTask =
+                        (MediaLoadingTask<T>) mInFlightTasks.get(coalescingKey);
+                if (inFlightTask != null) {
+                    inFlightTask.addRequestLocked(mediaRequest, priority);
+                    sCoalescedRequests.increment();
                     if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                        LogUtil.v(TAG, "media request not processed, no longer bound; key=" +
+                        LogUtil.v(TAG, "media request coalesced with in-flight request; key=" +
                                 LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
                     }
+                    return;
                 }
             }
-        };
-        mediaLoadingTask.executeOnExecutor(executor, (Void) null);
+            task = new MediaLoadingTask<T>(coalescingKey, priority, mNextTaskSequence++,
+                    isLoadingExecutor);
+            task.addRequestLocked(mediaRequest, priority);
+            if (coalescingKey != null) {
+                mInFlightTasks.put(coalescingKey, task);
+                sInFlightRequests.set(mInFlightTasks.size());
+            }
+            if (isLoadingExecutor) {
+                incrementQueueDepthLocked(priority);
+            }
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * @return the key that identifies requests for the same resource, or null if the request
+     *         can't share its result with other requests
+     */
+    private static String getCoalescingKey(final MediaRequest<?> mediaRequest) {
+        final String key = mediaRequest.getKey();
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA || key == null) {
+            return null;
+        }
+        // Requests for different caches may use the same key for different resources
+        return mediaRequest.getCacheId() + "/" + key;
+    }
+
+    private void incrementQueueDepthLocked(final int priority) {
+        mQueueDepths[priority]++;
+        sQueueDepths[priority].set(mQueueDepths[priority]);
+        sQueueDepthsOnAdd[priority].record(mQueueDepths[priority]);
+    }
+
+    private void decrementQueueDepthLocked(final int priority) {
+        mQueueDepths[priority]--;
+        sQueueDepths[priority].set(mQueueDepths[priority]);
     }
 
     @VisibleForTesting
@@ -301,6 +558,176 @@ public class MediaResourceManager {
         }
     }
 
+    /**
+     * Loads a media resource for one request, or for several identical requests that have been
+     * coalesced, and notifies each of them on the main thread.
+     */
+    private class MediaLoadingTask<T extends RefCountedMediaResource>
+            implements Runnable, Comparable<MediaLoadingTask<?>> {
+        private final String mCoalescingKey;
+        private final long mSequence;
+        private final boolean mCountsQueueDepth;
+        // Only changed while the task is out of the executor's queue, see addRequestLocked()
+        private volatile int mPriority;
+        // Guarded by mSchedulerLock
+        private final List<MediaRequest<T>> mRequests = new ArrayList<MediaRequest<T>>();
+        private boolean mStarted;
+
+        MediaLoadingTask(final String coalescingKey, final int priority, final long sequence,
+                final boolean countsQueueDepth) {
+            mCoalescingKey = coalescingKey;
+            mPriority = priority;
+            mSequence = sequence;
+            mCountsQueueDepth = countsQueueDepth;
+        }
+
+        void addRequestLocked(final MediaRequest<T> mediaRequest, final int priority) {
+            mRequests.add(mediaRequest);
+            if (mediaRequest instanceof BindableMediaRequest<?>) {
+                ((BindableMediaRequest<T>) mediaRequest).setUnboundCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRequestUnbound(mediaRequest);
+                    }
+                });
+            }
+            // Move the task up the queue if it's now wanted sooner
+            if (priority < mPriority && !mStarted && MEDIA_LOADING_EXECUTOR.remove(this)) {
+                decrementQueueDepthLocked(mPriority);
+                mPriority = priority;
+                incrementQueueDepthLocked(priority);
+                MEDIA_LOADING_EXECUTOR.execute(this);
+            }
+        }
+
+        /**
+         * Called when one of the requests is unbound. Drops the task from the queue if it hasn't
+         * started and none of its requests is still bound.
+         */
+        private void onRequestUnbound(final MediaRequest<T> mediaRequest) {
+            synchronized (mSchedulerLock) {
+                if (mStarted) {
+                    return;
+                }
+                mRequests.remove(mediaRequest);
+                if (pruneUnboundRequestsLocked() && MEDIA_LOADING_EXECUTOR.remove(this)) {
+                    if (mCountsQueueDepth) {
+                        decrementQueueDepthLocked(mPriority);
+                    }
+                    removeFromInFlightTasksLocked();
+                    sDroppedRequests.increment();
+                }
+            }
+        }
+
+        /**
+         * Removes the requests that are no longer bound.
+         * @return true if there are no requests left
+         */
+        private boolean pruneUnboundRequestsLocked() {
+            final Iterator<MediaRequest<T>> iterator = mRequests.iterator();
+            while (iterator.hasNext()) {
+                final MediaRequest<T> mediaRequest = iterator.next();
+                if (mediaRequest instanceof BindableMediaRequest<?> &&
+                        !((BindableMediaRequest<?>) mediaRequest).isBound()) {
+                    iterator.remove();
+                }
+            }
+            return mRequests.isEmpty();
+        }
+
+        private void removeFromInFlightTasksLocked() {
+            if (mCoalescingKey != null && mInFlightTasks.get(mCoalescingKey) == this) {
+                mInFlightTasks.remove(mCoalescingKey);
+                sInFlightRequests.set(mInFlightTasks.size());
+            }
+        }
+
+        @Override
+        public void run() {
+            final MediaRequest<T> mediaRequest;
+            synchronized (mSchedulerLock) {
+                mStarted = true;
+                if (mCountsQueueDepth) {
+                    decrementQueueDepthLocked(mPriority);
+                }
+                // Double check the requests are still valid by the time we start processing
+                if (pruneUnboundRequestsLocked()) {
+                    removeFromInFlightTasksLocked();
+                    sDroppedRequests.increment();
+                    mediaRequest = null;
+                } else {
+                    mediaRequest = mRequests.get(0);
+                }
+            }
+            if (mediaRequest == null) {
+                if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                    LogUtil.v(TAG, "media request not processed, no longer bound");
+                }
+                return;
+            }
+            MediaLoadingResult<T> result = null;
+            Exception exception = null;
+            try {
+                result = processMediaRequestInternal(mediaRequest);
+            } catch (final Exception e) {
+                exception = e;
+            }
+            final MediaLoadingResult<T> loadingResult = result;
+            final Exception loadingException = exception;
+            ThreadUtil.getMainThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    deliverResult(mediaRequest, loadingResult, loadingException);
+                }
+            });
+        }
+
+        private void deliverResult(final MediaRequest<T> loadedRequest,
+                final MediaLoadingResult<T> result, final Exception exception) {
+            final List<MediaRequest<T>> mediaRequests;
+            synchronized (mSchedulerLock) {
+                // Requests for the same resource from now on will find it in the cache
+                removeFromInFlightTasksLocked();
+                mediaRequests = new ArrayList<MediaRequest<T>>(mRequests);
+            }
+            if (result != null) {
+                Assert.isTrue(result.loadedResource.getRefCount() > 0);
+                try {
+                    for (final MediaRequest<T> mediaRequest : mediaRequests) {
+                        if (mediaRequest instanceof BindableMediaRequest<?>) {
+                            final BindableMediaRequest<T> bindableRequest =
+                                    (BindableMediaRequest<T>) mediaRequest;
+                            bindableRequest.onMediaResourceLoaded(
+                                    bindableRequest, result.loadedResource, result.fromCache);
+                        }
+                    }
+                } finally {
+                    result.loadedResource.release();
+                    result.scheduleChainedRequests();
+                }
+            } else {
+                LogUtil.e(LogUtil.BUGLE_TAG, "Asynchronous media loading failed, key=" +
+                        loadedRequest.getKey(), exception);
+                for (final MediaRequest<T> mediaRequest : mediaRequests) {
+                    if (mediaRequest instanceof BindableMediaRequest<?>) {
+                        final BindableMediaRequest<T> bindableRequest =
+                                (BindableMediaRequest<T>) mediaRequest;
+                        bindableRequest.onMediaResourceLoadError(bindableRequest, exception);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(final MediaLoadingTask<?> another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
     private class MediaLoadingResult<T extends RefCountedMediaResource> {
         public final T loadedResource;
         public final boolean fromCache;
@@ -318,7 +745,8 @@ public class MediaResourceManager {
          */
         public void scheduleChainedRequests() {
             for (final MediaRequest<T> mediaRequest : mChainedRequests) {
-                scheduleAsyncMediaRequest(mediaRequest, MEDIA_BACKGROUND_EXECUTOR);
+                scheduleAsyncMediaRequest(mediaRequest, PRIORITY_DEFAULT,
+                        MEDIA_BACKGROUND_EXECUTOR);
             }
         }
     }
@@ -88,6 +88,11 @@ public class UriImageRequestDescriptor extends ImageRequestDescriptor {
         }
     }
 
+    @Override
+    public boolean isDiskCacheable() {
+        return uri != null;
+    }
+
     /** ID of the resource in MediaStore or null if this resource didn't come from MediaStore */
     public Long getMediaStoreId() {
         return null;
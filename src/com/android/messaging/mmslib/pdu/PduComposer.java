@@ -19,6 +19,8 @@ package com.android.messaging.mmslib.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.support.v4.util.SimpleArrayMap;
 import android.text.TextUtils;
 
@@ -26,6 +28,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 
 public class PduComposer {
@@ -84,6 +87,11 @@ public class PduComposer {
      */
     private static final int PDU_COMPOSER_BLOCK_SIZE = 1024;
 
+    /**
+     * Block size when copying part data from InputStream to the output of make(OutputStream).
+     */
+    private static final int PDU_COMPOSER_STREAM_BLOCK_SIZE = 8192;
+
     /**
      * The output message.
      */
@@ -114,6 +122,27 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * Output of make(OutputStream), which the data of the parts of a Send.req is streamed to.
+     * Null when making the message in memory.
+     */
+    private OutputStream mOutput = null;
+
+    /**
+     * Number of bytes written to mOutput.
+     */
+    private long mOutputLength = 0;
+
+    /**
+     * Error writing to mOutput.
+     */
+    private IOException mOutputException = null;
+
+    /**
+     * Lengths of the data of the parts of a Send.req made by make(OutputStream).
+     */
+    private long[] mPartDataLengths = null;
+
     /**
      * Map of all content type
      */
@@ -188,6 +217,194 @@ public class PduComposer {
         return mMessage.toByteArray();
     }
 
+    /**
+     * Make the message like {@link #make()}, but write it to an output stream. The data of the
+     * parts of a Send.req is never held in memory: the data lengths, which precede the data in
+     * the PDU, are found in a first pass over the parts, and the data is then copied from the
+     * parts' data uris straight to the output after the part headers.
+     *
+     * @param out the stream to write the message to
+     * @return the number of bytes written, or -1 if the PDU is invalid
+     * @throws IOException if the message can't be written
+     */
+    public long make(final OutputStream out) throws IOException {
+        if (mPdu.getMessageType() != PduHeaders.MESSAGE_TYPE_SEND_REQ) {
+            // Only a Send.req can be large
+            final byte[] message = make();
+            if (message == null) {
+                return -1;
+            }
+            out.write(message);
+            return message.length;
+        }
+
+        final PduBody body = ((SendReq) mPdu).getBody();
+        final int partNum = (body == null) ? 0 : body.getPartsNum();
+        mPartDataLengths = new long[partNum];
+        for (int i = 0; i < partNum; i++) {
+            mPartDataLengths[i] = getPartDataLength(body.getPart(i));
+            if (mPartDataLengths[i] < 0) {
+                mPartDataLengths = null;
+                return -1;
+            }
+        }
+
+        mOutput = out;
+        mOutputLength = 0;
+        mOutputException = null;
+        try {
+            if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS || !flushMessage()) {
+                if (mOutputException != null) {
+                    throw mOutputException;
+                }
+                return -1;
+            }
+            return mOutputLength;
+        } finally {
+            mOutput = null;
+            mPartDataLengths = null;
+        }
+    }
+
+    /**
+     * Find the length of the data of a part without reading it into memory.
+     *
+     * @return the length, or -1 if the data can't be read
+     */
+    private long getPartDataLength(final PduPart part) {
+        final byte[] partData = part.getData();
+        if (partData != null) {
+            return partData.length;
+        }
+        final Uri dataUri = part.getDataUri();
+        if (dataUri == null) {
+            return -1;
+        }
+
+        // Files know their length
+        AssetFileDescriptor fd = null;
+        try {
+            fd = mResolver.openAssetFileDescriptor(dataUri, "r");
+            if (fd != null && fd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return fd.getLength();
+            }
+        } catch (final FileNotFoundException e) {
+            // Try reading it as a stream
+        } catch (final RuntimeException e) {
+            // Try reading it as a stream
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        // Other content has to be counted
+        InputStream cr = null;
+        try {
+            cr = mResolver.openInputStream(dataUri);
+            final byte[] buffer = new byte[PDU_COMPOSER_STREAM_BLOCK_SIZE];
+            long length = 0;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                length += len;
+            }
+            return length;
+        } catch (final IOException e) {
+            return -1;
+        } catch (final RuntimeException e) {
+            return -1;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the message composed so far to mOutput, and empty mMessage.
+     *
+     * @return false if the output can't be written
+     */
+    private boolean flushMessage() {
+        try {
+            mMessage.writeTo(mOutput);
+            mOutputLength += mMessage.size();
+            mMessage.reset();
+            return true;
+        } catch (final IOException e) {
+            mOutputException = e;
+            return false;
+        }
+    }
+
+    /**
+     * Copy the data of a part to mOutput, after the message composed so far.
+     *
+     * @param dataLength the length of the data that has been written to the part's header
+     */
+    private int streamPartData(final PduPart part, final long dataLength) {
+        if (!flushMessage()) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+        final byte[] partData = part.getData();
+        if (partData != null) {
+            try {
+                mOutput.write(partData);
+            } catch (final IOException e) {
+                mOutputException = e;
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+            mOutputLength += partData.length;
+            return PDU_COMPOSE_SUCCESS;
+        }
+
+        InputStream cr = null;
+        long copied = 0;
+        try {
+            final byte[] buffer = new byte[PDU_COMPOSER_STREAM_BLOCK_SIZE];
+            cr = mResolver.openInputStream(part.getDataUri());
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                copied += len;
+                if (copied > dataLength) {
+                    break;
+                }
+                try {
+                    mOutput.write(buffer, 0, len);
+                } catch (final IOException e) {
+                    mOutputException = e;
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                mOutputLength += len;
+            }
+        } catch (final IOException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } catch (final RuntimeException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+        if (copied != dataLength) {
+            // The data changed after its length was found
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+        return PDU_COMPOSE_SUCCESS;
+    }
+
     /**
      * Copy buf to mMessage.
      */
@@ -1045,6 +1262,19 @@ public class PduComposer {
             // content
             final int headerLength = attachment.getLength();
 
+            if (mOutput != null) {
+                // Write the lengths, then stream the data after them
+                mStack.pop();
+                appendUintvarInteger(headerLength);
+                appendUintvarInteger(mPartDataLengths[i]);
+                mStack.copy();
+                final int result = streamPartData(part, mPartDataLengths[i]);
+                if (result != PDU_COMPOSE_SUCCESS) {
+                    return result;
+                }
+                continue;
+            }
+
             int dataLength = 0; // Just for safety...
             final byte[] partData = part.getData();
 
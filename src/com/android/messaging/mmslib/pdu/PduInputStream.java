@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The input of {@link PduParser}: a range of PDU bytes that behaves like a
+ * {@link java.io.ByteArrayInputStream}, i.e. {@link #available()} is the number of bytes left in
+ * the range and {@link #mark(int)} can go back any distance. The bytes either come from an array
+ * or are read on demand from a {@link FileChannel}, so a PDU in a file doesn't have to be loaded
+ * into memory to be parsed. Ranges within the stream, such as nested multipart bodies, are
+ * parsed from views over the same bytes rather than from copies.
+ *
+ * Like ByteArrayInputStream, reads don't throw; an I/O error ends the stream and is reported by
+ * {@link #getIOException()}.
+ */
+public abstract class PduInputStream extends InputStream {
+    private static final String TAG = "PduInputStream";
+
+    // The stream that the sub streams were created from, which records errors for all of them
+    private final PduInputStream mRoot;
+    // Positions are relative to the start of the range
+    protected final int mLength;
+    protected int mPosition;
+    protected int mMark;
+    private IOException mIOException;
+
+    protected PduInputStream(final PduInputStream root, final int length) {
+        mRoot = (root != null) ? root : this;
+        mLength = length;
+    }
+
+    /**
+     * @return a stream of all of the bytes in the array
+     */
+    public static PduInputStream fromBytes(final byte[] data) {
+        return new ByteArrayPduInputStream(null, data, 0, data.length);
+    }
+
+    /**
+     * @return a stream of the whole content of the channel, which is read as needed; the caller
+     *         keeps ownership of the channel and closes it once done with the stream
+     */
+    public static PduInputStream fromChannel(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("PDU too large: " + size);
+        }
+        return new ChannelPduInputStream(null, channel, 0, (int) size);
+    }
+
+    @Override
+    public int available() {
+        return mRoot.mIOException != null ? 0 : mLength - mPosition;
+    }
+
+    @Override
+    public long skip(final long n) {
+        final int skipped = (int) Math.max(0, Math.min(n, available()));
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(final int readLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public void reset() {
+        mPosition = mMark;
+    }
+
+    @Override
+    public int read() {
+        if (available() <= 0) {
+            return -1;
+        }
+        final int value = readByteAt(mPosition);
+        if (value >= 0) {
+            mPosition++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) {
+        if (length == 0) {
+            return 0;
+        }
+        final int count = Math.min(length, available());
+        if (count <= 0) {
+            return -1;
+        }
+        final int read = readBytesAt(mPosition, buffer, offset, count);
+        if (read > 0) {
+            mPosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * Consumes the next <code>length</code> bytes of this stream, returning them as a stream of
+     * their own without copying them.
+     */
+    public PduInputStream readSubStream(final int length) {
+        final int subLength = Math.max(0, Math.min(length, available()));
+        final PduInputStream subStream = createSubStream(mPosition, subLength);
+        mPosition += subLength;
+        return subStream;
+    }
+
+    /**
+     * Consumes the next <code>length</code> bytes of this stream, writing them to the target.
+     * @return the number of bytes written
+     */
+    public int readTo(final WritableByteChannel target, final int length) throws IOException {
+        final int count = Math.max(0, Math.min(length, available()));
+        final int written = writeBytesAt(mPosition, count, target);
+        mPosition += written;
+        return written;
+    }
+
+    /**
+     * @return the error that ended the stream early, if any
+     */
+    public IOException getIOException() {
+        return mRoot.mIOException;
+    }
+
+    protected void onIOException(final IOException e) {
+        Log.e(TAG, "Error reading PDU", e);
+        mRoot.mIOException = e;
+    }
+
+    protected PduInputStream getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * @return the byte at the position, or -1 on an error
+     */
+    protected abstract int readByteAt(int position);
+
+    /**
+     * @return the number of bytes read, or -1 on an error
+     */
+    protected abstract int readBytesAt(int position, byte[] buffer, int offset, int length);
+
+    protected abstract int writeBytesAt(int position, int length, WritableByteChannel target)
+            throws IOException;
+
+    protected abstract PduInputStream createSubStream(int position, int length);
+
+    private static class ByteArrayPduInputStream extends PduInputStream {
+        private final byte[] mData;
+        private final int mOffset;
+
+        ByteArrayPduInputStream(final PduInputStream root, final byte[] data, final int offset,
+                final int length) {
+            super(root, length);
+            mData = data;
+            mOffset = offset;
+        }
+
+        @Override
+        protected int readByteAt(final int position) {
+            return mData[mOffset + position] & 0xff;
+        }
+
+        @Override
+        protected int readBytesAt(final int position, final byte[] buffer, final int offset,
+                final int length) {
+            System.arraycopy(mData, mOffset + position, buffer, offset, length);
+            return length;
+        }
+
+        @Override
+        protected int writeBytesAt(final int position, final int length,
+                final WritableByteChannel target) throws IOException {
+            final ByteBuffer source = ByteBuffer.wrap(mData, mOffset + position, length);
+            while (source.hasRemaining()) {
+                target.write(source);
+            }
+            return length;
+        }
+
+        @Override
+        protected PduInputStream createSubStream(final int position, final int length) {
+            return new ByteArrayPduInputStream(getRoot(), mData, mOffset + position, length);
+        }
+    }
+
+    private static class ChannelPduInputStream extends PduInputStream {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final FileChannel mChannel;
+        private final long mOffset;
+        // Bytes read ahead from the channel, and the position of the first of them
+        private ByteBuffer mBuffer;
+        private int mBufferPosition;
+
+        ChannelPduInputStream(final PduInputStream root, final FileChannel channel,
+                final long offset, final int length) {
+            super(root, length);
+            mChannel = channel;
+            mOffset = offset;
+        }
+
+        @Override
+        protected int readByteAt(final int position) {
+            if (!fillBuffer(position)) {
+                return -1;
+            }
+            return mBuffer.get(position - mBufferPosition) & 0xff;
+        }
+
+        @Override
+        protected int readBytesAt(final int position, final byte[] buffer, final int offset,
+                final int length) {
+            if (length > BUFFER_SIZE) {
+                // Don't go through the buffer for bulk reads
+                try {
+                    final ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+                    while (target.hasRemaining()) {
+                        final int read = mChannel.read(target,
+                                mOffset + position + target.position() - offset);
+                        if (read < 0) {
+                            throw new IOException("Unexpected end of PDU file");
+                        }
+                    }
+                    return length;
+                } catch (final IOException e) {
+                    onIOException(e);
+                    return -1;
+                }
+            }
+            // Always read everything, like ByteArrayInputStream, as the parser relies on it
+            int count = 0;
+            while (count < length) {
+                if (!fillBuffer(position + count)) {
+                    return -1;
+                }
+                final int bufferOffset = position + count - mBufferPosition;
+                final int chunk = Math.min(length - count, mBuffer.limit() - bufferOffset);
+                mBuffer.position(bufferOffset);
+                mBuffer.get(buffer, offset + count, chunk);
+                count += chunk;
+            }
+            return count;
+        }
+
+        @Override
+        protected int writeBytesAt(final int position, final int length,
+                final WritableByteChannel target) throws IOException {
+            long written = 0;
+            while (written < length) {
+                final long transferred = mChannel.transferTo(mOffset + position + written,
+                        length - written, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of PDU file");
+                }
+                written += transferred;
+            }
+            return length;
+        }
+
+        @Override
+        protected PduInputStream createSubStream(final int position, final int length) {
+            return new ChannelPduInputStream(getRoot(), mChannel, mOffset + position, length);
+        }
+
+        /**
+         * Makes sure the buffer holds the byte at the position
+         * @return false on an error
+         */
+        private boolean fillBuffer(final int position) {
+            if (mBuffer != null && position >= mBufferPosition &&
+                    position < mBufferPosition + mBuffer.limit()) {
+                return true;
+            }
+            if (mBuffer == null) {
+                mBuffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, mLength));
+            }
+            mBuffer.clear();
+            mBuffer.limit(Math.min(mBuffer.capacity(), mLength - position));
+            try {
+                while (mBuffer.hasRemaining()) {
+                    if (mChannel.read(mBuffer, mOffset + position + mBuffer.position()) < 0) {
+                        throw new IOException("Unexpected end of PDU file");
+                    }
+                }
+            } catch (final IOException e) {
+                mBuffer.clear();
+                mBuffer.limit(0);
+                onIOException(e);
+                return false;
+            }
+            mBuffer.flip();
+            mBufferPosition = position;
+            return true;
+        }
+    }
+}
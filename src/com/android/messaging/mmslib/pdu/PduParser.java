@@ -17,14 +17,17 @@
 
 package com.android.messaging.mmslib.pdu;
 
+import android.net.Uri;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.messaging.mmslib.InvalidHeaderValueException;
 import com.android.messaging.util.ContentType;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 
@@ -75,7 +78,7 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduInputStream mPduDataStream = null;
 
     /**
      * Store pdu headers
@@ -102,6 +105,10 @@ public class PduParser {
      */
     private final boolean mParseContentDisposition;
 
+    private final PartFileFactory mPartFileFactory;
+
+    private final int mPartFileThreshold;
+
     /**
      * Constructor.
      *
@@ -109,8 +116,41 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(PduInputStream.fromBytes(pduDataStream), parseContentDisposition, null, 0);
+    }
+
+    /**
+     * Constructor for parsing a pdu without holding all of it in memory, e.g. from a
+     * {@link PduInputStream#fromChannel(java.nio.channels.FileChannel)} stream.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param partFileFactory creates the files that the data of large image, audio and video
+     *        parts is written to, in which case the part gets the file's uri as its data uri
+     *        instead of holding the data; null to keep the data of every part in memory
+     * @param partFileThreshold size from which part data is written to a file
+     */
+    public PduParser(PduInputStream pduDataStream, boolean parseContentDisposition,
+            PartFileFactory partFileFactory, int partFileThreshold) {
+        mPduDataStream = pduDataStream;
         mParseContentDisposition = parseContentDisposition;
+        mPartFileFactory = partFileFactory;
+        mPartFileThreshold = partFileThreshold;
+    }
+
+    /**
+     * Creates the files that the parser writes large part data to.
+     */
+    public interface PartFileFactory {
+        /**
+         * @return the uri of a new empty file, or null if the file can't be created
+         */
+        Uri createPartFile();
+
+        /**
+         * @return the file of a uri returned by {@link #createPartFile()}
+         */
+        File getPartFile(Uri uri);
     }
 
     /**
@@ -157,6 +197,11 @@ public class PduParser {
             }
         }
 
+        if (mPduDataStream.getIOException() != null) {
+            // The pdu couldn't be read to the end.
+            return null;
+        }
+
         switch (messageType) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
                 if (LOCAL_LOGV) {
@@ -255,7 +300,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream) {
+    protected PduHeaders parseHeaders(PduInputStream pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -863,7 +908,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(PduInputStream pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -928,15 +973,18 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MMS_MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(pduDataStream.readSubStream(dataLength));
                     // take the first part of children.
                     part = childBody.getPart(0);
+                } else if (shouldWritePartDataToFile(part, partContentType, dataLength)
+                        && writePartDataToFile(pduDataStream, part, dataLength)) {
+                    // The part's data uri refers to its data now.
                 } else {
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
                     // Check Content-Transfer-Encoding.
                     byte[] partDataEncoding = part.getContentTransferEncoding();
                     if (null != partDataEncoding) {
@@ -972,6 +1020,60 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Check whether the data of a part should be written to a file rather than kept in memory.
+     * Only binary image, audio and video data is, since the data of the other parts is either
+     * small or read as text.
+     */
+    private boolean shouldWritePartDataToFile(PduPart part, String partContentType,
+            int dataLength) {
+        if (null == mPartFileFactory || dataLength < mPartFileThreshold) {
+            return false;
+        }
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null != partDataEncoding
+                && !new String(partDataEncoding).equalsIgnoreCase(PduPart.P_BINARY)) {
+            return false;
+        }
+        return ContentType.isImageType(partContentType)
+                || ContentType.isAudioType(partContentType)
+                || ContentType.isVideoType(partContentType);
+    }
+
+    /**
+     * Write the data of a part to a new file and point the part at it.
+     *
+     * @return false if the data couldn't be written, in which case it hasn't been consumed from
+     *         the stream
+     */
+    private boolean writePartDataToFile(PduInputStream pduDataStream, PduPart part,
+            int dataLength) {
+        Uri partFileUri = mPartFileFactory.createPartFile();
+        if (null == partFileUri) {
+            return false;
+        }
+        File partFile = mPartFileFactory.getPartFile(partFileUri);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(partFile);
+            pduDataStream.readTo(outputStream.getChannel(), dataLength);
+            part.setDataUri(partFileUri);
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write part data to " + partFile, e);
+            partFile.delete();
+            return false;
+        } finally {
+            if (null != outputStream) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
     /**
      * Log status.
      *
@@ -989,7 +1091,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -1023,7 +1125,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -1053,7 +1155,7 @@ public class PduParser {
      * @return the EncodedStringValue
      */
     protected static EncodedStringValue parseEncodedStringValue(
-            ByteArrayInputStream pduDataStream) {
+            PduInputStream pduDataStream) {
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -1098,7 +1200,7 @@ public class PduParser {
      * @param stringType    TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(PduInputStream pduDataStream,
             int stringType) {
         assert (null != pduDataStream);
         /**
@@ -1222,7 +1324,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(PduInputStream pduDataStream,
             int stringType) {
         assert (null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1257,7 +1359,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(PduInputStream pduDataStream) {
         assert (null != pduDataStream);
         int temp = pduDataStream.read();
         assert (-1 != temp);
@@ -1270,7 +1372,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1290,7 +1392,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1328,7 +1430,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1352,7 +1454,7 @@ public class PduParser {
      * @param length        area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(PduInputStream pduDataStream, int length) {
         assert (null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1371,7 +1473,7 @@ public class PduParser {
      * @param map           to store parameters of Content-Type field
      * @param length        length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(PduInputStream pduDataStream,
             SparseArray<Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1554,7 +1656,7 @@ public class PduParser {
      * @param map           to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(PduInputStream pduDataStream,
             SparseArray<Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1625,7 +1727,7 @@ public class PduParser {
      * @param length        length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected boolean parsePartHeaders(PduInputStream pduDataStream,
             PduPart part, int length) {
         assert (null != pduDataStream);
         assert (null != part);
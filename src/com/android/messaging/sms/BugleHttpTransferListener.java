@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.support.v7.mms.HttpTransferListener;
+
+import com.android.messaging.util.PerfMetrics;
+
+/**
+ * Records the HTTP transfers of the MMS library in PerfMetrics: the time taken by successful
+ * transfers, the bytes of bodies transferred and the failed transfers
+ */
+public class BugleHttpTransferListener implements HttpTransferListener {
+    private static final PerfMetrics.Histogram sPostTime = PerfMetrics.histogram("mms.http.post");
+    private static final PerfMetrics.Histogram sGetTime = PerfMetrics.histogram("mms.http.get");
+    private static final PerfMetrics.Counter sBytesSent =
+            PerfMetrics.counter("mms.http.bytes_sent");
+    private static final PerfMetrics.Counter sBytesReceived =
+            PerfMetrics.counter("mms.http.bytes_received");
+    private static final PerfMetrics.Counter sFailures = PerfMetrics.counter("mms.http.failures");
+
+    @Override
+    public void onTransferFinished(final String method, final boolean succeeded,
+            final long elapsedNanos, final long bytesSent, final long bytesReceived) {
+        sBytesSent.add(bytesSent);
+        sBytesReceived.add(bytesReceived);
+        if (!succeeded) {
+            sFailures.increment();
+        } else if (METHOD_POST.equals(method)) {
+            sPostTime.record(elapsedNanos / 1000L);
+        } else {
+            sGetTime.record(elapsedNanos / 1000L);
+        }
+    }
+}
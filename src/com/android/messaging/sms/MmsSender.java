@@ -26,6 +26,7 @@ import android.support.v7.mms.MmsManager;
 import android.telephony.SmsManager;
 
 import com.android.messaging.datamodel.MmsFileProvider;
+import com.android.messaging.datamodel.action.DownloadMmsAction;
 import com.android.messaging.datamodel.action.SendMessageAction;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.mmslib.InvalidHeaderValueException;
@@ -35,18 +36,23 @@ import com.android.messaging.mmslib.pdu.GenericPdu;
 import com.android.messaging.mmslib.pdu.NotifyRespInd;
 import com.android.messaging.mmslib.pdu.PduComposer;
 import com.android.messaging.mmslib.pdu.PduHeaders;
+import com.android.messaging.mmslib.pdu.PduInputStream;
 import com.android.messaging.mmslib.pdu.PduParser;
 import com.android.messaging.mmslib.pdu.RetrieveConf;
 import com.android.messaging.mmslib.pdu.SendConf;
 import com.android.messaging.mmslib.pdu.SendReq;
 import com.android.messaging.receiver.SendStatusReceiver;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
 
 /**
  * Class that sends chat message via MMS.
@@ -179,17 +185,19 @@ public class MmsSender {
             // Ensure rawmms directory exists
             tempFile.getParentFile().mkdirs();
             writer = new FileOutputStream(tempFile);
-            final byte[] pduBytes = new PduComposer(context, pdu).make();
-            if (pduBytes == null) {
+            // Stream the PDU to the file so that attachments aren't loaded into memory
+            final long pduLength = new PduComposer(context, pdu).make(writer);
+            if (pduLength < 0) {
+                tempFile.delete();
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY, "Failed to compose PDU");
             }
-            if (pduBytes.length > MmsConfig.get(subId).getMaxMessageSize()) {
+            if (pduLength > MmsConfig.get(subId).getMaxMessageSize()) {
+                tempFile.delete();
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY,
                         MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
             }
-            writer.write(pduBytes);
         } catch (final IOException e) {
             if (tempFile != null) {
                 tempFile.delete();
@@ -248,7 +256,12 @@ public class MmsSender {
             final String contentLocation, Bundle extras) throws MmsFailureException,
             InvalidHeaderValueException {
         final Uri requestUri = Uri.parse(contentLocation);
-        final Uri contentUri = MmsFileProvider.buildRawMmsUri();
+        // Download to the same file on every attempt, so that a retry resumes where the last
+        // attempt stopped when the MMSC supports it and the message is still the same
+        final String messageId = extras != null
+                ? extras.getString(DownloadMmsAction.EXTRA_MESSAGE_ID) : null;
+        final Uri contentUri = MmsFileProvider.buildDownloadMmsUri(messageId);
+        final Uri validatorUri = MmsFileProvider.buildDownloadValidatorUri(messageId);
 
         final Intent downloadedIntent = new Intent(SendStatusReceiver.MMS_DOWNLOADED_ACTION,
                 requestUri,
@@ -265,7 +278,7 @@ public class MmsSender {
                 PendingIntent.FLAG_UPDATE_CURRENT);
 
         MmsManager.downloadMultimediaMessage(subId, context, contentLocation, contentUri,
-                downloadedPendingIntent);
+                validatorUri, downloadedPendingIntent);
     }
 
     public static RetrieveConf parseRetrieveConf(byte[] data, int subId) {
@@ -287,6 +300,62 @@ public class MmsSender {
         return null;
     }
 
+    /**
+     * Parses a downloaded PDU from the file it was downloaded to. The PDU isn't loaded into
+     * memory; large media parts are written to files of {@link MmsFileProvider}, and the parts
+     * refer to the files by their data uris.
+     *
+     * @param partFileUris receives the uris of the part files, which the caller deletes once
+     *        done with the parts, whether or not parsing succeeded
+     */
+    public static RetrieveConf parseRetrieveConf(final File file, final int subId,
+            final List<Uri> partFileUris) {
+        RandomAccessFile pduFile = null;
+        try {
+            pduFile = new RandomAccessFile(file, "r");
+            final PduParser.PartFileFactory partFileFactory = new PduParser.PartFileFactory() {
+                @Override
+                public Uri createPartFile() {
+                    final Uri uri = MmsFileProvider.buildRawMmsUri();
+                    partFileUris.add(uri);
+                    return uri;
+                }
+
+                @Override
+                public File getPartFile(final Uri uri) {
+                    return MmsFileProvider.getFile(uri);
+                }
+            };
+            final int partFileThreshold = BugleGservices.get().getInt(
+                    BugleGservicesKeys.MMS_PART_FILE_THRESHOLD_BYTES,
+                    BugleGservicesKeys.MMS_PART_FILE_THRESHOLD_BYTES_DEFAULT);
+            final GenericPdu pdu = new PduParser(
+                    PduInputStream.fromChannel(pduFile.getChannel()),
+                    MmsConfig.get(subId).getSupportMmsContentDisposition(),
+                    partFileFactory, partFileThreshold).parse();
+            if (pdu instanceof RetrieveConf) {
+                return (RetrieveConf) pdu;
+            } else if (pdu != null) {
+                LogUtil.e(TAG, "MmsSender: downloaded pdu not RetrieveConf: "
+                        + pdu.getClass().getName());
+            } else {
+                LogUtil.e(TAG, "MmsSender: downloaded pdu could not be parsed (invalid)");
+            }
+        } catch (final IOException e) {
+            LogUtil.e(TAG, "MmsSender: error reading downloaded pdu " + file.getAbsolutePath(),
+                    e);
+        } finally {
+            if (pduFile != null) {
+                try {
+                    pduFile.close();
+                } catch (final IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return null;
+    }
+
     // Process different result code from platform MMS service
     public static int getErrorResultStatus(int resultCode, int httpStatusCode) {
         Assert.isFalse(resultCode == Activity.RESULT_OK);
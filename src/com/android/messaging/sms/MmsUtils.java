@@ -31,6 +31,7 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.provider.BaseColumns;
 import android.provider.Settings;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -1248,16 +1249,14 @@ public class MmsUtils {
     public static final int MAX_IDS_PER_QUERY = 128;
 
     /**
-     * Delete MMS messages with media parts.
+     * Query the ids of the MMS messages with media parts.
      *
      * Because the telephony provider constraints, we can't use JOIN and delete messages in one
      * shot. We have to do a query first and then batch delete the messages based on IDs.
      *
-     * @return The count of messages deleted.
+     * @return The ids of the messages, which may be deleted with {@link #deleteMessagesById}
      */
-    public static int deleteMediaMessages() {
-        // Do a query first
-        //
+    public static long[] queryMediaMessageIds() {
         // The WHERE clause has two parts:
         // The first part is to select the exact same types of MMS messages as when we import them
         // (so that we don't delete messages that are not in local database)
@@ -1269,49 +1268,90 @@ public class MmsUtils {
                 Mms._ID,
                 Mms.Part.MSG_ID,
                 getMediaTypeSelectionSql(Mms.Part.CONTENT_TYPE));
+        return queryMessageIds(Mms.CONTENT_URI, selection);
+    }
+
+    /**
+     * Query the ids of the SMS messages that are earlier than a specific timestamp
+     *
+     * @param cutOffTimestampInMillis The cut-off timestamp
+     * @return The ids of the messages, which may be deleted with {@link #deleteMessagesById}
+     */
+    public static long[] querySmsIdsOlderThan(final long cutOffTimestampInMillis) {
+        final String selection = String.format(
+                Locale.US,
+                "%s AND (%s<=%d)",
+                getSmsTypeSelectionSql(),
+                Sms.DATE,
+                cutOffTimestampInMillis);
+        return queryMessageIds(Sms.CONTENT_URI, selection);
+    }
+
+    /**
+     * Query the ids of the MMS messages that are earlier than a specific timestamp
+     *
+     * @param cutOffTimestampInMillis The cut-off timestamp
+     * @return The ids of the messages, which may be deleted with {@link #deleteMessagesById}
+     */
+    public static long[] queryMmsIdsOlderThan(final long cutOffTimestampInMillis) {
+        final String selection = String.format(
+                Locale.US,
+                "%s AND (%s<=%d)",
+                getMmsTypeSelectionSql(),
+                Mms.DATE,
+                cutOffTimestampInMillis / 1000L);
+        return queryMessageIds(Mms.CONTENT_URI, selection);
+    }
+
+    private static long[] queryMessageIds(final Uri contentUri, final String selection) {
         final ContentResolver resolver = Factory.get().getApplicationContext().getContentResolver();
-        final Cursor cursor = resolver.query(Mms.CONTENT_URI,
-                new String[]{ Mms._ID },
+        final Cursor cursor = resolver.query(contentUri,
+                new String[]{ BaseColumns._ID },
                 selection,
                 null/*selectionArgs*/,
                 null/*sortOrder*/);
-        int deleted = 0;
-        if (cursor != null) {
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
             final long[] messageIds = new long[cursor.getCount()];
-            try {
-                int i = 0;
-                while (cursor.moveToNext()) {
-                    messageIds[i++] = cursor.getLong(0);
-                }
-            } finally {
-                cursor.close();
-            }
-            final int totalIds = messageIds.length;
-            if (totalIds > 0) {
-                // Batch delete the messages using IDs
-                // We don't want to send all IDs at once since there is a limit on SQL statement
-                for (int start = 0; start < totalIds; start += MAX_IDS_PER_QUERY) {
-                    final int end = Math.min(start + MAX_IDS_PER_QUERY, totalIds); // excluding
-                    final int count = end - start;
-                    final String batchSelection = String.format(
-                            Locale.US,
-                            "%s IN %s",
-                            Mms._ID,
-                            getSqlInOperand(count));
-                    final String[] batchSelectionArgs =
-                            getSqlInOperandArgs(messageIds, start, count);
-                    final int deletedForBatch = resolver.delete(
-                            Mms.CONTENT_URI,
-                            batchSelection,
-                            batchSelectionArgs);
-                    if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                        LogUtil.d(TAG, "deleteMediaMessages: deleting IDs = "
-                                + Joiner.on(',').skipNulls().join(batchSelectionArgs)
-                                + ", deleted = " + deletedForBatch);
-                    }
-                    deleted += deletedForBatch;
-                }
+            int i = 0;
+            while (cursor.moveToNext()) {
+                messageIds[i++] = cursor.getLong(0);
             }
+            return messageIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Delete a batch of SMS or MMS messages by id. The batch should hold no more than
+     * {@link #MAX_IDS_PER_QUERY} ids, as there is a limit on the size of SQL statements.
+     *
+     * @param contentUri The SMS or MMS content uri
+     * @param ids The message ids
+     * @param start Start of the ids to delete
+     * @param count Number of ids to delete
+     * @return The count of messages deleted.
+     */
+    public static int deleteMessagesById(final Uri contentUri, final long[] ids, final int start,
+            final int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        final String batchSelection = String.format(
+                Locale.US,
+                "%s IN %s",
+                BaseColumns._ID,
+                getSqlInOperand(count));
+        final String[] batchSelectionArgs = getSqlInOperandArgs(ids, start, count);
+        final ContentResolver resolver = Factory.get().getApplicationContext().getContentResolver();
+        final int deleted = resolver.delete(contentUri, batchSelection, batchSelectionArgs);
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "deleteMessagesById: deleting IDs = "
+                    + Joiner.on(',').skipNulls().join(batchSelectionArgs)
+                    + " from " + contentUri + ", deleted = " + deleted);
         }
         return deleted;
     }
@@ -1355,34 +1395,6 @@ public class MmsUtils {
         return args;
     }
 
-    /**
-     * Delete SMS and MMS messages that are earlier than a specific timestamp
-     *
-     * @param cutOffTimestampInMillis The cut-off timestamp
-     * @return Total number of messages deleted.
-     */
-    public static int deleteMessagesOlderThan(final long cutOffTimestampInMillis) {
-        int deleted = 0;
-        final ContentResolver resolver = Factory.get().getApplicationContext().getContentResolver();
-        // Delete old SMS
-        final String smsSelection = String.format(
-                Locale.US,
-                "%s AND (%s<=%d)",
-                getSmsTypeSelectionSql(),
-                Sms.DATE,
-                cutOffTimestampInMillis);
-        deleted += resolver.delete(Sms.CONTENT_URI, smsSelection, null/*selectionArgs*/);
-        // Delete old MMS
-        final String mmsSelection = String.format(
-                Locale.US,
-                "%s AND (%s<=%d)",
-                getMmsTypeSelectionSql(),
-                Mms.DATE,
-                cutOffTimestampInMillis / 1000L);
-        deleted += resolver.delete(Mms.CONTENT_URI, mmsSelection, null/*selectionArgs*/);
-        return deleted;
-    }
-
     /**
      * Update the read status of SMS/MMS messages by thread and timestamp
      *
@@ -2546,27 +2558,71 @@ public class MmsUtils {
                     smsServiceCenter,
                     requireDeliveryReport,
                     requestUri);
-            if (!result.hasPending()) {
-                // not timed out, check failures
-                final int failureLevel = result.getHighestFailureLevel();
-                switch (failureLevel) {
-                    case SendResult.FAILURE_LEVEL_NONE:
-                        status = MMS_REQUEST_SUCCEEDED;
-                        break;
-                    case SendResult.FAILURE_LEVEL_TEMPORARY:
-                        status = MMS_REQUEST_AUTO_RETRY;
-                        LogUtil.e(TAG, "MmsUtils: SMS temporary failure");
-                        break;
-                    case SendResult.FAILURE_LEVEL_PERMANENT:
-                        LogUtil.e(TAG, "MmsUtils: SMS permanent failure");
-                        break;
-                }
-            } else {
-                // Timed out
-                LogUtil.e(TAG, "MmsUtils: sending SMS timed out");
-            }
+            status = getSmsSendStatus(result);
+        } catch (final Exception e) {
+            LogUtil.e(TAG, "MmsUtils: failed to send SMS " + e, e);
+        }
+        return status;
+    }
+
+    /**
+     * Callback of {@link #sendSmsMessageAsync}, called on the main thread
+     */
+    public interface SmsSentCallback {
+        /**
+         * @param status the status of the sending, e.g. {@link #MMS_REQUEST_SUCCEEDED}
+         */
+        void onSmsSent(int status);
+    }
+
+    /**
+     * Send an SMS without waiting for its sent status
+     * @return true if the message is being sent and its status will be passed to the callback,
+     *         false if it failed to send ({@link #MMS_REQUEST_MANUAL_RETRY})
+     */
+    public static boolean sendSmsMessageAsync(final String recipient, final String messageText,
+            final Uri requestUri, final int subId, final String smsServiceCenter,
+            final boolean requireDeliveryReport, final SmsSentCallback callback) {
+        if (!isSmsDataAvailable(subId)) {
+            LogUtil.w(TAG, "MmsUtils: can't send SMS without radio");
+            return false;
+        }
+        final Context context = Factory.get().getApplicationContext();
+        try {
+            SmsSender.sendMessageAsync(context, subId, recipient, messageText, smsServiceCenter,
+                    requireDeliveryReport, requestUri, new SmsSender.SendCallback() {
+                        @Override
+                        public void onSendComplete(final SendResult result) {
+                            callback.onSmsSent(getSmsSendStatus(result));
+                        }
+                    });
+            return true;
         } catch (final Exception e) {
             LogUtil.e(TAG, "MmsUtils: failed to send SMS " + e, e);
+            return false;
+        }
+    }
+
+    private static int getSmsSendStatus(final SendResult result) {
+        int status = MMS_REQUEST_MANUAL_RETRY;
+        if (!result.hasPending()) {
+            // not timed out, check failures
+            final int failureLevel = result.getHighestFailureLevel();
+            switch (failureLevel) {
+                case SendResult.FAILURE_LEVEL_NONE:
+                    status = MMS_REQUEST_SUCCEEDED;
+                    break;
+                case SendResult.FAILURE_LEVEL_TEMPORARY:
+                    status = MMS_REQUEST_AUTO_RETRY;
+                    LogUtil.e(TAG, "MmsUtils: SMS temporary failure");
+                    break;
+                case SendResult.FAILURE_LEVEL_PERMANENT:
+                    LogUtil.e(TAG, "MmsUtils: SMS permanent failure");
+                    break;
+            }
+        } else {
+            // Timed out
+            LogUtil.e(TAG, "MmsUtils: sending SMS timed out");
         }
         return status;
     }
@@ -16,15 +16,23 @@
 
 package com.android.messaging.sms;
 
+import android.content.ContentUris;
 import android.content.res.Resources;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Sms;
 
 import com.android.messaging.Factory;
 import com.android.messaging.R;
-import com.android.messaging.datamodel.SyncManager;
+import com.android.messaging.datamodel.BugleDatabaseOperations;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.util.BugleGservices;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
 
+import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -128,39 +136,99 @@ public class SmsReleaseStorage {
         return -1L;
     }
 
+    // Number of telephony messages deleted, along with their local copies, in each batch
+    private static final int DELETE_BATCH_SIZE = MmsUtils.MAX_IDS_PER_QUERY;
+
+    /**
+     * Listener for the progress of deleting messages
+     */
+    public interface DeleteProgressListener {
+        /**
+         * Called after each batch of messages is deleted from both telephony and the local db
+         *
+         * @param deleted Number of messages deleted so far
+         * @param total Number of messages to delete
+         */
+        void onProgress(int deleted, int total);
+    }
+
     /**
-     * Delete message actions:
-     * 0: delete media messages
-     * 1: delete old messages
+     * Delete messages from telephony in batches, deleting their local copies and updating the
+     * conversations they were in along with each batch, so that no sync is needed to bring the
+     * local db up to date. Each batch is complete on its own: if we are interrupted, the messages
+     * left are found again by the next run, and a local copy outliving its telephony message (if
+     * we stop between the two) is removed by the next sync.
      *
-     * @param actionIndex The index of the delete action to perform
+     * @param actionIndex The index of the delete action to perform: 0 to delete media messages,
+     *        1 to delete old messages
      * @param durationInMillis The time duration for retaining messages
+     * @param listener Optional listener for the progress
+     * @return Total number of messages deleted
      */
-    public static void deleteMessages(final int actionIndex, final long durationInMillis) {
-        int deleted = 0;
+    public static int deleteMessages(final int actionIndex, final long durationInMillis,
+            final DeleteProgressListener listener) {
+        long[] smsIds = new long[0];
+        long[] mmsIds = new long[0];
         switch (actionIndex) {
             case 0: {
                 // Delete media
-                deleted = MmsUtils.deleteMediaMessages();
+                mmsIds = MmsUtils.queryMediaMessageIds();
                 break;
             }
             case 1: {
                 // Delete old messages
                 final long now = System.currentTimeMillis();
                 final long cutOffTimestampInMillis = now - durationInMillis;
-                // Delete messages from telephony provider
-                deleted = MmsUtils.deleteMessagesOlderThan(cutOffTimestampInMillis);
+                smsIds = MmsUtils.querySmsIdsOlderThan(cutOffTimestampInMillis);
+                mmsIds = MmsUtils.queryMmsIdsOlderThan(cutOffTimestampInMillis);
                 break;
             }
             default: {
                 LogUtil.e(TAG, "SmsStorageStatusManager: invalid action " + actionIndex);
-                break;
+                return 0;
             }
         }
 
-        if (deleted > 0) {
-            // Kick off a sync to update local db.
-            SyncManager.sync();
+        final int total = smsIds.length + mmsIds.length;
+        LogUtil.i(TAG, "SmsReleaseStorage: deleting " + total + " messages");
+        int deleted = deleteMessagesInBatches(Sms.CONTENT_URI, smsIds, 0, total, listener);
+        deleted = deleteMessagesInBatches(Mms.CONTENT_URI, mmsIds, deleted, total, listener);
+        LogUtil.i(TAG, "SmsReleaseStorage: deleted " + deleted + " messages");
+        return deleted;
+    }
+
+    private static int deleteMessagesInBatches(final Uri contentUri, final long[] ids,
+            final int deletedBefore, final int total, final DeleteProgressListener listener) {
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        int deleted = deletedBefore;
+        for (int start = 0; start < ids.length; start += DELETE_BATCH_SIZE) {
+            final int count = Math.min(DELETE_BATCH_SIZE, ids.length - start);
+            // Delete from telephony first, so that a sync running meanwhile can't bring back the
+            // local copies
+            deleted += MmsUtils.deleteMessagesById(contentUri, ids, start, count);
+
+            final String[] smsMessageUris = new String[count];
+            for (int i = 0; i < count; i++) {
+                smsMessageUris[i] = ContentUris.withAppendedId(contentUri, ids[start + i])
+                        .toString();
+            }
+            final HashSet<String> conversationIds =
+                    BugleDatabaseOperations.deleteMessagesBySmsMessageUris(db, smsMessageUris);
+            for (final String conversationId : conversationIds) {
+                MessagingContentProvider.notifyMessagesChanged(conversationId);
+            }
+            if (!conversationIds.isEmpty()) {
+                MessagingContentProvider.notifyConversationListChanged();
+            }
+
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "SmsReleaseStorage: deleted " + deleted + " of " + total
+                        + " messages, " + conversationIds.size() + " conversations updated");
+            }
+            if (listener != null) {
+                listener.onProgress(deleted, total);
+            }
         }
+        return deleted;
     }
 }
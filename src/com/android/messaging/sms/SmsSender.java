@@ -21,6 +21,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.PowerManager;
 import android.os.SystemClock;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
@@ -33,7 +34,9 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.BugleGservices;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.PerfMetrics;
 import com.android.messaging.util.PhoneUtils;
+import com.android.messaging.util.ThreadUtil;
 import com.android.messaging.util.UiUtils;
 
 import java.util.ArrayList;
@@ -43,13 +46,18 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Class that sends chat message via SMS.
  *
- * The interface emulates a blocking sending similar to making an HTTP request.
+ * {@link #sendMessage} emulates a blocking sending similar to making an HTTP request.
  * It calls the SmsManager to send a (potentially multipart) message and waits
  * on the sent status on each part. The waiting has a timeout so it won't wait
  * forever. Once the sent status of all parts received, the call returns.
  * A successful sending requires success status for all parts. Otherwise, we
  * pick the highest level of failure as the error for the whole message, which
  * is used to determine if we need to retry the sending.
+ *
+ * {@link #sendMessageAsync} returns as soon as the message is handed to the SmsManager and
+ * reports the same result to a callback once the sent status of all parts is received (or the
+ * sending timed out), so that several messages can be in flight at once. A wake lock is held
+ * while any of them is in flight.
  */
 public class SmsSender {
     private static final String TAG = LogUtil.BUGLE_TAG;
@@ -67,6 +75,37 @@ public class SmsSender {
     // Whether we should send multipart SMS as separate messages
     private static Boolean sSendMultipartSmsAsSeparateMessages = null;
 
+    private static final String WAKELOCK_ID = "bugle_sms_send_wakelock";
+    // Acquired once for each message sent with sendMessageAsync until its sent status comes back
+    // or it times out, so that the device can't sleep with messages of the window in flight
+    private static final Object sWakeLockLock = new Object();
+    private static PowerManager.WakeLock sWakeLock;
+
+    // Messages sent with sendMessageAsync: time until their sent status came back (or they timed
+    // out), how many completed in total and in the last minute, how they failed, and how many were
+    // in flight, as of the latest change and as seen by each message sent
+    private static final PerfMetrics.Histogram sSendTime =
+            PerfMetrics.histogram("sms.send.async");
+    private static final PerfMetrics.Counter sCompleted = PerfMetrics.counter("sms.send.completed");
+    private static final PerfMetrics.Rate sCompletedRate = PerfMetrics.rate(
+            "sms.send.completed.per_minute");
+    private static final PerfMetrics.Counter sFailures = PerfMetrics.counter("sms.send.failures");
+    private static final PerfMetrics.Counter sTimeouts = PerfMetrics.counter("sms.send.timeouts");
+    private static final PerfMetrics.Gauge sInFlight = PerfMetrics.gauge("sms.send.in_flight");
+    private static final PerfMetrics.Histogram sInFlightOnAdd =
+            PerfMetrics.histogram("sms.send.in_flight.on_add");
+
+    /**
+     * Callback of {@link #sendMessageAsync}, called on the main thread
+     */
+    public interface SendCallback {
+        /**
+         * @param result the sent status of the message, which still has pending parts if the
+         *        sending timed out
+         */
+        void onSendComplete(SendResult result);
+    }
+
     /**
      * Class that holds the sent status for all parts of a multipart message sending
      */
@@ -83,6 +122,11 @@ public class SmsSender {
         // Tracking the highest level of failure among all parts
         private int mHighestFailureLevel;
 
+        // Set for messages sent with sendMessageAsync
+        private SendCallback mCallback;
+        private long mStartNanos;
+        private Runnable mTimeoutRunnable;
+
         public SendResult(final int numOfParts) {
             Assert.isTrue(numOfParts > 0);
             mPendingParts = numOfParts;
@@ -156,12 +200,17 @@ public class SmsSender {
         if (requestId != null) {
             final SendResult result = sPendingMessageMap.get(requestId);
             if (result != null) {
+                final boolean complete;
                 synchronized (result) {
                     result.setPartResult(resultCode);
-                    if (!result.hasPending()) {
+                    complete = !result.hasPending();
+                    if (complete) {
                         result.notifyAll();
                     }
                 }
+                if (complete && result.mCallback != null) {
+                    completeAsync(requestId, result);
+                }
             } else {
                 LogUtil.e(TAG, "SmsSender: ignoring sent result. " + " requestId=" + requestId
                         + " partId=" + partId + " resultCode=" + resultCode);
@@ -190,6 +239,62 @@ public class SmsSender {
                     " requireDeliveryReport=" + requireDeliveryReport +
                     " requestId=" + messageUri);
         }
+        final SendResult pendingResult = startSending(context, subId, dest, message,
+                serviceCenter, requireDeliveryReport, messageUri, null /* callback */);
+        // Wait for pending intent to come back
+        synchronized (pendingResult) {
+            final long smsSendTimeoutInMillis = getSendTimeoutMillis();
+            final long beginTime = SystemClock.elapsedRealtime();
+            long waitTime = smsSendTimeoutInMillis;
+            // We could possibly be woken up while still pending
+            // so make sure we wait the full timeout period unless
+            // we have the send results of all parts.
+            while (pendingResult.hasPending() && waitTime > 0) {
+                try {
+                    pendingResult.wait(waitTime);
+                } catch (final InterruptedException e) {
+                    LogUtil.e(TAG, "SmsSender: sending wait interrupted");
+                }
+                waitTime = smsSendTimeoutInMillis - (SystemClock.elapsedRealtime() - beginTime);
+            }
+        }
+        // Either we timed out or have all the results (success or failure)
+        sPendingMessageMap.remove(messageUri);
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "SmsSender: sending completed. " +
+                    "dest=" + dest + " message=" + message + " result=" + pendingResult);
+        }
+        return pendingResult;
+    }
+
+    /**
+     * Send a message without waiting for its sent status, which is reported to the callback
+     * once the sent status of all parts is received or the sending times out.
+     * This should be called from a background thread.
+     */
+    public static void sendMessageAsync(final Context context, final int subId,
+            final String dest, final String message, final String serviceCenter,
+            final boolean requireDeliveryReport, final Uri messageUri,
+            final SendCallback callback) throws SmsException {
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "SmsSender: sending message asynchronously. " +
+                    "dest=" + dest + " message=" + message +
+                    " serviceCenter=" + serviceCenter +
+                    " requireDeliveryReport=" + requireDeliveryReport +
+                    " requestId=" + messageUri);
+        }
+        Assert.notNull(callback);
+        startSending(context, subId, dest, message, serviceCenter, requireDeliveryReport,
+                messageUri, callback);
+    }
+
+    /**
+     * Hand a message to the SmsManager, tracking its sent status in the pending message map
+     * @param callback the callback of an asynchronous sending, or null if the caller waits
+     */
+    private static SendResult startSending(final Context context, final int subId, String dest,
+            String message, final String serviceCenter, final boolean requireDeliveryReport,
+            final Uri messageUri, final SendCallback callback) throws SmsException {
         if (TextUtils.isEmpty(message)) {
             throw new SmsException("SmsSender: empty text message");
         }
@@ -218,36 +323,89 @@ public class SmsSender {
         }
         // Prepare the send result, which collects the send status for each part
         final SendResult pendingResult = new SendResult(messages.size());
+        if (callback != null) {
+            pendingResult.mCallback = callback;
+            pendingResult.mStartNanos = PerfMetrics.now();
+            pendingResult.mTimeoutRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    LogUtil.e(TAG, "SmsSender: sending timed out. requestId=" + messageUri);
+                    completeAsync(messageUri, pendingResult);
+                }
+            };
+            acquireWakeLock(context);
+            ThreadUtil.getMainThreadHandler().postDelayed(pendingResult.mTimeoutRunnable,
+                    getSendTimeoutMillis());
+        }
         sPendingMessageMap.put(messageUri, pendingResult);
+        if (callback != null) {
+            sInFlight.set(sPendingMessageMap.size());
+            sInFlightOnAdd.record(sPendingMessageMap.size());
+        }
         // Actually send the sms
-        sendInternal(
-                context, subId, dest, messages, serviceCenter, requireDeliveryReport, messageUri);
-        // Wait for pending intent to come back
-        synchronized (pendingResult) {
-            final long smsSendTimeoutInMillis = BugleGservices.get().getLong(
-                    BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS,
-                    BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT);
-            final long beginTime = SystemClock.elapsedRealtime();
-            long waitTime = smsSendTimeoutInMillis;
-            // We could possibly be woken up while still pending
-            // so make sure we wait the full timeout period unless
-            // we have the send results of all parts.
-            while (pendingResult.hasPending() && waitTime > 0) {
-                try {
-                    pendingResult.wait(waitTime);
-                } catch (final InterruptedException e) {
-                    LogUtil.e(TAG, "SmsSender: sending wait interrupted");
-                }
-                waitTime = smsSendTimeoutInMillis - (SystemClock.elapsedRealtime() - beginTime);
+        try {
+            sendInternal(context, subId, dest, messages, serviceCenter, requireDeliveryReport,
+                    messageUri);
+        } catch (final SmsException e) {
+            sPendingMessageMap.remove(messageUri, pendingResult);
+            if (callback != null) {
+                ThreadUtil.getMainThreadHandler().removeCallbacks(pendingResult.mTimeoutRunnable);
+                releaseWakeLock();
+                sInFlight.set(sPendingMessageMap.size());
             }
+            throw e;
+        }
+        return pendingResult;
+    }
+
+    private static long getSendTimeoutMillis() {
+        return BugleGservices.get().getLong(
+                BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS,
+                BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT);
+    }
+
+    /**
+     * Report the result of a message sent with sendMessageAsync, unless it has already been
+     * reported (i.e. its last part's status came in just as it timed out)
+     */
+    private static void completeAsync(final Uri requestId, final SendResult result) {
+        if (!sPendingMessageMap.remove(requestId, result)) {
+            return;
+        }
+        ThreadUtil.getMainThreadHandler().removeCallbacks(result.mTimeoutRunnable);
+        releaseWakeLock();
+        sSendTime.recordSince(result.mStartNanos);
+        sCompleted.increment();
+        sCompletedRate.mark();
+        sInFlight.set(sPendingMessageMap.size());
+        if (result.hasPending()) {
+            sTimeouts.increment();
+        } else if (result.getHighestFailureLevel() != SendResult.FAILURE_LEVEL_NONE) {
+            sFailures.increment();
         }
-        // Either we timed out or have all the results (success or failure)
-        sPendingMessageMap.remove(messageUri);
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "SmsSender: sending completed. " +
-                    "dest=" + dest + " message=" + message + " result=" + pendingResult);
+            LogUtil.v(TAG, "SmsSender: sending completed. requestId=" + requestId
+                    + " result=" + result + " latency="
+                    + (PerfMetrics.now() - result.mStartNanos) / 1000000L + "ms");
+        }
+        result.mCallback.onSendComplete(result);
+    }
+
+    private static void acquireWakeLock(final Context context) {
+        synchronized (sWakeLockLock) {
+            if (sWakeLock == null) {
+                final PowerManager pm =
+                        (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+                sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKELOCK_ID);
+            }
+            sWakeLock.acquire();
+        }
+    }
+
+    private static void releaseWakeLock() {
+        synchronized (sWakeLockLock) {
+            sWakeLock.release();
         }
-        return pendingResult;
     }
 
     // Actually sending the message using SmsManager
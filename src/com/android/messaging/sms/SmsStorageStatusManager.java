@@ -96,6 +96,43 @@ public class SmsStorageStatusManager {
                 PendingIntentConstants.SMS_STORAGE_LOW_NOTIFICATION_ID);
     }
 
+    /**
+     * Post or update the notification showing the progress of deleting messages to free up
+     * storage
+     *
+     * @param deleted Number of messages deleted so far
+     * @param total Number of messages to delete
+     */
+    public static void postDeleteProgressNotification(final int deleted, final int total) {
+        final Context context = Factory.get().getApplicationContext();
+        final Resources resources = context.getResources();
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
+        builder.setContentTitle(resources.getString(R.string.sms_storage_deleting_title))
+                .setContentText(resources.getString(R.string.sms_storage_deleting_text,
+                        deleted, total))
+                .setSmallIcon(R.drawable.ic_sms_light)
+                .setPriority(Notification.PRIORITY_LOW)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(total, deleted, false /*indeterminate*/);
+
+        final NotificationManagerCompat notificationManager =
+                NotificationManagerCompat.from(context);
+        notificationManager.notify(getNotificationTag(),
+                PendingIntentConstants.SMS_STORAGE_DELETE_PROGRESS_NOTIFICATION_ID,
+                builder.build());
+    }
+
+    /**
+     * Cancel the notification showing the progress of deleting messages
+     */
+    public static void cancelDeleteProgressNotification() {
+        final NotificationManagerCompat notificationManager =
+                NotificationManagerCompat.from(Factory.get().getApplicationContext());
+        notificationManager.cancel(getNotificationTag(),
+                PendingIntentConstants.SMS_STORAGE_DELETE_PROGRESS_NOTIFICATION_ID);
+    }
+
     private static String getNotificationTag() {
         return Factory.get().getApplicationContext().getPackageName() + ":smsstoragelow";
     }
@@ -150,7 +150,8 @@ public class AsyncImageView extends ImageView implements MediaResourceLoadListen
     public void resumeLoading() {
         Assert.notNull(mDelayLoader);
         Assert.isTrue(mImageRequestBinding.isBound());
-        MediaResourceManager.get().requestMediaResourceAsync(mImageRequestBinding.getData());
+        MediaResourceManager.get().requestMediaResourceAsync(mImageRequestBinding.getData(),
+                MediaResourceManager.PRIORITY_VISIBLE);
     }
 
     /**
@@ -223,7 +224,8 @@ public class AsyncImageView extends ImageView implements MediaResourceLoadListen
     private void requestImage(final BindableMediaRequest<ImageResource> request) {
         mImageRequestBinding.bind(request);
         if (mDelayLoader == null || !mDelayLoader.isDelayLoadingImage()) {
-            MediaResourceManager.get().requestMediaResourceAsync(request);
+            MediaResourceManager.get().requestMediaResourceAsync(request,
+                    MediaResourceManager.PRIORITY_VISIBLE);
         } else {
             mDelayLoader.registerView(this);
         }
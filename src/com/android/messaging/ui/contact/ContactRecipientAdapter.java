@@ -38,6 +38,7 @@ import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.BugleGservices;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.ContactRecipientEntryUtils;
+import com.android.messaging.util.ContactTypeaheadIndex;
 import com.android.messaging.util.ContactUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
@@ -80,6 +81,7 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
             final int queryMode, final ContactListItemView.HostInterface clivHost) {
         super(context, preferredMaxResultCount, queryMode);
         setPhotoManager(new ContactRecipientPhotoManager(context, clivHost));
+        ContactTypeaheadIndex.get().ensureBuilt();
         mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     }
 
@@ -113,6 +115,9 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
          * Some locales (e.g. JPN) expect email addresses to be auto-completed for MMS.
          * If this is the case, perform two queries on phone number followed by email and
          * return the merged results.
+         *
+         * Personal contacts are looked up in the {@link ContactTypeaheadIndex} once it is built,
+         * the contacts provider is only queried for them until then.
          */
         @DoesNotRunOnMainThread
         private CursorResult getFilteredResultsCursor(final String searchText) {
@@ -121,12 +126,16 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
                     BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS,
                     BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS_DEFAULT)) {
 
-                final Cursor personalFilterPhonesCursor = ContactUtil
-                        .filterPhones(getContext(), searchText).performSynchronousQuery();
-                final Cursor personalFilterEmailsCursor = ContactUtil
-                        .filterEmails(getContext(), searchText).performSynchronousQuery();
-                final Cursor personalCursor = new MergeCursor(
-                        new Cursor[]{personalFilterEmailsCursor, personalFilterPhonesCursor});
+                Cursor personalCursor =
+                        ContactTypeaheadIndex.get().filterPhonesAndEmails(searchText);
+                if (personalCursor == null) {
+                    final Cursor personalFilterPhonesCursor = ContactUtil
+                            .filterPhones(getContext(), searchText).performSynchronousQuery();
+                    final Cursor personalFilterEmailsCursor = ContactUtil
+                            .filterEmails(getContext(), searchText).performSynchronousQuery();
+                    personalCursor = new MergeCursor(
+                            new Cursor[]{personalFilterEmailsCursor, personalFilterPhonesCursor});
+                }
                 final CursorResult cursorResult =
                         new CursorResult(personalCursor, false /* sorted */);
                 if (OsUtil.isAtLeastN()) {
@@ -142,8 +151,12 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
                 }
                 return cursorResult;
             } else {
-                final Cursor personalFilterDestinationCursor = ContactUtil
-                        .filterDestination(getContext(), searchText).performSynchronousQuery();
+                Cursor personalFilterDestinationCursor =
+                        ContactTypeaheadIndex.get().filterDestination(searchText);
+                if (personalFilterDestinationCursor == null) {
+                    personalFilterDestinationCursor = ContactUtil
+                            .filterDestination(getContext(), searchText).performSynchronousQuery();
+                }
                 final CursorResult cursorResult = new CursorResult(personalFilterDestinationCursor,
                         true);
                 if (OsUtil.isAtLeastN()) {
@@ -135,6 +135,8 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
 
     static final int REQUEST_CHOOSE_ATTACHMENTS = 2;
     private static final int JUMP_SCROLL_THRESHOLD = 15;
+    // How close to the oldest loaded message we get before loading older messages
+    private static final int LOAD_OLDER_MESSAGES_THRESHOLD = 20;
     // We animate the message from draft to message list, if we the message doesn't show up in the
     // list within this time limit, then we just do a fade in animation instead
     public static final int MESSAGE_ANIMATION_MAX_WAIT = 500;
@@ -270,9 +272,23 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
                     mConversationComposeDivider.animate().alpha(isScrolledToBottom() ? 0 : 1);
                     mWasScrolledToBottom = isScrolledToBottom();
                 }
+                maybeLoadOlderMessages();
             }
     };
 
+    private void maybeLoadOlderMessages() {
+        if (!mBinding.isBound() || !mBinding.getData().hasOlderMessages()) {
+            return;
+        }
+        final LinearLayoutManager layoutManager =
+                (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        final int firstVisibleItemPosition = layoutManager.findFirstVisibleItemPosition();
+        if (firstVisibleItemPosition != RecyclerView.NO_POSITION &&
+                firstVisibleItemPosition < LOAD_OLDER_MESSAGES_THRESHOLD) {
+            mBinding.getData().loadOlderMessages();
+        }
+    }
+
     private final ActionMode.Callback mMessageActionModeCallback = new ActionMode.Callback() {
         @Override
         public boolean onCreateActionMode(final ActionMode actionMode, final Menu menu) {
@@ -907,8 +923,15 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
             mHost.onConversationMessagesUpdated(cursor.getCount());
 
             // Are we coming from a widget click where we're told to scroll to a particular item?
-            final int scrollToPos = getScrollToMessagePosition();
-            if (scrollToPos >= 0) {
+            final int messagePosition = getScrollToMessagePosition();
+            final int olderMessageCount = data.getOlderMessageCount();
+            if (messagePosition >= 0 && messagePosition < olderMessageCount
+                    && data.hasOlderMessages()) {
+                // The position is within the whole conversation but the cursor only holds its
+                // newest messages. Scroll once the cursor reaches back to the message.
+                data.loadMessagesFrom(messagePosition);
+            } else if (messagePosition >= 0) {
+                final int scrollToPos = Math.max(messagePosition - olderMessageCount, 0);
                 if (LogUtil.isLoggable(LogUtil.BUGLE_TAG, LogUtil.VERBOSE)) {
                     LogUtil.v(LogUtil.BUGLE_TAG, "onConversationMessagesCursorUpdated " +
                             " scrollToPos: " + scrollToPos +
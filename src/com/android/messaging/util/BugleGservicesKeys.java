@@ -100,6 +100,14 @@ public final class BugleGservicesKeys {
     public static final int SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN_DEFAULT =
             SMS_SYNC_BATCH_SIZE_MAX_DEFAULT * 4;
 
+    /**
+     * Whether the scan of the next SMS sync batch may start while the current batch is still
+     * being written to the local database.
+     */
+    public static final String SMS_SYNC_PIPELINE_ENABLED =
+            "bugle_sms_sync_pipeline_enabled";
+    public static final boolean SMS_SYNC_PIPELINE_ENABLED_DEFAULT = true;
+
     /**
      * Time in ms for sync to backoff from "now" to the latest message that will be sync'd.
      *
@@ -295,4 +303,96 @@ public final class BugleGservicesKeys {
      */
     public static final String ENABLE_GIF_TRANSCODING = "bugle_gif_transcoding";
     public static final boolean ENABLE_GIF_TRANSCODING_DEFAULT = true;
+
+    /**
+     * Number of messages in each page of a conversation that is loaded as the user scrolls back
+     * through it. Zero or less loads the whole conversation at once.
+     */
+    public static final String CONVERSATION_MESSAGES_PAGE_SIZE =
+            "bugle_conversation_messages_page_size";
+    public static final int CONVERSATION_MESSAGES_PAGE_SIZE_DEFAULT = 100;
+
+    /**
+     * Size limit of the on-disk image cache behind the in-memory media caches. Zero or less
+     * disables it.
+     */
+    public static final String MEDIA_DISK_CACHE_SIZE_BYTES = "bugle_media_disk_cache_size_bytes";
+    public static final long MEDIA_DISK_CACHE_SIZE_BYTES_DEFAULT = 20 * 1024 * 1024; // 20MB
+
+    /**
+     * How long an image stays in the on-disk image cache before it is loaded again from its
+     * source (e.g. to pick up a changed contact photo). Zero or less keeps images until evicted.
+     */
+    public static final String MEDIA_DISK_CACHE_MAX_AGE_MILLIS =
+            "bugle_media_disk_cache_max_age_millis";
+    public static final long MEDIA_DISK_CACHE_MAX_AGE_MILLIS_DEFAULT = 7 * 24 * 3600 * 1000L;
+
+    /**
+     * Size from which the image, audio and video parts of a downloaded MMS are written to files
+     * while the PDU is parsed, instead of being held in memory until the message is stored.
+     */
+    public static final String MMS_PART_FILE_THRESHOLD_BYTES =
+            "bugle_mms_part_file_threshold_bytes";
+    public static final int MMS_PART_FILE_THRESHOLD_BYTES_DEFAULT = 64 * 1024;
+
+    /**
+     * Most actions of the same type that are executed together in one database transaction when
+     * they are queued one after the other, e.g. when a burst of SMS arrives. One or less executes
+     * every action on its own.
+     */
+    public static final String ACTION_BATCH_MAX_SIZE = "bugle_action_batch_max_size";
+    public static final int ACTION_BATCH_MAX_SIZE_DEFAULT = 20;
+
+    /**
+     * Number of threads of each lane of the background worker. Sends and downloads run in the
+     * network lane, so it needs more than one thread for a slow download not to hold up sends.
+     */
+    public static final String BACKGROUND_WORKER_NETWORK_PARALLELISM =
+            "bugle_background_worker_network_parallelism";
+    public static final int BACKGROUND_WORKER_NETWORK_PARALLELISM_DEFAULT = 3;
+    public static final String BACKGROUND_WORKER_SYNC_PARALLELISM =
+            "bugle_background_worker_sync_parallelism";
+    public static final int BACKGROUND_WORKER_SYNC_PARALLELISM_DEFAULT = 1;
+    public static final String BACKGROUND_WORKER_MAINTENANCE_PARALLELISM =
+            "bugle_background_worker_maintenance_parallelism";
+    public static final int BACKGROUND_WORKER_MAINTENANCE_PARALLELISM_DEFAULT = 1;
+
+    /**
+     * Most SMS of a subscription that are sent at the same time, each to a different
+     * conversation, without waiting for the earlier ones' sent status.
+     */
+    public static final String SMS_SEND_WINDOW_SIZE = "bugle_sms_send_window_size";
+    public static final int SMS_SEND_WINDOW_SIZE_DEFAULT = 4;
+
+    /**
+     * How long change notifications of the messaging content provider wait for more changes
+     * before they are delivered, so that a burst of changes reloads each view once. Zero or less
+     * delivers every change right away.
+     */
+    public static final String CHANGE_NOTIFICATION_DEBOUNCE_MS =
+            "bugle_change_notification_debounce_ms";
+    public static final long CHANGE_NOTIFICATION_DEBOUNCE_MS_DEFAULT = 50;
+
+    /**
+     * Longest time a change notification is held back while changes keep coming.
+     */
+    public static final String CHANGE_NOTIFICATION_MAX_DELAY_MS =
+            "bugle_change_notification_max_delay_ms";
+    public static final long CHANGE_NOTIFICATION_MAX_DELAY_MS_DEFAULT = 250;
+
+    /**
+     * Most compiled SQL statements kept by the database wrapper for reuse. Statements are
+     * compiled again when they are used after being evicted.
+     */
+    public static final String DATABASE_STATEMENT_CACHE_SIZE =
+            "bugle_database_statement_cache_size";
+    public static final int DATABASE_STATEMENT_CACHE_SIZE_DEFAULT = 25;
+
+    /**
+     * Whether contact auto-complete is answered from an in-memory index of the contacts' names,
+     * phones and emails rather than by querying the contacts provider for every keystroke.
+     */
+    public static final String CONTACT_TYPEAHEAD_INDEX_ENABLED =
+            "bugle_contact_typeahead_index_enabled";
+    public static final boolean CONTACT_TYPEAHEAD_INDEX_ENABLED_DEFAULT = true;
 }
@@ -68,4 +68,13 @@ public final class BuglePrefsKeys {
     public static final String PROCESS_PENDING_MESSAGES_RETRY_COUNT
             = "process_pending_retry";
 
+    /**
+     * The last updated timestamp of the newest contact (in millis) that participants have been
+     * refreshed from. Later refreshes only look at contacts changed since then.
+     */
+    public static final String PARTICIPANT_REFRESH_CONTACTS_WATERMARK
+            = "participant_refresh_contacts_watermark";
+    public static final long PARTICIPANT_REFRESH_CONTACTS_WATERMARK_DEFAULT
+            = -1;
+
 }
@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.text.TextUtils;
+
+import com.android.messaging.Factory;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.ContactUtil.EmailQuery;
+import com.android.messaging.util.ContactUtil.PhoneQuery;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of the phones and emails of the contacts, used to auto-complete recipients
+ * without querying the contacts provider for every keystroke.
+ *
+ * Each phone or email is indexed by the words of the contact's name, by the digits of the phone
+ * number, and by the email address and its words, in a table of tokens sorted so that the tokens
+ * starting with the typed text are found by binary search. A query matches an entry when each of
+ * its words starts a token of the entry, like the provider's filter does.
+ *
+ * The index is built in the background the first time it is needed and then refreshed with only
+ * the contacts updated or deleted since, whenever the contact content observer sees a change.
+ * Lookups read an immutable snapshot and take no lock. Until the index is built (or without the
+ * permission to read contacts), lookups return null and the provider is queried instead.
+ */
+public class ContactTypeaheadIndex {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Projections for building the index. The first columns are those of the provider's filter
+    // queries, so the rows can be returned the same way.
+    private static final int INDEX_LAST_UPDATED_TIMESTAMP = PhoneQuery.PROJECTION.length;
+    private static final int INDEX_NORMALIZED_NUMBER = INDEX_LAST_UPDATED_TIMESTAMP + 1;
+
+    @VisibleForTesting
+    static final String[] PHONE_PROJECTION = appendColumns(PhoneQuery.PROJECTION,
+            Phone.CONTACT_LAST_UPDATED_TIMESTAMP, Phone.NORMALIZED_NUMBER);
+    @VisibleForTesting
+    static final String[] EMAIL_PROJECTION = appendColumns(EmailQuery.PROJECTION,
+            Email.CONTACT_LAST_UPDATED_TIMESTAMP);
+
+    private static final Pattern NON_SPACING_MARKS = Pattern.compile("\\p{Mn}+");
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern PHONE_SEPARATORS = Pattern.compile("[\\s\\-().+/]+");
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+
+    private static final Object sInstanceLock = new Object();
+    private static ContactTypeaheadIndex sInstance;
+
+    /**
+     * A phone or email of a contact
+     */
+    private static class Entry {
+        final long mContactId;
+        final String mDisplayName;
+        final String mPhotoThumbnailUri;
+        final String mDestination;
+        final int mDestinationType;
+        final String mDestinationLabel;
+        final String mLookupKey;
+        final long mDataId;
+        final String mSortKey;
+        final boolean mIsEmail;
+        final String[] mTokens;
+
+        Entry(final Cursor cursor, final boolean isEmail) {
+            mContactId = cursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+            mDisplayName = cursor.getString(ContactUtil.INDEX_DISPLAY_NAME);
+            mPhotoThumbnailUri = cursor.getString(ContactUtil.INDEX_PHOTO_URI);
+            mDestination = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+            mDestinationType = cursor.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE);
+            mDestinationLabel = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL_LABEL);
+            mLookupKey = cursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
+            mDataId = cursor.getLong(ContactUtil.INDEX_DATA_ID);
+            mSortKey = cursor.getString(ContactUtil.INDEX_SORT_KEY);
+            mIsEmail = isEmail;
+
+            final HashSet<String> tokens = new HashSet<String>();
+            addWords(tokens, mDisplayName);
+            if (isEmail) {
+                if (mDestination != null) {
+                    tokens.add(normalize(mDestination));
+                    addWords(tokens, mDestination);
+                }
+            } else {
+                addDigits(tokens, mDestination);
+                addDigits(tokens, cursor.getString(INDEX_NORMALIZED_NUMBER));
+            }
+            mTokens = tokens.toArray(new String[tokens.size()]);
+        }
+
+        boolean hasTokenStartingWith(final String prefix) {
+            for (final String token : mTokens) {
+                if (token.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addRow(final MatrixCursor cursor) {
+            cursor.addRow(new Object[] { mContactId, mDisplayName, mPhotoThumbnailUri,
+                    mDestination, mDestinationType, mDestinationLabel, mLookupKey, mDataId,
+                    mSortKey });
+        }
+
+        private static void addWords(final Set<String> tokens, final String text) {
+            if (TextUtils.isEmpty(text)) {
+                return;
+            }
+            for (final String word : WORD_SEPARATORS.split(normalize(text))) {
+                if (!word.isEmpty()) {
+                    tokens.add(word);
+                }
+            }
+        }
+
+        private static void addDigits(final Set<String> tokens, final String number) {
+            if (TextUtils.isEmpty(number)) {
+                return;
+            }
+            final String digits = getDigits(number);
+            if (!digits.isEmpty()) {
+                tokens.add(digits);
+            }
+        }
+    }
+
+    // Orders the entries like the provider's filter queries, by sort key
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry lhs, final Entry rhs) {
+            if (lhs.mSortKey == null || rhs.mSortKey == null) {
+                if (lhs.mSortKey != rhs.mSortKey) {
+                    return lhs.mSortKey == null ? 1 : -1;
+                }
+            } else {
+                final int sortKeyCompare = lhs.mSortKey.compareTo(rhs.mSortKey);
+                if (sortKeyCompare != 0) {
+                    return sortKeyCompare;
+                }
+            }
+            if (lhs.mContactId != rhs.mContactId) {
+                return lhs.mContactId < rhs.mContactId ? -1 : 1;
+            }
+            return lhs.mDataId < rhs.mDataId ? -1 : (lhs.mDataId == rhs.mDataId ? 0 : 1);
+        }
+    };
+
+    /**
+     * The entries and the sorted token table over them, never changed once built
+     */
+    private static class Snapshot {
+        final Entry[] mEntries;
+        // Tokens in order, each with the position of its entry in mEntries
+        final String[] mTokens;
+        final int[] mTokenEntries;
+
+        Snapshot(final ArrayList<Entry> entries) {
+            Collections.sort(entries, ENTRY_COMPARATOR);
+            mEntries = entries.toArray(new Entry[entries.size()]);
+
+            int tokenCount = 0;
+            for (final Entry entry : mEntries) {
+                tokenCount += entry.mTokens.length;
+            }
+            final String[] allTokens = new String[tokenCount];
+            final int[] allTokenEntries = new int[tokenCount];
+            final Integer[] positions = new Integer[tokenCount];
+            int i = 0;
+            for (int e = 0; e < mEntries.length; e++) {
+                for (final String token : mEntries[e].mTokens) {
+                    allTokens[i] = token;
+                    allTokenEntries[i] = e;
+                    positions[i] = i;
+                    i++;
+                }
+            }
+            // Sort the tokens, then the entries of equal tokens
+            Arrays.sort(positions, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    final int tokenCompare = allTokens[lhs].compareTo(allTokens[rhs]);
+                    if (tokenCompare != 0) {
+                        return tokenCompare;
+                    }
+                    return allTokenEntries[lhs] - allTokenEntries[rhs];
+                }
+            });
+            mTokens = new String[tokenCount];
+            mTokenEntries = new int[tokenCount];
+            for (i = 0; i < tokenCount; i++) {
+                mTokens[i] = allTokens[positions[i]];
+                mTokenEntries[i] = allTokenEntries[positions[i]];
+            }
+        }
+
+        /**
+         * Add the entries matching all the words to the cursor, in order
+         */
+        void filter(final String[] words, final boolean includePhones,
+                final boolean includeEmails, final MatrixCursor cursor) {
+            // Entries having a token starting with the first word, checked against the others
+            final String first = words[0];
+            final BitSet candidates = new BitSet(mEntries.length);
+            int position = Arrays.binarySearch(mTokens, first);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            // Equal tokens may precede the one found
+            while (position > 0 && mTokens[position - 1].startsWith(first)) {
+                position--;
+            }
+            for (; position < mTokens.length && mTokens[position].startsWith(first); position++) {
+                candidates.set(mTokenEntries[position]);
+            }
+            for (int e = candidates.nextSetBit(0); e >= 0; e = candidates.nextSetBit(e + 1)) {
+                final Entry entry = mEntries[e];
+                if (entry.mIsEmail ? !includeEmails : !includePhones) {
+                    continue;
+                }
+                boolean matches = true;
+                for (int w = 1; w < words.length && matches; w++) {
+                    matches = entry.hasTokenStartingWith(words[w]);
+                }
+                if (matches) {
+                    entry.addRow(cursor);
+                }
+            }
+        }
+    }
+
+    private volatile Snapshot mSnapshot;
+    // The latest contact update or deletion seen, from which the next refresh reads changes
+    private long mLastUpdatedTimestamp;
+    private final AtomicBoolean mRefreshScheduled = new AtomicBoolean(false);
+    // Whether the last build found no permission to read contacts, in which case lookups don't
+    // try building the index again until it is asked for anew
+    private volatile boolean mPermissionDenied;
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshScheduled.set(false);
+            refresh();
+        }
+    };
+
+    // Time taken by full builds, incremental refreshes and queries of the index, the queries left
+    // to the contacts provider, and the entries of the index
+    private static final PerfMetrics.Histogram sBuildTime =
+            PerfMetrics.histogram("contacts.typeahead.build");
+    private static final PerfMetrics.Histogram sRefreshTime =
+            PerfMetrics.histogram("contacts.typeahead.refresh");
+    private static final PerfMetrics.Histogram sQueryTime =
+            PerfMetrics.histogram("contacts.typeahead.query");
+    private static final PerfMetrics.Counter sFallbacks =
+            PerfMetrics.counter("contacts.typeahead.fallbacks");
+    private static final PerfMetrics.Gauge sEntries =
+            PerfMetrics.gauge("contacts.typeahead.entries");
+
+    public static ContactTypeaheadIndex get() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new ContactTypeaheadIndex();
+            }
+            return sInstance;
+        }
+    }
+
+    @VisibleForTesting
+    ContactTypeaheadIndex() {
+    }
+
+    private static boolean isEnabled() {
+        return BugleGservices.get().getBoolean(
+                BugleGservicesKeys.CONTACT_TYPEAHEAD_INDEX_ENABLED,
+                BugleGservicesKeys.CONTACT_TYPEAHEAD_INDEX_ENABLED_DEFAULT);
+    }
+
+    /**
+     * Start building the index in the background if it isn't built yet, e.g. when a screen
+     * picking recipients opens, checking again for the permission to read contacts
+     */
+    public void ensureBuilt() {
+        mPermissionDenied = false;
+        scheduleBuild();
+    }
+
+    private void scheduleBuild() {
+        if (mSnapshot == null && !mPermissionDenied && isEnabled()) {
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * Called when contacts change, to refresh the index with the changed contacts if it is built
+     */
+    public void onContactsChanged() {
+        if (mSnapshot != null) {
+            scheduleRefresh();
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (mRefreshScheduled.compareAndSet(false, true)) {
+            SafeAsyncTask.executeOnThreadPool(mRefreshRunnable);
+        }
+    }
+
+    /**
+     * Get the phones and emails matching a partial destination, like
+     * {@link ContactUtil#filterDestination}: emails if the search text looks like an email
+     * address, otherwise phones.
+     *
+     * @return a cursor with the columns of {@link PhoneQuery#PROJECTION} sorted by sort key, or
+     *         null if the index isn't built and the contacts provider is to be queried instead
+     */
+    public Cursor filterDestination(final String searchText) {
+        final boolean isEmailSearch = searchText != null && searchText.contains("@");
+        return filter(searchText, !isEmailSearch, isEmailSearch);
+    }
+
+    /**
+     * Get the phones and emails matching a search text, like {@link ContactUtil#filterPhones}
+     * and {@link ContactUtil#filterEmails} together.
+     *
+     * @return a cursor with the columns of {@link PhoneQuery#PROJECTION} sorted by sort key, or
+     *         null if the index isn't built and the contacts provider is to be queried instead
+     */
+    public Cursor filterPhonesAndEmails(final String searchText) {
+        return filter(searchText, true /*includePhones*/, true /*includeEmails*/);
+    }
+
+    private Cursor filter(final String searchText, final boolean includePhones,
+            final boolean includeEmails) {
+        final Snapshot snapshot = mSnapshot;
+        if (snapshot == null || !isEnabled()) {
+            sFallbacks.increment();
+            scheduleBuild();
+            return null;
+        }
+        final long startNanos = PerfMetrics.now();
+        final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION);
+        final String[] words = getQueryWords(searchText);
+        if (words.length > 0) {
+            snapshot.filter(words, includePhones, includeEmails, cursor);
+        }
+        sQueryTime.recordSince(startNanos);
+        return cursor;
+    }
+
+    /**
+     * Split a search text the way the tokens of the entries are: a phone number is matched by its
+     * digits, an email address as a whole, and anything else word by word.
+     */
+    private static String[] getQueryWords(final String searchText) {
+        if (TextUtils.isEmpty(searchText)) {
+            return new String[0];
+        }
+        final String text = normalize(searchText).trim();
+        if (text.contains("@")) {
+            return new String[] { text };
+        }
+        final String digits = PHONE_SEPARATORS.matcher(text).replaceAll("");
+        if (DIGITS.matcher(digits).matches()) {
+            return new String[] { digits };
+        }
+        final ArrayList<String> words = new ArrayList<String>();
+        for (final String word : WORD_SEPARATORS.split(text)) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    // Lower case without accents, so that "Zoë" is found by typing "zoe"
+    private static String normalize(final String text) {
+        return NON_SPACING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+                .replaceAll("").toLowerCase(Locale.getDefault());
+    }
+
+    private static String getDigits(final String number) {
+        final StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    /**
+     * Build the index, or refresh it with the contacts changed since it was last refreshed
+     */
+    @DoesNotRunOnMainThread
+    private synchronized void refresh() {
+        Assert.isNotMainThread();
+        if (!ContactUtil.hasReadContactsPermission()) {
+            mPermissionDenied = true;
+            mSnapshot = null;
+            sEntries.set(0);
+            return;
+        }
+        if (!isEnabled()) {
+            mSnapshot = null;
+            sEntries.set(0);
+            return;
+        }
+        final long startNanos = PerfMetrics.now();
+        final ContentResolver resolver =
+                Factory.get().getApplicationContext().getContentResolver();
+        final boolean fullBuild = mSnapshot == null;
+        final String selection;
+        final String[] selectionArgs;
+        HashSet<Long> changedContactIds = null;
+        long lastUpdatedTimestamp = mLastUpdatedTimestamp;
+        if (fullBuild) {
+            selection = null;
+            selectionArgs = null;
+        } else {
+            // Contacts updated since the last refresh, including those left without any phone or
+            // email, and contacts deleted since. Timestamps equal to the last one are read again
+            // in case other contacts were updated within the same millisecond.
+            selectionArgs = new String[] { String.valueOf(mLastUpdatedTimestamp) };
+            changedContactIds = new HashSet<Long>();
+            lastUpdatedTimestamp = Math.max(lastUpdatedTimestamp, readContactIds(resolver,
+                    changedContactIds, selectionArgs, false /*deleted*/));
+            lastUpdatedTimestamp = Math.max(lastUpdatedTimestamp, readContactIds(resolver,
+                    changedContactIds, selectionArgs, true /*deleted*/));
+            if (changedContactIds.isEmpty()) {
+                return;
+            }
+            selection = Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?";
+        }
+
+        final Cursor phones = resolver.query(Phone.CONTENT_URI, PHONE_PROJECTION, selection,
+                selectionArgs, null);
+        final Cursor emails = resolver.query(Email.CONTENT_URI, EMAIL_PROJECTION, selection,
+                selectionArgs, null);
+        try {
+            if (phones == null || emails == null) {
+                // Missing rows would read as contacts without phones or emails. Keep the index as
+                // it was, so it stays unbuilt and lookups query the provider instead, or keeps
+                // the changes to be read again by the next refresh.
+                LogUtil.w(TAG, "ContactTypeaheadIndex: contacts query failed, index not "
+                        + (fullBuild ? "built" : "refreshed"));
+                return;
+            }
+            lastUpdatedTimestamp = Math.max(lastUpdatedTimestamp,
+                    applyChanges(phones, emails, changedContactIds));
+        } finally {
+            if (phones != null) {
+                phones.close();
+            }
+            if (emails != null) {
+                emails.close();
+            }
+        }
+        mLastUpdatedTimestamp = lastUpdatedTimestamp;
+        (fullBuild ? sBuildTime : sRefreshTime).recordSince(startNanos);
+        sEntries.set(mSnapshot.mEntries.length);
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "ContactTypeaheadIndex: " + (fullBuild ? "built with "
+                    : "refreshed " + changedContactIds.size() + " contacts, now ")
+                    + mSnapshot.mEntries.length + " entries");
+        }
+    }
+
+    /**
+     * Read the ids of the contacts updated (or deleted) since the last refresh
+     * @return the latest update (or deletion) time read
+     */
+    private static long readContactIds(final ContentResolver resolver, final Set<Long> contactIds,
+            final String[] selectionArgs, final boolean deleted) {
+        final Cursor cursor = deleted
+                ? resolver.query(DeletedContacts.CONTENT_URI, new String[] {
+                        DeletedContacts.CONTACT_ID, DeletedContacts.CONTACT_DELETED_TIMESTAMP },
+                        DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?", selectionArgs, null)
+                : resolver.query(Contacts.CONTENT_URI, new String[] {
+                        Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP },
+                        Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?", selectionArgs, null);
+        long latestTimestamp = 0;
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    contactIds.add(cursor.getLong(0));
+                    latestTimestamp = Math.max(latestTimestamp, cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return latestTimestamp;
+    }
+
+    /**
+     * Replace the entries of the changed contacts with the phones and emails read for them.
+     * Contacts updated after the changed ones were read can be among the rows too, and have
+     * their entries replaced as well.
+     *
+     * @param phones rows of {@link #PHONE_PROJECTION}, may be null
+     * @param emails rows of {@link #EMAIL_PROJECTION}, may be null
+     * @param changedContactIds the contacts whose entries are replaced, or null to replace all
+     * @return the latest contact update time of the rows
+     */
+    @VisibleForTesting
+    long applyChanges(final Cursor phones, final Cursor emails,
+            final Set<Long> changedContactIds) {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        long latestTimestamp = 0;
+        for (final Cursor cursor : new Cursor[] { phones, emails }) {
+            if (cursor == null) {
+                continue;
+            }
+            final boolean isEmail = cursor == emails;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor, isEmail));
+                latestTimestamp = Math.max(latestTimestamp,
+                        cursor.getLong(INDEX_LAST_UPDATED_TIMESTAMP));
+            }
+        }
+        final Snapshot snapshot = mSnapshot;
+        if (changedContactIds != null && snapshot != null) {
+            final HashSet<Long> replacedContactIds = new HashSet<Long>(changedContactIds);
+            for (final Entry entry : entries) {
+                replacedContactIds.add(entry.mContactId);
+            }
+            for (final Entry entry : snapshot.mEntries) {
+                if (!replacedContactIds.contains(entry.mContactId)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        mSnapshot = new Snapshot(entries);
+        return latestTimestamp;
+    }
+
+    private static String[] appendColumns(final String[] projection, final String... columns) {
+        final String[] result = Arrays.copyOf(projection, projection.length + columns.length);
+        System.arraycopy(columns, 0, result, projection.length, columns.length);
+        return result;
+    }
+}
@@ -164,6 +164,18 @@ public class DebugUtils {
             }
         });
 
+        arrayAdapter.add(new DebugAction("Export performance metrics") {
+            @Override
+            public void run() {
+                SafeAsyncTask.executeOnThreadPool(new Runnable() {
+                    @Override
+                    public void run() {
+                        PerfMetrics.exportToFile();
+                    }
+                });
+            }
+        });
+
         arrayAdapter.add(new DebugAction("MMS Config...") {
             @Override
             public void run() {
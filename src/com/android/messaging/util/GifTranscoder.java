@@ -19,10 +19,7 @@ package com.android.messaging.util;
 import android.content.Context;
 import android.text.format.Formatter;
 
-import com.google.common.base.Stopwatch;
-
 import java.io.File;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Compresses a GIF so it can be sent via MMS.
@@ -33,6 +30,9 @@ import java.util.concurrent.TimeUnit;
 public class GifTranscoder {
     private static final String TAG = LogUtil.BUGLE_TAG;
 
+    private static final PerfMetrics.Histogram sTranscodeTime =
+            PerfMetrics.histogram("media.gif_transcode");
+
     private static int MIN_HEIGHT = 100;
     private static int MIN_WIDTH = 100;
 
@@ -45,10 +45,12 @@ public class GifTranscoder {
             return false;
         }
         final long inputSize = new File(filePath).length();
-        Stopwatch stopwatch = Stopwatch.createStarted();
+        final long startNanos = PerfMetrics.now();
         final boolean success = transcodeInternal(filePath, outFilePath);
-        stopwatch.stop();
-        final long elapsedMs = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        final long elapsedMs = (PerfMetrics.now() - startNanos) / 1000000L;
+        if (success) {
+            sTranscodeTime.recordSince(startNanos);
+        }
         final long outputSize = new File(outFilePath).length();
         final float compression = (inputSize > 0) ? ((float) outputSize / inputSize) : 0;
 
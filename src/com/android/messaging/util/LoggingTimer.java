@@ -16,10 +16,9 @@
 
 package com.android.messaging.util;
 
-import android.os.SystemClock;
-
 /**
- * A utility timer that logs the execution time of operations
+ * A utility timer that logs the execution time of operations, and records it in the
+ * {@link PerfMetrics} histogram of the same name
  */
 public class LoggingTimer {
     private static final int NO_WARN_LIMIT = -1;
@@ -27,7 +26,7 @@ public class LoggingTimer {
     private final String mTag;
     private final String mName;
     private final long mWarnLimitMillis;
-    private long mStartMillis;
+    private long mStartNanos;
 
     public LoggingTimer(final String tag, final String name) {
         this(tag, name, NO_WARN_LIMIT);
@@ -43,7 +42,7 @@ public class LoggingTimer {
      * This method should be called at the start of the operation to be timed.
      */
     public void start() {
-        mStartMillis = SystemClock.elapsedRealtime();
+        mStartNanos = PerfMetrics.now();
 
         if (LogUtil.isLoggable(mTag, LogUtil.VERBOSE)) {
             LogUtil.v(mTag, "Timer start for " + mName);
@@ -55,7 +54,9 @@ public class LoggingTimer {
      * the last call to {@link #start}
      */
     public void stopAndLog() {
-        final long elapsedMs = SystemClock.elapsedRealtime() - mStartMillis;
+        final long elapsedMicros = (PerfMetrics.now() - mStartNanos) / 1000L;
+        PerfMetrics.histogram(mName).record(elapsedMicros);
+        final long elapsedMs = elapsedMicros / 1000L;
 
         final String logMessage = String.format("Used %dms for %s", elapsedMs, mName);
 
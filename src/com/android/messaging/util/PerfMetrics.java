@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of performance metrics: counters, gauges, rates and histograms, looked up by
+ * name.
+ * Recording takes a few atomic operations and no locks, so metrics are kept all the time and may
+ * be recorded from any thread. Callers on hot paths keep the metric they record to rather than
+ * looking it up each time.
+ * <p>
+ * Names are dotted, starting with the area they measure, e.g. "db.query". Histograms of
+ * durations record microseconds, see {@link Histogram#recordSince}. The metrics are written out
+ * by dumpsys (see MessagingContentProvider.dump) and may be exported to a file from the debug
+ * options, to compare runs.
+ */
+public final class PerfMetrics {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    @VisibleForTesting
+    static final String EXPORT_FILE_NAME = "bugle_perf_metrics.tsv";
+
+    private static final ConcurrentMap<String, Counter> sCounters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Gauge> sGauges =
+            new ConcurrentHashMap<String, Gauge>();
+    private static final ConcurrentMap<String, Rate> sRates =
+            new ConcurrentHashMap<String, Rate>();
+    private static final ConcurrentMap<String, Histogram> sHistograms =
+            new ConcurrentHashMap<String, Histogram>();
+
+    private PerfMetrics() {
+    }
+
+    /**
+     * A count of events, e.g. of bytes transferred
+     */
+    public static final class Counter {
+        private final AtomicLong mCount = new AtomicLong();
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(final long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * The latest value of something, e.g. the size of a queue
+     */
+    public static final class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(final long value) {
+            mValue.set(value);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * The number of events in the last minute, e.g. of messages sent, i.e. a gauge of the rolling
+     * rate of the events. Events are counted in buckets by second, so the minute is rounded to
+     * whole seconds. Marking an event takes a lock, which is fine for events that aren't more
+     * frequent than a few times a second.
+     */
+    public static final class Rate {
+        private static final int BUCKET_COUNT = 60;
+
+        // The second each bucket counts events of, and its count of events
+        private final long[] mBucketSeconds = new long[BUCKET_COUNT];
+        private final long[] mBucketCounts = new long[BUCKET_COUNT];
+
+        public void mark() {
+            mark(SystemClock.elapsedRealtime());
+        }
+
+        @VisibleForTesting
+        synchronized void mark(final long nowMillis) {
+            final long second = nowMillis / 1000L;
+            final int bucket = (int) (second % BUCKET_COUNT);
+            if (mBucketSeconds[bucket] != second) {
+                mBucketSeconds[bucket] = second;
+                mBucketCounts[bucket] = 0;
+            }
+            mBucketCounts[bucket]++;
+        }
+
+        /**
+         * @return the number of events in the last minute
+         */
+        public long getPerMinute() {
+            return getPerMinute(SystemClock.elapsedRealtime());
+        }
+
+        @VisibleForTesting
+        synchronized long getPerMinute(final long nowMillis) {
+            final long second = nowMillis / 1000L;
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (second - mBucketSeconds[i] < BUCKET_COUNT) {
+                    count += mBucketCounts[i];
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Distribution of values, e.g. of durations. Values are counted in buckets by powers of two,
+     * so percentiles are known to within a factor of two (reported as the upper bound of their
+     * bucket), while the count, sum and maximum are exact.
+     */
+    public static final class Histogram {
+        // Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds zero (and negative values)
+        private static final int BUCKET_COUNT = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(final long value) {
+            final long clamped = Math.max(0, value);
+            mBuckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(clamped));
+            mCount.incrementAndGet();
+            mSum.addAndGet(clamped);
+            long max = mMax.get();
+            while (clamped > max && !mMax.compareAndSet(max, clamped)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Record the time in microseconds since a start time taken with {@link PerfMetrics#now}
+         */
+        public void recordSince(final long startNanos) {
+            record((now() - startNanos) / 1000L);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * @param fraction the percentile as a fraction, e.g. 0.99
+         * @return the upper bound of the bucket holding the percentile, or 0 with no values
+         */
+        public long getPercentile(final double fraction) {
+            final long[] buckets = new long[BUCKET_COUNT];
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            final long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(getMax(), (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @return a start time for {@link Histogram#recordSince}
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public static Counter counter(final String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            final Counter newCounter = new Counter();
+            counter = sCounters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public static Gauge gauge(final String name) {
+        Gauge gauge = sGauges.get(name);
+        if (gauge == null) {
+            final Gauge newGauge = new Gauge();
+            gauge = sGauges.putIfAbsent(name, newGauge);
+            if (gauge == null) {
+                gauge = newGauge;
+            }
+        }
+        return gauge;
+    }
+
+    public static Rate rate(final String name) {
+        Rate rate = sRates.get(name);
+        if (rate == null) {
+            final Rate newRate = new Rate();
+            rate = sRates.putIfAbsent(name, newRate);
+            if (rate == null) {
+                rate = newRate;
+            }
+        }
+        return rate;
+    }
+
+    public static Histogram histogram(final String name) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            final Histogram newHistogram = new Histogram();
+            histogram = sHistograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    public static void dump(final PrintWriter writer) {
+        writer.println("Performance metrics:");
+        for (final Map.Entry<String, Counter> entry : sorted(sCounters).entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().get());
+        }
+        for (final Map.Entry<String, Gauge> entry : sorted(sGauges).entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().get());
+        }
+        for (final Map.Entry<String, Rate> entry : sorted(sRates).entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().getPerMinute()
+                    + " in the last minute");
+        }
+        for (final Map.Entry<String, Histogram> entry : sorted(sHistograms).entrySet()) {
+            final Histogram histogram = entry.getValue();
+            final long count = histogram.getCount();
+            writer.println(String.format(Locale.US,
+                    "  %s: count %d, mean %d, p50 %d, p90 %d, p99 %d, max %d", entry.getKey(),
+                    count, count == 0 ? 0 : histogram.getSum() / count,
+                    histogram.getPercentile(0.5), histogram.getPercentile(0.9),
+                    histogram.getPercentile(0.99), histogram.getMax()));
+        }
+    }
+
+    /**
+     * Write the metrics as tab separated values, one metric per line, with a header line
+     */
+    @VisibleForTesting
+    static void export(final PrintWriter writer) {
+        writer.println("name\ttype\tcount\tsum\tp50\tp90\tp99\tmax");
+        for (final Map.Entry<String, Counter> entry : sorted(sCounters).entrySet()) {
+            writer.println(entry.getKey() + "\tcounter\t" + entry.getValue().get()
+                    + "\t\t\t\t\t");
+        }
+        for (final Map.Entry<String, Gauge> entry : sorted(sGauges).entrySet()) {
+            writer.println(entry.getKey() + "\tgauge\t" + entry.getValue().get() + "\t\t\t\t\t");
+        }
+        for (final Map.Entry<String, Rate> entry : sorted(sRates).entrySet()) {
+            writer.println(entry.getKey() + "\trate\t" + entry.getValue().getPerMinute()
+                    + "\t\t\t\t\t");
+        }
+        for (final Map.Entry<String, Histogram> entry : sorted(sHistograms).entrySet()) {
+            final Histogram histogram = entry.getValue();
+            writer.println(entry.getKey() + "\thistogram\t" + histogram.getCount() + "\t"
+                    + histogram.getSum() + "\t" + histogram.getPercentile(0.5) + "\t"
+                    + histogram.getPercentile(0.9) + "\t" + histogram.getPercentile(0.99) + "\t"
+                    + histogram.getMax());
+        }
+    }
+
+    /**
+     * Export the metrics to a file in the debug files directory
+     *
+     * @return the file, or null if it couldn't be written
+     */
+    public static File exportToFile() {
+        final File file = DebugUtils.getDebugFile(EXPORT_FILE_NAME, true /*create*/);
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            export(writer);
+            writer.flush();
+            if (writer.checkError()) {
+                throw new IOException("Error writing " + file);
+            }
+            DebugUtils.ensureReadable(file);
+            LogUtil.i(TAG, "PerfMetrics: exported to " + file);
+            return file;
+        } catch (final IOException e) {
+            LogUtil.e(TAG, "PerfMetrics: export failed", e);
+            return null;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static <T> TreeMap<String, T> sorted(final Map<String, T> metrics) {
+        return new TreeMap<String, T>(metrics);
+    }
+}
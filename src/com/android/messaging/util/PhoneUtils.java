@@ -26,7 +26,6 @@ import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.provider.Settings;
 import android.provider.Telephony;
-import android.support.v4.util.ArrayMap;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
@@ -68,10 +67,22 @@ public abstract class PhoneUtils {
     private static final List<SubscriptionInfo> EMPTY_SUBSCRIPTION_LIST = new ArrayList<>();
 
     // The canonical phone number cache
-    // Each country gets its own cache. The following maps from ISO country code to
-    // the country's cache. Each cache maps from original phone number to canonicalized phone
-    private static final ArrayMap<String, ArrayMap<String, String>> sCanonicalPhoneNumberCache =
-            new ArrayMap<>();
+    // Maps from ISO country code and original phone number (see getCanonicalCacheKey) to the
+    // canonicalized phone number. Bounded, and striped so that the threads canonicalizing numbers
+    // during sync, participant refresh and contact lookups don't all wait on one lock.
+    private static final int CANONICAL_CACHE_SIZE = 2000;
+    // Participants whose numbers are added to the cache on startup, leaving room for the others
+    public static final int CANONICAL_CACHE_WARM_UP_LIMIT = CANONICAL_CACHE_SIZE / 4;
+    private static final StripedLruCache<String, String> sCanonicalPhoneNumberCache =
+            new StripedLruCache<String, String>(CANONICAL_CACHE_SIZE, "phone.canonical_cache");
+    // The numbers that can't be canonicalized (e.g. short codes and alphanumeric senders), kept
+    // apart so that they don't evict the others and are not parsed again
+    private static final int UNPARSEABLE_CACHE_SIZE = 500;
+    private static final StripedLruCache<String, Boolean> sUnparseablePhoneNumberCache =
+            new StripedLruCache<String, Boolean>(UNPARSEABLE_CACHE_SIZE,
+                    "phone.unparseable_cache");
+    private static final PerfMetrics.Histogram sParseTime =
+            PerfMetrics.histogram("phone.canonical_parse");
 
     protected final Context mContext;
     protected final TelephonyManager mTelephonyManager;
@@ -705,33 +716,29 @@ public abstract class PhoneUtils {
         return country;
     }
 
-    // Get or set the cache of canonicalized phone numbers for a specific country
-    private static ArrayMap<String, String> getOrAddCountryMapInCacheLocked(String country) {
-        if (country == null) {
-            country = "";
-        }
-        ArrayMap<String, String> countryMap = sCanonicalPhoneNumberCache.get(country);
-        if (countryMap == null) {
-            countryMap = new ArrayMap<>();
-            sCanonicalPhoneNumberCache.put(country, countryMap);
-        }
-        return countryMap;
+    // Key of a phone number in the canonical phone number caches. Country codes have no '|'.
+    private static String getCanonicalCacheKey(final String phoneText, final String country) {
+        return (country == null ? "" : country) + '|' + phoneText;
     }
 
-    // Get canonicalized phone number from cache
-    private static String getCanonicalFromCache(final String phoneText, String country) {
-        synchronized (sCanonicalPhoneNumberCache) {
-            final ArrayMap<String, String> countryMap = getOrAddCountryMapInCacheLocked(country);
-            return countryMap.get(phoneText);
+    /**
+     * Add a number canonicalized earlier (e.g. the send destination of a participant) to the
+     * canonical phone number cache of the SIM and system locale countries. Only numbers in
+     * international format are added, as how they are canonicalized doesn't depend on the country.
+     *
+     * @param phoneText The phone number that was canonicalized
+     * @param canonical The canonicalized number
+     */
+    public void warmCanonicalCache(final String phoneText, final String canonical) {
+        if (phoneText == null || canonical == null || !phoneText.startsWith("+")) {
+            return;
         }
-    }
-
-    // Put canonicalized phone number into cache
-    private static void putCanonicalToCache(final String phoneText, String country,
-            final String canonical) {
-        synchronized (sCanonicalPhoneNumberCache) {
-            final ArrayMap<String, String> countryMap = getOrAddCountryMapInCacheLocked(country);
-            countryMap.put(phoneText, canonical);
+        final String simCountry = getSimOrDefaultLocaleCountry();
+        final String localeCountry = getLocaleCountry();
+        sCanonicalPhoneNumberCache.put(getCanonicalCacheKey(phoneText, simCountry), canonical);
+        if (!TextUtils.equals(simCountry, localeCountry)) {
+            sCanonicalPhoneNumberCache.put(getCanonicalCacheKey(phoneText, localeCountry),
+                    canonical);
         }
     }
 
@@ -788,17 +795,24 @@ public abstract class PhoneUtils {
     private String getCanonicalByCountry(final String phoneText, final String country) {
         Assert.notNull(phoneText);
 
-        String canonicalNumber = getCanonicalFromCache(phoneText, country);
+        final String key = getCanonicalCacheKey(phoneText, country);
+        String canonicalNumber = sCanonicalPhoneNumberCache.get(key);
         if (canonicalNumber != null) {
             return canonicalNumber;
         }
+        if (sUnparseablePhoneNumberCache.get(key) != null) {
+            return phoneText;
+        }
+        final long startNanos = PerfMetrics.now();
         canonicalNumber = getValidE164Number(phoneText, country);
+        sParseTime.recordSince(startNanos);
         if (canonicalNumber == null) {
             // If we can't normalize this number, we just use the display string number.
             // This is possible for short codes and other non-localizable numbers.
-            canonicalNumber = phoneText;
+            sUnparseablePhoneNumberCache.put(key, Boolean.TRUE);
+            return phoneText;
         }
-        putCanonicalToCache(phoneText, country, canonicalNumber);
+        sCanonicalPhoneNumberCache.put(key, canonicalNumber);
         return canonicalNumber;
     }
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache split into stripes, each with its own lock, so that threads looking up
+ * different keys rarely wait for each other. Keys are spread over the stripes by hash and each
+ * stripe evicts its own least recently used entries, so the order of eviction is only
+ * approximately LRU across the whole cache.
+ */
+public class StripedLruCache<K, V> {
+    private static final int STRIPE_COUNT = 8;
+
+    private static class Stripe<K, V> extends LinkedHashMap<K, V> {
+        private final int mMaxSize;
+        private final PerfMetrics.Counter mEvictionCount;
+
+        Stripe(final int maxSize, final PerfMetrics.Counter evictionCount) {
+            super(16, 0.75f, true /*accessOrder*/);
+            mMaxSize = maxSize;
+            mEvictionCount = evictionCount;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            if (size() > mMaxSize) {
+                mEvictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Stripe<K, V>[] mStripes;
+    private final PerfMetrics.Counter mHitCount;
+    private final PerfMetrics.Counter mMissCount;
+    private final PerfMetrics.Counter mEvictionCount;
+
+    /**
+     * @param maxSize the most entries the cache holds, spread evenly over the stripes
+     */
+    public StripedLruCache(final int maxSize) {
+        this(maxSize, null /*metricsName*/);
+    }
+
+    /**
+     * @param maxSize the most entries the cache holds, spread evenly over the stripes
+     * @param metricsName the name under which the hit, miss and eviction counts are kept in
+     *        {@link PerfMetrics}, e.g. "phone.canonical_cache" for "phone.canonical_cache.hits",
+     *        or null to keep them to the cache
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLruCache(final int maxSize, final String metricsName) {
+        Assert.isTrue(maxSize > 0);
+        mHitCount = getCounter(metricsName, "hits");
+        mMissCount = getCounter(metricsName, "misses");
+        mEvictionCount = getCounter(metricsName, "evictions");
+        mStripes = new Stripe[STRIPE_COUNT];
+        final int stripeMaxSize = Math.max(1, (maxSize + STRIPE_COUNT - 1) / STRIPE_COUNT);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe<K, V>(stripeMaxSize, mEvictionCount);
+        }
+    }
+
+    private static PerfMetrics.Counter getCounter(final String metricsName, final String name) {
+        return metricsName == null ? new PerfMetrics.Counter()
+                : PerfMetrics.counter(metricsName + "." + name);
+    }
+
+    private Stripe<K, V> getStripe(final Object key) {
+        // Spread the hash bits like HashMap does, as the low bits pick the stripe
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return mStripes[hash & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * @return the value of the key, or null if it isn't in the cache
+     */
+    public V get(final K key) {
+        final Stripe<K, V> stripe = getStripe(key);
+        final V value;
+        synchronized (stripe) {
+            value = stripe.get(key);
+        }
+        if (value != null) {
+            mHitCount.increment();
+        } else {
+            mMissCount.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Add or replace the value of a key, evicting the least recently used entry of its stripe if
+     * the stripe is full
+     */
+    public void put(final K key, final V value) {
+        Assert.notNull(value);
+        final Stripe<K, V> stripe = getStripe(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    public void clear() {
+        for (final Stripe<K, V> stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Stripe<K, V> stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.StyleSpan;
@@ -39,6 +40,10 @@ import com.android.messaging.datamodel.media.MediaRequest;
 import com.android.messaging.datamodel.media.MediaResourceManager;
 import com.android.messaging.util.AvatarUriUtil;
 import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.OsUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Remote Views Factory for Bugle Widget.
@@ -48,6 +53,10 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
 
     protected static final int MAX_ITEMS_TO_SHOW = 25;
 
+    // Most bytes of bitmaps held by the rendered rows kept for reuse, per widget. Rows beyond it
+    // are rendered again whenever they are asked for.
+    private static final int MAX_CACHED_ROW_BITMAP_BYTES = 2 * 1024 * 1024;
+
     /**
      * Lock to avoid race condition between widgets.
      */
@@ -59,7 +68,35 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
     protected Cursor mCursor;
     protected final AppWidgetManager mAppWidgetManager;
     protected int mIconSize;
-    protected ImageResource mAvatarResource;
+
+    /**
+     * A rendered row, with the bytes of the bitmaps it holds
+     */
+    private static class CachedRow {
+        final RemoteViews mViews;
+        final int mBitmapBytes;
+
+        CachedRow(final RemoteViews views, final int bitmapBytes) {
+            mViews = views;
+            mBitmapBytes = bitmapBytes;
+        }
+    }
+
+    // Rows rendered for the current data set, by row key (see getRowKey), and while a new data set
+    // is being rendered, those of the previous one. A row whose key didn't change is reused rather
+    // than bound and rendered again with its bitmaps.
+    private HashMap<String, CachedRow> mRowCache = new HashMap<String, CachedRow>();
+    private HashMap<String, CachedRow> mPreviousRowCache;
+    private int mCachedRowBitmapBytes;
+    // Whether a row didn't fit in the budget since the data set changed, after which prefetching
+    // stops
+    private boolean mRowCacheFull;
+    // Bytes of the bitmaps of the row being rendered, and whether they all fit in the budget
+    private int mRenderedBitmapBytes;
+    private boolean mRenderedRowFits;
+    // Resources whose bitmaps are shown, uncopied, by the last rendered row that isn't cached. They
+    // are held until the next row is asked for, by when the host has received the row.
+    private final ArrayList<ImageResource> mUncachedRowResources = new ArrayList<ImageResource>();
 
     public BaseWidgetFactory(Context context, Intent intent) {
         mContext = context;
@@ -91,6 +128,9 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
                 mCursor.close();
                 mCursor = null;
             }
+            mRowCache.clear();
+            mCachedRowBitmapBytes = 0;
+            releaseUncachedRowResources();
         }
     }
 
@@ -107,6 +147,7 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
             final long token = Binder.clearCallingIdentity();
             try {
                 mCursor = doQuery();
+                prefetchRows();
                 onLoadComplete();
             } finally {
                 Binder.restoreCallingIdentity(token);
@@ -116,6 +157,155 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
 
     protected abstract Cursor doQuery();
 
+    /**
+     * Render the rows of a new data set while the host still shows the previous one, so that
+     * getViewAt() returns them without binding or loading bitmaps. Rows that didn't change are
+     * taken from the previous data set. Prefetching stops at the first row that doesn't fit in
+     * the budget, as it would be rendered again anyway.
+     */
+    private void prefetchRows() {
+        mPreviousRowCache = mRowCache;
+        mRowCache = new HashMap<String, CachedRow>();
+        mCachedRowBitmapBytes = 0;
+        mRowCacheFull = false;
+        final int reusedCount = mPreviousRowCache.size();
+        try {
+            if (mCursor != null) {
+                final int count = getCount();
+                for (int position = 0; position < count && !mRowCacheFull; position++) {
+                    getViewAt(position);
+                }
+            }
+        } finally {
+            // No one receives the rows rendered here
+            releaseUncachedRowResources();
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "prefetchRows: " + mRowCache.size() + " rows, "
+                        + (reusedCount - mPreviousRowCache.size()) + " reused, "
+                        + mCachedRowBitmapBytes + " bitmap bytes");
+            }
+            mPreviousRowCache = null;
+        }
+    }
+
+    /**
+     * @return the key of the row at the cursor's position, made of all its columns and of the
+     *         given values the row's rendering depends on (e.g. a relative time string), so that
+     *         it changes whenever the row would render differently
+     */
+    protected String getRowKey(final Object... renderingValues) {
+        final StringBuilder key = new StringBuilder();
+        for (int column = 0; column < mCursor.getColumnCount(); column++) {
+            if (mCursor.getType(column) != Cursor.FIELD_TYPE_BLOB) {
+                key.append(mCursor.getString(column));
+            }
+            key.append('\u0001');
+        }
+        for (final Object value : renderingValues) {
+            key.append(value).append('\u0001');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the views rendered for a row key, or null if the row is to be rendered, in which
+     *         case the views are to be passed to {@link #cacheRowViews} once rendered
+     */
+    protected RemoteViews getCachedRowViews(final String rowKey) {
+        releaseUncachedRowResources();
+        CachedRow row = mRowCache.get(rowKey);
+        if (row == null && mPreviousRowCache != null) {
+            row = mPreviousRowCache.remove(rowKey);
+            if (row != null) {
+                putCachedRow(rowKey, row);
+            }
+        }
+        if (row != null) {
+            return row.mViews;
+        }
+        mRenderedBitmapBytes = 0;
+        mRenderedRowFits = true;
+        return null;
+    }
+
+    /**
+     * Keep the views of a row rendered after {@link #getCachedRowViews} returned null, unless
+     * their bitmaps don't fit in the budget
+     */
+    protected void cacheRowViews(final String rowKey, final RemoteViews views) {
+        if (mRenderedRowFits) {
+            putCachedRow(rowKey, new CachedRow(views, mRenderedBitmapBytes));
+        } else {
+            mRowCacheFull = true;
+        }
+    }
+
+    private void putCachedRow(final String rowKey, final CachedRow row) {
+        if (!fitsRowCache(row.mBitmapBytes)) {
+            mRowCacheFull = true;
+            return;
+        }
+        final CachedRow replaced = mRowCache.put(rowKey, row);
+        mCachedRowBitmapBytes += row.mBitmapBytes
+                - (replaced == null ? 0 : replaced.mBitmapBytes);
+    }
+
+    private boolean fitsRowCache(final int bitmapBytes) {
+        return mCachedRowBitmapBytes + bitmapBytes <= MAX_CACHED_ROW_BITMAP_BYTES;
+    }
+
+    /**
+     * Take the bitmap of a resource to set on the row being rendered. While the row's bitmaps fit
+     * in the budget of the cached rows, the bitmap is copied and the resource released, as the
+     * row may be kept after the resource's bitmap is recycled. Otherwise the row won't be kept,
+     * and shows the resource's own bitmap while the resource is held for it.
+     *
+     * @return the bitmap to set, or null if the resource has none
+     */
+    protected Bitmap takeRenderedBitmap(final ImageResource resource) {
+        if (resource == null) {
+            return null;
+        }
+        final Bitmap bitmap = resource.getBitmap();
+        if (bitmap == null) {
+            resource.release();
+            return null;
+        }
+        final int bitmapBytes = bitmap.getByteCount();
+        if (mRenderedRowFits && fitsRowCache(mRenderedBitmapBytes + bitmapBytes)) {
+            mRenderedBitmapBytes += bitmapBytes;
+            final Bitmap copy = bitmap.copy(bitmap.getConfig(), false /*isMutable*/);
+            resource.release();
+            return copy;
+        }
+        mRenderedRowFits = false;
+        mUncachedRowResources.add(resource);
+        return bitmap;
+    }
+
+    private void releaseUncachedRowResources() {
+        for (final ImageResource resource : mUncachedRowResources) {
+            resource.release();
+        }
+        mUncachedRowResources.clear();
+    }
+
+    /**
+     * @return whether the rows show avatars, which they do when the widget is large
+     */
+    protected boolean shouldIncludeAvatar() {
+        if (OsUtil.isAtLeastJB()) {
+            final Bundle options = mAppWidgetManager.getAppWidgetOptions(mAppWidgetId);
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "getViewAt BugleWidgetProvider.WIDGET_SIZE_KEY: " +
+                        options.getInt(BugleWidgetProvider.WIDGET_SIZE_KEY));
+            }
+            return options.getInt(BugleWidgetProvider.WIDGET_SIZE_KEY) ==
+                    BugleWidgetProvider.SIZE_LARGE;
+        }
+        return true;
+    }
+
     /**
      * Returns the number of items that should be shown in the widget list.  This method also
      * updates the boolean that indicates whether the "show more" item should be shown.
@@ -177,15 +367,8 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
 
         final MediaRequest<ImageResource> imageRequest =
                 descriptor.buildSyncMediaRequest(mContext);
-        final ImageResource imageResource =
-                MediaResourceManager.get().requestMediaResourceSync(imageRequest);
-        if (imageResource != null) {
-            setAvatarResource(imageResource);
-            return mAvatarResource.getBitmap();
-        } else {
-            releaseAvatarResource();
-            return null;
-        }
+        return takeRenderedBitmap(
+                MediaResourceManager.get().requestMediaResourceSync(imageRequest));
     }
 
     /**
@@ -214,19 +397,4 @@ abstract class BaseWidgetFactory implements RemoteViewsService.RemoteViewsFactor
     }
 
     protected abstract int getMainLayoutId();
-
-    private void setAvatarResource(final ImageResource resource) {
-        if (mAvatarResource != resource) {
-            // Clear out any information for what is currently used
-            releaseAvatarResource();
-            mAvatarResource = resource;
-        }
-    }
-
-    private void releaseAvatarResource() {
-        if (mAvatarResource != null) {
-            mAvatarResource.release();
-        }
-        mAvatarResource = null;
-    }
 }
@@ -22,7 +22,6 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Typeface;
 import android.net.Uri;
-import android.os.Bundle;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextPaint;
@@ -43,7 +42,6 @@ import com.android.messaging.ui.conversationlist.ConversationListItemView;
 import com.android.messaging.util.ContentType;
 import com.android.messaging.util.Dates;
 import com.android.messaging.util.LogUtil;
-import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 
 public class WidgetConversationListService extends RemoteViewsService {
@@ -100,18 +98,26 @@ public class WidgetConversationListService extends RemoteViewsService {
                 final ConversationListItemData conv = new ConversationListItemData();
                 conv.bind(mCursor);
 
-                // Inflate and fill out the remote view
-                final RemoteViews remoteViews = new RemoteViews(
-                        mContext.getPackageName(), R.layout.widget_conversation_list_item);
-
-                final boolean hasUnreadMessages = !conv.getIsRead();
+                final boolean hasUnreadMessages = conv.getUnreadCount() > 0;
                 final Resources resources = mContext.getResources();
                 final boolean isDefaultSmsApp = PhoneUtils.getDefault().isDefaultSmsApp();
+                final boolean includeAvatar = shouldIncludeAvatar();
 
                 final String timeStamp = conv.getIsSendRequested() ?
                         resources.getString(R.string.message_status_sending) :
                             Dates.getWidgetTimeString(conv.getTimestamp(), true /*abbreviated*/)
                                 .toString();
+
+                // Reuse the row if it was rendered the same way before
+                final String rowKey = getRowKey(timeStamp, isDefaultSmsApp, includeAvatar);
+                final RemoteViews cachedViews = getCachedRowViews(rowKey);
+                if (cachedViews != null) {
+                    return cachedViews;
+                }
+
+                // Inflate and fill out the remote view
+                final RemoteViews remoteViews = new RemoteViews(
+                        mContext.getPackageName(), R.layout.widget_conversation_list_item);
                 // Date/Timestamp or Sending or Error state -- all shown in the date item
                 remoteViews.setTextViewText(R.id.date,
                         boldifyIfUnread(timeStamp, hasUnreadMessages));
@@ -130,21 +136,6 @@ public class WidgetConversationListService extends RemoteViewsService {
 
                 remoteViews.setOnClickFillInIntent(R.id.widget_conversation_list_item, intent);
 
-                // Avatar
-                boolean includeAvatar;
-                if (OsUtil.isAtLeastJB()) {
-                    final Bundle options = mAppWidgetManager.getAppWidgetOptions(mAppWidgetId);
-                    if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                        LogUtil.v(TAG, "getViewAt BugleWidgetProvider.WIDGET_SIZE_KEY: " +
-                                options.getInt(BugleWidgetProvider.WIDGET_SIZE_KEY));
-                    }
-
-                    includeAvatar = options.getInt(BugleWidgetProvider.WIDGET_SIZE_KEY) ==
-                            BugleWidgetProvider.SIZE_LARGE;
-                } else {
-                    includeAvatar = true;;
-                }
-
                 // Show the avatar when grande size, otherwise hide it.
                 remoteViews.setViewVisibility(R.id.avatarView, includeAvatar ?
                         View.VISIBLE : View.GONE);
@@ -207,6 +198,7 @@ public class WidgetConversationListService extends RemoteViewsService {
                         ConversationListItemView.buildContentDescription(mContext.getResources(),
                                 conv, new TextPaint()));
 
+                cacheRowViews(rowKey, remoteViews);
                 return remoteViews;
             }
         }
@@ -21,7 +21,6 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.Bundle;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
@@ -71,7 +70,6 @@ public class WidgetConversationService extends RemoteViewsService {
      * Remote Views Factory for the conversation widget.
      */
     private static class WidgetConversationFactory extends BaseWidgetFactory {
-        private ImageResource mImageResource;
         private String mConversationId;
 
         public WidgetConversationFactory(Context context, Intent intent) {
@@ -140,18 +138,35 @@ public class WidgetConversationService extends RemoteViewsService {
                 final ConversationMessageData message = new ConversationMessageData();
                 message.bind(mCursor);
 
+                final boolean hasUnreadMessages = false; //!message.getIsRead();
+                final boolean includeAvatar = shouldIncludeAvatar();
+                final CharSequence timeStamp = Dates.getWidgetTimeString(
+                        message.getReceivedTimeStamp(), false /*abbreviated*/);
+
+                int scrollToPosition = originalPosition;
+                final int cursorCount = mCursor.getCount();
+                if (cursorCount > MAX_ITEMS_TO_SHOW) {
+                    scrollToPosition += cursorCount - MAX_ITEMS_TO_SHOW;
+                }
+
+                // Reuse the row if it was rendered the same way before. Whether the message
+                // clusters with the next one and the error states depend on more than its row.
+                final String rowKey = getRowKey(timeStamp, scrollToPosition, includeAvatar,
+                        message.getCanClusterWithNextMessage(),
+                        PhoneUtils.getDefault().isDefaultSmsApp());
+                final RemoteViews cachedViews = getCachedRowViews(rowKey);
+                if (cachedViews != null) {
+                    return cachedViews;
+                }
+
                 // Inflate and fill out the remote view
                 final RemoteViews remoteViews = new RemoteViews(
                         mContext.getPackageName(), message.getIsIncoming() ?
                                 R.layout.widget_message_item_incoming :
                                     R.layout.widget_message_item_outgoing);
 
-                final boolean hasUnreadMessages = false; //!message.getIsRead();
-
                 // Date
-                remoteViews.setTextViewText(R.id.date, boldifyIfUnread(
-                        Dates.getWidgetTimeString(message.getReceivedTimeStamp(),
-                                false /*abbreviated*/),
+                remoteViews.setTextViewText(R.id.date, boldifyIfUnread(timeStamp,
                         hasUnreadMessages));
 
                 // On click intent.
@@ -161,12 +176,6 @@ public class WidgetConversationService extends RemoteViewsService {
                 // Attachments
                 int attachmentStringId = 0;
                 remoteViews.setViewVisibility(R.id.attachmentFrame, View.GONE);
-
-                int scrollToPosition = originalPosition;
-                final int cursorCount = mCursor.getCount();
-                if (cursorCount > MAX_ITEMS_TO_SHOW) {
-                    scrollToPosition += cursorCount - MAX_ITEMS_TO_SHOW;
-                }
                 if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
                     LogUtil.v(TAG, "getViewAt position: " + originalPosition +
                             " computed position: " + position +
@@ -214,21 +223,6 @@ public class WidgetConversationService extends RemoteViewsService {
                             R.id.widget_message_item_outgoing,
                         intent);
 
-                // Avatar
-                boolean includeAvatar;
-                if (OsUtil.isAtLeastJB()) {
-                    final Bundle options = mAppWidgetManager.getAppWidgetOptions(mAppWidgetId);
-                    if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                        LogUtil.v(TAG, "getViewAt BugleWidgetProvider.WIDGET_SIZE_KEY: " +
-                                options.getInt(BugleWidgetProvider.WIDGET_SIZE_KEY));
-                    }
-
-                    includeAvatar = options.getInt(BugleWidgetProvider.WIDGET_SIZE_KEY)
-                            == BugleWidgetProvider.SIZE_LARGE;
-                } else {
-                    includeAvatar = true;
-                }
-
                 // Show the avatar (and shadow) when grande size, otherwise hide it.
                 remoteViews.setViewVisibility(R.id.avatarView, includeAvatar ?
                         View.VISIBLE : View.GONE);
@@ -257,6 +251,7 @@ public class WidgetConversationService extends RemoteViewsService {
                 remoteViews.setViewVisibility(R.id.message, View.VISIBLE);
                 updateViewContent(text, message, remoteViews);
 
+                cacheRowViews(rowKey, remoteViews);
                 return remoteViews;
             }
         }
@@ -448,15 +443,8 @@ public class WidgetConversationService extends RemoteViewsService {
 
             final MediaRequest<ImageResource> imageRequest =
                     descriptor.buildSyncMediaRequest(mContext);
-            final ImageResource imageResource =
-                    MediaResourceManager.get().requestMediaResourceSync(imageRequest);
-            if (imageResource != null && imageResource.getBitmap() != null) {
-                setImageResource(imageResource);
-                return Bitmap.createBitmap(imageResource.getBitmap());
-            } else {
-                releaseImageResource();
-                return null;
-            }
+            return takeRenderedBitmap(
+                    MediaResourceManager.get().requestMediaResourceSync(imageRequest));
         }
 
         /**
@@ -501,21 +489,6 @@ public class WidgetConversationService extends RemoteViewsService {
         protected int getMainLayoutId() {
             return R.layout.widget_conversation;
         }
-
-        private void setImageResource(final ImageResource resource) {
-            if (mImageResource != resource) {
-                // Clear out any information for what is currently used
-                releaseImageResource();
-                mImageResource = resource;
-            }
-        }
-
-        private void releaseImageResource() {
-            if (mImageResource != null) {
-                mImageResource.release();
-            }
-            mImageResource = null;
-        }
     }
 
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v7.mms;
+
+import android.content.res.XmlResourceParser;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.MicroBenchmark;
+import com.android.messaging.R;
+
+/**
+ * Microbenchmark of parsing the carrier config resource (mms_config.xml) bundled with the app, as
+ * done when loading the MMS config for a subscription.
+ */
+@LargeTest
+public class CarrierConfigXmlParserBenchmarkTest extends BugleTestCase {
+    public void testParseBenchmark() throws Exception {
+        assertFalse(parse().isEmpty());
+
+        MicroBenchmark.run(getTestContext(), "CarrierConfigXmlParser.parse mms_config",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return parse();
+                    }
+                });
+    }
+
+    private Bundle parse() {
+        final Bundle values = new Bundle();
+        final XmlResourceParser xml = getContext().getResources().getXml(R.xml.mms_config);
+        try {
+            new CarrierConfigXmlParser(xml, new CarrierConfigXmlParser.KeyValueProcessor() {
+                @Override
+                public void process(final String type, final String key, final String value) {
+                    values.putString(key, value);
+                }
+            }).parse();
+        } finally {
+            xml.close();
+        }
+        return values;
+    }
+}
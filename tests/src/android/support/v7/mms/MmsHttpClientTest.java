@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v7.mms;
+
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Class for testing the streaming transfers of MmsHttpClient against a local stand-in MMSC.
+ */
+@MediumTest
+public class MmsHttpClientTest extends BugleTestCase {
+    // Several times the size of the transfer buffer
+    private static final int PDU_SIZE = 300 * 1024;
+
+    private LocalMmsc mMmsc;
+    private MmsHttpClient mClient;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private TestValidatorStore mValidators;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new LocalMmsc(makePdu());
+        mClient = new MmsHttpClient(getTestContext());
+        mFile = File.createTempFile("mms", ".dat", getTestContext().getCacheDir());
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mValidators = new TestValidatorStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMmsc.close();
+        mRandomAccessFile.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testDownloadToFile() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        assertNull(download(listener));
+
+        assertFileHoldsPdu();
+        assertNull(mMmsc.getRange(0));
+        assertEquals(PDU_SIZE, listener.mLastBytesTransferred);
+        assertEquals(PDU_SIZE, listener.mLastTotalBytes);
+        assertTrue(listener.mCallCount > 1);
+        assertEquals(LocalMmsc.ETAG, mValidators.mValidator);
+    }
+
+    public void testDownloadResumesAfterFailure() throws Exception {
+        mMmsc.mCutOffAfter = PDU_SIZE / 2;
+        try {
+            download(null);
+            fail("Download of truncated response succeeded");
+        } catch (MmsHttpException e) {
+            // Expected
+        }
+        final long received = mRandomAccessFile.length();
+        assertTrue(received > 0 && received <= PDU_SIZE / 2);
+        assertEquals(LocalMmsc.ETAG, mValidators.mValidator);
+
+        mMmsc.mCutOffAfter = -1;
+        final RecordingListener listener = new RecordingListener();
+        download(listener);
+
+        assertFileHoldsPdu();
+        assertEquals("bytes=" + received + "-", mMmsc.getRange(1));
+        assertEquals(LocalMmsc.ETAG, mMmsc.getIfRange(1));
+        assertEquals(PDU_SIZE, listener.mLastBytesTransferred);
+        assertEquals(PDU_SIZE, listener.mLastTotalBytes);
+    }
+
+    public void testChangedPduStartsOver() throws Exception {
+        mMmsc.mCutOffAfter = PDU_SIZE / 2;
+        try {
+            download(null);
+            fail("Download of truncated response succeeded");
+        } catch (MmsHttpException e) {
+            // Expected
+        }
+
+        // The MMSC sends the whole of the new PDU rather than the rest of the old one
+        final byte[] changedPdu = makePdu();
+        changedPdu[PDU_SIZE - 1]++;
+        mMmsc.mPdu = changedPdu;
+        mMmsc.mETag = "\"v2\"";
+        mMmsc.mCutOffAfter = -1;
+        download(null);
+
+        assertFileHolds(changedPdu);
+        assertEquals(LocalMmsc.ETAG, mMmsc.getIfRange(1));
+        assertEquals("\"v2\"", mValidators.mValidator);
+    }
+
+    public void testPartialDownloadWithoutValidatorStartsOver() throws Exception {
+        mRandomAccessFile.write(new byte[] { 1, 2, 3 });
+
+        download(null);
+
+        assertFileHoldsPdu();
+        assertNull(mMmsc.getRange(0));
+        assertNull(mMmsc.getIfRange(0));
+    }
+
+    public void testLastModifiedValidatesWithoutStrongETag() throws Exception {
+        mMmsc.mETag = "W/\"v1\"";
+        mMmsc.mCutOffAfter = PDU_SIZE / 2;
+        try {
+            download(null);
+            fail("Download of truncated response succeeded");
+        } catch (MmsHttpException e) {
+            // Expected
+        }
+        assertEquals(LocalMmsc.LAST_MODIFIED, mValidators.mValidator);
+
+        mMmsc.mCutOffAfter = -1;
+        download(null);
+        assertFileHoldsPdu();
+        assertEquals(LocalMmsc.LAST_MODIFIED, mMmsc.getIfRange(1));
+    }
+
+    public void testDownloadWithoutRangeSupportOverwrites() throws Exception {
+        mMmsc.mSupportsRange = false;
+        mRandomAccessFile.write(new byte[] { 1, 2, 3 });
+        mValidators.mValidator = LocalMmsc.ETAG;
+
+        download(null);
+
+        assertFileHoldsPdu();
+        assertEquals("bytes=3-", mMmsc.getRange(0));
+    }
+
+    public void testUnsatisfiableRangeStartsOver() throws Exception {
+        mRandomAccessFile.write(new byte[PDU_SIZE + 1]);
+        mValidators.mValidator = LocalMmsc.ETAG;
+        try {
+            download(null);
+            fail("Download of unsatisfiable range succeeded");
+        } catch (MmsHttpException e) {
+            assertEquals(416, e.getStatusCode());
+        }
+        assertEquals(0, mRandomAccessFile.length());
+        assertNull(mValidators.mValidator);
+
+        download(null);
+        assertFileHoldsPdu();
+    }
+
+    public void testSendFromFile() throws Exception {
+        final byte[] pdu = makePdu();
+        mRandomAccessFile.write(pdu);
+        final byte[] sendConf = new byte[] { (byte) 0x8c, (byte) 0x81 };
+        mMmsc.mPdu = sendConf;
+        final RecordingListener listener = new RecordingListener();
+
+        final byte[] response = mClient.executeStreaming(mMmsc.getUrl(),
+                mRandomAccessFile.getChannel(), MmsHttpClient.METHOD_POST, false/*isProxySet*/,
+                null/*proxyHost*/, 0/*proxyPort*/, new Bundle(), "test", null/*uaProfUrl*/,
+                null/*response*/, null/*validators*/, listener);
+
+        assertTrue(Arrays.equals(sendConf, response));
+        assertTrue(Arrays.equals(pdu, mMmsc.getBody(0)));
+        assertTrue(listener.mCallCount > 1);
+    }
+
+    private byte[] download(final MmsHttpClient.ProgressListener listener)
+            throws MmsHttpException {
+        return mClient.executeStreaming(mMmsc.getUrl(), null/*pdu*/, MmsHttpClient.METHOD_GET,
+                false/*isProxySet*/, null/*proxyHost*/, 0/*proxyPort*/, new Bundle(), "test",
+                null/*uaProfUrl*/, mRandomAccessFile.getChannel(), mValidators, listener);
+    }
+
+    private void assertFileHoldsPdu() throws IOException {
+        assertFileHolds(makePdu());
+    }
+
+    private void assertFileHolds(final byte[] pdu) throws IOException {
+        final FileChannel channel = mRandomAccessFile.getChannel();
+        final ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+        channel.read(contents, 0);
+        assertTrue(Arrays.equals(pdu, contents.array()));
+    }
+
+    private static byte[] makePdu() {
+        final byte[] pdu = new byte[PDU_SIZE];
+        for (int i = 0; i < pdu.length; i++) {
+            pdu[i] = (byte) (i * 31 + i / 256);
+        }
+        return pdu;
+    }
+
+    private static class RecordingListener implements MmsHttpClient.ProgressListener {
+        int mCallCount;
+        long mLastBytesTransferred;
+        long mLastTotalBytes;
+
+        @Override
+        public void onProgress(final long bytesTransferred, final long totalBytes) {
+            assertTrue(bytesTransferred >= mLastBytesTransferred);
+            mCallCount++;
+            mLastBytesTransferred = bytesTransferred;
+            mLastTotalBytes = totalBytes;
+        }
+    }
+
+    private static class TestValidatorStore implements MmsHttpClient.ValidatorStore {
+        String mValidator;
+
+        @Override
+        public String getValidator() {
+            return mValidator;
+        }
+
+        @Override
+        public void setValidator(final String validator) {
+            mValidator = validator;
+        }
+    }
+
+    /**
+     * A local HTTP server standing in for an MMSC, serving one PDU and recording the requests
+     */
+    private static class LocalMmsc implements Runnable {
+        private static final Pattern RANGE_P = Pattern.compile("bytes=(\\d+)-");
+        static final String ETAG = "\"v1\"";
+        static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+        private final ArrayList<String> mRanges = new ArrayList<String>();
+        private final ArrayList<String> mIfRanges = new ArrayList<String>();
+        private final ArrayList<byte[]> mBodies = new ArrayList<byte[]>();
+
+        volatile byte[] mPdu;
+        volatile boolean mSupportsRange = true;
+        volatile String mETag = ETAG;
+        // Close the connection after sending this many bytes of the body, or -1 not to
+        volatile int mCutOffAfter = -1;
+
+        LocalMmsc(final byte[] pdu) throws IOException {
+            mPdu = pdu;
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this, "LocalMmsc");
+            mThread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/mms";
+        }
+
+        synchronized String getRange(final int request) {
+            return mRanges.get(request);
+        }
+
+        synchronized String getIfRange(final int request) {
+            return mIfRanges.get(request);
+        }
+
+        synchronized byte[] getBody(final int request) {
+            return mBodies.get(request);
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed, or the client went away
+                }
+            }
+        }
+
+        private void serve(final Socket socket) throws IOException {
+            final InputStream in = socket.getInputStream();
+            String range = null;
+            String ifRange = null;
+            int contentLength = 0;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    final String name = line.substring(0, colon).trim();
+                    final String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Range")) {
+                        range = value;
+                    } else if (name.equalsIgnoreCase("If-Range")) {
+                        ifRange = value;
+                    } else if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Integer.parseInt(value);
+                    }
+                }
+            }
+            final byte[] body = new byte[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                final int count = in.read(body, read, contentLength - read);
+                if (count < 0) {
+                    throw new IOException("Truncated request body");
+                }
+                read += count;
+            }
+            synchronized (this) {
+                mRanges.add(range);
+                mIfRanges.add(ifRange);
+                mBodies.add(body);
+            }
+
+            final byte[] pdu = mPdu;
+            final String etag = mETag;
+            int start = 0;
+            // A range of a PDU that has changed since isn't served
+            final boolean ifRangeMatches = ifRange == null || ifRange.equals(etag)
+                    || ifRange.equals(LAST_MODIFIED);
+            if (range != null && mSupportsRange && ifRangeMatches) {
+                final Matcher matcher = RANGE_P.matcher(range);
+                if (matcher.matches()) {
+                    start = Integer.parseInt(matcher.group(1));
+                }
+            }
+            final OutputStream out = socket.getOutputStream();
+            if (start >= pdu.length) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                        + "Content-Range: bytes */" + pdu.length + "\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+            final StringBuilder headers = new StringBuilder();
+            if (start > 0) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Range: bytes ").append(start).append('-')
+                        .append(pdu.length - 1).append('/').append(pdu.length).append("\r\n");
+            } else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            headers.append("Content-Type: application/vnd.wap.mms-message\r\n");
+            headers.append("ETag: ").append(etag).append("\r\n");
+            headers.append("Last-Modified: ").append(LAST_MODIFIED).append("\r\n");
+            headers.append("Content-Length: ").append(pdu.length - start).append("\r\n");
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("US-ASCII"));
+            final int end = mCutOffAfter >= 0
+                    ? Math.min(pdu.length, start + mCutOffAfter) : pdu.length;
+            out.write(pdu, start, end - start);
+            out.flush();
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("Truncated request");
+                }
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            return line.toString("US-ASCII");
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Measures the throughput and allocations of a small operation, e.g. parsing a PDU, for the
+ * microbenchmarks of the parsers on hot paths. The operation is run for a while to warm up, then
+ * timed over a fixed duration, then run again with allocation counting on (which slows it down,
+ * so it's not timed). Results are logged, and written as tab separated values to
+ * {@link #RESULTS_FILE_NAME} in the external files directory of the test package (e.g.
+ * /sdcard/Android/data/com.android.messaging.test/files) so CI can pull the file and compare it
+ * with the results of an earlier build on the same device. The file is rewritten by each run.
+ */
+public final class MicroBenchmark {
+    private static final String TAG = "MicroBenchmark";
+
+    private static final long WARM_UP_NANOS = 500 * 1000 * 1000L;
+    private static final long MEASURE_NANOS = 2 * 1000 * 1000 * 1000L;
+    private static final int ALLOCATION_ITERATIONS = 1000;
+
+    public static final String RESULTS_FILE_NAME = "microbenchmarks.tsv";
+
+    // Whether this run has started its results file, the results of earlier runs are replaced
+    private static boolean sResultsFileStarted;
+
+    // Keeps the results of the operation reachable so the work can't be optimized away
+    private static volatile Object sSink;
+
+    public interface Operation {
+        /**
+         * @return the result of the operation, which is kept so the work isn't dead code
+         */
+        Object run() throws Exception;
+    }
+
+    public static final class Result {
+        public final long operations;
+        public final double nanosPerOperation;
+        public final long bytesPerOperation;
+        public final long allocationsPerOperation;
+
+        Result(final long operations, final double nanosPerOperation,
+                final long bytesPerOperation, final long allocationsPerOperation) {
+            this.operations = operations;
+            this.nanosPerOperation = nanosPerOperation;
+            this.bytesPerOperation = bytesPerOperation;
+            this.allocationsPerOperation = allocationsPerOperation;
+        }
+
+        public double getOperationsPerSecond() {
+            return 1e9 / nanosPerOperation;
+        }
+    }
+
+    private MicroBenchmark() {
+    }
+
+    /**
+     * Runs and measures the operation, then logs the result and writes it to the results file.
+     * Each benchmark's line in that file is keyed by its name, for CI to compare the results of
+     * two builds, so benchmark tests don't need to report anything themselves.
+     *
+     * @param context the context of the test package, which owns the results file
+     * @param name the name of the benchmark, the key CI compares results by
+     */
+    public static Result run(final Context context, final String name,
+            final Operation operation) throws Exception {
+        runFor(operation, WARM_UP_NANOS);
+
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final long operations = runFor(operation, MEASURE_NANOS);
+        final long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+                sSink = operation.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        final Result result = new Result(operations, (double) elapsedNanos / operations,
+                Debug.getThreadAllocSize() / ALLOCATION_ITERATIONS,
+                Debug.getThreadAllocCount() / ALLOCATION_ITERATIONS);
+        Log.i(TAG, String.format(Locale.US, "%s: %.0f ops/s, %.1f us/op, %d B/op, %d allocs/op",
+                name, result.getOperationsPerSecond(), result.nanosPerOperation / 1000,
+                result.bytesPerOperation, result.allocationsPerOperation));
+        writeResult(context, name, result);
+        return result;
+    }
+
+    private static synchronized void writeResult(final Context context, final String name,
+            final Result result) throws IOException {
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            // External storage isn't mounted
+            directory = context.getFilesDir();
+        }
+        final File file = new File(directory, RESULTS_FILE_NAME);
+        final PrintWriter writer = new PrintWriter(new FileWriter(file, sResultsFileStarted));
+        try {
+            if (!sResultsFileStarted) {
+                writer.println("name\tdevice\toperations\tns_per_op\tbytes_per_op\tallocs_per_op");
+            }
+            // The build fingerprint keeps results from different devices and builds apart
+            writer.println(String.format(Locale.US, "%s\t%s\t%d\t%.1f\t%d\t%d", name,
+                    Build.FINGERPRINT, result.operations, result.nanosPerOperation,
+                    result.bytesPerOperation, result.allocationsPerOperation));
+            if (writer.checkError()) {
+                throw new IOException("Failed to write " + file);
+            }
+        } finally {
+            writer.close();
+        }
+        sResultsFileStarted = true;
+    }
+
+    private static long runFor(final Operation operation, final long durationNanos)
+            throws Exception {
+        final long endNanos = SystemClock.elapsedRealtimeNanos() + durationNanos;
+        long operations = 0;
+        do {
+            sSink = operation.run();
+            operations++;
+        } while (SystemClock.elapsedRealtimeNanos() < endNanos);
+        return operations;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.util.ContentType;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * Class for testing how BugleDatabaseOperations deletes the local copies of telephony messages.
+ */
+@SmallTest
+public class BugleDatabaseOperationsTest extends BugleTestCase {
+    private DatabaseWrapper mDb;
+    private long mSenderId;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.SUB_ID, ParticipantData.OTHER_THAN_SELF_SUB_ID);
+        values.put(ParticipantColumns.NORMALIZED_DESTINATION, "+16505550100");
+        mSenderId = mDb.insert(DatabaseHelper.PARTICIPANTS_TABLE, null, values);
+    }
+
+    public void testEmptyConversationIsDeleted() {
+        final String conversationId = insertConversation();
+        insertMessage(conversationId, "content://sms/1", 1000, "Hi");
+        insertMessage(conversationId, "content://sms/2", 2000, "Bye");
+        final String otherConversationId = insertConversation();
+        final String otherMessageId =
+                insertMessage(otherConversationId, "content://sms/3", 3000, "Hello");
+        refreshConversation(otherConversationId);
+
+        final HashSet<String> conversationIds = deleteMessages("content://sms/1",
+                "content://sms/2", "content://sms/4");
+        assertEquals(new HashSet<String>(Arrays.asList(conversationId)), conversationIds);
+        assertFalse(BugleDatabaseOperations.getConversationExists(mDb, conversationId));
+
+        // Conversations that didn't lose messages are left alone
+        assertTrue(BugleDatabaseOperations.getConversationExists(mDb, otherConversationId));
+        assertEquals(otherMessageId, queryConversation(otherConversationId,
+                ConversationColumns.LATEST_MESSAGE_ID));
+    }
+
+    public void testSnippetIsRefreshedWhenLatestMessageIsDeleted() {
+        final String conversationId = insertConversation();
+        final String olderMessageId = insertMessage(conversationId, "content://sms/1", 1000,
+                "Older");
+        insertMessage(conversationId, "content://sms/2", 2000, "Latest");
+        refreshConversation(conversationId);
+        assertEquals("Latest", queryConversation(conversationId,
+                ConversationColumns.SNIPPET_TEXT));
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.ARCHIVE_STATUS, 1);
+        mDb.update(DatabaseHelper.CONVERSATIONS_TABLE, values, ConversationColumns._ID + "=?",
+                new String[] { conversationId });
+
+        assertEquals(new HashSet<String>(Arrays.asList(conversationId)),
+                deleteMessages("content://sms/2"));
+        assertEquals(olderMessageId, queryConversation(conversationId,
+                ConversationColumns.LATEST_MESSAGE_ID));
+        assertEquals("Older", queryConversation(conversationId,
+                ConversationColumns.SNIPPET_TEXT));
+        assertEquals("1000", queryConversation(conversationId,
+                ConversationColumns.SORT_TIMESTAMP));
+
+        // Deleting to free up storage doesn't bring back archived conversations
+        assertEquals("1", queryConversation(conversationId, ConversationColumns.ARCHIVE_STATUS));
+    }
+
+    public void testSnippetIsKeptWhenOlderMessageIsDeleted() {
+        final String conversationId = insertConversation();
+        insertMessage(conversationId, "content://sms/1", 1000, "Older");
+        final String latestMessageId = insertMessage(conversationId, "content://sms/2", 2000,
+                "Latest");
+        refreshConversation(conversationId);
+
+        deleteMessages("content://sms/1");
+        assertEquals(latestMessageId, queryConversation(conversationId,
+                ConversationColumns.LATEST_MESSAGE_ID));
+        assertEquals("Latest", queryConversation(conversationId,
+                ConversationColumns.SNIPPET_TEXT));
+    }
+
+    public void testConversationIsNotRefreshedWhenOlderMessageIsDeleted() {
+        final String conversationId = insertConversation();
+        insertMessage(conversationId, "content://sms/1", 1000, "Older");
+        insertMessage(conversationId, "content://sms/2", 2000, "Latest");
+        refreshConversation(conversationId);
+        // A snippet the refresh would replace
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.SNIPPET_TEXT, "Not refreshed");
+        mDb.update(DatabaseHelper.CONVERSATIONS_TABLE, values, ConversationColumns._ID + "=?",
+                new String[] { conversationId });
+
+        assertTrue(deleteMessages("content://sms/1").contains(conversationId));
+        assertEquals("Not refreshed", queryConversation(conversationId,
+                ConversationColumns.SNIPPET_TEXT));
+    }
+
+    private HashSet<String> deleteMessages(final String... smsMessageUris) {
+        return BugleDatabaseOperations.deleteMessagesBySmsMessageUris(mDb, smsMessageUris);
+    }
+
+    private String insertConversation() {
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.NAME, "Ana");
+        return Long.toString(mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values));
+    }
+
+    private String insertMessage(final String conversationId, final String smsMessageUri,
+            final long timestamp, final String text) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, conversationId);
+        values.put(MessageColumns.SENDER_PARTICIPANT_ID, mSenderId);
+        values.put(MessageColumns.SMS_MESSAGE_URI, smsMessageUri);
+        values.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        final long messageId = mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, values);
+
+        final ContentValues partValues = new ContentValues();
+        partValues.put(PartColumns.MESSAGE_ID, messageId);
+        partValues.put(PartColumns.CONVERSATION_ID, conversationId);
+        partValues.put(PartColumns.TEXT, text);
+        partValues.put(PartColumns.CONTENT_TYPE, ContentType.TEXT_PLAIN);
+        mDb.insert(DatabaseHelper.PARTS_TABLE, null, partValues);
+        return Long.toString(messageId);
+    }
+
+    private void refreshConversation(final String conversationId) {
+        mDb.beginTransaction();
+        try {
+            BugleDatabaseOperations.refreshConversationMetadataInTransaction(mDb, conversationId,
+                    false /*shouldAutoSwitchSelfId*/, true /*keepArchived*/);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private String queryConversation(final String conversationId, final String column) {
+        final Cursor cursor = mDb.query(DatabaseHelper.CONVERSATIONS_TABLE,
+                new String[] { column }, ConversationColumns._ID + "=?",
+                new String[] { conversationId }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
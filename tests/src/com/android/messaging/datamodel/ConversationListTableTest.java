@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.ConversationListItemData;
+import com.android.messaging.datamodel.data.ConversationListItemData.ConversationListViewColumns;
+import com.android.messaging.datamodel.data.MessageData;
+
+/*
+ * Class for testing ConversationListTable.
+ */
+public class ConversationListTableTest extends BugleTestCase {
+    private static final String TAG = "ConversationListTableTest";
+
+    private DatabaseWrapper mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+    }
+
+    @SmallTest
+    public void testRowFollowsLatestMessage() {
+        final long participantId = insertParticipant("5551234567", "Ana");
+        final long conversationId = insertConversation("Ana", 1000, 0);
+        assertNull(readListColumn(conversationId, ConversationListViewColumns.MESSAGE_ID));
+
+        final long messageId = insertMessage(conversationId, participantId, 1000);
+        setLatestMessage(conversationId, messageId);
+        assertEquals(Long.toString(messageId),
+                readListColumn(conversationId, ConversationListViewColumns.MESSAGE_ID));
+        assertEquals("0", readListColumn(conversationId, ConversationListViewColumns.READ));
+        assertEquals("Ana", readListColumn(conversationId,
+                ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME));
+
+        // Changes to the latest message and its sender are copied
+        final ContentValues read = new ContentValues();
+        read.put(MessageColumns.READ, 1);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, read, MessageColumns._ID + "=" + messageId,
+                null);
+        assertEquals("1", readListColumn(conversationId, ConversationListViewColumns.READ));
+        final ContentValues name = new ContentValues();
+        name.put(ParticipantColumns.FIRST_NAME, "Anna");
+        mDb.update(DatabaseHelper.PARTICIPANTS_TABLE, name,
+                ParticipantColumns._ID + "=" + participantId, null);
+        assertEquals("Anna", readListColumn(conversationId,
+                ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME));
+
+        // Only the latest message is copied
+        final long olderMessageId = insertMessage(conversationId, participantId, 500);
+        final ContentValues unread = new ContentValues();
+        unread.put(MessageColumns.READ, 0);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, unread,
+                MessageColumns._ID + "=" + olderMessageId, null);
+        assertEquals("1", readListColumn(conversationId, ConversationListViewColumns.READ));
+
+        mDb.delete(DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID + "=" + messageId, null);
+        assertNull(readListColumn(conversationId, ConversationListViewColumns.MESSAGE_ID));
+        setLatestMessage(conversationId, olderMessageId);
+        assertEquals(Long.toString(olderMessageId),
+                readListColumn(conversationId, ConversationListViewColumns.MESSAGE_ID));
+
+        mDb.delete(DatabaseHelper.MESSAGES_TABLE,
+                MessageColumns.CONVERSATION_ID + "=" + conversationId, null);
+        mDb.delete(DatabaseHelper.CONVERSATIONS_TABLE,
+                ConversationColumns._ID + "=" + conversationId, null);
+        assertEquals(0, mDb.queryNumEntries(ConversationListItemData.getConversationListTable(),
+                null, null));
+    }
+
+    @SmallTest
+    public void testCountsFollowMessages() {
+        final long participantId = insertParticipant("5551234567", "Ana");
+        final long conversationId = insertConversation("Ana", 1000, 0);
+        final long otherConversationId = insertConversation("Bob", 1000, 0);
+        final long messageId = insertMessage(conversationId, participantId, 1000);
+        insertMessage(conversationId, participantId, 2000);
+        assertCounts(conversationId, 2, 2);
+
+        final ContentValues seen = new ContentValues();
+        seen.put(MessageColumns.SEEN, 1);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, seen, MessageColumns._ID + "=" + messageId,
+                null);
+        assertCounts(conversationId, 2, 1);
+        final ContentValues read = new ContentValues();
+        read.put(MessageColumns.READ, 1);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, read, MessageColumns._ID + "=" + messageId,
+                null);
+        assertCounts(conversationId, 1, 1);
+
+        // Updates not changing the flags leave the counts alone
+        final ContentValues status = new ContentValues();
+        status.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, status,
+                MessageColumns.CONVERSATION_ID + "=" + conversationId, null);
+        assertCounts(conversationId, 1, 1);
+
+        final ContentValues move = new ContentValues();
+        move.put(MessageColumns.CONVERSATION_ID, otherConversationId);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, move,
+                MessageColumns.CONVERSATION_ID + "=" + conversationId, null);
+        assertCounts(conversationId, 0, 0);
+        assertCounts(otherConversationId, 1, 1);
+
+        mDb.delete(DatabaseHelper.MESSAGES_TABLE,
+                MessageColumns.CONVERSATION_ID + "=" + otherConversationId, null);
+        assertCounts(otherConversationId, 0, 0);
+    }
+
+    /**
+     * Compares the time taken to load the conversation list from the conversation list table and
+     * from the join of conversations, messages and participants it replaces. Results are logged.
+     */
+    @LargeTest
+    public void testConversationListLoadBenchmark() {
+        final long participantId = insertParticipant("5551234567", "Ana");
+        int conversationCount = 0;
+        for (final int targetCount : new int[] { 1000, 10000, 50000 }) {
+            mDb.beginTransaction();
+            try {
+                for (; conversationCount < targetCount; conversationCount++) {
+                    final long timestamp = conversationCount + 1;
+                    // One in ten conversations is archived
+                    final long conversationId = insertConversation("Conversation "
+                            + conversationCount, timestamp, conversationCount % 10 == 0 ? 1 : 0);
+                    setLatestMessage(conversationId,
+                            insertMessage(conversationId, participantId, timestamp));
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+
+            final String where = ConversationColumns.SORT_TIMESTAMP + " > 0 AND "
+                    + ConversationColumns.ARCHIVE_STATUS + " = 0";
+            final String orderBy = ConversationColumns.SORT_TIMESTAMP + " DESC";
+            long startTime = SystemClock.elapsedRealtime();
+            final int tableRows = loadAll(mDb.query(
+                    ConversationListItemData.getConversationListTable(),
+                    ConversationListItemData.PROJECTION, where, null, null, null, orderBy));
+            final long tableMillis = SystemClock.elapsedRealtime() - startTime;
+
+            startTime = SystemClock.elapsedRealtime();
+            final String conversations = DatabaseHelper.CONVERSATIONS_TABLE + '.';
+            final int joinRows = loadAll(mDb.rawQuery(
+                    ConversationListItemData.getConversationListRowsSql() + " WHERE "
+                    + conversations + ConversationColumns.SORT_TIMESTAMP + " > 0 AND "
+                    + conversations + ConversationColumns.ARCHIVE_STATUS + " = 0 ORDER BY "
+                    + conversations + ConversationColumns.SORT_TIMESTAMP + " DESC", null));
+            final long joinMillis = SystemClock.elapsedRealtime() - startTime;
+
+            assertEquals(joinRows, tableRows);
+            Log.i(TAG, targetCount + " conversations: table " + tableMillis + "ms, join "
+                    + joinMillis + "ms for " + tableRows + " rows");
+        }
+    }
+
+    private static int loadAll(final Cursor cursor) {
+        try {
+            final int count = cursor.getCount();
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertCounts(final long conversationId, final int unreadCount,
+            final int unseenCount) {
+        final Cursor cursor = mDb.query(DatabaseHelper.CONVERSATIONS_TABLE,
+                new String[] { ConversationColumns.UNREAD_COUNT,
+                        ConversationColumns.UNSEEN_COUNT },
+                ConversationColumns._ID + "=" + conversationId, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(unreadCount, cursor.getInt(0));
+            assertEquals(unseenCount, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+        // The conversation list copies the counts
+        assertEquals(Integer.toString(unreadCount),
+                readListColumn(conversationId, ConversationListViewColumns.UNREAD_COUNT));
+        assertEquals(Integer.toString(unseenCount),
+                readListColumn(conversationId, ConversationListViewColumns.UNSEEN_COUNT));
+    }
+
+    private String readListColumn(final long conversationId, final String column) {
+        final Cursor cursor = mDb.query(ConversationListItemData.getConversationListTable(),
+                new String[] { column }, ConversationListViewColumns._ID + "=" + conversationId,
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long insertParticipant(final String destination, final String firstName) {
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.NORMALIZED_DESTINATION, destination);
+        values.put(ParticipantColumns.DISPLAY_DESTINATION, destination);
+        values.put(ParticipantColumns.FIRST_NAME, firstName);
+        return mDb.insert(DatabaseHelper.PARTICIPANTS_TABLE, null, values);
+    }
+
+    private long insertConversation(final String name, final long sortTimestamp,
+            final int archiveStatus) {
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.NAME, name);
+        values.put(ConversationColumns.SORT_TIMESTAMP, sortTimestamp);
+        values.put(ConversationColumns.ARCHIVE_STATUS, archiveStatus);
+        return mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values);
+    }
+
+    private long insertMessage(final long conversationId, final long senderId,
+            final long timestamp) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, conversationId);
+        values.put(MessageColumns.SENDER_PARTICIPANT_ID, senderId);
+        values.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        values.put(MessageColumns.READ, 0);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        return mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, values);
+    }
+
+    private void setLatestMessage(final long conversationId, final long messageId) {
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.LATEST_MESSAGE_ID, messageId);
+        mDb.update(DatabaseHelper.CONVERSATIONS_TABLE, values,
+                ConversationColumns._ID + "=" + conversationId, null);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.sqlite.SQLiteStatement;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.DatabaseWrapper.RowBinder;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.util.PerfMetrics;
+
+import java.util.ArrayList;
+
+/*
+ * Class for testing DatabaseWrapper.
+ */
+@SmallTest
+public class DatabaseWrapperTest extends BugleTestCase {
+    private DatabaseWrapper mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+    }
+
+    public void testStatementIsCompiledOnce() {
+        final String sql = "SELECT COUNT(*) FROM " + DatabaseHelper.PARTICIPANTS_TABLE;
+        final long executions = DatabaseWrapper.sStatementExecutions.get();
+        final long compilations = DatabaseWrapper.sStatementCompilations.get();
+        mDb.beginTransaction();
+        try {
+            final SQLiteStatement first = mDb.getStatementInTransaction(sql);
+            assertSame(first, mDb.getStatementInTransaction(sql));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        assertEquals(2, DatabaseWrapper.sStatementExecutions.get() - executions);
+        assertEquals(1, DatabaseWrapper.sStatementCompilations.get() - compilations);
+    }
+
+    public void testStatementsAreCountedSeparately() {
+        final String countSql = "SELECT COUNT(*) FROM " + DatabaseHelper.PARTICIPANTS_TABLE;
+        final String maxSql = "SELECT MAX(" + ParticipantColumns._ID + ") FROM "
+                + DatabaseHelper.PARTICIPANTS_TABLE;
+        final String countName = DatabaseWrapper.getStatementMetricsName(countSql);
+        final String maxName = DatabaseWrapper.getStatementMetricsName(maxSql);
+        assertTrue(countName.startsWith("db.statement.select.participants."));
+        assertFalse(countName.equals(maxName));
+
+        final long countExecutions = PerfMetrics.counter(countName + ".executions").get();
+        final long maxExecutions = PerfMetrics.counter(maxName + ".executions").get();
+        mDb.beginTransaction();
+        try {
+            mDb.getStatementInTransaction(countSql);
+            mDb.getStatementInTransaction(countSql);
+            mDb.getStatementInTransaction(maxSql);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        assertEquals(2, PerfMetrics.counter(countName + ".executions").get() - countExecutions);
+        assertEquals(1, PerfMetrics.counter(maxName + ".executions").get() - maxExecutions);
+    }
+
+    public void testInsertRows() {
+        final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
+        participants.add(ParticipantData.getFromRawPhoneBySystemLocale("6505551111"));
+        participants.add(ParticipantData.getFromRawPhoneBySystemLocale("6505552222"));
+        final long[] rowIds;
+        mDb.beginTransaction();
+        try {
+            rowIds = mDb.insertRowsInTransaction(ParticipantData.getInsertSql(), participants,
+                    new RowBinder<ParticipantData>() {
+                        @Override
+                        public void bindRow(final SQLiteStatement statement,
+                                final ParticipantData participant) {
+                            participant.bindInsertStatement(statement);
+                        }
+                    });
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        assertEquals(2, rowIds.length);
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals(1, mDb.queryNumEntries(DatabaseHelper.PARTICIPANTS_TABLE,
+                    ParticipantColumns._ID + "=? AND " + ParticipantColumns.NORMALIZED_DESTINATION
+                    + "=?", new String[] { Long.toString(rowIds[i]),
+                            participants.get(i).getNormalizedDestination() }));
+        }
+    }
+}
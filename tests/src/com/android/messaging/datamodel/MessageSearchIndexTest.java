@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.MessageSearchIndex.SearchQuery;
+import com.android.messaging.datamodel.data.MessageData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Class for testing MessageSearchIndex.
+ */
+@SmallTest
+public class MessageSearchIndexTest extends BugleTestCase {
+    private DatabaseWrapper mDb;
+    private long mConversationId;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.NAME, "Ana");
+        mConversationId = mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values);
+    }
+
+    public void testBuildMatchQuery() {
+        // Last word is a prefix match
+        assertEquals("\"pizza*\"", MessageSearchIndex.buildMatchQuery("pizza"));
+        assertEquals("\"pizza\" \"tonight*\"",
+                MessageSearchIndex.buildMatchQuery("  pizza   tonight "));
+
+        // FTS operators and quotes typed by the user are taken literally
+        assertEquals("\"OR\" \"NOT*\"", MessageSearchIndex.buildMatchQuery("OR NOT"));
+        assertEquals("\"say\" \"hi*\"", MessageSearchIndex.buildMatchQuery("\"say\" hi"));
+
+        // Nothing to search for
+        assertNull(MessageSearchIndex.buildMatchQuery(null));
+        assertNull(MessageSearchIndex.buildMatchQuery(""));
+        assertNull(MessageSearchIndex.buildMatchQuery("   "));
+        assertNull(MessageSearchIndex.buildMatchQuery("\"\""));
+    }
+
+    public void testIndexFollowsParts() {
+        final long messageId = insertMessage(1000, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        final long partId = insertPart(messageId, "Pizza tonight?");
+        assertEquals(Arrays.asList(partId), search("pizza"));
+        assertEquals(Arrays.asList(partId), search("piz"));
+        assertEquals(Arrays.asList(partId), search("tonight pizza"));
+        assertTrue(search("pizza lunch").isEmpty());
+
+        final ContentValues values = new ContentValues();
+        values.put(PartColumns.TEXT, "Sushi tonight?");
+        mDb.update(DatabaseHelper.PARTS_TABLE, values, PartColumns._ID + "=" + partId, null);
+        assertTrue(search("pizza").isEmpty());
+        assertEquals(Arrays.asList(partId), search("sushi"));
+
+        // Parts without text, like images, aren't indexed
+        values.putNull(PartColumns.TEXT);
+        mDb.update(DatabaseHelper.PARTS_TABLE, values, PartColumns._ID + "=" + partId, null);
+        assertTrue(search("sushi").isEmpty());
+        values.put(PartColumns.TEXT, "Sushi tonight?");
+        mDb.update(DatabaseHelper.PARTS_TABLE, values, PartColumns._ID + "=" + partId, null);
+        assertEquals(Arrays.asList(partId), search("sushi"));
+
+        mDb.delete(DatabaseHelper.PARTS_TABLE, PartColumns._ID + "=" + partId, null);
+        assertTrue(search("sushi").isEmpty());
+
+        // Deleting a message deletes its parts and their index entries
+        final long otherMessageId = insertMessage(2000,
+                MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        insertPart(otherMessageId, "Sushi again");
+        assertEquals(1, search("sushi").size());
+        mDb.delete(DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID + "=" + otherMessageId,
+                null);
+        assertTrue(search("sushi").isEmpty());
+    }
+
+    public void testDraftsAreExcluded() {
+        final long draftId = insertMessage(1000, MessageData.BUGLE_STATUS_OUTGOING_DRAFT);
+        insertPart(draftId, "Pizza tonight?");
+        assertTrue(search("pizza").isEmpty());
+    }
+
+    public void testBestMatchesFirst() {
+        // The newer of the two equally good matches has the lower part id, so only its
+        // timestamp puts it first
+        final long newShortId = insertPart(
+                insertMessage(2000, MessageData.BUGLE_STATUS_OUTGOING_COMPLETE),
+                2000, "Pizza? Pizza!");
+        final long newLongId = insertPart(
+                insertMessage(3000, MessageData.BUGLE_STATUS_INCOMING_COMPLETE),
+                3000, "Not sure what we are having tonight, maybe we could get pizza or go out for "
+                + "something else if the weather is nice enough to walk");
+        final long oldShortId = insertPart(
+                insertMessage(1000, MessageData.BUGLE_STATUS_INCOMING_COMPLETE),
+                1000, "Pizza? Pizza!");
+
+        // Equally good matches are newest first
+        assertEquals(Arrays.asList(newShortId, oldShortId, newLongId), search("pizza"));
+
+        // Pages follow on from each other
+        assertEquals(Arrays.asList(newShortId, oldShortId), search("pizza", 2, 0));
+        assertEquals(Arrays.asList(newLongId), search("pizza", 2, 2));
+    }
+
+    public void testSnippetsOfPage() {
+        insertPart(insertMessage(1000, MessageData.BUGLE_STATUS_INCOMING_COMPLETE), 1000,
+                "Pizza tonight?");
+        insertPart(insertMessage(2000, MessageData.BUGLE_STATUS_INCOMING_COMPLETE), 2000,
+                "More pizza");
+        final Cursor cursor = mDb.rawQuery(MessageSearchIndex.getSearchQuerySql(),
+                MessageSearchIndex.getSearchQueryArgs(
+                        MessageSearchIndex.buildMatchQuery("pizza"), 1, 1));
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(MessageSearchIndex.SNIPPET_MATCH_START + "Pizza"
+                    + MessageSearchIndex.SNIPPET_MATCH_END + " tonight?",
+                    cursor.getString(SearchQuery.INDEX_SNIPPET));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Long> search(final String text) {
+        return search(text, 100, 0);
+    }
+
+    private List<Long> search(final String text, final int limit, final int offset) {
+        final Cursor cursor = mDb.rawQuery(MessageSearchIndex.getSearchQuerySql(),
+                MessageSearchIndex.getSearchQueryArgs(MessageSearchIndex.buildMatchQuery(text),
+                        limit, offset));
+        final ArrayList<Long> partIds = new ArrayList<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                assertEquals(mConversationId,
+                        cursor.getLong(SearchQuery.INDEX_CONVERSATION_ID));
+                partIds.add(cursor.getLong(SearchQuery.INDEX_PART_ID));
+            }
+        } finally {
+            cursor.close();
+        }
+        return partIds;
+    }
+
+    private long insertMessage(final long timestamp, final int status) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        values.put(MessageColumns.STATUS, status);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        return mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, values);
+    }
+
+    private long insertPart(final long messageId, final String text) {
+        return insertPart(messageId, 0, text);
+    }
+
+    private long insertPart(final long messageId, final long timestamp, final String text) {
+        final ContentValues values = new ContentValues();
+        values.put(PartColumns.MESSAGE_ID, messageId);
+        values.put(PartColumns.TIMESTAMP, timestamp);
+        values.put(PartColumns.CONVERSATION_ID, mConversationId);
+        values.put(PartColumns.TEXT, text);
+        values.put(PartColumns.CONTENT_TYPE, "text/plain");
+        return mDb.insert(DatabaseHelper.PARTS_TABLE, null, values);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.MessagingChangeFeed.Change;
+import com.android.messaging.datamodel.MessagingChangeFeed.ChangeListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Class for testing how MessagingChangeFeed coalesces change notifications.
+ */
+@SmallTest
+public class MessagingChangeFeedTest extends BugleTestCase {
+    private final ArrayList<Change> mChanges = new ArrayList<Change>();
+    private CountDownLatch mDelivered;
+    private final ChangeListener mListener = new ChangeListener() {
+        @Override
+        public void onChanged(final Change change) {
+            synchronized (mChanges) {
+                mChanges.add(change);
+            }
+            mDelivered.countDown();
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context);
+        mDelivered = new CountDownLatch(1);
+        MessagingChangeFeed.addListener(mListener);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        MessagingChangeFeed.removeListener(mListener);
+        super.tearDown();
+    }
+
+    public void testAncestorCoversDescendants() {
+        final Uri conversations = Uri.parse("content://messaging/conversations");
+        final Uri conversation = Uri.parse("content://messaging/conversations/5");
+        final Uri messages = Uri.parse("content://messaging/conversations/5/messages");
+        assertTrue(MessagingChangeFeed.covers(conversations, conversation));
+        assertTrue(MessagingChangeFeed.covers(conversations, messages));
+        assertTrue(MessagingChangeFeed.covers(conversation, conversation));
+
+        // Descendants, siblings and other authorities aren't covered
+        assertFalse(MessagingChangeFeed.covers(messages, conversation));
+        assertFalse(MessagingChangeFeed.covers(conversation,
+                Uri.parse("content://messaging/conversations/50")));
+        assertFalse(MessagingChangeFeed.covers(conversation,
+                Uri.parse("content://messaging/participants/5")));
+        assertFalse(MessagingChangeFeed.covers(conversations,
+                Uri.parse("content://other/conversations/5")));
+    }
+
+    public void testDeliveryDelay() {
+        // Each change restarts the debounce period
+        assertEquals(50, MessagingChangeFeed.getDeliveryDelay(1000, 1000, 50, 250));
+        assertEquals(50, MessagingChangeFeed.getDeliveryDelay(1100, 1000, 50, 250));
+
+        // Until the oldest change has waited for the maximum delay
+        assertEquals(30, MessagingChangeFeed.getDeliveryDelay(1220, 1000, 50, 250));
+        assertEquals(0, MessagingChangeFeed.getDeliveryDelay(1250, 1000, 50, 250));
+        assertEquals(0, MessagingChangeFeed.getDeliveryDelay(1400, 1000, 50, 250));
+    }
+
+    public void testBurstIsDeliveredAsOneChange() throws Exception {
+        MessagingChangeFeed.publishMessagesUpdated("1", Arrays.asList("10"),
+                Arrays.asList("status"));
+        MessagingChangeFeed.publishMessagesUpdated("1", Arrays.asList("11"),
+                Arrays.asList("read"));
+        MessagingChangeFeed.publishMessagesUpdated("2", Arrays.asList("20"), null);
+        assertTrue(mDelivered.await(2, TimeUnit.SECONDS));
+        // Let any later delivery happen before counting them
+        Thread.sleep(500);
+
+        synchronized (mChanges) {
+            assertEquals(1, mChanges.size());
+            final Change change = mChanges.get(0);
+            assertEquals(new HashSet<String>(Arrays.asList("10", "11")),
+                    change.getUpdatedMessageIds("1"));
+            assertEquals(new HashSet<String>(Arrays.asList("20")),
+                    change.getUpdatedMessageIds("2"));
+            assertFalse(change.isMessagesChanged("3"));
+
+            // The columns of one of the updates aren't known
+            assertNull(change.getUpdatedColumns());
+        }
+    }
+
+    public void testMessagesChangedOverridesUpdates() throws Exception {
+        MessagingChangeFeed.publishMessagesUpdated("1", Arrays.asList("10"),
+                Arrays.asList("status"));
+        MessagingChangeFeed.publishMessagesChanged("1");
+        MessagingChangeFeed.publishMessagesUpdated("1", Arrays.asList("11"),
+                Arrays.asList("status"));
+        assertTrue(mDelivered.await(2, TimeUnit.SECONDS));
+
+        synchronized (mChanges) {
+            final Change change = mChanges.get(0);
+            assertTrue(change.isMessagesChanged("1"));
+            assertNull(change.getUpdatedMessageIds("1"));
+            assertEquals(new HashSet<String>(Arrays.asList("status")),
+                    change.getUpdatedColumns());
+        }
+    }
+}
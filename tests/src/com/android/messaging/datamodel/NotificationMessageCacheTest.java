@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.util.ContentType;
+
+import java.util.List;
+
+/*
+ * Class for testing how NotificationMessageCache follows the messages to notify.
+ */
+@SmallTest
+public class NotificationMessageCacheTest extends BugleTestCase {
+    private DatabaseWrapper mDb;
+    private long mConversationId;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+        NotificationMessageCache.invalidate();
+
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.NAME, "Ana");
+        mConversationId = mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values);
+    }
+
+    public void testReceivedAndSeenMessages() {
+        final long firstId = insertMessage(1000, "Hi");
+        assertEquals(1, NotificationMessageCache.getMessages(mDb).size());
+
+        final long secondId = insertMessage(2000, "Are you there?");
+        NotificationMessageCache.onMessageReceived(mDb, Long.toString(secondId));
+        final List<ConversationMessageData> messages = NotificationMessageCache.getMessages(mDb);
+        assertEquals(2, messages.size());
+        assertEquals(Long.toString(secondId), messages.get(0).getMessageId());
+        assertEquals(Long.toString(firstId), messages.get(1).getMessageId());
+
+        markSeen();
+        NotificationMessageCache.onMessagesSeen(Long.toString(mConversationId));
+        assertTrue(NotificationMessageCache.getMessages(mDb).isEmpty());
+    }
+
+    public void testMessageReplacedInPlaceIsReloaded() {
+        final long messageId = insertMessage(1000, "Tap to download");
+        assertEquals("Tap to download", NotificationMessageCache.getMessages(mDb).get(0).getText());
+
+        // E.g. a downloaded MMS overwrites its notification, which keeps the count and the ids
+        final ContentValues values = new ContentValues();
+        values.put(PartColumns.TEXT, "Here's the picture");
+        mDb.update(DatabaseHelper.PARTS_TABLE, values, PartColumns.MESSAGE_ID + "=?",
+                new String[] { Long.toString(messageId) });
+        NotificationMessageCache.onMessageUpdated(Long.toString(messageId));
+
+        final List<ConversationMessageData> messages = NotificationMessageCache.getMessages(mDb);
+        assertEquals(1, messages.size());
+        assertEquals("Here's the picture", messages.get(0).getText());
+    }
+
+    private long insertMessage(final long timestamp, final String text) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        values.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        values.put(MessageColumns.SEEN, 0);
+        values.put(MessageColumns.READ, 0);
+        final long messageId = mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, values);
+
+        final ContentValues partValues = new ContentValues();
+        partValues.put(PartColumns.MESSAGE_ID, messageId);
+        partValues.put(PartColumns.CONVERSATION_ID, mConversationId);
+        partValues.put(PartColumns.TEXT, text);
+        partValues.put(PartColumns.CONTENT_TYPE, ContentType.TEXT_PLAIN);
+        mDb.insert(DatabaseHelper.PARTS_TABLE, null, partValues);
+        return messageId;
+    }
+
+    private void markSeen() {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.SEEN, 1);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, values, MessageColumns.CONVERSATION_ID + "=?",
+                new String[] { Long.toString(mConversationId) });
+    }
+}
@@ -20,6 +20,10 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
 
@@ -70,6 +74,21 @@ public class ParticipantRefreshTest extends BugleTestCase {
         mFakeFactory.withProvider(uri, phoneLookup);
     }
 
+    /**
+     * Add the phone and email rows and the names of the contacts that full refreshes index.
+     */
+    private void addContactData(final Object[][] dataRows, final Object[][] nameRows) {
+        final FakeContentProvider contacts = new FakeContentProvider(mContext,
+                Data.CONTENT_URI, false);
+        contacts.addOverrideData(Data.CONTENT_URI, ContactDestinationIndex.DATA_SELECTION,
+                Phone.CONTENT_ITEM_TYPE + ";" + Email.CONTENT_ITEM_TYPE,
+                ContactDestinationIndex.DATA_PROJECTION, dataRows);
+        contacts.addOverrideData(Data.CONTENT_URI, ContactDestinationIndex.FIRST_NAME_SELECTION,
+                StructuredName.CONTENT_ITEM_TYPE, ContactDestinationIndex.FIRST_NAME_PROJECTION,
+                nameRows);
+        mFakeFactory.withProvider(Data.CONTENT_URI, contacts);
+    }
+
     /**
      * Add some participant to test database.
      */
@@ -277,4 +296,30 @@ public class ParticipantRefreshTest extends BugleTestCase {
         verifyParticipant("650-123-1233", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
                 null, null);
     }
+
+    /**
+     * Verify that full refresh matches participants with the indexed contacts without looking
+     * them up.
+     */
+    public void testFullRefreshFromContactIndex() {
+        addParticipant("650-123-1233", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
+                null, null);
+        addParticipant("650-123-1234", 2, "Joe", "content://photo/joe");
+        addParticipant("joe@example.com", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_RESOLVED,
+                null, null);
+        addContactData(new Object[][] {
+                { 1L, "John", "content://photo/john", "john", Phone.CONTENT_ITEM_TYPE,
+                        "(650) 123-1233", 2000L },
+                { 3L, "Joe", "content://photo/joe3", "joe", Email.CONTENT_ITEM_TYPE,
+                        "Joe@Example.com", 1000L }
+        }, new Object[][] {
+                { 1L, "John" }
+        });
+
+        ParticipantRefresh.refreshParticipants(ParticipantRefresh.REFRESH_MODE_FULL);
+        verifyParticipant("650-123-1233", 1, "John", "content://photo/john");
+        verifyParticipant("650-123-1234", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
+                null, null);
+        verifyParticipant("joe@example.com", 3, "Joe", "content://photo/joe3");
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.messaging.Factory;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeContext.FakeContextHost;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.BugleServiceTestCase;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.FakeDataModel;
+import com.android.messaging.datamodel.action.ActionMonitor.ActionCompletedListener;
+import com.android.messaging.datamodel.action.ActionTestHelpers.StubBackgroundWorker;
+import com.android.messaging.datamodel.action.ActionTestHelpers.StubConnectivityUtil;
+import com.android.messaging.util.PerfMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Class for testing the batched execution of batchable actions by ActionServiceImpl.
+ */
+@MediumTest
+public class ActionServiceBatchTest extends BugleServiceTestCase<ActionServiceImpl>
+        implements FakeContextHost, ActionCompletedListener {
+    private FakeContext mContext;
+    private DatabaseWrapper mDb;
+    private final Map<String, Boolean> mSucceeded = new HashMap<String, Boolean>();
+    private final Map<String, Object> mResults = new HashMap<String, Object>();
+    private CountDownLatch mCompleted;
+    private StubBackgroundWorker mBackgroundWorker;
+
+    public ActionServiceBatchTest() {
+        super(ActionServiceImpl.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = new FakeContext(getContext(), this);
+        mBackgroundWorker = new StubBackgroundWorker();
+        FakeFactory.registerWithFakeContext(getContext(), mContext)
+                .withDataModel(new FakeDataModel(mContext)
+                .withBackgroundWorkerForActionService(mBackgroundWorker)
+                .withActionService(new ActionService())
+                .withConnectivityUtil(new StubConnectivityUtil(mContext)));
+        setContext(Factory.get().getApplicationContext());
+        mDb = DataModel.get().getDatabase();
+    }
+
+    public void testBatchIsCommittedTogether() throws Exception {
+        final long batchCount = PerfMetrics.histogram("action.batch_size").getCount();
+
+        runActions(new String[] { "a", "b", "c" }, null, false);
+
+        assertEquals(batchCount + 1, PerfMetrics.histogram("action.batch_size").getCount());
+        assertEquals(3, getConversationNames().size());
+        assertTrue(getConversationNames().containsAll(Arrays.asList("a", "b", "c")));
+        for (final String name : Arrays.asList("a", "b", "c")) {
+            assertEquals(Boolean.TRUE, mSucceeded.get(name));
+            assertEquals("inserted " + name, mResults.get(name));
+        }
+    }
+
+    public void testFailingActionIsDropped() throws Exception {
+        runActions(new String[] { "a", "b", "c" }, "b", false);
+
+        // The writes of the failing action are rolled back, those of the others are kept
+        final List<String> names = getConversationNames();
+        assertEquals(2, names.size());
+        assertTrue(names.containsAll(Arrays.asList("a", "c")));
+
+        // Every monitor completes, the failing action as failed
+        assertEquals(Boolean.TRUE, mSucceeded.get("a"));
+        assertEquals(Boolean.FALSE, mSucceeded.get("b"));
+        assertEquals(Boolean.TRUE, mSucceeded.get("c"));
+        assertEquals("inserted c", mResults.get("c"));
+    }
+
+    public void testRolledBackBackgroundWorkIsNotQueued() throws Exception {
+        // The failing action is the last one, so the others have been sent to the background
+        // worker once it completes
+        runActions(new String[] { "a", "b", "c" }, "c", true);
+
+        // Each action that was executed again queues its background work once
+        final List<Action> requests = mBackgroundWorker.getRequestsMade();
+        assertEquals(2, requests.size());
+        assertEquals("a", ((TestBatchAction) requests.get(0)).getName());
+        assertEquals("b", ((TestBatchAction) requests.get(1)).getName());
+    }
+
+    /**
+     * Start the actions and execute them as one batch
+     * @param failingName name of the action to fail, if any
+     * @param backgroundWork whether the actions request background work, in which case only the
+     *        failing action is waited for, as the stub background worker never completes the
+     *        others
+     */
+    private void runActions(final String[] names, final String failingName,
+            final boolean backgroundWork) throws Exception {
+        mCompleted = new CountDownLatch(backgroundWork ? 1 : names.length);
+        for (final String name : names) {
+            final ActionMonitor monitor = new TestBatchActionMonitor(name, this);
+            new TestBatchAction(monitor.getActionKey(), name, name.equals(failingName),
+                    backgroundWork).start(monitor);
+        }
+
+        // The first intent executes the whole batch, the others find nothing left to do
+        final ArrayList<Intent> intents = mContext.extractIntents();
+        assertEquals(names.length, intents.size());
+        for (final Intent intent : intents) {
+            startService(intent);
+        }
+        assertTrue("Timed out waiting for actions", mCompleted.await(2, TimeUnit.SECONDS));
+    }
+
+    private List<String> getConversationNames() {
+        final ArrayList<String> names = new ArrayList<String>();
+        final Cursor cursor = mDb.query(DatabaseHelper.CONVERSATIONS_TABLE,
+                new String[] { ConversationColumns.NAME }, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    @Override
+    public void onActionSucceeded(final ActionMonitor monitor, final Action action,
+            final Object data, final Object result) {
+        onActionCompleted((String) data, true, result);
+    }
+
+    @Override
+    public void onActionFailed(final ActionMonitor monitor, final Action action,
+            final Object data, final Object result) {
+        onActionCompleted((String) data, false, result);
+    }
+
+    private synchronized void onActionCompleted(final String name, final boolean succeeded,
+            final Object result) {
+        mSucceeded.put(name, succeeded);
+        mResults.put(name, result);
+        mCompleted.countDown();
+    }
+
+    @Override
+    public String getServiceClassName() {
+        return ActionServiceImpl.class.getName();
+    }
+
+    @Override
+    public void startServiceForStub(final Intent intent) {
+        // Intents are started by the test once all the actions are queued
+    }
+
+    @Override
+    public void onStartCommandForStub(final Intent intent, final int flags, final int startId) {
+    }
+
+    /**
+     * A batchable action that adds a conversation with its name, optionally requests background
+     * work, then optionally fails
+     */
+    public static class TestBatchAction extends Action implements Parcelable {
+        private static final String KEY_NAME = "name";
+        private static final String KEY_FAIL = "fail";
+        private static final String KEY_BACKGROUND_WORK = "background_work";
+
+        TestBatchAction(final String key, final String name, final boolean fail,
+                final boolean backgroundWork) {
+            super(key);
+            actionParameters.putString(KEY_NAME, name);
+            actionParameters.putBoolean(KEY_FAIL, fail);
+            actionParameters.putBoolean(KEY_BACKGROUND_WORK, backgroundWork);
+        }
+
+        String getName() {
+            return actionParameters.getString(KEY_NAME);
+        }
+
+        @Override
+        protected boolean isBatchable() {
+            return true;
+        }
+
+        @Override
+        protected Object executeAction() {
+            final DatabaseWrapper db = DataModel.get().getDatabase();
+            db.beginTransaction();
+            try {
+                final ContentValues values = new ContentValues();
+                values.put(ConversationColumns.NAME, getName());
+                db.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values);
+                if (actionParameters.getBoolean(KEY_BACKGROUND_WORK)) {
+                    requestBackgroundWork();
+                }
+                if (actionParameters.getBoolean(KEY_FAIL)) {
+                    throw new IllegalStateException("Failing " + getName());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return "inserted " + getName();
+        }
+
+        private TestBatchAction(final Parcel in) {
+            super(in);
+        }
+
+        public static final Parcelable.Creator<TestBatchAction> CREATOR
+                = new Parcelable.Creator<TestBatchAction>() {
+            @Override
+            public TestBatchAction createFromParcel(final Parcel in) {
+                return new TestBatchAction(in);
+            }
+
+            @Override
+            public TestBatchAction[] newArray(final int size) {
+                return new TestBatchAction[size];
+            }
+        };
+
+        @Override
+        public void writeToParcel(final Parcel parcel, final int flags) {
+            writeActionToParcel(parcel, flags);
+        }
+    }
+
+    private static class TestBatchActionMonitor extends ActionMonitor {
+        TestBatchActionMonitor(final String name, final ActionCompletedListener listener) {
+            super(STATE_CREATED, Action.generateUniqueActionKey(null), name);
+            setCompletedListener(listener);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.Intent;
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeContext.FakeContextHost;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.action.BackgroundWorkerService.Lane;
+import com.android.messaging.datamodel.action.BackgroundWorkerService.Work;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Class for testing how BackgroundWorkerService routes work to lanes and orders it within one.
+ */
+@SmallTest
+public class BackgroundWorkerServiceTest extends BugleTestCase implements FakeContextHost {
+    private FakeContext mContext;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = new FakeContext(getTestContext(), this);
+        FakeFactory.registerWithFakeContext(getTestContext(), mContext);
+    }
+
+    public void testWorkIsRoutedToTheLaneOfItsAction() {
+        BackgroundWorkerService.queueBackgroundWork(Arrays.<Action>asList(
+                new NetworkAction(), new SyncAction(), new MaintenanceAction()));
+
+        final ArrayList<Intent> intents = mContext.extractIntents();
+        assertEquals(3, intents.size());
+        final String[] laneNames = { "network", "sync", "maintenance" };
+        for (int i = 0; i < intents.size(); i++) {
+            final Intent intent = intents.get(i);
+            final Lane lane = BackgroundWorkerService.getLane(intent);
+            assertEquals(laneNames[i], lane.getName());
+
+            // The work holds the wake lock of its own lane only
+            for (final Intent other : intents) {
+                assertEquals(other == intent, lane.mWakeLock.isHeld(other));
+            }
+            lane.mWakeLock.release(intent, BackgroundWorkerService.OP_PROCESS_REQUEST);
+        }
+    }
+
+    public void testWorkIsTakenRoundRobinAcrossActionTypes() {
+        final Lane lane = new Lane("test", "bugle_test_parallelism", 1);
+        final NetworkAction network1 = new NetworkAction();
+        final NetworkAction network2 = new NetworkAction();
+        final NetworkAction network3 = new NetworkAction();
+        final SyncAction sync1 = new SyncAction();
+        final SyncAction sync2 = new SyncAction();
+        final MaintenanceAction maintenance = new MaintenanceAction();
+
+        // A burst of one type doesn't hold up the types queued after it
+        for (final Action action : new Action[] { network1, network2, network3, sync1,
+                maintenance, sync2 }) {
+            lane.add(new Work(null, action, 0, new Intent(),
+                    BackgroundWorkerService.OP_PROCESS_REQUEST));
+        }
+        assertSame(network1, lane.takeNext().getAction());
+        assertSame(sync1, lane.takeNext().getAction());
+        assertSame(maintenance, lane.takeNext().getAction());
+        assertSame(network2, lane.takeNext().getAction());
+        assertSame(sync2, lane.takeNext().getAction());
+
+        // A type queued again goes behind the types already waiting
+        final SyncAction sync3 = new SyncAction();
+        lane.add(new Work(null, sync3, 0, new Intent(),
+                BackgroundWorkerService.OP_PROCESS_REQUEST));
+        assertSame(network3, lane.takeNext().getAction());
+        assertSame(sync3, lane.takeNext().getAction());
+    }
+
+    @Override
+    public String getServiceClassName() {
+        return BackgroundWorkerService.class.getName();
+    }
+
+    @Override
+    public void startServiceForStub(final Intent intent) {
+    }
+
+    @Override
+    public void onStartCommandForStub(final Intent intent, final int flags, final int startId) {
+    }
+
+    private static class TestAction extends Action {
+        @Override
+        public void writeToParcel(final Parcel parcel, final int flags) {
+            writeActionToParcel(parcel, flags);
+        }
+    }
+
+    private static class NetworkAction extends TestAction {
+        @Override
+        protected int getBackgroundWorkLane() {
+            return BackgroundWorkerService.LANE_NETWORK;
+        }
+    }
+
+    private static class SyncAction extends TestAction {
+        @Override
+        protected int getBackgroundWorkLane() {
+            return BackgroundWorkerService.LANE_SYNC;
+        }
+    }
+
+    private static class MaintenanceAction extends TestAction {
+    }
+}
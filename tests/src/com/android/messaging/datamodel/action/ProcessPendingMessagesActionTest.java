@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.ContentValues;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.FakeDataModel;
+import com.android.messaging.datamodel.data.MessageData;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Class for testing which pending messages ProcessPendingMessagesAction starts sending.
+ */
+@SmallTest
+public class ProcessPendingMessagesActionTest extends BugleTestCase {
+    private static final int SUB_ID = 1;
+
+    private DatabaseWrapper mDb;
+    private long mSelfId;
+    private long mNow;
+    private long mTimestamp;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.SUB_ID, SUB_ID);
+        values.put(ParticipantColumns.SIM_SLOT_ID, 0);
+        mSelfId = mDb.insert(DatabaseHelper.PARTICIPANTS_TABLE, null, values);
+        mNow = System.currentTimeMillis();
+    }
+
+    public void testSmsWindowPerSubscription() {
+        final String[] messageIds = new String[6];
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = insertMessage(insertConversation(), MessageData.PROTOCOL_SMS,
+                    MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+        }
+
+        // The oldest messages fill the window
+        assertEquals(Arrays.asList(messageIds[0], messageIds[1], messageIds[2], messageIds[3]),
+                findNextMessagesToSend());
+
+        // Messages already sending take up their slots
+        markSending(messageIds[0]);
+        markSending(messageIds[1]);
+        markSending(messageIds[2]);
+        assertEquals(Arrays.asList(messageIds[3]), findNextMessagesToSend());
+        markSending(messageIds[3]);
+        assertTrue(findNextMessagesToSend().isEmpty());
+
+        // Nothing is sent on another subscription
+        assertTrue(ProcessPendingMessagesAction.findNextMessagesToSend(mDb, mNow, SUB_ID + 1)
+                .isEmpty());
+    }
+
+    public void testOneMessagePerConversation() {
+        final long conversationId = insertConversation();
+        final String first = insertMessage(conversationId, MessageData.PROTOCOL_SMS,
+                MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+        final String second = insertMessage(conversationId, MessageData.PROTOCOL_SMS,
+                MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+        final String other = insertMessage(insertConversation(), MessageData.PROTOCOL_SMS,
+                MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+
+        // Later messages of a conversation wait for the earlier ones to keep it in order
+        assertEquals(Arrays.asList(first, other), findNextMessagesToSend());
+        markSending(first);
+        markSending(other);
+        assertTrue(findNextMessagesToSend().isEmpty());
+        markSent(first);
+        assertEquals(Arrays.asList(second), findNextMessagesToSend());
+    }
+
+    public void testMmsIsSentOnItsOwn() {
+        final String sms = insertMessage(insertConversation(), MessageData.PROTOCOL_SMS,
+                MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+        final String mms = insertMessage(insertConversation(), MessageData.PROTOCOL_MMS,
+                MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+        insertMessage(insertConversation(), MessageData.PROTOCOL_SMS,
+                MessageData.BUGLE_STATUS_OUTGOING_YET_TO_SEND);
+
+        // The MMS waits for the messages ahead of it, and the messages after it wait for it
+        assertEquals(Arrays.asList(sms), findNextMessagesToSend());
+        markSending(sms);
+        assertTrue(findNextMessagesToSend().isEmpty());
+        markSent(sms);
+        assertEquals(Arrays.asList(mms), findNextMessagesToSend());
+    }
+
+    private List<String> findNextMessagesToSend() {
+        return ProcessPendingMessagesAction.findNextMessagesToSend(mDb, mNow, SUB_ID);
+    }
+
+    private long insertConversation() {
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.CURRENT_SELF_ID, mSelfId);
+        return mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values);
+    }
+
+    private String insertMessage(final long conversationId, final int protocol,
+            final int status) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, conversationId);
+        values.put(MessageColumns.SELF_PARTICIPANT_ID, mSelfId);
+        values.put(MessageColumns.PROTOCOL, protocol);
+        values.put(MessageColumns.STATUS, status);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, ++mTimestamp);
+        values.put(MessageColumns.RETRY_START_TIMESTAMP, mNow);
+        return Long.toString(mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, values));
+    }
+
+    private void markSending(final String messageId) {
+        setStatus(messageId, MessageData.BUGLE_STATUS_OUTGOING_SENDING);
+    }
+
+    private void markSent(final String messageId) {
+        setStatus(messageId, MessageData.BUGLE_STATUS_OUTGOING_COMPLETE);
+    }
+
+    private void setStatus(final String messageId, final int status) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.STATUS, status);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, values, MessageColumns._ID + "=?",
+                new String[] { messageId });
+    }
+}
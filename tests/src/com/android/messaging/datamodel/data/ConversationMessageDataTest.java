@@ -15,6 +15,8 @@
  */
 package com.android.messaging.datamodel.data;
 
+import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.messaging.BugleTestCase;
@@ -24,6 +26,9 @@ import com.android.messaging.datamodel.data.ConversationMessageData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.ConversationMessageData.ConversationMessageViewColumns;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @SmallTest
 public class ConversationMessageDataTest extends BugleTestCase {
     @Override
@@ -96,4 +101,39 @@ public class ConversationMessageDataTest extends BugleTestCase {
         assertTrue(data.getCanClusterWithPreviousMessage());  // 2 and 3 can be clustered
         assertFalse(data.getCanClusterWithNextMessage());
     }
+
+    public void testBindWindowParts() {
+        final FakeCursor testCursor = TestDataFactory.getConversationMessageCursor();
+        final String messageId = testCursor.getAt(ConversationMessageViewColumns._ID, 1)
+                .toString();
+        final List<MessagePartData> parts = new ArrayList<MessagePartData>();
+        parts.add(MessagePartData.createTextMessagePart("window text"));
+        final Cursor windowCursor = new WindowCursor(testCursor, messageId, parts);
+        final ConversationMessageData data = new ConversationMessageData();
+        windowCursor.moveToPosition(1);
+        data.bind(windowCursor);
+        // Parts come from the lookup rather than the part columns of the row
+        assertEquals("window text", data.getText());
+        assertEquals(1, data.getParts().size());
+        assertEquals(testCursor.getAt(ConversationMessageViewColumns.RECEIVED_TIMESTAMP, 1),
+                data.getReceivedTimeStamp());
+    }
+
+    private static class WindowCursor extends CursorWrapper
+            implements ConversationMessageData.MessagePartsLookup {
+        private final String mMessageId;
+        private final List<MessagePartData> mParts;
+
+        WindowCursor(final Cursor cursor, final String messageId,
+                final List<MessagePartData> parts) {
+            super(cursor);
+            mMessageId = messageId;
+            mParts = parts;
+        }
+
+        @Override
+        public List<MessagePartData> getMessageParts(final String messageId) {
+            return mMessageId.equals(messageId) ? mParts : new ArrayList<MessagePartData>();
+        }
+    }
 }
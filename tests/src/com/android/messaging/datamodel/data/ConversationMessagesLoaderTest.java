@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.content.ContentValues;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.FakeDataModel;
+import com.android.messaging.datamodel.data.ConversationMessagesLoader.WindowCursor;
+import com.android.messaging.datamodel.data.ConversationMessagesLoader.WindowRows;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Class for testing how ConversationMessagesLoader patches updated messages into a loaded window.
+ */
+@SmallTest
+public class ConversationMessagesLoaderTest extends BugleTestCase {
+    private DatabaseWrapper mDb;
+    private long mConversationId;
+    // Message ids from newest to oldest, the order of the window
+    private String[] mMessageIds;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.NAME, "Ana");
+        mConversationId = mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, values);
+        mMessageIds = new String[3];
+        for (int i = 0; i < mMessageIds.length; i++) {
+            mMessageIds[mMessageIds.length - 1 - i] = insertMessage(1000 * (i + 1));
+        }
+    }
+
+    public void testPatchedMessagesAreRead() {
+        final WindowCursor window = loadWindow();
+        setStatus(mMessageIds[1], MessageData.BUGLE_STATUS_INCOMING_DOWNLOAD_FAILED);
+        final WindowCursor patched = window.patch(mDb, asSet(mMessageIds[1]));
+        assertNotNull(patched);
+
+        // The patched cursor sees the update, the one it was patched from doesn't
+        assertEquals(MessageData.BUGLE_STATUS_INCOMING_DOWNLOAD_FAILED, getStatus(patched, 1));
+        assertEquals(MessageData.BUGLE_STATUS_INCOMING_COMPLETE, getStatus(window, 1));
+        assertEquals(MessageData.BUGLE_STATUS_INCOMING_COMPLETE, getStatus(patched, 0));
+        assertEquals(mMessageIds.length, patched.getCount());
+
+        window.close();
+        patched.close();
+    }
+
+    public void testPatchedWindowsKeepTheirOwnPosition() {
+        final WindowCursor window = loadWindow();
+        setStatus(mMessageIds[2], MessageData.BUGLE_STATUS_INCOMING_DOWNLOAD_FAILED);
+        final WindowCursor patched = window.patch(mDb, asSet(mMessageIds[2]));
+
+        // Both cursors share the rows, but moving one doesn't move the other
+        assertTrue(window.moveToFirst());
+        assertTrue(patched.moveToLast());
+        assertEquals(mMessageIds[0], readMessageId(window));
+        assertEquals(mMessageIds[2], readMessageId(patched));
+        assertTrue(window.moveToNext());
+        assertTrue(patched.isLast());
+        assertEquals(mMessageIds[1], readMessageId(window));
+        assertEquals(mMessageIds[2], readMessageId(patched));
+        assertTrue(patched.moveToPrevious());
+        assertEquals(1, window.getPosition());
+        assertEquals(mMessageIds[1], readMessageId(patched));
+        assertFalse(window.move(5));
+        assertTrue(window.isAfterLast());
+        assertEquals(1, patched.getPosition());
+
+        window.close();
+        patched.close();
+    }
+
+    public void testRowsAreClosedWithTheLastWindow() {
+        final WindowCursor window = loadWindow();
+        final WindowCursor patched = window.patch(mDb, asSet(mMessageIds[0]));
+        window.close();
+        assertTrue(window.isClosed());
+
+        // The patched window still reads the shared rows
+        assertEquals(mMessageIds[1], readMessageId(patched, 1));
+        assertFalse(patched.getWrappedCursor().isClosed());
+        patched.close();
+        assertTrue(patched.getWrappedCursor().isClosed());
+
+        // Nothing can be patched into rows that are closed
+        assertNull(patched.patch(mDb, asSet(mMessageIds[0])));
+    }
+
+    public void testDeletedMessageIsNotPatched() {
+        final WindowCursor window = loadWindow();
+        mDb.delete(DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID + "=?",
+                new String[] { mMessageIds[1] });
+
+        // The window has to be queried again
+        assertNull(window.patch(mDb, asSet(mMessageIds[1])));
+
+        // Messages that aren't in the window need no patching
+        final WindowCursor patched = window.patch(mDb, asSet(mMessageIds[0], "-1"));
+        assertNotNull(patched);
+        patched.close();
+        window.close();
+    }
+
+    private WindowCursor loadWindow() {
+        final String windowStart = Long.toString(Long.MIN_VALUE);
+        final String[] windowArgs = { Long.toString(mConversationId), windowStart, windowStart,
+                windowStart };
+        return new WindowCursor(new WindowRows(mDb.rawQuery(
+                ConversationMessageData.getConversationWindowMessagesQuerySql(), windowArgs)),
+                new HashMap<String, List<MessagePartData>>(), null);
+    }
+
+    private static String readMessageId(final WindowCursor cursor) {
+        final ConversationMessageData data = new ConversationMessageData();
+        data.bind(cursor);
+        return data.getMessageId();
+    }
+
+    private static String readMessageId(final WindowCursor cursor, final int position) {
+        assertTrue(cursor.moveToPosition(position));
+        return readMessageId(cursor);
+    }
+
+    private static int getStatus(final WindowCursor cursor, final int position) {
+        assertTrue(cursor.moveToPosition(position));
+        final ConversationMessageData data = new ConversationMessageData();
+        data.bind(cursor);
+        return data.getStatus();
+    }
+
+    private static HashSet<String> asSet(final String... messageIds) {
+        return new HashSet<String>(Arrays.asList(messageIds));
+    }
+
+    private String insertMessage(final long timestamp) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        values.put(MessageColumns.STATUS, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, timestamp);
+        return Long.toString(mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, values));
+    }
+
+    private void setStatus(final String messageId, final int status) {
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.STATUS, status);
+        mDb.update(DatabaseHelper.MESSAGES_TABLE, values, MessageColumns._ID + "=?",
+                new String[] { messageId });
+    }
+}
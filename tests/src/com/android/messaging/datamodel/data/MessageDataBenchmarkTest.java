@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.MicroBenchmark;
+import com.android.messaging.sms.MmsUtils;
+import com.android.messaging.util.ConversationIdSet;
+
+import java.util.List;
+
+/**
+ * Microbenchmarks of the string handling done for each message or conversation loaded: unpacking
+ * the group concatenated parts of a message row, conversation id sets and SQL IN operands.
+ */
+@LargeTest
+public class MessageDataBenchmarkTest extends BugleTestCase {
+    public void testMakePartsBenchmark() throws Exception {
+        final List<MessagePartData> textParts = ConversationMessageData.makeParts(
+                "1", "text/plain", "''", "-1", "-1", "Are we still on for tonight?", 1, "10");
+        assertEquals(1, textParts.size());
+
+        final String ids = "2|3|4";
+        final String contentTypes = "'image/jpeg'|'text/plain'|'video/mp4'";
+        final String contentUris = "'content://mms/part/2'|''|'content://mms/part/4'";
+        final String widths = "640|-1|1280";
+        final String heights = "480|-1|720";
+        final String texts = "''|'Here''s the view from the top, isn''t it great?'|''";
+        final List<MessagePartData> mediaParts = ConversationMessageData.makeParts(ids,
+                contentTypes, contentUris, widths, heights, texts, 3, "11");
+        assertEquals(3, mediaParts.size());
+        assertEquals("Here's the view from the top, isn't it great?", mediaParts.get(1).getText());
+
+        MicroBenchmark.run(getTestContext(), "ConversationMessageData.makeParts text",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return ConversationMessageData.makeParts("1", "text/plain", "''", "-1",
+                                "-1", "Are we still on for tonight?", 1, "10");
+                    }
+                });
+        MicroBenchmark.run(getTestContext(), "ConversationMessageData.makeParts 3 parts",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return ConversationMessageData.makeParts(ids, contentTypes, contentUris,
+                                widths, heights, texts, 3, "11");
+                    }
+                });
+    }
+
+    public void testConversationIdSetBenchmark() throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            builder.append(i == 1 ? "" : "|").append(i * 37);
+        }
+        final String conversationIds = builder.toString();
+        assertEquals(20, ConversationIdSet.createSet(conversationIds).size());
+
+        MicroBenchmark.run(getTestContext(), "ConversationIdSet.createSet 20 ids",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return ConversationIdSet.createSet(conversationIds);
+                    }
+                });
+        MicroBenchmark.run(getTestContext(), "ConversationIdSet.join and getDelimitedString",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return ConversationIdSet.createSet(
+                                ConversationIdSet.join(conversationIds, "1001"))
+                                .getDelimitedString();
+                    }
+                });
+    }
+
+    public void testSqlInOperandBenchmark() throws Exception {
+        assertEquals("(?,?,?)", MmsUtils.getSqlInOperand(3));
+
+        for (final int count : new int[] { 10, MmsUtils.MAX_IDS_PER_QUERY }) {
+            MicroBenchmark.run(getTestContext(), "MmsUtils.getSqlInOperand " + count,
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public Object run() {
+                            return MmsUtils.getSqlInOperand(count);
+                        }
+                    });
+        }
+    }
+}
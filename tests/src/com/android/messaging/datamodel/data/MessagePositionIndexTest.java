@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/*
+ * Class for testing how MessagePositionIndex maps message ids to positions as windows load.
+ */
+@SmallTest
+public class MessagePositionIndexTest extends BugleTestCase {
+    private static final String CONVERSATION_ID = "1";
+
+    public void testPositionsFollowKeyOrder() {
+        final MessagePositionIndex index = new MessagePositionIndex();
+        // Two messages share a timestamp and come out of id order
+        index.build(CONVERSATION_ID, createKeyCursor(new long[][] {
+                { 100, 1 }, { 200, 5 }, { 200, 3 }, { 300, 4 } }));
+        assertEquals(Arrays.asList(0, 1, 2, 3), index.getPositions(Arrays.asList(4L, 1L, 5L, 3L)));
+        assertEquals(Arrays.asList(1), index.getPositions(Arrays.asList(3L, 42L)));
+        assertEquals(Collections.<Integer>emptyList(),
+                index.getPositions(Collections.<Long>emptyList()));
+    }
+
+    public void testUpdateWindowReplacesWindowedMessages() {
+        final MessagePositionIndex index = new MessagePositionIndex();
+        index.build(CONVERSATION_ID, createKeyCursor(new long[][] {
+                { 100, 1 }, { 200, 2 }, { 300, 3 }, { 400, 4 } }));
+        // Window from message 2 on: message 3 deleted, messages 5 and 6 received
+        index.updateWindow(CONVERSATION_ID, 200, 2, createWindowCursor(new long[][] {
+                { 600, 6 }, { 500, 5 }, { 400, 4 }, { 200, 2 } }), 1);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4),
+                index.getPositions(Arrays.asList(1L, 2L, 4L, 5L, 6L)));
+        assertEquals(Collections.<Integer>emptyList(), index.getPositions(Arrays.asList(3L)));
+    }
+
+    public void testUpdateWindowDropsIndexWhenOlderMessagesChanged() {
+        final MessagePositionIndex index = new MessagePositionIndex();
+        index.build(CONVERSATION_ID, createKeyCursor(new long[][] {
+                { 100, 1 }, { 200, 2 }, { 300, 3 } }));
+        // Two messages before the window, but only one in the index
+        index.updateWindow(CONVERSATION_ID, 200, 2, createWindowCursor(new long[][] {
+                { 300, 3 }, { 200, 2 } }), 2);
+        assertEquals(Collections.<Integer>emptyList(),
+                index.getPositions(Arrays.asList(1L, 2L, 3L)));
+    }
+
+    private static MatrixCursor createKeyCursor(final long[][] keys) {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "received_timestamp", "_id" });
+        for (final long[] key : keys) {
+            final Object[] row = new Object[2];
+            row[ConversationMessageData.INDEX_KEY_RECEIVED_TIMESTAMP] = key[0];
+            row[ConversationMessageData.INDEX_KEY_MESSAGE_ID] = key[1];
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static MatrixCursor createWindowCursor(final long[][] keys) {
+        final String[] projection = ConversationMessageData.getProjection();
+        final MatrixCursor cursor = new MatrixCursor(projection);
+        for (final long[] key : keys) {
+            final Object[] row = new Object[projection.length];
+            row[ConversationMessageData.INDEX_RECEIVED_TIMESTAMP] = key[0];
+            row[ConversationMessageData.INDEX_MESSAGE_ID] = key[1];
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.media.CompositeImageRequest.Tile;
+
+import org.mockito.Mockito;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Class for testing how CompositeImageRequest loads and releases the tiles of a composite image.
+ */
+@SmallTest
+public class CompositeImageRequestTest extends BugleTestCase {
+    public void testTileIsLoadedOnce() throws Exception {
+        final ImageResource resource = Mockito.mock(ImageResource.class);
+        final AtomicInteger loadCount = new AtomicInteger();
+        final Tile tile = new Tile(new Callable<ImageResource>() {
+            @Override
+            public ImageResource call() {
+                loadCount.incrementAndGet();
+                return resource;
+            }
+        });
+        tile.run();
+        tile.run();
+        assertEquals(1, loadCount.get());
+        assertSame(resource, tile.take());
+
+        // The resource belongs to whoever took it
+        assertFalse(tile.abandon());
+        Mockito.verify(resource, Mockito.never()).release();
+    }
+
+    public void testFailedTileHasNoResource() throws Exception {
+        final Tile tile = new Tile(new Callable<ImageResource>() {
+            @Override
+            public ImageResource call() throws Exception {
+                throw new Exception("Missing avatar");
+            }
+        });
+        tile.run();
+        assertNull(tile.take());
+    }
+
+    public void testAbandonedTileIsNotLoaded() {
+        final AtomicInteger loadCount = new AtomicInteger();
+        final Tile tile = new Tile(new Callable<ImageResource>() {
+            @Override
+            public ImageResource call() {
+                loadCount.incrementAndGet();
+                return Mockito.mock(ImageResource.class);
+            }
+        });
+        assertTrue(tile.abandon());
+        tile.run();
+        assertEquals(0, loadCount.get());
+    }
+
+    public void testLoadedTileIsReleasedWhenAbandoned() {
+        final ImageResource resource = Mockito.mock(ImageResource.class);
+        final Tile tile = new Tile(new Callable<ImageResource>() {
+            @Override
+            public ImageResource call() {
+                return resource;
+            }
+        });
+        tile.run();
+        assertFalse(tile.abandon());
+        Mockito.verify(resource).release();
+    }
+
+    public void testTileAbandonedWhileLoadingIsReleasedOnceLoaded() throws Exception {
+        final ImageResource resource = Mockito.mock(ImageResource.class);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch finishLoading = new CountDownLatch(1);
+        final Tile tile = new Tile(new Callable<ImageResource>() {
+            @Override
+            public ImageResource call() throws Exception {
+                loading.countDown();
+                finishLoading.await();
+                return resource;
+            }
+        });
+        final Thread thread = new Thread(tile);
+        thread.start();
+        assertTrue(loading.await(2, TimeUnit.SECONDS));
+
+        // E.g. the composite request was interrupted while the tile loads on another thread
+        assertFalse(tile.abandon());
+        Mockito.verify(resource, Mockito.never()).release();
+        finishLoading.countDown();
+        thread.join(2000);
+        Mockito.verify(resource).release();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+@SmallTest
+public class MediaDiskCacheTest extends BugleTestCase {
+    private static final int KB = 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "media_disk_cache_test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 10 * KB, 0);
+        final byte[] imageBytes = makeImageBytes(KB, (byte) 1);
+        cache.put("image1", null, imageBytes, 90);
+
+        final EncodedImageResource resource = cache.get("image1");
+        assertNotNull(resource);
+        assertEquals("image1", resource.getKey());
+        assertEquals(90, resource.getOrientation());
+        assertTrue(Arrays.equals(imageBytes, resource.getBytes()));
+        assertNull(cache.get("image2"));
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 3 * KB, 0);
+        cache.put("image1", null, makeImageBytes(KB, (byte) 1), 0);
+        cache.put("image2", null, makeImageBytes(KB, (byte) 2), 0);
+        // Use image1 so that image2 is the least recently used
+        assertNotNull(cache.get("image1"));
+
+        // Each entry is a little over 1KB, so this one pushes the cache over its limit
+        cache.put("image3", null, makeImageBytes(KB, (byte) 3), 0);
+        assertTrue(cache.contains("image1"));
+        assertFalse(cache.contains("image2"));
+        assertTrue(cache.contains("image3"));
+        assertTrue(cache.getSizeBytes() <= 3 * KB);
+    }
+
+    public void testJournalReplay() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 3 * KB, 0);
+        cache.put("image1", null, makeImageBytes(KB, (byte) 1), 0);
+        cache.put("image2", null, makeImageBytes(KB, (byte) 2), 0);
+        assertNotNull(cache.get("image1"));
+        // Reads are written out with the next write, or when the buffer fills up
+        cache.flushJournal();
+
+        // A new instance (i.e. after a restart) rebuilds the same entries in the same order
+        final MediaDiskCache reopenedCache = new MediaDiskCache(mDirectory, 3 * KB, 0);
+        assertEquals(cache.getSizeBytes(), reopenedCache.getSizeBytes());
+        reopenedCache.put("image3", null, makeImageBytes(KB, (byte) 3), 0);
+        assertTrue(reopenedCache.contains("image1"));
+        assertFalse(reopenedCache.contains("image2"));
+        assertTrue(Arrays.equals(makeImageBytes(KB, (byte) 3),
+                reopenedCache.get("image3").getBytes()));
+    }
+
+    public void testStrayFilesDeletedOnOpen() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 3 * KB, 0);
+        cache.put("image1", null, makeImageBytes(KB, (byte) 1), 0);
+        // As left by a write that was interrupted by a crash
+        final File strayFile = new File(mDirectory,
+                MediaDiskCache.getEntryName("image2") + ".tmp");
+        assertTrue(new File(mDirectory, MediaDiskCache.getEntryName("image1"))
+                .renameTo(strayFile));
+
+        final MediaDiskCache reopenedCache = new MediaDiskCache(mDirectory, 3 * KB, 0);
+        assertFalse(reopenedCache.contains("image1"));
+        assertEquals(0, reopenedCache.getSizeBytes());
+        assertFalse(strayFile.exists());
+    }
+
+    public void testExpiredEntriesNotReturned() throws InterruptedException {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 3 * KB, 1 /* maxAgeMillis */);
+        cache.put("image1", null, makeImageBytes(KB, (byte) 1), 0);
+        Thread.sleep(10);
+        assertNull(cache.get("image1"));
+        assertFalse(cache.contains("image1"));
+    }
+
+    public void testRemoveSources() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 10 * KB, 0);
+        cache.put("image1|100|100", "content://mms/part/1", makeImageBytes(KB, (byte) 1), 0);
+        cache.put("image1|200|200", "content://mms/part/1", makeImageBytes(KB, (byte) 1), 0);
+        cache.put("image2|100|100", "content://mms/part/2", makeImageBytes(KB, (byte) 2), 0);
+        cache.put("image3", null, makeImageBytes(KB, (byte) 3), 0);
+
+        // Sources are kept across restarts
+        final MediaDiskCache reopenedCache = new MediaDiskCache(mDirectory, 10 * KB, 0);
+        reopenedCache.removeSources(new HashSet<String>(Arrays.asList("content://mms/part/1")));
+        assertFalse(reopenedCache.contains("image1|100|100"));
+        assertFalse(reopenedCache.contains("image1|200|200"));
+        assertTrue(reopenedCache.contains("image2|100|100"));
+        assertTrue(reopenedCache.contains("image3"));
+        assertFalse(new File(mDirectory, MediaDiskCache.getEntryName("image1|100|100")).exists());
+    }
+
+    public void testReadAfterReplace() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 10 * KB, 0);
+        cache.put("image1", null, makeImageBytes(KB, (byte) 1), 0);
+        cache.put("image1", null, makeImageBytes(2 * KB, (byte) 2), 0);
+        assertTrue(Arrays.equals(makeImageBytes(2 * KB, (byte) 2), cache.get("image1").getBytes()));
+    }
+
+    public void testClear() {
+        final MediaDiskCache cache = new MediaDiskCache(mDirectory, 3 * KB, 0);
+        cache.put("image1", null, makeImageBytes(KB, (byte) 1), 0);
+        cache.clear();
+        assertNull(cache.get("image1"));
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    private static byte[] makeImageBytes(final int size, final byte value) {
+        final byte[] imageBytes = new byte[size];
+        Arrays.fill(imageBytes, value);
+        return imageBytes;
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
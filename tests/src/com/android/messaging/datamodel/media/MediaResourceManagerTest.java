@@ -22,7 +22,9 @@ import com.android.messaging.FakeFactory;
 import com.android.messaging.datamodel.MemoryCacheManager;
 import com.android.messaging.datamodel.media.MediaResourceManager.MediaResourceLoadListener;
 
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SmallTest
 public class MediaResourceManagerTest extends BugleTestCase {
@@ -130,6 +132,61 @@ public class MediaResourceManagerTest extends BugleTestCase {
         assertNull(mediaResourceManager.requestMediaResourceSync(invalidRequest));
     }
 
+    public void testIdenticalRequestsCoalesced() throws InterruptedException {
+        final MediaResourceManager mediaResourceManager =
+                new MediaResourceManager();
+        MediaCacheManager.get().reclaim();
+        final long coalescedBefore = MediaResourceManager.sCoalescedRequests.get();
+
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch finishLoad = new CountDownLatch(1);
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch signal = new CountDownLatch(2);
+        final FakeImageResource[] loadedResources = new FakeImageResource[2];
+        for (int i = 0; i < loadedResources.length; i++) {
+            final int index = i;
+            final FakeImageRequest fakeRequest = new FakeImageRequest("image1", 1 * KB) {
+                @Override
+                public FakeImageResource loadMediaBlocking(
+                        final List<MediaRequest<FakeImageResource>> chainedTask)
+                        throws Exception {
+                    loadCount.incrementAndGet();
+                    loadStarted.countDown();
+                    finishLoad.await();
+                    return super.loadMediaBlocking(chainedTask);
+                }
+            };
+            final BindableMediaRequest<FakeImageResource> imageRequest =
+                    AsyncMediaRequestWrapper.createWith(fakeRequest,
+                            new MediaResourceLoadListener<FakeImageResource>() {
+                @Override
+                public void onMediaResourceLoaded(final MediaRequest<FakeImageResource> request,
+                        final FakeImageResource resource, final boolean isCached) {
+                    loadedResources[index] = resource;
+                    signal.countDown();
+                }
+
+                @Override
+                public void onMediaResourceLoadError(
+                        final MediaRequest<FakeImageResource> request,
+                        final Exception exception) {
+                    fail("Coalesced request failed");
+                }});
+            imageRequest.bind("1");
+            mediaResourceManager.requestMediaResourceAsync(imageRequest);
+            // Make sure the first request is loading when the second one comes in
+            loadStarted.await();
+        }
+        finishLoad.countDown();
+        signal.await();
+
+        // Both requests got the resource from a single load
+        assertEquals(1, loadCount.get());
+        assertNotNull(loadedResources[0]);
+        assertSame(loadedResources[0], loadedResources[1]);
+        assertEquals(1, MediaResourceManager.sCoalescedRequests.get() - coalescedBefore);
+    }
+
     private void loadImage(final MediaResourceManager manager, final String key,
             final int size, final boolean shouldBeCached, final boolean shouldFail) {
         try {
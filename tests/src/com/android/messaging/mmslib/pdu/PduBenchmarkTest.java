@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.MicroBenchmark;
+
+/**
+ * Microbenchmarks of parsing and making PDUs, over a corpus of messages like the ones sent and
+ * received: a plain text message, a picture message and a group message.
+ */
+@LargeTest
+public class PduBenchmarkTest extends BugleTestCase {
+    private static final int KB = 1024;
+
+    private static final String SMIL = "<smil><head><layout>"
+            + "<root-layout/>"
+            + "<region id=\"Image\" fit=\"meet\" top=\"0\" left=\"0\" height=\"80%\""
+            + " width=\"100%\"/>"
+            + "<region id=\"Text\" top=\"80%\" left=\"0\" height=\"20%\" width=\"100%\"/>"
+            + "</layout></head><body><par dur=\"5000ms\">"
+            + "<img src=\"image_1.jpg\" region=\"Image\"/>"
+            + "<text src=\"text_0.txt\" region=\"Text\"/>"
+            + "</par></body></smil>";
+
+    private String[] mNames;
+    private SendReq[] mMessages;
+    private byte[][] mPdus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mNames = new String[] { "text", "picture", "group" };
+        mMessages = new SendReq[] {
+                createSendReq(1, null, false),
+                createSendReq(1, null, true),
+                createSendReq(10, "Dinner on Friday?", true) };
+        mPdus = new byte[mMessages.length][];
+        for (int i = 0; i < mMessages.length; i++) {
+            mPdus[i] = new PduComposer(getContext(), mMessages[i]).make();
+            assertNotNull(mPdus[i]);
+        }
+    }
+
+    public void testParseBenchmark() throws Exception {
+        for (int i = 0; i < mPdus.length; i++) {
+            final byte[] pdu = mPdus[i];
+            final GenericPdu parsed = new PduParser(pdu, true).parse();
+            assertTrue(parsed instanceof SendReq);
+            assertEquals(mMessages[i].getBody().getPartsNum(),
+                    ((SendReq) parsed).getBody().getPartsNum());
+
+            MicroBenchmark.run(getTestContext(),
+                    "PduParser.parse " + mNames[i] + " (" + pdu.length + " bytes)",
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public Object run() {
+                            return new PduParser(pdu, true).parse();
+                        }
+                    });
+        }
+    }
+
+    public void testMakeBenchmark() throws Exception {
+        for (int i = 0; i < mMessages.length; i++) {
+            final SendReq sendReq = mMessages[i];
+            MicroBenchmark.run(getTestContext(), "PduComposer.make " + mNames[i],
+                    new MicroBenchmark.Operation() {
+                        @Override
+                        public Object run() {
+                            return new PduComposer(getContext(), sendReq).make();
+                        }
+                    });
+        }
+    }
+
+    private static SendReq createSendReq(final int recipientCount, final String subject,
+            final boolean withImage) throws Exception {
+        final SendReq sendReq = new SendReq();
+        for (int i = 0; i < recipientCount; i++) {
+            sendReq.addTo(new EncodedStringValue("+1650555" + (1000 + i)));
+        }
+        if (subject != null) {
+            sendReq.setSubject(new EncodedStringValue(CharacterSets.UTF_8, subject));
+        }
+        sendReq.setDate(System.currentTimeMillis() / 1000L);
+        sendReq.setExpiry(7 * 24 * 60 * 60);
+        sendReq.setPriority(PduHeaders.PRIORITY_NORMAL);
+        sendReq.setDeliveryReport(PduHeaders.VALUE_NO);
+
+        final PduBody body = new PduBody();
+        if (withImage) {
+            final PduPart smilPart = new PduPart();
+            smilPart.setContentType("application/smil".getBytes());
+            smilPart.setContentLocation("smil.xml".getBytes());
+            smilPart.setContentId("<smil>".getBytes());
+            smilPart.setData(SMIL.getBytes());
+            body.addPart(smilPart);
+        }
+
+        final PduPart textPart = new PduPart();
+        textPart.setContentType("text/plain".getBytes());
+        textPart.setContentLocation("text_0.txt".getBytes());
+        textPart.setContentId("<text_0>".getBytes());
+        textPart.setCharset(CharacterSets.UTF_8);
+        textPart.setData("On my way, see you in ten minutes".getBytes("UTF-8"));
+        body.addPart(textPart);
+
+        if (withImage) {
+            final byte[] image = new byte[100 * KB];
+            for (int i = 0; i < image.length; i++) {
+                image[i] = (byte) i;
+            }
+            final PduPart imagePart = new PduPart();
+            imagePart.setContentType("image/jpeg".getBytes());
+            imagePart.setContentLocation("image_1.jpg".getBytes());
+            imagePart.setContentId("<image_1>".getBytes());
+            imagePart.setName("image_1.jpg".getBytes());
+            imagePart.setData(image);
+            body.addPart(imagePart);
+        }
+
+        sendReq.setBody(body);
+        return sendReq;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class PduComposerTest extends BugleTestCase {
+    private static final String TAG = "PduComposerTest";
+    private static final int KB = 1024;
+
+    private File mPartFile;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mPartFile != null) {
+            mPartFile.delete();
+        }
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testStreamedPduMatchesPduMadeInMemory() throws IOException {
+        final SendReq sendReq = createSendReq(100 * KB);
+        final byte[] expected = new PduComposer(getContext(), sendReq).make();
+        assertNotNull(expected);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final long length = new PduComposer(getContext(), sendReq).make(outputStream);
+        assertEquals(expected.length, length);
+        assertTrue(Arrays.equals(expected, outputStream.toByteArray()));
+    }
+
+    @SmallTest
+    public void testStreamedPduFailsWithoutPartData() throws IOException {
+        final SendReq sendReq = createSendReq(KB);
+        mPartFile.delete();
+        assertEquals(-1, new PduComposer(getContext(), sendReq).make(new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Compares the latency and peak heap use of making a message with an image attachment in
+     * memory and streaming it to a file. Results are logged.
+     */
+    @LargeTest
+    public void testStreamingBenchmark() throws Exception {
+        final File pduFile = new File(getContext().getCacheDir(), "pdu_composer_benchmark.dat");
+        try {
+            for (final int attachmentSize : new int[] { 300 * KB, 1024 * KB, 3 * 1024 * KB }) {
+                final SendReq sendReq = createSendReq(attachmentSize);
+                final HeapSampler inMemorySampler = new HeapSampler();
+                long startTime = SystemClock.elapsedRealtime();
+                final byte[] pdu = new PduComposer(getContext(), sendReq).make();
+                final OutputStream inMemoryOutput = new FileOutputStream(pduFile);
+                try {
+                    inMemoryOutput.write(pdu);
+                } finally {
+                    inMemoryOutput.close();
+                }
+                final long inMemoryMillis = SystemClock.elapsedRealtime() - startTime;
+                final long inMemoryPeakBytes = inMemorySampler.finish();
+
+                final HeapSampler streamingSampler = new HeapSampler();
+                startTime = SystemClock.elapsedRealtime();
+                final OutputStream streamingOutput = new FileOutputStream(pduFile);
+                final long length;
+                try {
+                    length = new PduComposer(getContext(), sendReq).make(streamingOutput);
+                } finally {
+                    streamingOutput.close();
+                }
+                final long streamingMillis = SystemClock.elapsedRealtime() - startTime;
+                final long streamingPeakBytes = streamingSampler.finish();
+
+                assertEquals(pdu.length, length);
+                Log.i(TAG, "Attachment " + (attachmentSize / KB) + "KB: make() "
+                        + inMemoryMillis + "ms, peak heap +" + (inMemoryPeakBytes / KB)
+                        + "KB; make(OutputStream) " + streamingMillis + "ms, peak heap +"
+                        + (streamingPeakBytes / KB) + "KB");
+            }
+        } finally {
+            pduFile.delete();
+        }
+    }
+
+    private SendReq createSendReq(final int attachmentSize) throws IOException {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("6505551234"));
+
+        final PduBody body = new PduBody();
+        final PduPart textPart = new PduPart();
+        textPart.setContentType("text/plain".getBytes());
+        textPart.setContentLocation("text_0.txt".getBytes());
+        textPart.setCharset(CharacterSets.UTF_8);
+        textPart.setData("Hello".getBytes());
+        body.addPart(textPart);
+
+        // The attachment comes from a file like the parts of outgoing messages
+        mPartFile = new File(getContext().getCacheDir(), "pdu_composer_test.jpg");
+        final byte[] attachment = new byte[attachmentSize];
+        for (int i = 0; i < attachmentSize; i++) {
+            attachment[i] = (byte) i;
+        }
+        final OutputStream outputStream = new FileOutputStream(mPartFile);
+        try {
+            outputStream.write(attachment);
+        } finally {
+            outputStream.close();
+        }
+        final PduPart imagePart = new PduPart();
+        imagePart.setContentType("image/jpeg".getBytes());
+        imagePart.setContentLocation("image_1.jpg".getBytes());
+        imagePart.setContentId("<image_1>".getBytes());
+        imagePart.setDataUri(Uri.fromFile(mPartFile));
+        body.addPart(imagePart);
+
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    /**
+     * Samples the heap in use, relative to when it started, until it's stopped.
+     */
+    private static class HeapSampler extends Thread {
+        private final long mBaseBytes;
+        private volatile boolean mStopped;
+        private volatile long mPeakBytes;
+
+        HeapSampler() {
+            System.gc();
+            mBaseBytes = getUsedBytes();
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                mPeakBytes = Math.max(mPeakBytes, getUsedBytes() - mBaseBytes);
+                SystemClock.sleep(1);
+            }
+        }
+
+        long finish() throws InterruptedException {
+            mStopped = true;
+            join();
+            return mPeakBytes;
+        }
+
+        private static long getUsedBytes() {
+            final Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
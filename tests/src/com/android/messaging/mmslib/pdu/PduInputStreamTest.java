@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+@SmallTest
+public class PduInputStreamTest extends BugleTestCase {
+    // Larger than the read buffer of channel streams
+    private static final int DATA_SIZE = 20000;
+
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mRandomAccessFile != null) {
+            mRandomAccessFile.close();
+        }
+        if (mFile != null) {
+            mFile.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testByteArrayStream() {
+        final byte[] data = makeData();
+        checkStream(PduInputStream.fromBytes(data), data);
+    }
+
+    public void testChannelStream() throws IOException {
+        final byte[] data = makeData();
+        checkStream(createChannelStream(data), data);
+    }
+
+    public void testChannelStreamErrorEndsStream() throws IOException {
+        final PduInputStream stream = createChannelStream(makeData());
+        assertEquals(0, stream.read());
+        mRandomAccessFile.close();
+        // Skip past the buffered bytes so that the next read goes to the closed channel
+        stream.skip(DATA_SIZE / 2);
+        assertEquals(-1, stream.read());
+        assertNotNull(stream.getIOException());
+        assertEquals(0, stream.available());
+    }
+
+    private void checkStream(final PduInputStream stream, final byte[] data) {
+        assertEquals(DATA_SIZE, stream.available());
+
+        // Single bytes, mark and reset
+        assertEquals(data[0] & 0xff, stream.read());
+        stream.mark(1);
+        assertEquals(data[1] & 0xff, stream.read());
+        assertEquals(data[2] & 0xff, stream.read());
+        stream.reset();
+        assertEquals(data[1] & 0xff, stream.read());
+        assertEquals(DATA_SIZE - 2, stream.available());
+
+        // Bulk read
+        final byte[] buffer = new byte[100];
+        assertEquals(buffer.length, stream.read(buffer, 0, buffer.length));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 2, 102), buffer));
+
+        // A sub stream is a view of the next bytes, which the parent stream skips
+        final PduInputStream subStream = stream.readSubStream(10000);
+        assertEquals(10000, subStream.available());
+        assertEquals(DATA_SIZE - 10102, stream.available());
+        assertEquals(data[102] & 0xff, subStream.read());
+        subStream.skip(9998);
+        assertEquals(data[10101] & 0xff, subStream.read());
+        assertEquals(-1, subStream.read());
+
+        // Copy the rest to a channel
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            assertEquals(DATA_SIZE - 10102,
+                    stream.readTo(Channels.newChannel(outputStream), DATA_SIZE));
+        } catch (final IOException e) {
+            fail("Copying to a channel failed: " + e);
+        }
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10102, DATA_SIZE),
+                outputStream.toByteArray()));
+        assertEquals(0, stream.available());
+        assertEquals(-1, stream.read());
+        assertEquals(-1, stream.read(buffer, 0, buffer.length));
+        assertNull(stream.getIOException());
+    }
+
+    private PduInputStream createChannelStream(final byte[] data) throws IOException {
+        mFile = new File(getContext().getCacheDir(), "pdu_input_stream_test.dat");
+        final FileOutputStream outputStream = new FileOutputStream(mFile);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+        mRandomAccessFile = new RandomAccessFile(mFile, "r");
+        return PduInputStream.fromChannel(mRandomAccessFile.getChannel());
+    }
+
+    private static byte[] makeData() {
+        final byte[] data = new byte[DATA_SIZE];
+        for (int i = 0; i < DATA_SIZE; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.content.ContentValues;
+import android.content.res.XmlResourceParser;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.MicroBenchmark;
+import com.android.messaging.R;
+
+/**
+ * Microbenchmarks of processing the APN and MMS config resources bundled with the app, as done when
+ * the APN database is created and when the MMS config is loaded.
+ */
+@LargeTest
+public class ApnsXmlProcessorBenchmarkTest extends BugleTestCase {
+    public void testApnsBenchmark() throws Exception {
+        assertTrue(process(R.xml.apns) > 0);
+
+        MicroBenchmark.run(getTestContext(), "ApnsXmlProcessor.process apns",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return process(R.xml.apns);
+                    }
+                });
+    }
+
+    public void testMmsConfigBenchmark() throws Exception {
+        assertTrue(process(R.xml.mms_config) > 0);
+
+        MicroBenchmark.run(getTestContext(), "ApnsXmlProcessor.process mms_config",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return process(R.xml.mms_config);
+                    }
+                });
+    }
+
+    /**
+     * @return the number of APNs and MMS config values processed
+     */
+    private int process(final int resId) {
+        final int[] count = new int[1];
+        final XmlResourceParser xml = getContext().getResources().getXml(resId);
+        try {
+            ApnsXmlProcessor.get(xml)
+                    .setApnHandler(new ApnsXmlProcessor.ApnHandler() {
+                        @Override
+                        public void process(final ContentValues apnValues) {
+                            count[0]++;
+                        }
+                    })
+                    .setMmsConfigHandler(new ApnsXmlProcessor.MmsConfigHandler() {
+                        @Override
+                        public void process(final String mccMnc, final String key,
+                                final String value, final String type) {
+                            count[0]++;
+                        }
+                    })
+                    .process();
+        } finally {
+            xml.close();
+        }
+        return count[0];
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+
+/*
+ * Class for testing ContactTypeaheadIndex.
+ */
+@SmallTest
+public class ContactTypeaheadIndexTest extends BugleTestCase {
+    private ContactTypeaheadIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mIndex = new ContactTypeaheadIndex();
+
+        final MatrixCursor phones = new MatrixCursor(ContactTypeaheadIndex.PHONE_PROJECTION);
+        addPhone(phones, 1, "Anna Smith", "(650) 555-1111", "+16505551111", 100);
+        addPhone(phones, 1, "Anna Smith", "650-555-2222", "+16505552222", 100);
+        addPhone(phones, 2, "Zoë Baker", "415 555 3333", "+14155553333", 200);
+        addPhone(phones, 3, "Bob Anderson", "650.555.4444", "+16505554444", 300);
+        final MatrixCursor emails = new MatrixCursor(ContactTypeaheadIndex.EMAIL_PROJECTION);
+        addEmail(emails, 2, "Zoë Baker", "zoe.baker@example.com", 200);
+        assertEquals(300, mIndex.applyChanges(phones, emails, null /*changedContactIds*/));
+    }
+
+    public void testNotBuilt() {
+        assertNull(new ContactTypeaheadIndex().filterDestination("anna"));
+    }
+
+    public void testFilterByName() {
+        assertDestinations(mIndex.filterDestination("an"), "(650) 555-1111", "650-555-2222",
+                "650.555.4444");
+        assertDestinations(mIndex.filterDestination("Anna S"), "(650) 555-1111",
+                "650-555-2222");
+        assertDestinations(mIndex.filterDestination("smith anna"), "(650) 555-1111",
+                "650-555-2222");
+        // Accents are ignored
+        assertDestinations(mIndex.filterDestination("zoe"), "415 555 3333");
+        assertDestinations(mIndex.filterDestination("Zoë"), "415 555 3333");
+        assertDestinations(mIndex.filterDestination("carl"));
+    }
+
+    public void testFilterByNumber() {
+        assertDestinations(mIndex.filterDestination("650555"), "(650) 555-1111", "650-555-2222",
+                "650.555.4444");
+        assertDestinations(mIndex.filterDestination("(650) 555-22"), "650-555-2222");
+        assertDestinations(mIndex.filterDestination("+1415"), "415 555 3333");
+    }
+
+    public void testFilterEmails() {
+        assertDestinations(mIndex.filterDestination("zoe.baker@ex"), "zoe.baker@example.com");
+        assertDestinations(mIndex.filterPhonesAndEmails("zoe"), "415 555 3333",
+                "zoe.baker@example.com");
+    }
+
+    public void testApplyChanges() {
+        // Bob loses his number, Anna is renamed and Zoë is deleted
+        final HashSet<Long> changedContactIds = new HashSet<Long>();
+        Collections.addAll(changedContactIds, 1L, 2L, 3L);
+        final MatrixCursor phones = new MatrixCursor(ContactTypeaheadIndex.PHONE_PROJECTION);
+        addPhone(phones, 1, "Anna Jones", "(650) 555-1111", "+16505551111", 400);
+        mIndex.applyChanges(phones, null /*emails*/, changedContactIds);
+
+        assertDestinations(mIndex.filterDestination("an"), "(650) 555-1111");
+        assertDestinations(mIndex.filterDestination("smith"));
+        assertDestinations(mIndex.filterDestination("jones"), "(650) 555-1111");
+        assertDestinations(mIndex.filterPhonesAndEmails("zoe"));
+    }
+
+    public void testContactUpdatedDuringRefreshIsNotDuplicated() {
+        // Bob is updated after the ids of the changed contacts were read, so his rows come back
+        // along with Anna's
+        final HashSet<Long> changedContactIds = new HashSet<Long>();
+        Collections.addAll(changedContactIds, 1L);
+        final MatrixCursor phones = new MatrixCursor(ContactTypeaheadIndex.PHONE_PROJECTION);
+        addPhone(phones, 1, "Anna Smith", "(650) 555-1111", "+16505551111", 400);
+        addPhone(phones, 3, "Bob Anderson", "650.555.4444", "+16505554444", 500);
+        assertEquals(500, mIndex.applyChanges(phones, null /*emails*/, changedContactIds));
+
+        assertDestinations(mIndex.filterDestination("bob"), "650.555.4444");
+        assertDestinations(mIndex.filterDestination("anna"), "(650) 555-1111");
+        assertDestinations(mIndex.filterDestination("zoe"), "415 555 3333");
+    }
+
+    private static void assertDestinations(final Cursor cursor, final String... destinations) {
+        final ArrayList<String> found = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                found.add(cursor.getString(ContactUtil.INDEX_PHONE_EMAIL));
+            }
+        } finally {
+            cursor.close();
+        }
+        final ArrayList<String> expected = new ArrayList<String>();
+        Collections.addAll(expected, destinations);
+        Collections.sort(found);
+        Collections.sort(expected);
+        assertEquals(expected, found);
+    }
+
+    private static void addPhone(final MatrixCursor cursor, final long contactId,
+            final String name, final String number, final String normalizedNumber,
+            final long lastUpdatedTimestamp) {
+        cursor.addRow(new Object[] { contactId, name, null /*photo*/, number, 2 /*type*/,
+                null /*label*/, "lookup" + contactId, contactId * 10 + cursor.getCount(), name,
+                lastUpdatedTimestamp, normalizedNumber });
+    }
+
+    private static void addEmail(final MatrixCursor cursor, final long contactId,
+            final String name, final String address, final long lastUpdatedTimestamp) {
+        cursor.addRow(new Object[] { contactId, name, null /*photo*/, address, 1 /*type*/,
+                null /*label*/, "lookup" + contactId, contactId * 10 + 5, name,
+                lastUpdatedTimestamp });
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/*
+ * Class for testing PerfMetrics.
+ */
+@SmallTest
+public class PerfMetricsTest extends BugleTestCase {
+    public void testSameMetricForName() {
+        assertSame(PerfMetrics.counter("test.same"), PerfMetrics.counter("test.same"));
+        assertSame(PerfMetrics.gauge("test.same"), PerfMetrics.gauge("test.same"));
+        assertSame(PerfMetrics.rate("test.same"), PerfMetrics.rate("test.same"));
+        assertSame(PerfMetrics.histogram("test.same"), PerfMetrics.histogram("test.same"));
+    }
+
+    public void testHistogram() {
+        final PerfMetrics.Histogram histogram = new PerfMetrics.Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        // 50 is in the bucket of 32-63 and 90 in the one of 64-127, capped by the maximum
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.9));
+        assertEquals(0, histogram.getPercentile(0.0));
+    }
+
+    public void testRateCountsTheLastMinute() {
+        final PerfMetrics.Rate rate = new PerfMetrics.Rate();
+        rate.mark(100000);
+        rate.mark(100500);
+        rate.mark(130000);
+        assertEquals(3, rate.getPerMinute(130000));
+        assertEquals(3, rate.getPerMinute(159999));
+
+        // Events drop out a minute after their second
+        assertEquals(1, rate.getPerMinute(160000));
+        assertEquals(0, rate.getPerMinute(190000));
+
+        // A bucket is reused for a later second
+        rate.mark(220000);
+        assertEquals(1, rate.getPerMinute(220000));
+    }
+
+    public void testExport() {
+        PerfMetrics.counter("test.export.counter").add(3);
+        PerfMetrics.gauge("test.export.gauge").set(7);
+        PerfMetrics.rate("test.export.rate").mark();
+        PerfMetrics.histogram("test.export.histogram").record(10);
+
+        final StringWriter export = new StringWriter();
+        PerfMetrics.export(new PrintWriter(export));
+        final String[] lines = export.toString().split("\n");
+        assertEquals("name\ttype\tcount\tsum\tp50\tp90\tp99\tmax", lines[0]);
+        assertTrue(containsLine(lines, "test.export.counter\tcounter\t3\t\t\t\t\t"));
+        assertTrue(containsLine(lines, "test.export.gauge\tgauge\t7\t\t\t\t\t"));
+        assertTrue(containsLine(lines, "test.export.rate\trate\t1\t\t\t\t\t"));
+        assertTrue(containsLine(lines, "test.export.histogram\thistogram\t1\t10\t10\t10\t10\t10"));
+    }
+
+    private static boolean containsLine(final String[] lines, final String line) {
+        for (final String candidate : lines) {
+            if (candidate.equals(line)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
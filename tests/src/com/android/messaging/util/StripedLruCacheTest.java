@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+/*
+ * Class for testing StripedLruCache.
+ */
+@SmallTest
+public class StripedLruCacheTest extends BugleTestCase {
+    public void testHitsAndMisses() {
+        final StripedLruCache<String, String> cache = new StripedLruCache<String, String>(100);
+        assertNull(cache.get("6505551111"));
+        cache.put("6505551111", "+16505551111");
+        assertEquals("+16505551111", cache.get("6505551111"));
+        cache.put("6505551111", "+16505552222");
+        assertEquals("+16505552222", cache.get("6505551111"));
+
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+
+        cache.clear();
+        assertNull(cache.get("6505551111"));
+    }
+
+    public void testSizeIsBounded() {
+        final StripedLruCache<Integer, Integer> cache = new StripedLruCache<Integer, Integer>(64);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            // The entry just added is the most recently used of its stripe
+            assertEquals(Integer.valueOf(i), cache.get(i));
+        }
+        assertTrue(cache.size() <= 64);
+        assertEquals(1000 - cache.size(), cache.getEvictionCount());
+    }
+
+    public void testConcurrentUse() throws InterruptedException {
+        final StripedLruCache<Integer, Integer> cache = new StripedLruCache<Integer, Integer>(64);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 10000;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < offset + 10000; i++) {
+                        cache.put(i % 200, i % 200);
+                        final Integer value = cache.get(i % 100);
+                        assertTrue(value == null || value == i % 100);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 64);
+        assertEquals(40000, cache.getHitCount() + cache.getMissCount());
+    }
+}
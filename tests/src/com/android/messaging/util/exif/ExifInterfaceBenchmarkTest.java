@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util.exif;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.MicroBenchmark;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Microbenchmark of reading the EXIF header of a camera-like JPEG, with the usual tags and a
+ * thumbnail, as done for each image attachment to find its orientation.
+ */
+@LargeTest
+public class ExifInterfaceBenchmarkTest extends BugleTestCase {
+    private static final short ORIENTATION = ExifInterface.getOrientationValueForRotation(90);
+
+    public void testReadExifBenchmark() throws Exception {
+        final byte[] jpeg = createJpeg();
+        final ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        assertEquals(Integer.valueOf(ORIENTATION),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertNotNull(exif.getThumbnailBytes());
+
+        MicroBenchmark.run(getTestContext(), "ExifInterface.readExif (" + jpeg.length + " bytes)",
+                new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() throws Exception {
+                        final ExifInterface parsed = new ExifInterface();
+                        parsed.readExif(jpeg);
+                        return parsed;
+                    }
+                });
+    }
+
+    private static byte[] createJpeg() throws Exception {
+        final ExifInterface exif = new ExifInterface();
+        exif.setTagValue(ExifInterface.TAG_MAKE, "Google");
+        exif.setTagValue(ExifInterface.TAG_MODEL, "Nexus 6");
+        exif.setTagValue(ExifInterface.TAG_DATE_TIME, "2015:06:01 12:00:00");
+        exif.setTagValue(ExifInterface.TAG_ORIENTATION, Short.valueOf(ORIENTATION));
+
+        final ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+        createBitmap(160, 120).compress(Bitmap.CompressFormat.JPEG, 90, thumbnail);
+        exif.setCompressedThumbnail(thumbnail.toByteArray());
+
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        exif.writeExif(createBitmap(640, 480), jpeg);
+        return jpeg.toByteArray();
+    }
+
+    private static Bitmap createBitmap(final int width, final int height) {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                bitmap.setPixel(x, y, Color.rgb(x % 256, y % 256, (x + y) % 256));
+            }
+        }
+        return bitmap;
+    }
+}